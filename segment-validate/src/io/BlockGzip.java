@@ -0,0 +1,320 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * This class groups the format constants and the member encoding/decoding
+ * shared by BlockGzipOutputStream and BlockGzipInputStream.
+ * 
+ * A block compressed file is a series of independent gzip members (RFC 1952)
+ * of at most 64 KB each, as in the BGZF format of htslib: every member has an
+ * extra field "BC" giving its compressed size, so that a reader can split the
+ * file into members without inflating them, and the file ends with an empty
+ * member. Standard tools (gunzip, zlib, ITK, GZIPInputStream) read such files
+ * as one gzip stream.
+ * 
+ * @author pnb
+ * 
+ */
+final class BlockGzip {
+
+	// maximum number of uncompressed bytes per member (the compressed member
+	// then always fits in 64 KB)
+	static final int BLOCK_SIZE = 0xff00;
+	// maximum size of a compressed member
+	static final int MAX_MEMBER_SIZE = 0x10000;
+	// size of the member header with the BC extra field
+	static final int HEADER_SIZE = 18;
+	// size of the member trailer (CRC32 and ISIZE)
+	static final int TRAILER_SIZE = 8;
+
+	// empty member marking the end of the file
+	static final byte[] EOF_MEMBER = { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0,
+			(byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0,
+			0, 0, 0 };
+
+	// gzip header flags
+	static final int FHCRC = 2;
+	static final int FEXTRA = 4;
+	static final int FNAME = 8;
+	static final int FCOMMENT = 16;
+
+	private static ExecutorService pool = null;
+	private static int numberOfThreads = Runtime.getRuntime()
+			.availableProcessors();
+
+	// one deflater and one inflater per thread, reused between members
+	private static ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>();
+	private static ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>();
+
+	private BlockGzip() {
+	}
+
+	/**
+	 * @return the pool compressing and decompressing the members (daemon
+	 *         threads, separate from the pool of ParallelLoop so that streams
+	 *         can be used inside parallel loops)
+	 */
+	static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(numberOfThreads,
+					new ThreadFactory() {
+						private int count = 0;
+
+						@Override
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "BlockGzip-" + count++);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the number of threads of the pool
+	 */
+	static int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * Compresses one block into a complete gzip member with the BC extra
+	 * field
+	 * 
+	 * @param data
+	 *            - uncompressed bytes
+	 * @param offset
+	 *            - offset of the block in data
+	 * @param length
+	 *            - length of the block (at most BLOCK_SIZE)
+	 * @param level
+	 *            - compression level (Deflater.NO_COMPRESSION to
+	 *            Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION)
+	 * @return the bytes of the member
+	 */
+	static byte[] compressMember(byte[] data, int offset, int length, int level) {
+		if (length > BLOCK_SIZE)
+			throw new IllegalArgumentException("Block too large: " + length);
+
+		Deflater deflater = getDeflater(level);
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		byte[] member = new byte[MAX_MEMBER_SIZE];
+		int size = HEADER_SIZE;
+		while (!deflater.finished()) {
+			int n = deflater.deflate(member, size, MAX_MEMBER_SIZE
+					- TRAILER_SIZE - size);
+			if (n == 0 && size == MAX_MEMBER_SIZE - TRAILER_SIZE)
+				throw new IllegalStateException(
+						"The compressed block does not fit in a member");
+			size += n;
+		}
+		deflater.reset();
+
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		int memberSize = size + TRAILER_SIZE;
+
+		// header: magic, deflate, FEXTRA, no time, unknown OS
+		member[0] = 0x1f;
+		member[1] = (byte) 0x8b;
+		member[2] = 8;
+		member[3] = FEXTRA;
+		member[9] = (byte) 0xff;
+		// extra field: XLEN = 6, subfield BC of length 2 with BSIZE
+		member[10] = 6;
+		member[12] = 'B';
+		member[13] = 'C';
+		member[14] = 2;
+		putShort(member, 16, memberSize - 1);
+		// trailer
+		putInt(member, size, (int) crc.getValue());
+		putInt(member, size + 4, length);
+
+		byte[] result = new byte[memberSize];
+		System.arraycopy(member, 0, result, 0, memberSize);
+		return result;
+	}
+
+	/**
+	 * Decompresses a complete gzip member and checks its CRC and size
+	 * 
+	 * @param member
+	 *            - bytes of the member
+	 * @return the uncompressed bytes
+	 * @throws ZipException
+	 *             if the member is corrupted
+	 */
+	static byte[] decompressMember(byte[] member) throws ZipException {
+		int offset = getHeaderLength(member, member.length);
+		if (offset < 0 || member.length < offset + TRAILER_SIZE)
+			throw new ZipException("Not in GZIP format");
+		int isize = getInt(member, member.length - 4);
+		int crcValue = getInt(member, member.length - 8);
+		if (isize < 0)
+			throw new ZipException("Invalid gzip member size");
+
+		byte[] data = new byte[isize];
+		Inflater inflater = getInflater();
+		try {
+			// the trailer is given too (the inflater stops at the end of the
+			// deflate data, and raw inflating may need one extra byte)
+			inflater.setInput(member, offset, member.length - offset);
+			int size = 0;
+			while (size < isize && !inflater.finished()) {
+				int n = inflater.inflate(data, size, isize - size);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				size += n;
+			}
+			if (size != isize)
+				throw new ZipException("Corrupt gzip member (size)");
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.reset();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, isize);
+		if ((int) crc.getValue() != crcValue)
+			throw new ZipException("Corrupt gzip member (CRC)");
+		return data;
+	}
+
+	/**
+	 * Computes the length of a gzip member header
+	 * 
+	 * @param bytes
+	 *            - bytes starting with the member header
+	 * @param length
+	 *            - number of available bytes
+	 * @return the length of the header, -1 if it is not a gzip header, or -2
+	 *         if more bytes are needed
+	 */
+	static int getHeaderLength(byte[] bytes, int length) {
+		if (length < 10)
+			return -2;
+		if ((bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b
+				|| bytes[2] != 8)
+			return -1;
+		int flags = bytes[3] & 0xff;
+		int offset = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (length < offset + 2)
+				return -2;
+			offset += 2 + getShort(bytes, offset);
+		}
+		if ((flags & FNAME) != 0)
+			offset = skipString(bytes, offset, length);
+		if (offset >= 0 && (flags & FCOMMENT) != 0)
+			offset = skipString(bytes, offset, length);
+		if (offset >= 0 && (flags & FHCRC) != 0)
+			offset += 2;
+		if (offset < 0 || offset > length)
+			return -2;
+		return offset;
+	}
+
+	/**
+	 * Looks for the BC extra field of a member header
+	 * 
+	 * @param header
+	 *            - the first bytes of the member (at least the fixed 10 bytes
+	 *            and the extra field)
+	 * @return the total size of the member, or -1 if the header has no BC
+	 *         field
+	 */
+	static int getMemberSize(byte[] header) {
+		if ((header[3] & FEXTRA) == 0)
+			return -1;
+		int xlen = getShort(header, 10);
+		int offset = 12;
+		while (offset + 4 <= 12 + xlen) {
+			int slen = getShort(header, offset + 2);
+			if (header[offset] == 'B' && header[offset + 1] == 'C' && slen == 2)
+				return getShort(header, offset + 4) + 1;
+			offset += 4 + slen;
+		}
+		return -1;
+	}
+
+	private static int skipString(byte[] bytes, int offset, int length) {
+		while (offset < length && bytes[offset] != 0)
+			offset++;
+		return (offset < length) ? offset + 1 : -2;
+	}
+
+	private static Deflater getDeflater(int level) {
+		// levels -1 to 9
+		Deflater[] perLevel = deflaters.get();
+		if (perLevel == null) {
+			perLevel = new Deflater[11];
+			deflaters.set(perLevel);
+		}
+		Deflater deflater = perLevel[level + 1];
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+			perLevel[level + 1] = deflater;
+		}
+		return deflater;
+	}
+
+	private static Inflater getInflater() {
+		Inflater inflater = inflaters.get();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+			inflaters.set(inflater);
+		}
+		return inflater;
+	}
+
+	static int getShort(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8);
+	}
+
+	static int getInt(byte[] b, int offset) {
+		return getShort(b, offset) | (getShort(b, offset + 2) << 16);
+	}
+
+	private static void putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		putShort(b, offset, value);
+		putShort(b, offset + 2, value >>> 16);
+	}
+
+}
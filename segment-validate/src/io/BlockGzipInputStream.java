@@ -0,0 +1,238 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * This is an input stream reading gzip files. The members of block compressed
+ * files (written by BlockGzipOutputStream, bgzip or any BGZF writer) are read
+ * ahead and decompressed on a thread pool; from the first member without the
+ * BC extra field (regular gzip file), the rest of the file is decompressed
+ * sequentially by a GZIPInputStream.
+ * 
+ * @author pnb
+ * 
+ */
+public class BlockGzipInputStream extends InputStream {
+
+	private PushbackInputStream in;
+	// members being decompressed, in file order
+	private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private int maxPending = 2 * BlockGzip.getNumberOfThreads();
+	// regular gzip data after the block compressed members
+	private GZIPInputStream sequential = null;
+	private boolean endOfMembers = false;
+	private byte[] block = new byte[0];
+	private int blockPosition = 0;
+	private boolean closed = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param in
+	 *            - stream of the gzip file
+	 * @throws IOException
+	 *             if the stream does not start with a gzip header
+	 */
+	public BlockGzipInputStream(InputStream in) throws IOException {
+		this.in = new PushbackInputStream(in, BlockGzip.MAX_MEMBER_SIZE);
+		if (!readMember() && sequential == null)
+			throw new ZipException("Not in GZIP format");
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureData())
+			return -1;
+		return block[blockPosition++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		if (!ensureData())
+			return -1;
+		int n = Math.min(len, block.length - blockPosition);
+		System.arraycopy(block, blockPosition, b, off, n);
+		blockPosition += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return closed ? 0 : block.length - blockPosition;
+	}
+
+	/**
+	 * Reads exactly len bytes
+	 * 
+	 * @throws EOFException
+	 *             if the end of the data is reached before
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = read(b, off, len);
+			if (n < 0)
+				throw new EOFException();
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		for (Future<byte[]> future : pending)
+			future.cancel(false);
+		pending.clear();
+		if (sequential != null)
+			sequential.close();
+		else
+			in.close();
+	}
+
+	/**
+	 * Makes sure that the current block has unread bytes
+	 * 
+	 * @return false at the end of the data
+	 */
+	private boolean ensureData() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (blockPosition == block.length) {
+			while (!endOfMembers && pending.size() < maxPending)
+				readMember();
+			if (pending.isEmpty()) {
+				if (sequential == null)
+					return false;
+				// regular gzip data: decompressed in the calling thread
+				block = new byte[BlockGzip.BLOCK_SIZE];
+				int n = sequential.read(block);
+				if (n < 0) {
+					block = new byte[0];
+					blockPosition = 0;
+					return false;
+				}
+				if (n < block.length) {
+					byte[] b = new byte[n];
+					System.arraycopy(block, 0, b, 0, n);
+					block = b;
+				}
+			} else {
+				block = nextMember();
+			}
+			blockPosition = 0;
+		}
+		return true;
+	}
+
+	private byte[] nextMember() throws IOException {
+		Future<byte[]> future = pending.poll();
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decompressing");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while decompressing a block",
+					e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the next member and sends it to the pool
+	 * 
+	 * @return false if there is no more member or if the next member is not
+	 *         block compressed
+	 */
+	private boolean readMember() throws IOException {
+		byte[] header = new byte[BlockGzip.HEADER_SIZE];
+		int n = readAtMost(header, 0, header.length);
+		if (n == 0) {
+			endOfMembers = true;
+			return false;
+		}
+		int size = (n == header.length) ? BlockGzip.getMemberSize(header) : -1;
+		if (size < 0 || BlockGzip.getHeaderLength(header, n) < 0) {
+			// not a block compressed member
+			in.unread(header, 0, n);
+			endOfMembers = true;
+			if (BlockGzip.getHeaderLength(header, n) == -1) {
+				// trailing garbage is ignored, as by GZIPInputStream
+				if (!pending.isEmpty())
+					return false;
+				throw new ZipException("Not in GZIP format");
+			}
+			sequential = new GZIPInputStream(in, BlockGzip.BLOCK_SIZE);
+			return false;
+		}
+		if (size < BlockGzip.HEADER_SIZE + BlockGzip.TRAILER_SIZE)
+			throw new ZipException("Invalid block size: " + size);
+
+		final byte[] member = new byte[size];
+		System.arraycopy(header, 0, member, 0, header.length);
+		if (readAtMost(member, header.length, size - header.length) != size
+				- header.length)
+			throw new EOFException("Unexpected end of gzip file");
+		pending.add(BlockGzip.getPool().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return BlockGzip.decompressMember(member);
+			}
+		}));
+		return true;
+	}
+
+	/**
+	 * Reads up to len bytes, stopping only at the end of the stream
+	 * 
+	 * @return the number of bytes read
+	 */
+	private int readAtMost(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(b, off + total, len - total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+}
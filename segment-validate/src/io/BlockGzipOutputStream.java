@@ -0,0 +1,201 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * This is an output stream writing block compressed gzip files (.fits.gz,
+ * .nii.gz). The data are cut into blocks of 64 KB which are compressed into
+ * independent gzip members on a thread pool while the caller keeps writing;
+ * the members are written in order. The files can be read by any gzip reader
+ * (see BlockGzip for the format) and in parallel by BlockGzipInputStream.
+ * 
+ * @author pnb
+ * 
+ */
+public class BlockGzipOutputStream extends OutputStream {
+
+	private OutputStream out;
+	private int level;
+	private byte[] block = new byte[BlockGzip.BLOCK_SIZE];
+	private int count = 0;
+	// members being compressed, in file order
+	private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private int maxPending = 2 * BlockGzip.getNumberOfThreads();
+	private boolean closed = false;
+
+	/**
+	 * Constructor with the fastest compression level (Deflater.BEST_SPEED):
+	 * segmentation masks, mostly zeros, are still about a hundred times
+	 * smaller and the compression is three times faster than with the default
+	 * level
+	 * 
+	 * @param out
+	 *            - stream receiving the compressed members
+	 */
+	public BlockGzipOutputStream(OutputStream out) {
+		this(out, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param out
+	 *            - stream receiving the compressed members
+	 * @param level
+	 *            - compression level (Deflater.NO_COMPRESSION to
+	 *            Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION)
+	 */
+	public BlockGzipOutputStream(OutputStream out, int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION
+				|| level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: "
+					+ level);
+		this.out = out;
+		this.level = level;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		block[count++] = (byte) b;
+		if (count == block.length)
+			submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || off + len > b.length)
+			throw new IndexOutOfBoundsException();
+		while (len > 0) {
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == block.length)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer
+	 * 
+	 * @param buffer
+	 *            - bytes to write (the position of the buffer is moved to its
+	 *            limit)
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		ensureOpen();
+		while (buffer.hasRemaining()) {
+			int n = Math.min(buffer.remaining(), block.length - count);
+			buffer.get(block, count, n);
+			count += n;
+			if (count == block.length)
+				submitBlock();
+		}
+	}
+
+	/**
+	 * Compresses the current (partial) block, writes all the members and
+	 * flushes the underlying stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		submitBlock();
+		while (!pending.isEmpty())
+			writeNextMember();
+		out.flush();
+	}
+
+	/**
+	 * Writes the remaining members and the end of file marker, then closes the
+	 * underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			submitBlock();
+			while (!pending.isEmpty())
+				writeNextMember();
+			out.write(BlockGzip.EOF_MEMBER);
+		} finally {
+			closed = true;
+			for (Future<byte[]> future : pending)
+				future.cancel(false);
+			pending.clear();
+			out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+	}
+
+	/**
+	 * Sends the current block to the pool, and writes the oldest members if
+	 * too many blocks are waiting
+	 */
+	private void submitBlock() throws IOException {
+		if (count == 0)
+			return;
+		final byte[] data = block;
+		final int length = count;
+		pending.add(BlockGzip.getPool().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return BlockGzip.compressMember(data, 0, length, level);
+			}
+		}));
+		block = new byte[BlockGzip.BLOCK_SIZE];
+		count = 0;
+		while (pending.size() > maxPending)
+			writeNextMember();
+	}
+
+	private void writeNextMember() throws IOException {
+		Future<byte[]> future = pending.poll();
+		try {
+			out.write(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Error while compressing a block", e.getCause());
+		}
+	}
+
+}
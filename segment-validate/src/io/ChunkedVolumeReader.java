@@ -0,0 +1,388 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import segment3D.Segment3DImage;
+import util.ParallelLoop;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * This is a class for reading a chunked volume file written by
+ * ChunkedVolumeWriter. Only the chunks intersecting the requested region are
+ * read and decompressed, in parallel (the file is read with positional reads,
+ * the reader can be shared between threads).
+ * 
+ * @author pnb
+ * 
+ */
+public class ChunkedVolumeReader {
+
+	private String path;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int width;
+	private int height;
+	private int depth;
+	private int bitDepth;
+	private int chunkSize;
+	private int chunksX;
+	private int chunksY;
+	private Calibration calibration = new Calibration();
+	private long[] offsets;
+	private int[] lengths;
+
+	private ChunkedVolumeReader() {
+	}
+
+	/**
+	 * Opens a chunked volume file and reads its index
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @return the reader (to be closed)
+	 * @throws IOException
+	 *             if the file is not a chunked volume file
+	 */
+	public static ChunkedVolumeReader open(String path) throws IOException {
+		ChunkedVolumeReader reader = new ChunkedVolumeReader();
+		reader.path = path;
+		reader.file = new RandomAccessFile(new File(path), "r");
+		try {
+			reader.channel = reader.file.getChannel();
+			reader.readIndex();
+		} catch (IOException e) {
+			reader.file.close();
+			throw e;
+		}
+		return reader;
+	}
+
+	private void readIndex() throws IOException {
+		ByteBuffer header = readBytes(0, ChunkedVolumeWriter.HEADER_SIZE);
+		if (header.getInt() != ChunkedVolumeWriter.MAGIC)
+			throw new IOException("Not a chunked volume file: " + path);
+		int version = header.getInt();
+		if (version != ChunkedVolumeWriter.VERSION)
+			throw new IOException("Unsupported chunked volume version "
+					+ version + ": " + path);
+		long trailerPosition = header.getLong();
+		if (trailerPosition < ChunkedVolumeWriter.HEADER_SIZE
+				|| trailerPosition >= channel.size())
+			throw new IOException("The chunked volume file is truncated: "
+					+ path);
+
+		ByteBuffer bytes = readBytes(trailerPosition,
+				(int) (channel.size() - trailerPosition));
+		DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+				bytes.array()));
+		width = trailer.readInt();
+		height = trailer.readInt();
+		depth = trailer.readInt();
+		bitDepth = trailer.readInt();
+		chunkSize = trailer.readInt();
+		calibration.pixelWidth = trailer.readDouble();
+		calibration.pixelHeight = trailer.readDouble();
+		calibration.pixelDepth = trailer.readDouble();
+		calibration.setXUnit(trailer.readUTF());
+		calibration.setYUnit(trailer.readUTF());
+		calibration.setZUnit(trailer.readUTF());
+		chunksX = (width + chunkSize - 1) / chunkSize;
+		chunksY = (height + chunkSize - 1) / chunkSize;
+		int chunksZ = (depth + chunkSize - 1) / chunkSize;
+		int numberOfChunks = trailer.readInt();
+		if (numberOfChunks != chunksX * chunksY * chunksZ)
+			throw new IOException("Invalid chunk index: " + path);
+		offsets = new long[numberOfChunks];
+		lengths = new int[numberOfChunks];
+		for (int i = 0; i < numberOfChunks; i++) {
+			offsets[i] = trailer.readLong();
+			lengths[i] = trailer.readInt();
+		}
+	}
+
+	/**
+	 * Reads the whole volume
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @return the 3D image
+	 * @throws IOException
+	 */
+	public static ImagePlus read(String path) throws IOException {
+		ChunkedVolumeReader reader = open(path);
+		try {
+			return reader.read();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the whole volume as a Segment3DImage
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @return the Segment3DImage of the volume
+	 * @throws IOException
+	 */
+	public static Segment3DImage readSegment3DImage(String path)
+			throws IOException {
+		return new Segment3DImage(read(path));
+	}
+
+	/**
+	 * @return the whole volume
+	 * @throws IOException
+	 */
+	public ImagePlus read() throws IOException {
+		return readRegion(0, 0, 0, width, height, depth);
+	}
+
+	/**
+	 * Reads a box of the volume (only the chunks intersecting the box are
+	 * decompressed)
+	 * 
+	 * @param x
+	 *            - left side of the box
+	 * @param y
+	 *            - top side of the box
+	 * @param z
+	 *            - first slice of the box (zero-based)
+	 * @param w
+	 *            - width of the box
+	 * @param h
+	 *            - height of the box
+	 * @param d
+	 *            - number of slices of the box
+	 * @return the 3D image of the box (the calibration origin is shifted so
+	 *         that the voxels keep their coordinates)
+	 * @throws IOException
+	 */
+	public ImagePlus readRegion(final int x, final int y, final int z,
+			final int w, final int h, final int d) throws IOException {
+		if (x < 0 || y < 0 || z < 0 || w <= 0 || h <= 0 || d <= 0
+				|| x + w > width || y + h > height || z + d > depth)
+			throw new IllegalArgumentException("The region (" + x + "," + y
+					+ "," + z + ") " + w + "x" + h + "x" + d
+					+ " is outside of the volume " + width + "x" + height
+					+ "x" + depth);
+
+		final Object[] slices = new Object[d];
+		for (int i = 0; i < d; i++)
+			slices[i] = createSlice(w * h);
+
+		final int cx0 = x / chunkSize;
+		final int cy0 = y / chunkSize;
+		final int cz0 = z / chunkSize;
+		final int nx = (x + w - 1) / chunkSize - cx0 + 1;
+		final int ny = (y + h - 1) / chunkSize - cy0 + 1;
+		final int nz = (z + d - 1) / chunkSize - cz0 + 1;
+		try {
+			ParallelLoop.run(0, nx * ny * nz, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) throws Exception {
+					for (int i = from; i < to; i++)
+						copyChunk(cx0 + i % nx, cy0 + (i / nx) % ny, cz0 + i
+								/ (nx * ny), x, y, z, w, h, d, slices);
+				}
+			});
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+
+		ImageStack stack = new ImageStack(w, h);
+		for (int i = 0; i < d; i++)
+			stack.addSlice(null, createProcessor(w, h, slices[i]));
+		ImagePlus imp = new ImagePlus(new File(path).getName(), stack);
+		Calibration cal = calibration.copy();
+		cal.xOrigin -= x;
+		cal.yOrigin -= y;
+		cal.zOrigin -= z;
+		imp.setCalibration(cal);
+		return imp;
+	}
+
+	/**
+	 * Decompresses one chunk and copies its intersection with the box in the
+	 * slices of the box
+	 */
+	private void copyChunk(int cx, int cy, int cz, int x, int y, int z, int w,
+			int h, int d, Object[] slices) throws IOException {
+		int x0 = cx * chunkSize;
+		int y0 = cy * chunkSize;
+		int z0 = cz * chunkSize;
+		int chunkWidth = Math.min(chunkSize, width - x0);
+		int chunkHeight = Math.min(chunkSize, height - y0);
+		int chunkDepth = Math.min(chunkSize, depth - z0);
+		int index = (cz * chunksY + cy) * chunksX + cx;
+		ByteBuffer chunk = decompress(readBytes(offsets[index], lengths[index])
+				.array(), chunkWidth * chunkHeight * chunkDepth * bitDepth / 8);
+
+		int xFrom = Math.max(x, x0), xTo = Math.min(x + w, x0 + chunkWidth);
+		int yFrom = Math.max(y, y0), yTo = Math.min(y + h, y0 + chunkHeight);
+		int zFrom = Math.max(z, z0), zTo = Math.min(z + d, z0 + chunkDepth);
+		int length = xTo - xFrom;
+		for (int k = zFrom; k < zTo; k++) {
+			Object slice = slices[k - z];
+			for (int j = yFrom; j < yTo; j++) {
+				int source = ((k - z0) * chunkHeight + (j - y0)) * chunkWidth
+						+ (xFrom - x0);
+				int destination = (j - y) * w + (xFrom - x);
+				switch (bitDepth) {
+				case 8:
+					System.arraycopy(chunk.array(), source, (byte[]) slice,
+							destination, length);
+					break;
+				case 16:
+					chunk.clear();
+					chunk.position(2 * source);
+					chunk.asShortBuffer().get((short[]) slice, destination,
+							length);
+					break;
+				default:
+					chunk.clear();
+					chunk.position(4 * source);
+					chunk.asFloatBuffer().get((float[]) slice, destination,
+							length);
+					break;
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer decompress(byte[] data, int size)
+			throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] bytes = new byte[size];
+			// raw Deflate data needs an extra byte at the end of the input
+			byte[] input = new byte[data.length + 1];
+			System.arraycopy(data, 0, input, 0, data.length);
+			inflater.setInput(input);
+			int n = 0;
+			while (n < size && !inflater.finished()) {
+				int count = inflater.inflate(bytes, n, size - n);
+				if (count == 0 && (inflater.needsInput()
+						|| inflater.needsDictionary()))
+					break;
+				n += count;
+			}
+			if (n != size || !inflater.finished())
+				throw new ZipException("Corrupt chunk (" + n + " bytes instead of "
+						+ size + ")");
+			return ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private ByteBuffer readBytes(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0)
+				throw new EOFException("The chunked volume file is truncated: "
+						+ path);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private Object createSlice(int size) {
+		switch (bitDepth) {
+		case 8:
+			return new byte[size];
+		case 16:
+			return new short[size];
+		default:
+			return new float[size];
+		}
+	}
+
+	private static ImageProcessor createProcessor(int w, int h, Object pixels) {
+		if (pixels instanceof byte[])
+			return new ByteProcessor(w, h, (byte[]) pixels, null);
+		if (pixels instanceof short[])
+			return new ShortProcessor(w, h, (short[]) pixels, null);
+		return new FloatProcessor(w, h, (float[]) pixels, null);
+	}
+
+	/**
+	 * Closes the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return a copy of the calibration of the volume
+	 */
+	public Calibration getCalibration() {
+		return calibration.copy();
+	}
+
+}
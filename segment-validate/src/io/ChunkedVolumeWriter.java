@@ -0,0 +1,445 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import segment3D.Segment3DImage;
+import util.ParallelLoop;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * This is a class for writing a 3D volume (8bpp, 16bpp or 32-bits float) in a
+ * chunked volume file (.cvol), used for the intermediate results of the
+ * pipelines. The volume is split in cubic chunks (64x64x64 voxels by default)
+ * compressed independently with Deflate, so that a region of the volume can be
+ * read back without decompressing the whole file (see ChunkedVolumeReader).
+ * 
+ * The slices are appended one at a time (the writer can also be passed as a
+ * SliceConsumer, the file is closed by end()). Only one layer of chunks is
+ * kept in memory; the chunks of a layer are compressed in parallel.
+ * 
+ * File layout (big endian): a header (magic "CVOL", version, position of the
+ * trailer), the compressed chunks, and a trailer with the dimensions, the
+ * calibration and the index of the chunks (position and length of each chunk,
+ * x fastest then y then z).
+ * 
+ * @author pnb
+ * 
+ */
+public class ChunkedVolumeWriter implements SliceConsumer {
+
+	static final int MAGIC = 0x43564F4C; // "CVOL"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+
+	/** default number of voxels along each side of a chunk */
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+
+	private String path;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int width;
+	private int height;
+	private int bitDepth;
+	private int bytesPerVoxel;
+	private int chunkSize;
+	private int level;
+	private Calibration calibration;
+	private int chunksX;
+	private int chunksY;
+	// uncompressed chunks of the current layer (chunkSize slices)
+	private ByteBuffer[] layer;
+	private int depth = 0;
+	private long position = HEADER_SIZE;
+	private List<Long> offsets = new ArrayList<Long>();
+	private List<Integer> lengths = new ArrayList<Integer>();
+	private boolean closed = false;
+	private boolean failed = false;
+
+	private ChunkedVolumeWriter() {
+	}
+
+	/**
+	 * Creates the file (overwrites it if it already exists) with the default
+	 * chunk size and compression level
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @param width
+	 *            - width of the slices
+	 * @param height
+	 *            - height of the slices
+	 * @param bitDepth
+	 *            - 8, 16 or 32 (float) bits per voxel
+	 * @param calibration
+	 *            - voxel dimensions and units (can be null)
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public static ChunkedVolumeWriter open(String path, int width, int height,
+			int bitDepth, Calibration calibration) throws IOException {
+		return open(path, width, height, bitDepth, calibration,
+				DEFAULT_CHUNK_SIZE, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Creates the file (overwrites it if it already exists)
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @param width
+	 *            - width of the slices
+	 * @param height
+	 *            - height of the slices
+	 * @param bitDepth
+	 *            - 8, 16 or 32 (float) bits per voxel
+	 * @param calibration
+	 *            - voxel dimensions and units (can be null)
+	 * @param chunkSize
+	 *            - number of voxels along each side of a chunk
+	 * @param level
+	 *            - Deflate compression level (0-9)
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public static ChunkedVolumeWriter open(String path, int width, int height,
+			int bitDepth, Calibration calibration, int chunkSize, int level)
+			throws IOException {
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException(
+					"Only 8-bpp, 16bpp or 32-bits float volumes are supported.");
+		if (width <= 0 || height <= 0 || chunkSize <= 0)
+			throw new IllegalArgumentException("Invalid dimensions: " + width
+					+ "x" + height + ", chunk size " + chunkSize);
+		ChunkedVolumeWriter writer = new ChunkedVolumeWriter();
+		writer.path = path;
+		writer.width = width;
+		writer.height = height;
+		writer.bitDepth = bitDepth;
+		writer.bytesPerVoxel = bitDepth / 8;
+		writer.chunkSize = chunkSize;
+		writer.level = level;
+		writer.calibration = (calibration == null) ? new Calibration()
+				: calibration.copy();
+		writer.chunksX = (width + chunkSize - 1) / chunkSize;
+		writer.chunksY = (height + chunkSize - 1) / chunkSize;
+		writer.layer = new ByteBuffer[writer.chunksX * writer.chunksY];
+		for (int cy = 0; cy < writer.chunksY; cy++)
+			for (int cx = 0; cx < writer.chunksX; cx++)
+				writer.layer[cy * writer.chunksX + cx] = ByteBuffer.allocate(
+						writer.getChunkWidth(cx) * writer.getChunkHeight(cy)
+								* chunkSize * writer.bytesPerVoxel).order(
+						ByteOrder.BIG_ENDIAN);
+
+		File f = new File(path);
+		if (f.exists())
+			f.delete();
+		writer.file = new RandomAccessFile(f, "rw");
+		writer.channel = writer.file.getChannel();
+		// the position of the trailer is written when closing
+		writer.writeHeader(0);
+		return writer;
+	}
+
+	/**
+	 * Writes the 3D 8bpp, 16bpp or 32-bits float ImagePlus in a chunked
+	 * volume file
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @param imp
+	 *            - 3D image to save
+	 * @throws IOException
+	 */
+	public static void write(String path, ImagePlus imp) throws IOException {
+		ChunkedVolumeWriter writer = open(path, imp.getWidth(),
+				imp.getHeight(), imp.getBitDepth(), imp.getCalibration());
+		try {
+			ImageStack stack = imp.getStack();
+			for (int i = 1; i <= stack.getSize(); i++)
+				writer.appendSlice(stack.getPixels(i));
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the segmented image (8bpp binary) of a Segment3DImage in a
+	 * chunked volume file, without building the segmented ImagePlus
+	 * 
+	 * @param path
+	 *            - path of the chunked volume file
+	 * @param image
+	 *            - segmented 3D image
+	 * @throws IOException
+	 */
+	public static void write(String path, Segment3DImage image)
+			throws IOException {
+		ChunkedVolumeWriter writer = open(path, image.getWidth(),
+				image.getHeight(), 8, image.getCalibration());
+		try {
+			image.writeSegmentedSlices(writer);
+		} finally {
+			writer.close();
+		}
+		if (writer.hasFailed())
+			throw new IOException("Failed writing the chunked volume " + path);
+	}
+
+	/**
+	 * Appends a slice
+	 * 
+	 * @param pixels
+	 *            - pixels of the slice (byte[], short[] or float[] matching
+	 *            the bit depth, origin at top left corner as in ImageJ)
+	 * @throws IOException
+	 */
+	public void appendSlice(Object pixels) throws IOException {
+		if (closed)
+			throw new IllegalStateException("The chunked volume is closed: "
+					+ path);
+		int length;
+		if (pixels instanceof byte[] && bitDepth == 8)
+			length = ((byte[]) pixels).length;
+		else if (pixels instanceof short[] && bitDepth == 16)
+			length = ((short[]) pixels).length;
+		else if (pixels instanceof float[] && bitDepth == 32)
+			length = ((float[]) pixels).length;
+		else
+			throw new IllegalArgumentException("Expected " + bitDepth
+					+ "-bits slices");
+		if (length != width * height)
+			throw new IllegalArgumentException("Expected slices of "
+					+ (width * height) + " pixels but got " + length);
+
+		// copy the rows of the slice in the chunks of the layer
+		int zInChunk = depth % chunkSize;
+		for (int cy = 0; cy < chunksY; cy++) {
+			int chunkHeight = getChunkHeight(cy);
+			for (int cx = 0; cx < chunksX; cx++) {
+				int chunkWidth = getChunkWidth(cx);
+				ByteBuffer chunk = layer[cy * chunksX + cx];
+				int index = zInChunk * chunkHeight * chunkWidth;
+				for (int y = 0; y < chunkHeight; y++, index += chunkWidth)
+					putRow(chunk, index, pixels, (cy * chunkSize + y) * width
+							+ cx * chunkSize, chunkWidth);
+			}
+		}
+		depth++;
+		if (depth % chunkSize == 0)
+			flushLayer(chunkSize);
+	}
+
+	private void putRow(ByteBuffer chunk, int index, Object pixels,
+			int offset, int length) {
+		switch (bitDepth) {
+		case 8:
+			System.arraycopy((byte[]) pixels, offset, chunk.array(), index,
+					length);
+			break;
+		case 16:
+			chunk.clear();
+			chunk.position(2 * index);
+			chunk.asShortBuffer().put((short[]) pixels, offset, length);
+			break;
+		default:
+			chunk.clear();
+			chunk.position(4 * index);
+			chunk.asFloatBuffer().put((float[]) pixels, offset, length);
+			break;
+		}
+	}
+
+	/**
+	 * Compresses the chunks of the current layer in parallel and writes them
+	 * in order
+	 */
+	private void flushLayer(final int layerDepth) throws IOException {
+		final byte[][] compressed = new byte[layer.length][];
+		ParallelLoop.run(0, layer.length, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					int length = getChunkWidth(i % chunksX)
+							* getChunkHeight(i / chunksX) * layerDepth
+							* bytesPerVoxel;
+					compressed[i] = compress(layer[i].array(), length, level);
+				}
+			}
+		});
+		for (int i = 0; i < compressed.length; i++) {
+			ByteBuffer buffer = ByteBuffer.wrap(compressed[i]);
+			offsets.add(position);
+			lengths.add(compressed[i].length);
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * @return the raw Deflate data of the first length bytes
+	 */
+	static byte[] compress(byte[] data, int length, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					Math.max(64, length / 4));
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeHeader(long trailerPosition) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(trailerPosition);
+		header.flip();
+		long p = 0;
+		while (header.hasRemaining())
+			p += channel.write(header, p);
+	}
+
+	/**
+	 * Writes the last (partial) layer of chunks, the trailer and the header,
+	 * and closes the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (depth % chunkSize != 0)
+				flushLayer(depth % chunkSize);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream trailer = new DataOutputStream(bytes);
+			trailer.writeInt(width);
+			trailer.writeInt(height);
+			trailer.writeInt(depth);
+			trailer.writeInt(bitDepth);
+			trailer.writeInt(chunkSize);
+			trailer.writeDouble(calibration.pixelWidth);
+			trailer.writeDouble(calibration.pixelHeight);
+			trailer.writeDouble(calibration.pixelDepth);
+			trailer.writeUTF(calibration.getXUnit());
+			trailer.writeUTF(calibration.getYUnit());
+			trailer.writeUTF(calibration.getZUnit());
+			trailer.writeInt(offsets.size());
+			for (int i = 0; i < offsets.size(); i++) {
+				trailer.writeLong(offsets.get(i));
+				trailer.writeInt(lengths.get(i));
+			}
+			trailer.close();
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			long trailerPosition = position;
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			writeHeader(trailerPosition);
+		} finally {
+			layer = null;
+			file.close();
+		}
+	}
+
+	private int getChunkWidth(int cx) {
+		return Math.min(chunkSize, width - cx * chunkSize);
+	}
+
+	private int getChunkHeight(int cy) {
+		return Math.min(chunkSize, height - cy * chunkSize);
+	}
+
+	/**
+	 * @return the number of slices appended so far
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return true if writing failed while the writer was used as a
+	 *         SliceConsumer
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	@Override
+	public void begin(int width, int height, int expectedDepth) {
+		if (width != this.width || height != this.height) {
+			System.err.println("The slices (" + width + "x" + height
+					+ ") do not match the chunked volume " + path + " ("
+					+ this.width + "x" + this.height + ")");
+			failed = true;
+		}
+	}
+
+	@Override
+	public void consumeSlice(int z, Object pixels) {
+		if (failed)
+			return;
+		try {
+			appendSlice(pixels);
+		} catch (Exception e) {
+			System.err.println("Error writing chunked volume file.");
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+	@Override
+	public void end(int depth) {
+		try {
+			close();
+		} catch (IOException e) {
+			System.err.println("Error writing chunked volume file.");
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+}
@@ -104,7 +104,7 @@ public class ConvertTiffStackToFITS {
 				System.out.println("INFO: loading file "+ inputFilename);
 				try {
 					// Open ImagePlus object from image sequence and set calibration
-					ImagePlus img3D = Fits3DWriter.loadZstack(inputFilename, imagesFileNameExtension); //new ImagePlus(inputFilename);
+					ImagePlus img3D = TiffSliceLoader.load(inputFilename, imagesFileNameExtension); //new ImagePlus(inputFilename);
 				
 					String shortImageName = new File(inputFilename).getName();
 					logger.info("Converting z-stack " + shortImageName
@@ -21,8 +21,10 @@
 package io;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +33,8 @@ import ij.*;
 import ij.measure.Calibration;
 import ij.process.*;
 import util.FileOper;
+import util.MemoryBudgetExecutor;
+import util.ParallelLoop;
 /**
  * @author pnb
  *
@@ -39,6 +43,12 @@ public class ConverterFitsAndNifti {
 	private static Log _logger = LogFactory
 			.getLog(ConverterFitsAndNifti.class);
 
+	// estimated memory of the conversion of a loaded volume in the number of
+	// bytes of the input file (loaded stack and encoded output)
+	private static final long MEMORY_FACTOR = 2;
+	// same estimate for a compressed input file
+	private static final long COMPRESSED_MEMORY_FACTOR = 10;
+
 	/**
 	 * This method converts one folder of files to another folder of files the other type
 	 * 
@@ -69,10 +79,10 @@ public class ConverterFitsAndNifti {
 		if(suffixFrom.equalsIgnoreCase(".nii")){
 			suffixTo = ".fits";
 		}
-		String inputFilename = new String();
-		String outputFilename = new String();
+		final List<String> inputFilenames = new ArrayList<String>();
+		final List<String> outputFilenames = new ArrayList<String>();
 		for (Iterator<String> k = sortedNiftiImagesInFolder.iterator(); k.hasNext();) {
-			inputFilename = k.next();
+			String inputFilename = k.next();
 			String name = new File(inputFilename).getName();
 			int idx = name.lastIndexOf(suffixFrom);
 			if(idx<0 || idx >= name.length()){	
@@ -80,22 +90,62 @@ public class ConverterFitsAndNifti {
 				continue;
 			}
 			name = name.substring(0, idx);
-			outputFilename = outputFitsFileFolder + File.separatorChar
+			String outputFilename = outputFitsFileFolder + File.separatorChar
 					+ name	+ suffixTo;
 			System.out.println("input file: " + inputFilename);
 			System.out.println("output file: " + outputFilename);
-				
-			if(suffixFrom.endsWith(".nii")){
-				convertNifti2FitsFile(inputFilename,outputFilename);
-			}else{
-				convertFits2NiftiFile(inputFilename,outputFilename);
-			}
+			inputFilenames.add(inputFilename);
+			outputFilenames.add(outputFilename);
 			
 			// for fixing the flip
 			//fixFlip_convertFits2NiftiFile(inputFilename,outputFilename);
 			
 		}
 
+		// the files that can be streamed slice by slice are converted in
+		// parallel (the memory used does not depend on the size of the files)
+		final boolean fromNifti = suffixFrom.endsWith(".nii");
+		final boolean[] converted = new boolean[inputFilenames.size()];
+		ParallelLoop.run(0, inputFilenames.size(), inputFilenames.size(),
+				new ParallelLoop.Body() {
+					@Override
+					public void run(int from, int to) {
+						for (int i = from; i < to; i++) {
+							converted[i] = transcode(inputFilenames.get(i),
+									outputFilenames.get(i), fromNifti);
+						}
+					}
+				});
+
+		// the other files are loaded, and converted within the memory budget
+		List<MemoryBudgetExecutor.Task> tasks = new ArrayList<MemoryBudgetExecutor.Task>();
+		for (int i = 0; i < inputFilenames.size(); i++) {
+			if (converted[i])
+				continue;
+			final String inputFilename = inputFilenames.get(i);
+			final String outputFilename = outputFilenames.get(i);
+			tasks.add(new MemoryBudgetExecutor.Task() {
+				@Override
+				public long getEstimatedMemory() {
+					long factor = inputFilename.toLowerCase().endsWith(".gz")
+							? COMPRESSED_MEMORY_FACTOR : MEMORY_FACTOR;
+					return factor * new File(inputFilename).length();
+				}
+
+				@Override
+				public void run() throws Exception {
+					if (fromNifti) {
+						loadAndConvertNifti2Fits(inputFilename, outputFilename);
+					} else {
+						loadAndConvertFits2Nifti(inputFilename, outputFilename);
+					}
+				}
+			});
+		}
+		if (!tasks.isEmpty()) {
+			new MemoryBudgetExecutor().runAll(tasks);
+		}
+
 		long endTime = System.currentTimeMillis();
 		_logger.info("execution time : " + (endTime - startTime)
 				+ " millisecond.");
@@ -111,6 +161,60 @@ public class ConverterFitsAndNifti {
 	public static void convertNifti2FitsFile(String inputNiftiFileName,
 			String outputFitsFileName) {
 
+		if (!transcode(inputNiftiFileName, outputFitsFileName, true)) {
+			loadAndConvertNifti2Fits(inputNiftiFileName, outputFitsFileName);
+		}
+
+	}
+
+	/**
+	 * This method converts FITS file format to NIFTI file format. The FITS
+	 * file is decoded as FitsLoader does, whether the voxels are streamed or
+	 * the volume is loaded.
+	 * @param inputFitsFileName
+	 * @param outputNiftiFileName
+	 */
+	public static void convertFits2NiftiFile(String inputFitsFileName,
+			String outputNiftiFileName) {
+
+		if (!transcode(inputFitsFileName, outputNiftiFileName, false)) {
+			loadAndConvertFits2Nifti(inputFitsFileName, outputNiftiFileName);
+		}
+
+	}
+
+	/**
+	 * Streams the voxels from one file to the other without loading the
+	 * volume
+	 * 
+	 * @return false if the file cannot be streamed (it has to be loaded)
+	 */
+	private static boolean transcode(String inputFileName,
+			String outputFileName, boolean fromNifti) {
+		try {
+			boolean done = fromNifti ? FitsNiftiTranscoder.nifti2Fits(
+					inputFileName, outputFileName) : FitsNiftiTranscoder
+					.fits2Nifti(inputFileName, outputFileName);
+			if (done) {
+				System.out.println("Converted " + (fromNifti ? "NIFTI" : "FITS")
+						+ " file: " + inputFileName + " to "
+						+ (fromNifti ? "FITS" : "NII") + " file: "
+						+ outputFileName);
+			}
+			return done;
+		} catch (Exception e) {
+			_logger.error(e.getMessage());
+			// the file is loaded instead
+			return false;
+		}
+	}
+
+	/**
+	 * Loads the NIFTI volume and writes it as a FITS file
+	 */
+	private static void loadAndConvertNifti2Fits(String inputNiftiFileName,
+			String outputFitsFileName) {
+
 		try {
 			// Open ImagePlus object from image sequence 
 			System.out.println("open NIFTI file: " + inputNiftiFileName);
@@ -139,21 +243,20 @@ public class ConverterFitsAndNifti {
 	}
 
 	/**
-	 * This method converts FITS file format to NIFTI file format
-	 * @param inputFitsFileName
-	 * @param outputNiftiFileName
+	 * Loads the FITS volume with FitsLoader (as the streamed conversion
+	 * decodes it) and writes it as a NIFTI file
 	 */
-	public static void convertFits2NiftiFile(String inputFitsFileName,
+	private static void loadAndConvertFits2Nifti(String inputFitsFileName,
 			String outputNiftiFileName) {
 
 		try {
 			// Open ImagePlus object from image sequence 
 			System.out.println("open FITS file: " + inputFitsFileName);							
-			ImagePlus img3D = null;
-			img3D = new ImagePlus(inputFitsFileName); 
-			if (img3D.getImageStack() == null) {
+			ImagePlus img3D = FitsLoader.read(inputFitsFileName);
+			if (img3D == null || img3D.getImageStack() == null) {
 				System.err.println("failed to load the file: "
 						+ inputFitsFileName);
+				return;
 			}			
 
 			System.out.println("Writing NII file: "+(outputNiftiFileName) );
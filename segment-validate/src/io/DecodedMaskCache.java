@@ -0,0 +1,171 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import segment3D.BitMask3D;
+
+/**
+ * This class keeps the most recently used segmented images, decoded and
+ * packed in BitMask3D masks (one bit per voxel), so that an image compared
+ * with several references is read and decoded only once. The least recently
+ * used masks are removed when the size of the masks exceeds the budget. Run
+ * length encoded mask files are unpacked into BitMask3D masks as well.
+ * 
+ * The cache can be used by several threads. Two threads asking at the same
+ * time for a mask that is not in the cache may both decode it.
+ * 
+ * @author pnb
+ * 
+ */
+public class DecodedMaskCache {
+
+	// fraction of the maximum heap size used as default budget
+	public static final double DEFAULT_BUDGET_FRACTION = 0.25;
+
+	private long budget;
+	private long size = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private LinkedHashMap<String, BitMask3D> masks = new LinkedHashMap<String, BitMask3D>(
+			16, 0.75f, true);
+
+	/**
+	 * Creates a cache using a quarter of the maximum heap size
+	 */
+	public DecodedMaskCache() {
+		this((long) (Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION));
+	}
+
+	/**
+	 * @param budget
+	 *            - maximum size of the cached masks in bytes
+	 */
+	public DecodedMaskCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the mask of the foreground voxels of an image, decoding the
+	 * image if it is not in the cache
+	 * 
+	 * @param fileName
+	 *            - image file name (any format opened by ImageJ, or run
+	 *            length encoded mask file)
+	 * @param foregroundThreshold
+	 *            - threshold value for a voxel to be considered as foreground
+	 *            (voxel = foreground if voxel value >= threshold), not used
+	 *            for run length encoded mask files
+	 * @return the mask (shared, must not be modified), or null if the image
+	 *         cannot be opened
+	 */
+	public BitMask3D get(String fileName, int foregroundThreshold) {
+		String key = foregroundThreshold + ":" + fileName;
+		synchronized (this) {
+			BitMask3D mask = masks.get(key);
+			if (mask != null) {
+				hits++;
+				return mask;
+			}
+			misses++;
+		}
+
+		BitMask3D mask;
+		if (RleMaskLoader.isRleMask(fileName)) {
+			try {
+				mask = RleMaskLoader.readBitMask3D(fileName);
+			} catch (IOException e) {
+				System.err.println("Could not open " + fileName + ": "
+						+ e.getMessage());
+				return null;
+			}
+		} else {
+			ImagePlus image = new ImagePlus(fileName);
+			if (image.getProcessor() == null) {
+				System.err.println("Could not open " + fileName);
+				return null;
+			}
+			// the mask keeps the voxels larger than the threshold (integer
+			// values)
+			mask = BitMask3D.fromImagePlus(image, foregroundThreshold - 1);
+		}
+		put(key, mask);
+		return mask;
+	}
+
+	private synchronized void put(String key, BitMask3D mask) {
+		long maskSize = sizeOf(mask);
+		if (maskSize > budget)
+			return;
+		BitMask3D previous = masks.put(key, mask);
+		if (previous != null)
+			size -= sizeOf(previous);
+		size += maskSize;
+		// remove the least recently used masks
+		for (Iterator<Map.Entry<String, BitMask3D>> k = masks.entrySet()
+				.iterator(); size > budget && k.hasNext();) {
+			size -= sizeOf(k.next().getValue());
+			k.remove();
+		}
+	}
+
+	/**
+	 * @return the size of the words of a mask in bytes
+	 */
+	public static long sizeOf(BitMask3D mask) {
+		return 8L * mask.getWordsPerRow() * mask.getHeight() * mask.getDepth();
+	}
+
+	/**
+	 * Removes all the masks
+	 */
+	public synchronized void clear() {
+		masks.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the size of the cached masks in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of masks found in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of masks decoded
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
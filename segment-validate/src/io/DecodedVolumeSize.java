@@ -0,0 +1,123 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class estimates the memory needed by a volume once loaded, from the
+ * header of its file: the size of a compressed file (.gz) is several times
+ * smaller than the size of its voxels.
+ * 
+ * @author pnb
+ * 
+ */
+public class DecodedVolumeSize {
+
+	/**
+	 * @param fileName
+	 *            - path of a FITS (.fits, .fits.gz) or NIfTI (.nii, .nii.gz)
+	 *            file
+	 * @return the number of bytes of the decoded voxels (width * height *
+	 *         depth * bytes per voxel) given by the header, or the length of
+	 *         the file if it is not a FITS or NIfTI file or if its header
+	 *         cannot be read
+	 */
+	public static long estimate(String fileName) {
+		File file = new File(fileName);
+		String lowerCase = fileName.toLowerCase();
+		try {
+			if (lowerCase.endsWith(".nii") || lowerCase.endsWith(".nii.gz")) {
+				long size = niftiDataSize(fileName);
+				if (size > 0)
+					return size;
+			} else if (lowerCase.endsWith(".fits")
+					|| lowerCase.endsWith(".fits.gz")) {
+				long size = fitsDataSize(fileName);
+				if (size > 0)
+					return size;
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read the header of " + fileName
+					+ ": " + e.getMessage());
+		}
+		return file.length();
+	}
+
+	private static long niftiDataSize(String fileName) throws IOException {
+		byte[] bytes = readBeginning(fileName, NiftiHeader.HEADER_SIZE);
+		if (bytes.length < NiftiHeader.HEADER_SIZE)
+			return 0;
+		NiftiHeader header = NiftiHeader.parse(ByteBuffer.wrap(bytes));
+		if (header == null || header.dim[0] < 2)
+			return 0;
+		long size = NiftiCodec.getBytesPerPixel(header.datatype);
+		if (size == 0)
+			size = Math.max(1, header.bitpix / 8);
+		for (int i = 1; i <= Math.min(header.dim[0], 7); i++)
+			size *= Math.max(1, (int) header.dim[i]);
+		return size;
+	}
+
+	private static long fitsDataSize(String fileName) throws IOException {
+		if (!fileName.toLowerCase().endsWith(".gz")) {
+			FitsHeader header = FitsHeader.read(fileName);
+			return (header == null) ? 0 : header.getDataSize();
+		}
+		byte[] bytes = readBeginning(fileName, FitsHeader.MAX_HEADER_BYTES);
+		FitsHeader header = FitsHeader.parse(ByteBuffer.wrap(bytes));
+		return (header == null) ? 0 : header.getDataSize();
+	}
+
+	/**
+	 * @return the first bytes of the file (decompressed if the file name ends
+	 *         with ".gz"), less than length bytes if the file is shorter
+	 */
+	private static byte[] readBeginning(String fileName, int length)
+			throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(
+				fileName));
+		try {
+			if (fileName.toLowerCase().endsWith(".gz"))
+				input = new GZIPInputStream(input);
+			byte[] bytes = new byte[length];
+			int count = 0;
+			int n;
+			while (count < length
+					&& (n = input.read(bytes, count, length - count)) > 0)
+				count += n;
+			if (count == length)
+				return bytes;
+			byte[] beginning = new byte[count];
+			System.arraycopy(bytes, 0, beginning, 0, count);
+			return beginning;
+		} finally {
+			input.close();
+		}
+	}
+
+}
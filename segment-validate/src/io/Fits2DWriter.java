@@ -20,11 +20,6 @@
  */
 package io;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DecimalFormat;
 
@@ -54,30 +49,32 @@ public class Fits2DWriter {
             return;
         }
 
-        // Create file, overwrite if already exists
-        File f = new File(destFilePath);
-        if (f.exists()) f.delete();
-        
-        // Compute filler length to put at the end of the image data 
-        // (Fits data are blocks of 2880 bytes)
-        int numBytes = imp.getBytesPerPixel();
-        int fillerLength = 2880 - ( (numBytes * imp.getWidth() * imp.getHeight()) % 2880 );
+        try {
+            // Create file, overwrite if already exists
+            FitsChannelWriter writer = new FitsChannelWriter(destFilePath);
+            try {
+                // Create header for the Fits file
+                writer.writeHeader(createHeader(imp, bitDepth));
 
-        // Create header for the Fits file
-        createHeader(destFilePath, imp, bitDepth);
-        
-        // Write data
-        writeData2D(destFilePath, imp);
-        char[] endFiller = new char[fillerLength];
-        appendFile(endFiller, destFilePath);
+                // Write data (origin is at bottom left corner), the end 
+                // filler is written when closing
+                writer.writeSlice(imp.getProcessor().getPixels(), imp.getWidth(), imp.getHeight());
+            } finally {
+                writer.close();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Error writing Fits file.");
+            e.printStackTrace();
+            return;
+        }
 	}
 	
 	/**
      * Creates a FITS header for the image
      */ 
-    private static void createHeader(String path, ImagePlus imp, int bitPix) {
+    private static byte[] createHeader(ImagePlus imp, int bitPix) {
         
-    	int numCards = 11;
         String bitperpix = " " + bitPix;
         double cdelt1 = imp.getCalibration().pixelWidth;
     	double cdelt2 = imp.getCalibration().pixelHeight;
@@ -88,91 +85,18 @@ public class Fits2DWriter {
     	if(ctype1.equals("µm")) ctype1 = "um";
     	if(ctype2.equals("µm")) ctype2 = "um";
      
-        appendFile(writeCard("SIMPLE", " T", "Created by NIST with ImageJ"), path);
-        appendFile(writeCard("BITPIX", bitperpix, "number of bits per data pixel"), path);
-        appendFile(writeCard("NAXIS", " 2", "number of data axes"), path);
-        appendFile(writeCard("NAXIS1", " " + imp.getWidth(), "length of data axis 1"), path);
-        appendFile(writeCard("NAXIS2", " " + imp.getHeight(), "length of data axis 2"), path);
-
-		appendFile(writeCard("CDELT1", " " + new DecimalFormat("#0.000").format(cdelt1), "length of each pixel along axis 1"), path);
-    	appendFile(writeCard("CDELT2", " " + new DecimalFormat("#0.000").format(cdelt2), "length of each pixel along axis 2"), path);
-    	appendFile(writeCard("CTYPE1", " " + ctype1, "units along axis 1"), path);
-    	appendFile(writeCard("CTYPE2", " " + ctype2, "units along axis 2"), path);
-
-        appendFile(writeCard("BZERO", " -128", "data range offset"), path);
-        appendFile(writeCard("BSCALE", " 1", "default scaling factor"), path);
-
-        int fillerSize = 2880 - ((numCards*80+3) % 2880);
-        char[] end = new char[3];
-        end[0] = 'E'; end[1] = 'N'; end[2] = 'D';
-        char[] filler = new char[fillerSize];
-        for (int i = 0; i < fillerSize; i++)
-            filler[i] = ' ';
-        appendFile(end, path);
-        appendFile(filler, path);
-    }
-    
-    /**
-     * Writes one line of a FITS header
-     */ 
-    private static char[] writeCard(String title, String value, String comment) {
-        char[] card = new char[80];
-        for (int i = 0; i < 80; i++)
-            card[i] = ' ';
-        s2ch(title, card, 0);
-        card[8] = '=';
-        s2ch(value, card, 10);
-        card[31] = '/';
-        card[32] = ' ';
-        s2ch(comment, card, 33);
-        return card;
-    }
-            
-    /**
-     * Converts a String to a char[]
-     */
-    private static void s2ch (String str, char[] ch, int offset) {
-        int j = 0;
-        for (int i = offset; i < 80 && i < str.length()+offset; i++)
-            ch[i] = str.charAt(j++);
-    }
-    
-    /**
-     * Appends 'line' to the end of the file specified by 'path'.
-     */
-    private static void appendFile(char[] line, String path) {
-        try {
-            FileWriter output = new FileWriter(path, true);
-            output.write(line);
-            output.close();
-        }
-        catch (IOException e) {
-            System.err.println("Error writing Fits file.");
-            e.printStackTrace();
-            return;
-        }
-    }
-    
-    /**
-     * Appends the data of the current 2D image to the end of the file specified by path.
-     */
-    private static void writeData2D(String path, ImagePlus imp) {
-        int w = imp.getWidth();
-        int h = imp.getHeight();
-                
-        byte[] pixels = (byte[])imp.getProcessor().getPixels();
-        try {   
-            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path,true)));
-            for (int i = h - 1; i >= 0; i-- )
-                for (int j = i*w; j < w*(i+1); j++)
-                    dos.write(pixels[j]&0xff);
-            dos.close();
-        }
-        catch (IOException e) {
-        	System.err.println("Error writing Fits file.");
-        	e.printStackTrace();
-            return;
-        }
+        return FitsChannelWriter.createHeader(
+                FitsChannelWriter.createCard("SIMPLE", " T", "Created by NIST with ImageJ"),
+                FitsChannelWriter.createCard("BITPIX", bitperpix, "number of bits per data pixel"),
+                FitsChannelWriter.createCard("NAXIS", " 2", "number of data axes"),
+                FitsChannelWriter.createCard("NAXIS1", " " + imp.getWidth(), "length of data axis 1"),
+                FitsChannelWriter.createCard("NAXIS2", " " + imp.getHeight(), "length of data axis 2"),
+                FitsChannelWriter.createCard("CDELT1", " " + new DecimalFormat("#0.000").format(cdelt1), "length of each pixel along axis 1"),
+                FitsChannelWriter.createCard("CDELT2", " " + new DecimalFormat("#0.000").format(cdelt2), "length of each pixel along axis 2"),
+                FitsChannelWriter.createCard("CTYPE1", " " + ctype1, "units along axis 1"),
+                FitsChannelWriter.createCard("CTYPE2", " " + ctype2, "units along axis 2"),
+                FitsChannelWriter.createCard("BZERO", " -128", "data range offset"),
+                FitsChannelWriter.createCard("BSCALE", " 1", "default scaling factor"));
     }
 	
 	/**
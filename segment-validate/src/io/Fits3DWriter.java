@@ -20,15 +20,11 @@
  */
 package io;
 
-import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.measure.Calibration;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.Collection;
@@ -55,88 +51,35 @@ public class Fits3DWriter {
 	 * @return ImagePlus data structure
 	 */
 	public static ImagePlus loadZstack(String sourceFilePath, String inputFilter) {
+		return loadZstack(sourceFilePath, inputFilter, new SliceConsumer[0]);
+	}
 
-		Collection<String> dirfiles = FileOper
-				.readFileDirectory(sourceFilePath);
-
-		System.out.println("Directory: Number of files=" + dirfiles.size());
-
-		Collection<String> onlyFilter = FileOper.selectFileType(dirfiles,
-				inputFilter);
-		// FileOper.printCollection(onlyFilter);
-		// System.out.println();
-
-		Collection<String> sortedFilter = FileOper.sort(onlyFilter,
-				FileOper.SORT_ASCENDING);
-		if (sortedFilter == null) {
-			System.out.println("Did not find a match to file specifications ="
-					+ inputFilter + " in a folder=" + sourceFilePath);
+	/**
+	 * This method loads a z-stack from a folders with tif images and passes
+	 * each slice to the slice consumers (for instance to accumulate orthogonal
+	 * projections). The slices are decoded in parallel by TiffSliceLoader.
+	 * 
+	 * @param sourceFilePath
+	 *            - path to a directory with tif files
+	 * @param inputFilter
+	 *            - filter for selecting input files
+	 * @param consumers
+	 *            - slice consumers receiving each loaded slice
+	 * @return ImagePlus data structure, null if the z-stack could not be
+	 *         loaded
+	 * @see TiffSliceLoader#load(String, String, SliceConsumer...)
+	 */
+	public static ImagePlus loadZstack(String sourceFilePath,
+			String inputFilter, SliceConsumer... consumers) {
+		try {
+			return TiffSliceLoader.load(sourceFilePath, inputFilter,
+					consumers);
+		} catch (IOException e) {
+			System.err.println("IOException: Could not load z-stack = "
+					+ sourceFilePath);
+			e.printStackTrace();
 			return null;
 		}
-		FileOper.printCollection(sortedFilter);
-		System.out.println();
-
-		int w = 128;
-		int h = 128;
-		ImageStack stack = null;// new ImageStack(w,h);
-		// ImagePlus stack = new ImagePlus();
-
-		int index = 0;
-		String inputFilename = new String();
-		for (Iterator<String> k = sortedFilter.iterator(); k.hasNext();) {
-			inputFilename = k.next();
-			try {
-				ImagePlus imgSlice = IJ.openImage(inputFilename);
-				System.out.println(inputFilename);
-				// System.out.println("File processing start time: "+ new
-				// Date().toString());
-
-				if (imgSlice == null) {
-					System.err
-							.println("Could not load file = " + inputFilename);
-				} else {
-
-					if (index == 0) {
-						// initialize ImageStack based on the width and height
-						// of the first frame
-						w = imgSlice.getProcessor().getWidth();
-						h = imgSlice.getProcessor().getHeight();
-						stack = new ImageStack(w, h);
-					}
-
-					int bitDepth = imgSlice.getProcessor().getBitDepth();
-					switch (bitDepth) {
-					case 8:
-						byte[] p8 = (byte[]) imgSlice.getProcessor()
-								.getPixels();
-						stack.addSlice(Integer.toString(index), p8);
-						break;
-					case 16:
-						short[] p16 = (short[]) imgSlice.getProcessor()
-								.getPixels();
-						stack.addSlice(Integer.toString(index), p16);
-						break;
-
-					default:
-						byte[] p = (byte[]) imgSlice.getProcessor().getPixels();
-						stack.addSlice(Integer.toString(index), p);
-						break;
-					}
-
-				}
-
-			} catch (Exception e) {
-				System.err.println("IOException: Could not load file = "
-						+ inputFilename);
-				e.printStackTrace();
-			}
-			index++;
-		}
-		ImagePlus image = new ImagePlus("stack", stack);
-		// for debugging purposes
-		// image.show();
-		return image;
-
 	}
 
 	/**
@@ -156,39 +99,44 @@ public class Fits3DWriter {
 			return;
 		}
 
-		// Create file, overwrite if already exists
-		File f = new File(destFilePath);
-		if (f.exists())
-			f.delete();
-
-		// Compute filler length to put at the end of the image data
-		// (Fits data are blocks of 2880 bytes)
-		int numBytes = imp.getBytesPerPixel();
-		int fillerLength = 2880 - ((numBytes * imp.getWidth() * imp.getHeight() * imp
-				.getNSlices()) % 2880);
-
-		// Create header for the Fits file
-		createHeader(destFilePath, imp, bitDepth);
-
-		// Write data
-		writeData3D(destFilePath, imp);
-		char[] endFiller = new char[fillerLength];
-		appendFile(endFiller, destFilePath);
+		try {
+			// Create file, overwrite if already exists
+			FitsChannelWriter writer = new FitsChannelWriter(destFilePath);
+			try {
+				// Create header for the Fits file
+				writer.writeHeader(createHeader(imp.getWidth(),
+						imp.getHeight(), imp.getNSlices(), bitDepth,
+						imp.getCalibration()));
+
+				// Write data (origin is at bottom left corner), the end
+				// filler is written when closing
+				ImageStack stack = imp.getStack();
+				for (int ipNumber = 1; ipNumber <= stack.getSize(); ipNumber++)
+					writer.writeSlice(stack.getPixels(ipNumber),
+							imp.getWidth(), imp.getHeight());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error writing Fits file.");
+			e.printStackTrace();
+			return;
+		}
 	}
 
 	/**
-	 * Creates a FITS header for the image
+	 * Creates a FITS header for a 3D image
 	 */
-	private static void createHeader(String path, ImagePlus imp, int bitPix) {
+	static byte[] createHeader(int width, int height, int depth, int bitPix,
+			Calibration calibration) {
 
-		int numCards = 14;
 		String bitperpix = " " + bitPix;
-		double cdelt1 = imp.getCalibration().pixelWidth;
-		double cdelt2 = imp.getCalibration().pixelHeight;
-		double cdelt3 = imp.getCalibration().pixelDepth;
-		String ctype1 = imp.getCalibration().getXUnit();
-		String ctype2 = imp.getCalibration().getYUnit();
-		String ctype3 = imp.getCalibration().getZUnit();
+		double cdelt1 = calibration.pixelWidth;
+		double cdelt2 = calibration.pixelHeight;
+		double cdelt3 = calibration.pixelDepth;
+		String ctype1 = calibration.getXUnit();
+		String ctype2 = calibration.getYUnit();
+		String ctype3 = calibration.getZUnit();
 
 		// Conversions for the micro symbol (avoid encoding problems)
 		if (ctype1.equals("µm"))
@@ -198,165 +146,39 @@ public class Fits3DWriter {
 		if (ctype3.equals("µm"))
 			ctype3 = "um";
 
-		appendFile(writeCard("SIMPLE", " T", "Created by NIST with ImageJ"),
-				path);
-		appendFile(
-				writeCard("BITPIX", bitperpix, "number of bits per data pixel"),
-				path);
-		appendFile(writeCard("NAXIS", " 3", "number of data axes"), path);
-		appendFile(
-				writeCard("NAXIS1", " " + imp.getWidth(),
-						"length of data axis 1"), path);
-		appendFile(
-				writeCard("NAXIS2", " " + imp.getHeight(),
-						"length of data axis 2"), path);
-		appendFile(
-				writeCard("NAXIS3", " " + imp.getNSlices(),
-						"length of data axis 3"), path);
-
-		appendFile(
-				writeCard("CDELT1",
-						" " + new DecimalFormat("#0.000").format(cdelt1),
-						"length of each pixel along axis 1"), path);
-		appendFile(
-				writeCard("CDELT2",
-						" " + new DecimalFormat("#0.000").format(cdelt2),
-						"length of each pixel along axis 2"), path);
-		appendFile(
-				writeCard("CDELT3",
-						" " + new DecimalFormat("#0.000").format(cdelt3),
-						"length of each pixel along axis 3"), path);
-		appendFile(writeCard("CTYPE1", " " + ctype1, "units along axis 1"),
-				path);
-		appendFile(writeCard("CTYPE2", " " + ctype2, "units along axis 2"),
-				path);
-		appendFile(writeCard("CTYPE3", " " + ctype3, "units along axis 3"),
-				path);
-
-		if(bitPix==8)
-			appendFile(writeCard("BZERO", " -128", "data range offset"), path);
-		else
-			appendFile(writeCard("BZERO", "-32768", "data range offset"), path);
-		
-		appendFile(writeCard("BSCALE", " 1", "default scaling factor"), path);
-
-		int fillerSize = 2880 - ((numCards * 80 + 3) % 2880);
-		char[] end = new char[3];
-		end[0] = 'E';
-		end[1] = 'N';
-		end[2] = 'D';
-		char[] filler = new char[fillerSize];
-		for (int i = 0; i < fillerSize; i++)
-			filler[i] = ' ';
-		appendFile(end, path);
-		appendFile(filler, path);
-	}
-
-	/**
-	 * Writes one line of a FITS header
-	 */
-	private static char[] writeCard(String title, String value, String comment) {
-		char[] card = new char[80];
-		for (int i = 0; i < 80; i++)
-			card[i] = ' ';
-		s2ch(title, card, 0);
-		card[8] = '=';
-		s2ch(value, card, 10);
-		card[31] = '/';
-		card[32] = ' ';
-		s2ch(comment, card, 33);
-		return card;
-	}
-
-	/**
-	 * Converts a String to a char[]
-	 */
-	private static void s2ch(String str, char[] ch, int offset) {
-		int j = 0;
-		for (int i = offset; i < 80 && i < str.length() + offset; i++)
-			ch[i] = str.charAt(j++);
-	}
-
-	/**
-	 * Appends 'line' to the end of the file specified by 'path'.
-	 */
-	private static void appendFile(char[] line, String path) {
-		try {
-			FileWriter output = new FileWriter(path, true);
-			output.write(line);
-			output.close();
-		} catch (IOException e) {
-			System.err.println("Error writing Fits file.");
-			e.printStackTrace();
-			return;
-		}
-	}
-
-	/**
-	 * Appends the data of the current 3D image to the end of the file specified
-	 * by path.
-	 */
-	private static void writeData3D(String path, ImagePlus imp) {
-		int w = imp.getWidth();
-		int h = imp.getHeight();
-
-		ImageStack stack = imp.getStack(); // origin is at bottom left corner
-
-		for (int ipNumber = 1; ipNumber <= stack.getSize(); ipNumber++) {
-
-			int bitDepth = stack.getProcessor(ipNumber).getBitDepth();
-
-			try {
-				DataOutputStream dos = new DataOutputStream(
-						new BufferedOutputStream(new FileOutputStream(path,
-								true)));
-				switch (bitDepth) {
-				case 8:
-					byte[] pixels = (byte[]) stack.getProcessor(ipNumber)
-							.getPixels();
-					for (int i = h - 1; i >= 0; i--)
-						for (int j = i * w; j < w * (i + 1); j++)
-							dos.write(pixels[j] & 0xff);
-					dos.close();
-					break;
-				case 16:
-					short[] pixelsShort = (short[]) stack
-							.getProcessor(ipNumber).getPixels();
-					for (int i = h - 1; i >= 0; i--)
-						for (int j = i * w; j < w * (i + 1); j++) {
-							// according to
-							// http://www.ifa.hawaii.edu/~kaiser/imcat/byteorder.html
-							// FITS supports by default big endian ordering but only unsigned short type for 16bpp!!!!
-							//therefore input  unsigned short from TIFF files  --> output signed short for FITS files
-							int signedShort = pixelsShort[j]  - 32768;
-							byte lowByte = (byte) (signedShort & 0xff);
-							byte highByte = (byte) ((signedShort >> 8) & 0xff);		
-							
-							/*int unsignedShort = pixelsShort[j] & 0xffff;
-							byte lowByte = (byte) (unsignedShort & 0xff);
-							byte highByte = (byte) ((unsignedShort >> 8) & 0xff);
-							*/
-							// big endian order
-							dos.write(highByte );
-							dos.write(lowByte);
-						}
-					dos.close();
-					break;
-				default:
-					byte[] pixelsDefault = (byte[]) stack
-							.getProcessor(ipNumber).getPixels();
-					for (int i = h - 1; i >= 0; i--)
-						for (int j = i * w; j < w * (i + 1); j++)
-							dos.write(pixelsDefault[j] & 0xff);
-					dos.close();
-					break;
-				}
-			} catch (IOException e) {
-				System.err.println("Error writing Fits file.");
-				e.printStackTrace();
-				return;
-			}
-		}
+		return FitsChannelWriter.createHeader(
+				FitsChannelWriter.createCard("SIMPLE", " T",
+						"Created by NIST with ImageJ"),
+				FitsChannelWriter.createCard("BITPIX", bitperpix,
+						"number of bits per data pixel"),
+				FitsChannelWriter.createCard("NAXIS", " 3",
+						"number of data axes"),
+				FitsChannelWriter.createCard("NAXIS1", " " + width,
+						"length of data axis 1"),
+				FitsChannelWriter.createCard("NAXIS2", " " + height,
+						"length of data axis 2"),
+				FitsChannelWriter.createCard("NAXIS3", " " + depth,
+						"length of data axis 3"),
+				FitsChannelWriter.createCard("CDELT1", " "
+						+ new DecimalFormat("#0.000").format(cdelt1),
+						"length of each pixel along axis 1"),
+				FitsChannelWriter.createCard("CDELT2", " "
+						+ new DecimalFormat("#0.000").format(cdelt2),
+						"length of each pixel along axis 2"),
+				FitsChannelWriter.createCard("CDELT3", " "
+						+ new DecimalFormat("#0.000").format(cdelt3),
+						"length of each pixel along axis 3"),
+				FitsChannelWriter.createCard("CTYPE1", " " + ctype1,
+						"units along axis 1"),
+				FitsChannelWriter.createCard("CTYPE2", " " + ctype2,
+						"units along axis 2"),
+				FitsChannelWriter.createCard("CTYPE3", " " + ctype3,
+						"units along axis 3"),
+				(bitPix == 8) ? FitsChannelWriter.createCard("BZERO", " -128",
+						"data range offset") : FitsChannelWriter.createCard(
+						"BZERO", "-32768", "data range offset"),
+				FitsChannelWriter.createCard("BSCALE", " 1",
+						"default scaling factor"));
 	}
 
 	/**
@@ -0,0 +1,296 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * This is a class for writing FITS files through one file channel. The header
+ * is built in memory and each slice is encoded (rows from the bottom, 16-bits
+ * unsigned values converted to signed values) into a reusable direct buffer
+ * and written with one call.
+ * 
+ * The files are the same, byte for byte, as the files written by the previous
+ * versions of Fits2DWriter and Fits3DWriter.
+ * 
+ * If the path ends with ".gz", the file is block compressed: the header is
+ * stored (not compressed) in its own gzip members so that it can still be
+ * rewritten, and the data are compressed in parallel by a
+ * BlockGzipOutputStream.
+ * 
+ * @author pnb
+ * 
+ */
+public class FitsChannelWriter {
+
+	// FITS files are organized in blocks of 2880 bytes
+	public static final int BLOCK_SIZE = 2880;
+	// each header card is 80 characters long
+	public static final int CARD_SIZE = 80;
+
+	// one slice buffer per thread, reused between files
+	private static ThreadLocal<ByteBuffer> sliceBuffers = new ThreadLocal<ByteBuffer>();
+
+	private FileOutputStream output;
+	private FileChannel channel;
+	private long dataSize = 0;
+	// compressed file only
+	private BlockGzipOutputStream gzip = null;
+	private byte[] header = null;
+
+	/**
+	 * Creates the file, overwrites it if it already exists
+	 * 
+	 * @param path
+	 *            - path of the FITS file
+	 * @throws IOException
+	 */
+	public FitsChannelWriter(String path) throws IOException {
+		File f = new File(path);
+		if (f.exists())
+			f.delete();
+		output = new FileOutputStream(f);
+		channel = output.getChannel();
+		if (path.toLowerCase().endsWith(".gz"))
+			gzip = new BlockGzipOutputStream(Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Writes one line of a FITS header
+	 * 
+	 * @param title
+	 *            - key of the card
+	 * @param value
+	 *            - value starting at column 11
+	 * @param comment
+	 *            - comment starting at column 34
+	 * @return the 80 characters of the card
+	 */
+	public static char[] createCard(String title, String value, String comment) {
+		char[] card = new char[CARD_SIZE];
+		for (int i = 0; i < CARD_SIZE; i++)
+			card[i] = ' ';
+		s2ch(title, card, 0);
+		card[8] = '=';
+		s2ch(value, card, 10);
+		card[31] = '/';
+		card[32] = ' ';
+		s2ch(comment, card, 33);
+		return card;
+	}
+
+	/**
+	 * Converts a String to a char[]
+	 */
+	private static void s2ch(String str, char[] ch, int offset) {
+		int j = 0;
+		for (int i = offset; i < CARD_SIZE && i < str.length() + offset; i++)
+			ch[i] = str.charAt(j++);
+	}
+
+	/**
+	 * Builds a FITS header from the cards, followed by the END card and a
+	 * space filler
+	 * 
+	 * @param cards
+	 *            - header cards (80 characters each)
+	 * @return the bytes of the header
+	 */
+	public static byte[] createHeader(char[]... cards) {
+		int fillerSize = BLOCK_SIZE - ((cards.length * CARD_SIZE + 3) % BLOCK_SIZE);
+		StringBuilder header = new StringBuilder(cards.length * CARD_SIZE + 3
+				+ fillerSize);
+		for (char[] card : cards)
+			header.append(card);
+		header.append("END");
+		for (int i = 0; i < fillerSize; i++)
+			header.append(' ');
+		return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Writes the header at the current position of the file
+	 * 
+	 * @param header
+	 *            - bytes of the header
+	 * @throws IOException
+	 */
+	public void writeHeader(byte[] header) throws IOException {
+		if (gzip != null) {
+			// written before any data, directly at the beginning of the file
+			this.header = header.clone();
+			ByteBuffer buffer = ByteBuffer.wrap(storeHeader());
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} else {
+			writeFully(ByteBuffer.wrap(header));
+		}
+	}
+
+	/**
+	 * Encodes and writes one slice: the rows are written from the bottom of
+	 * the image, the 16-bits unsigned values are converted to signed values
+	 * 
+	 * @param pixels
+	 *            - pixels of the slice (byte[] or short[])
+	 * @param width
+	 *            - width of the slice
+	 * @param height
+	 *            - height of the slice
+	 * @throws IOException
+	 */
+	public void writeSlice(Object pixels, int width, int height)
+			throws IOException {
+		ByteBuffer buffer;
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			buffer = getSliceBuffer(width * height);
+			for (int i = height - 1; i >= 0; i--)
+				buffer.put(bytes, i * width, width);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			buffer = getSliceBuffer(2 * width * height);
+			ShortBuffer out = buffer.asShortBuffer();
+			for (int i = height - 1; i >= 0; i--)
+				for (int j = i * width; j < width * (i + 1); j++)
+					// FITS supports only signed short type for 16bpp:
+					// unsigned short --> signed short (subtracting 32768)
+					out.put((short) (shorts[j] ^ 0x8000));
+			buffer.position(2 * width * height);
+		} else {
+			throw new IllegalArgumentException(
+					"Only 8-bpp or 16bpp slices are supported.");
+		}
+		buffer.flip();
+		dataSize += buffer.remaining();
+		writeFully(buffer);
+	}
+
+	/**
+	 * Writes data already encoded for FITS (big endian, rows from the bottom
+	 * of the image, 16-bits values as signed values)
+	 *
+	 * @param buffer
+	 *            - encoded data (all the remaining bytes are written)
+	 * @throws IOException
+	 */
+	void writeEncoded(ByteBuffer buffer) throws IOException {
+		dataSize += buffer.remaining();
+		writeFully(buffer);
+	}
+
+	/**
+	 * Writes the end filler and closes the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			// Fits data are blocks of 2880 bytes
+			int fillerLength = BLOCK_SIZE - (int) (dataSize % BLOCK_SIZE);
+			writeFully(ByteBuffer.allocate(fillerLength));
+			if (gzip != null)
+				gzip.close();
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * @return the number of data bytes written so far
+	 */
+	public long getDataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * Overwrites bytes already written (for instance a header card) without
+	 * moving the current position of the file. In a compressed file, only the
+	 * header can be overwritten (position in the uncompressed file).
+	 */
+	void writeAt(long position, byte[] bytes) throws IOException {
+		if (gzip != null) {
+			if (header == null || position < 0
+					|| position + bytes.length > header.length)
+				throw new IOException(
+						"Only the header of a compressed FITS file can be rewritten");
+			System.arraycopy(bytes, 0, header, (int) position, bytes.length);
+			// the stored members keep the same size
+			ByteBuffer buffer = ByteBuffer.wrap(storeHeader());
+			long filePosition = 0;
+			while (buffer.hasRemaining())
+				filePosition += channel.write(buffer, filePosition);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * @return the header of a compressed file as stored gzip members
+	 */
+	private byte[] storeHeader() {
+		ByteArrayOutputStream members = new ByteArrayOutputStream();
+		for (int offset = 0; offset < header.length; offset += BlockGzip.BLOCK_SIZE) {
+			byte[] member = BlockGzip.compressMember(header, offset,
+					Math.min(BlockGzip.BLOCK_SIZE, header.length - offset),
+					Deflater.NO_COMPRESSION);
+			members.write(member, 0, member.length);
+		}
+		return members.toByteArray();
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		if (gzip != null) {
+			gzip.write(buffer);
+			return;
+		}
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * @return the (cleared) slice buffer of the current thread with at least
+	 *         the given capacity
+	 */
+	private static ByteBuffer getSliceBuffer(int capacity) {
+		ByteBuffer buffer = sliceBuffers.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity);
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			sliceBuffers.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+}
@@ -0,0 +1,311 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import ij.io.FileInfo;
+
+/**
+ * This class parses the header of a FITS file from a (mapped) byte buffer. The
+ * header cards are interpreted in the same way as in FitsDecoder: the header
+ * ends with the END card and the data start at the next 2880-bytes block.
+ * 
+ * @author pnb
+ * 
+ */
+public class FitsHeader {
+
+	// FITS files are organized in blocks of 2880 bytes
+	public static final int BLOCK_SIZE = 2880;
+	// each header card is 80 characters long
+	public static final int CARD_SIZE = 80;
+	// maximum number of cards read before giving up when NAXIS1 is not found
+	private static final int MAX_CARDS_WITHOUT_WIDTH = 360;
+	// maximum number of bytes mapped for parsing a header
+	static final int MAX_HEADER_BYTES = 1024 * 1024;
+
+	private int bitpix = 0;
+	private int width = 0;
+	private int height = 0;
+	private int depth = 1;
+	private double bscale = 1.0;
+	private double bzero = 0.0;
+	private double pixelWidth = 1.0;
+	private double pixelHeight = 1.0;
+	private double pixelDepth = 1.0;
+	private String unit = null;
+	private long dataOffset = 0;
+	private StringBuffer info = new StringBuffer(512);
+
+	private FitsHeader() {
+	}
+
+	/**
+	 * Maps the beginning of a FITS file and parses its header
+	 * 
+	 * @param fileName
+	 *            - FITS file (not compressed)
+	 * @return the header, or null if the file is not a FITS file
+	 * @throws IOException
+	 */
+	public static FitsHeader read(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+		try {
+			return read(file.getChannel());
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Maps the beginning of an open FITS file and parses its header
+	 * 
+	 * @param channel
+	 *            - channel of the FITS file (not compressed)
+	 * @return the header, or null if the file is not a FITS file
+	 * @throws IOException
+	 */
+	public static FitsHeader read(FileChannel channel) throws IOException {
+		long size = Math.min(channel.size(), MAX_HEADER_BYTES);
+		return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+
+	/**
+	 * Parses the header cards starting at the current position of the buffer
+	 * 
+	 * @param buffer
+	 *            - buffer containing at least the header
+	 * @return the header, or null if the buffer does not start with a FITS
+	 *         header
+	 */
+	public static FitsHeader parse(ByteBuffer buffer) {
+		int start = buffer.position();
+		byte[] card = new byte[CARD_SIZE];
+		if (buffer.remaining() < CARD_SIZE)
+			return null;
+		buffer.get(card);
+		String line = new String(card, StandardCharsets.ISO_8859_1);
+		if (!line.startsWith("SIMPLE"))
+			return null;
+
+		FitsHeader header = new FitsHeader();
+		header.info.append(line + "\n");
+		int count = 1;
+		while (true) {
+			if (buffer.remaining() < CARD_SIZE)
+				return null;
+			count++;
+			buffer.get(card);
+			line = new String(card, StandardCharsets.ISO_8859_1);
+			header.info.append(line + "\n");
+
+			// cut the key/value pair and strip out comments
+			int index = line.indexOf("=");
+			int commentIndex = line.indexOf("/", index);
+			if (commentIndex < 0)
+				commentIndex = line.length();
+			String key;
+			String value;
+			if (index >= 0) {
+				key = line.substring(0, index).trim();
+				value = line.substring(index + 1, commentIndex).trim();
+			} else {
+				key = line.trim();
+				value = "";
+			}
+
+			if (key.equals("END"))
+				break;
+
+			if (key.equals("BITPIX"))
+				header.bitpix = Integer.parseInt(value);
+			else if (key.equals("NAXIS1"))
+				header.width = Integer.parseInt(value);
+			else if (key.equals("NAXIS2"))
+				header.height = Integer.parseInt(value);
+			else if (key.equals("NAXIS3"))
+				header.depth = Integer.parseInt(value);
+			else if (key.equals("BSCALE"))
+				header.bscale = Double.parseDouble(value);
+			else if (key.equals("BZERO"))
+				header.bzero = Double.parseDouble(value);
+			else if (key.equals("CDELT1"))
+				header.pixelWidth = Double.parseDouble(value);
+			else if (key.equals("CDELT2"))
+				header.pixelHeight = Double.parseDouble(value);
+			else if (key.equals("CDELT3"))
+				header.pixelDepth = Double.parseDouble(value);
+			else if (key.equals("CTYPE1"))
+				header.unit = value;
+
+			if (count > MAX_CARDS_WITHOUT_WIDTH && header.width == 0)
+				return null;
+		}
+		header.dataOffset = start + BLOCK_SIZE
+				* (1 + ((count * CARD_SIZE) - 1) / BLOCK_SIZE);
+		return header;
+	}
+
+	/**
+	 * @return the number of bytes per pixel in the file, or 0 if BITPIX is
+	 *         not valid
+	 */
+	public int getBytesPerPixel() {
+		switch (bitpix) {
+		case 8:
+			return 1;
+		case 16:
+			return 2;
+		case 32:
+		case -32:
+			return 4;
+		case -64:
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the ImageJ file type corresponding to BITPIX, or -1 if BITPIX is
+	 *         not valid
+	 */
+	public int getFileType() {
+		switch (bitpix) {
+		case 8:
+			return FileInfo.GRAY8;
+		case 16:
+			return FileInfo.GRAY16_SIGNED;
+		case 32:
+			return FileInfo.GRAY32_INT;
+		case -32:
+			return FileInfo.GRAY32_FLOAT;
+		case -64:
+			return FileInfo.GRAY64_FLOAT;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the number of bytes of one slice in the file
+	 */
+	public long getSliceSize() {
+		return (long) width * height * getBytesPerPixel();
+	}
+
+	/**
+	 * @return the number of bytes of the data (without the end filler)
+	 */
+	public long getDataSize() {
+		return getSliceSize() * depth;
+	}
+
+	/**
+	 * @return an ImageJ FileInfo describing the file, as built by FitsDecoder
+	 */
+	public FileInfo getFileInfo(String fileName) {
+		File f = new File(fileName);
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.FITS;
+		fi.fileName = f.getName();
+		fi.directory = f.getParent() + File.separator;
+		fi.fileType = getFileType();
+		fi.width = width;
+		fi.height = height;
+		fi.nImages = depth;
+		fi.offset = (int) dataOffset;
+		fi.longOffset = dataOffset;
+		fi.pixelWidth = pixelWidth;
+		fi.pixelHeight = pixelHeight;
+		fi.pixelDepth = pixelDepth;
+		fi.unit = unit;
+		fi.intelByteOrder = false;
+		return fi;
+	}
+
+	public int getBitpix() {
+		return bitpix;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return NAXIS3 (1 for 2D images)
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	public double getBscale() {
+		return bscale;
+	}
+
+	public double getBzero() {
+		return bzero;
+	}
+
+	public double getPixelWidth() {
+		return pixelWidth;
+	}
+
+	public double getPixelHeight() {
+		return pixelHeight;
+	}
+
+	public double getPixelDepth() {
+		return pixelDepth;
+	}
+
+	/**
+	 * @return the value of CTYPE1, or null if not present
+	 */
+	public String getUnit() {
+		return unit;
+	}
+
+	/**
+	 * @return the offset of the first data byte in the file
+	 */
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	/**
+	 * @return the header cards, one per line
+	 */
+	public String getHeaderInfo() {
+		return new String(info);
+	}
+
+}
@@ -37,6 +37,8 @@ import ij.process.ImageProcessor;
 
 /**
  * This is a class for loading 3D 8-bits FITS images
+ * Uncompressed 8-bits, 16-bits and 32-bits float images are read by
+ * MappedFitsReader, the other images by the ImageJ FileOpener
  * 
  * @author Mylene Simon
  * @see IJ.FITS_Reader
@@ -54,6 +56,29 @@ public class FitsLoader {
     	if (fileName==null)
             return null;
     	
+    	// uncompressed 8-bits, 16-bits and 32-bits float files are decoded
+    	// in parallel from a mapped file (no vertical flip needed)
+    	if (!fileName.toLowerCase().endsWith(".gz")) {
+    		try {
+    			ImagePlus mapped = MappedFitsReader.read(fileName);
+    			if (mapped != null)
+    				return mapped;
+    		} catch (Exception e) {
+    			System.err.println("Could not map the FITS file " + fileName
+    					+ ": " + e.getMessage());
+    		}
+    	} else {
+    		// compressed files: gzip members decompressed in parallel
+    		try {
+    			ImagePlus decompressed = MappedFitsReader.readCompressed(fileName);
+    			if (decompressed != null)
+    				return decompressed;
+    		} catch (Exception e) {
+    			System.err.println("Could not decompress the FITS file "
+    					+ fileName + ": " + e.getMessage());
+    		}
+    	}
+
     	// GET FILE
         File f = new File(fileName);
         String directory = f.getParent()+File.separator;
@@ -0,0 +1,327 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import ij.ImagePlus;
+
+/**
+ * This is a class converting FITS files into NIfTI files and back without
+ * loading the volume: the source file is mapped, the header of the
+ * destination is created from the header of the source, and the voxels are
+ * converted one slice at a time (byte order, 16-bits offset, row order)
+ * directly into the destination file. The memory used does not depend on the
+ * number of slices.
+ * 
+ * The destination files are the same, byte for byte, as the files written
+ * after loading the source (FitsLoader then Nifti_Writer, or Nifti_Reader
+ * then Fits3DWriter). For 16-bits FITS files, the NIfTI header (scl_inter,
+ * cal_min, cal_max) therefore follows the FitsLoader calibration, not the one
+ * of the ImageJ FITS reader (new ImagePlus); the voxel values are the same.
+ * 
+ * @author pnb
+ * 
+ */
+public class FitsNiftiTranscoder {
+
+	/**
+	 * Converts an uncompressed FITS file (8-bits, 16-bits or 32-bits float)
+	 * into a NIfTI file (.nii, or .nii.gz compressed)
+	 * 
+	 * @param fitsFileName
+	 *            - path of the FITS file
+	 * @param niftiFileName
+	 *            - path of the NIfTI file
+	 * @return false if the FITS file is compressed or not supported (nothing
+	 *         is written)
+	 * @throws IOException
+	 */
+	public static boolean fits2Nifti(String fitsFileName, String niftiFileName)
+			throws IOException {
+		if (fitsFileName.toLowerCase().endsWith(".gz"))
+			return false;
+
+		RandomAccessFile file = new RandomAccessFile(new File(fitsFileName),
+				"r");
+		try {
+			FileChannel channel = file.getChannel();
+			FitsHeader header = FitsHeader.read(channel);
+			if (!MappedFitsReader.isSupported(header))
+				return false;
+			if (header.getDataOffset() + header.getDataSize() > channel.size()) {
+				System.err.println("The FITS file is truncated: " + fitsFileName);
+				return false;
+			}
+			int width = header.getWidth();
+			int height = header.getHeight();
+			int bitpix = header.getBitpix();
+			long sliceSize = header.getSliceSize();
+
+			// the NIfTI header is created by Nifti_Writer from the image
+			// header (only the first slice is decoded)
+			ImagePlus template = MappedVirtualStack.openImagePlus(fitsFileName);
+			if (template == null)
+				return false;
+			// 16-bits: the values above 32767 (stored as non negative
+			// values in the FITS file) are stored shifted in the NIfTI file
+			boolean signed16Bit = (bitpix == 16)
+					&& containsShort(channel, header.getDataOffset(),
+							header.getDataSize(), ByteOrder.BIG_ENDIAN, false);
+			Nifti_Writer writer = new Nifti_Writer();
+			byte[] niftiHeader = writer.createNiftiFileHeader(template,
+					signed16Bit);
+			ByteOrder order = writer.littleEndian ? ByteOrder.LITTLE_ENDIAN
+					: ByteOrder.BIG_ENDIAN;
+
+			File f = new File(niftiFileName);
+			if (f.exists())
+				f.delete();
+			FileOutputStream output = new FileOutputStream(f);
+			try {
+				FileChannel outChannel = output.getChannel();
+				BlockGzipOutputStream gzip = null;
+				if (niftiFileName.toLowerCase().endsWith(".gz"))
+					gzip = new BlockGzipOutputStream(
+							Channels.newOutputStream(outChannel));
+				write(outChannel, gzip, ByteBuffer.wrap(niftiHeader));
+
+				ByteBuffer slice = ByteBuffer.allocateDirect((int) sliceSize);
+				slice.order(order);
+				for (int z = 0; z < header.getDepth(); z++) {
+					ByteBuffer source = channel.map(
+							FileChannel.MapMode.READ_ONLY,
+							header.getDataOffset() + z * sliceSize, sliceSize);
+					source.order(ByteOrder.BIG_ENDIAN);
+					slice.clear();
+					// FITS rows are stored from the bottom, NIfTI rows from
+					// the top
+					for (int y = 0; y < height; y++)
+						convertRow(source, (height - 1 - y) * width, slice, y
+								* width, width, bitpix, !signed16Bit,
+								header.getBscale(), header.getBzero());
+					slice.position((int) sliceSize);
+					slice.flip();
+					write(outChannel, gzip, slice);
+				}
+				if (gzip != null)
+					gzip.close();
+			} finally {
+				output.close();
+			}
+			return true;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Converts a single file NIfTI volume (.nii, 8-bits or 16-bits, one
+	 * channel and one frame) into a FITS file (.fits, or .fits.gz compressed)
+	 * 
+	 * @param niftiFileName
+	 *            - path of the NIfTI file
+	 * @param fitsFileName
+	 *            - path of the FITS file
+	 * @return false if the NIfTI file is compressed or not supported (nothing
+	 *         is written)
+	 * @throws IOException
+	 */
+	public static boolean nifti2Fits(String niftiFileName, String fitsFileName)
+			throws IOException {
+		if (!niftiFileName.toLowerCase().endsWith(".nii"))
+			return false;
+
+		RandomAccessFile file = new RandomAccessFile(new File(niftiFileName),
+				"r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < NiftiHeader.HEADER_SIZE)
+				return false;
+			ByteBuffer headerBuffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, NiftiHeader.HEADER_SIZE);
+			NiftiHeader header = NiftiHeader.parse(headerBuffer);
+			if (!NiftiCodec.isSupported(header, headerBuffer))
+				return false;
+			int bitpix;
+			switch (header.datatype) {
+			case NiftiHeader.DT_UNSIGNED_CHAR:
+				bitpix = 8;
+				break;
+			case NiftiHeader.DT_SIGNED_SHORT:
+			case NiftiHeader.DT_UINT16:
+				bitpix = 16;
+				break;
+			default:
+				// Fits3DWriter writes 8-bits and 16-bits images only
+				return false;
+			}
+			int width = header.dim[1];
+			int height = header.dim[2];
+			int depth = (header.dim[0] < 3) ? 1 : header.dim[3];
+			long sliceSize = (long) width * height * bitpix / 8;
+			long dataOffset = (long) header.vox_offset;
+			// single channel and single frame volumes only
+			for (int i = 4; i <= header.dim[0]; i++)
+				if (header.dim[i] > 1)
+					return false;
+			if (dataOffset + sliceSize * depth > channel.size()) {
+				System.err.println("The NIfTI file is truncated: "
+						+ niftiFileName);
+				return false;
+			}
+			ByteOrder order = headerBuffer.order();
+
+			// 16-bits signed data are shifted by 32768 by NiftiCodec if a
+			// stored value is negative, the FITS values are shifted back
+			boolean shifted = header.datatype == NiftiHeader.DT_SIGNED_SHORT
+					&& containsShort(channel, dataOffset, sliceSize * depth,
+							order, true);
+
+			ImagePlus template = MappedVirtualStack.openImagePlus(niftiFileName);
+			if (template == null)
+				return false;
+			FitsChannelWriter writer = new FitsChannelWriter(fitsFileName);
+			try {
+				writer.writeHeader(Fits3DWriter.createHeader(width, height,
+						depth, bitpix, template.getCalibration()));
+
+				ByteBuffer slice = ByteBuffer.allocateDirect((int) sliceSize);
+				slice.order(ByteOrder.BIG_ENDIAN);
+				for (int z = 0; z < depth; z++) {
+					ByteBuffer source = channel.map(
+							FileChannel.MapMode.READ_ONLY, dataOffset + z
+									* sliceSize, sliceSize);
+					source.order(order);
+					slice.clear();
+					// NIfTI rows are stored from the top, FITS rows from the
+					// bottom
+					for (int y = 0; y < height; y++)
+						convertRow(source, y * width, slice, (height - 1 - y)
+								* width, width, bitpix, !shifted, 1.0, 0.0);
+					slice.position((int) sliceSize);
+					slice.flip();
+					writer.writeEncoded(slice);
+				}
+			} finally {
+				writer.close();
+			}
+			return true;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Converts one row of voxels between two buffers (each with its own byte
+	 * order)
+	 * 
+	 * @param source
+	 *            - source buffer
+	 * @param sourceIndex
+	 *            - index of the first voxel of the row in the source
+	 * @param destination
+	 *            - destination buffer
+	 * @param destinationIndex
+	 *            - index of the first voxel of the row in the destination
+	 * @param width
+	 *            - number of voxels in the row
+	 * @param bitpix
+	 *            - 8, 16 or -32 (float)
+	 * @param flipSign
+	 *            - true to add 32768 to 16-bits values (sign bit inverted)
+	 * @param scale
+	 *            - scale of the float values
+	 * @param offset
+	 *            - offset of the float values
+	 */
+	private static void convertRow(ByteBuffer source, int sourceIndex,
+			ByteBuffer destination, int destinationIndex, int width,
+			int bitpix, boolean flipSign, double scale, double offset) {
+		switch (bitpix) {
+		case 8:
+			for (int i = 0; i < width; i++)
+				destination.put(destinationIndex + i,
+						source.get(sourceIndex + i));
+			break;
+		case 16: {
+			ShortBuffer in = source.asShortBuffer();
+			ShortBuffer out = destination.asShortBuffer();
+			int mask = flipSign ? 0x8000 : 0;
+			for (int i = 0; i < width; i++)
+				out.put(destinationIndex + i,
+						(short) (in.get(sourceIndex + i) ^ mask));
+			break;
+		}
+		default: {
+			FloatBuffer in = source.asFloatBuffer();
+			FloatBuffer out = destination.asFloatBuffer();
+			boolean identity = (scale == 1.0 && offset == 0.0);
+			for (int i = 0; i < width; i++) {
+				float value = in.get(sourceIndex + i);
+				if (!identity)
+					value = (float) (value * scale + offset);
+				out.put(destinationIndex + i, value);
+			}
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Looks for a negative (or non negative) 16-bits value in a part of the
+	 * file, stopping at the first one found
+	 */
+	private static boolean containsShort(FileChannel channel, long position,
+			long length, ByteOrder order, boolean negative) throws IOException {
+		final long chunk = 64L * 1024 * 1024;
+		for (long start = 0; start < length; start += chunk) {
+			ShortBuffer shorts = channel
+					.map(FileChannel.MapMode.READ_ONLY, position + start,
+							Math.min(chunk, length - start)).order(order)
+					.asShortBuffer();
+			while (shorts.hasRemaining())
+				if ((shorts.get() < 0) == negative)
+					return true;
+		}
+		return false;
+	}
+
+	private static void write(FileChannel channel, BlockGzipOutputStream gzip,
+			ByteBuffer buffer) throws IOException {
+		if (gzip != null) {
+			gzip.write(buffer);
+			return;
+		}
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+}
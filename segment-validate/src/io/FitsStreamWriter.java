@@ -0,0 +1,211 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import ij.measure.Calibration;
+
+/**
+ * This is a class for writing a 3D 8bpp or 16bpp FITS file one slice at a
+ * time, so that the producers of a z-stack (segmentation, thresholding,
+ * conversion) do not have to hold the whole volume in memory before saving it.
+ * The number of slices (NAXIS3) is written in the header when the file is
+ * closed; the file is then the same as the file written by Fits3DWriter for
+ * the same slices.
+ * 
+ * The writer can also be passed as a SliceConsumer; the file is closed by
+ * end().
+ * 
+ * @author pnb
+ * 
+ */
+public class FitsStreamWriter implements SliceConsumer {
+
+	// index of the NAXIS3 card in the header written by Fits3DWriter
+	private static final int NAXIS3_CARD_INDEX = 5;
+
+	private String path;
+	private FitsChannelWriter writer;
+	private int width;
+	private int height;
+	private int bitpix;
+	private int depth = 0;
+	private boolean closed = false;
+	private boolean failed = false;
+
+	private FitsStreamWriter(String path, int width, int height, int bitpix) {
+		this.path = path;
+		this.width = width;
+		this.height = height;
+		this.bitpix = bitpix;
+	}
+
+	/**
+	 * Creates the FITS file (overwrites it if it already exists) and writes
+	 * its header
+	 * 
+	 * @param path
+	 *            - path of the FITS file
+	 * @param width
+	 *            - width of the slices
+	 * @param height
+	 *            - height of the slices
+	 * @param bitpix
+	 *            - 8 or 16 bits per pixel
+	 * @param calibration
+	 *            - voxel dimensions and units written in the header (can be
+	 *            null)
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public static FitsStreamWriter open(String path, int width, int height,
+			int bitpix, Calibration calibration) throws IOException {
+		if (bitpix != 8 && bitpix != 16)
+			throw new IllegalArgumentException(
+					"Only 3D 8-bpp or 16bpp images are supported.");
+		if (calibration == null)
+			calibration = new Calibration();
+		FitsStreamWriter stream = new FitsStreamWriter(path, width, height,
+				bitpix);
+		stream.writer = new FitsChannelWriter(path);
+		// the number of slices is patched when closing
+		stream.writer.writeHeader(Fits3DWriter.createHeader(width, height, 0,
+				bitpix, calibration));
+		return stream;
+	}
+
+	/**
+	 * Appends an 8bpp slice
+	 * 
+	 * @param pixels
+	 *            - pixels of the slice (origin at top left corner as in
+	 *            ImageJ)
+	 * @throws IOException
+	 */
+	public void appendSlice(byte[] pixels) throws IOException {
+		checkSlice(8, pixels.length);
+		writer.writeSlice(pixels, width, height);
+		depth++;
+	}
+
+	/**
+	 * Appends a 16bpp slice
+	 * 
+	 * @param pixels
+	 *            - pixels of the slice (unsigned values, origin at top left
+	 *            corner as in ImageJ)
+	 * @throws IOException
+	 */
+	public void appendSlice(short[] pixels) throws IOException {
+		checkSlice(16, pixels.length);
+		writer.writeSlice(pixels, width, height);
+		depth++;
+	}
+
+	private void checkSlice(int sliceBitpix, int length) {
+		if (closed)
+			throw new IllegalStateException("The FITS file is closed: " + path);
+		if (sliceBitpix != bitpix)
+			throw new IllegalArgumentException("Expected " + bitpix
+					+ "-bpp slices but got a " + sliceBitpix + "-bpp slice");
+		if (length != width * height)
+			throw new IllegalArgumentException("Expected slices of "
+					+ (width * height) + " pixels but got " + length);
+	}
+
+	/**
+	 * Writes the number of slices in the header and the end filler, and closes
+	 * the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			String naxis3 = new String(FitsChannelWriter.createCard("NAXIS3",
+					" " + depth, "length of data axis 3"));
+			writer.writeAt(NAXIS3_CARD_INDEX * FitsChannelWriter.CARD_SIZE,
+					naxis3.getBytes(StandardCharsets.ISO_8859_1));
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the number of slices appended so far
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return true if writing failed while the writer was used as a
+	 *         SliceConsumer
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	@Override
+	public void begin(int width, int height, int expectedDepth) {
+		if (width != this.width || height != this.height) {
+			System.err.println("The slices (" + width + "x" + height
+					+ ") do not match the FITS file " + path + " ("
+					+ this.width + "x" + this.height + ")");
+			failed = true;
+		}
+	}
+
+	@Override
+	public void consumeSlice(int z, Object pixels) {
+		if (failed)
+			return;
+		try {
+			if (pixels instanceof byte[])
+				appendSlice((byte[]) pixels);
+			else if (pixels instanceof short[])
+				appendSlice((short[]) pixels);
+			else
+				throw new IllegalArgumentException(
+						"Only 8-bpp or 16bpp slices are supported.");
+		} catch (Exception e) {
+			System.err.println("Error writing Fits file.");
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+	@Override
+	public void end(int depth) {
+		try {
+			close();
+		} catch (IOException e) {
+			System.err.println("Error writing Fits file.");
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+}
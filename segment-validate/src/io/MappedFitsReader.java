@@ -0,0 +1,304 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import util.ParallelLoop;
+
+/**
+ * This is a class for loading 8-bits, 16-bits and 32-bits float FITS images
+ * (BITPIX 8, 16 and -32) through a memory mapped file channel. The slices are
+ * decoded in parallel directly into the pixel arrays of ImageJ, reading the
+ * rows from the bottom (origin of FITS images) so that the slices do not have
+ * to be flipped after loading.
+ * 
+ * The pixel values are the same as with FitsLoader: 8-bits data are copied
+ * as stored, 16-bits signed data are shifted by 32768 to unsigned values, and
+ * BSCALE/BZERO are applied to the 32-bits float data.
+ * 
+ * Compressed files (.fits.gz) are read by readCompressed(), decompressing the
+ * gzip members in parallel with a BlockGzipInputStream.
+ * 
+ * @author pnb
+ * 
+ */
+public class MappedFitsReader {
+
+	// maximum number of bytes mapped at once by a thread
+	private static final long MAX_MAPPED_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Checks if the file can be read by this class
+	 * 
+	 * @param header
+	 *            - header of the FITS file
+	 * @return true if BITPIX is 8, 16 or -32 and the image is not empty
+	 */
+	public static boolean isSupported(FitsHeader header) {
+		if (header == null)
+			return false;
+		int bitpix = header.getBitpix();
+		return (bitpix == 8 || bitpix == 16 || bitpix == -32)
+				&& header.getWidth() > 0 && header.getHeight() > 0
+				&& header.getDepth() > 0;
+	}
+
+	/**
+	 * Read the FITS file and load it into an ImagePlus object
+	 * 
+	 * @param fileName
+	 *            - the path of the FITS file (not compressed)
+	 * @param consumers
+	 *            - slice consumers receiving each slice in z order once the
+	 *            stack is decoded
+	 * @return the ImagePlus object containing the FITS image, or null if the
+	 *         file is not a supported FITS file
+	 * @throws IOException
+	 */
+	public static ImagePlus read(String fileName, SliceConsumer... consumers)
+			throws IOException {
+		if (fileName == null)
+			return null;
+
+		RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			FitsHeader header = FitsHeader.read(channel);
+			if (!isSupported(header))
+				return null;
+			if (header.getDataOffset() + header.getDataSize() > channel.size()) {
+				System.err.println("The FITS file is truncated: " + fileName);
+				return null;
+			}
+
+			final Object[] slices = readSlices(channel, header);
+			return createImagePlus(fileName, header, slices, consumers);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Read a gzip compressed FITS file and load it into an ImagePlus object.
+	 * The members of block compressed files are decompressed in parallel
+	 * while the slices are decoded.
+	 * 
+	 * @param fileName
+	 *            - the path of the FITS file (.fits.gz)
+	 * @param consumers
+	 *            - slice consumers receiving each slice in z order once the
+	 *            stack is decoded
+	 * @return the ImagePlus object containing the FITS image, or null if the
+	 *         file is not a supported FITS file
+	 * @throws IOException
+	 */
+	public static ImagePlus readCompressed(String fileName,
+			SliceConsumer... consumers) throws IOException {
+		if (fileName == null)
+			return null;
+
+		BlockGzipInputStream input = new BlockGzipInputStream(
+				new BufferedInputStream(new FileInputStream(fileName),
+						BlockGzip.MAX_MEMBER_SIZE));
+		try {
+			// read the header one block at a time until the END card
+			byte[] bytes = new byte[FitsHeader.BLOCK_SIZE];
+			int length = 0;
+			FitsHeader header = null;
+			while (header == null && length < FitsHeader.MAX_HEADER_BYTES) {
+				if (length == bytes.length)
+					bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+				input.readFully(bytes, length, FitsHeader.BLOCK_SIZE);
+				length += FitsHeader.BLOCK_SIZE;
+				if (length == FitsHeader.BLOCK_SIZE
+						&& !new String(bytes, 0, 6, StandardCharsets.ISO_8859_1)
+								.equals("SIMPLE"))
+					return null;
+				header = FitsHeader.parse(ByteBuffer.wrap(bytes, 0, length));
+			}
+			if (!isSupported(header))
+				return null;
+			for (long skip = header.getDataOffset() - length; skip > 0; skip--)
+				if (input.read() < 0)
+					throw new EOFException();
+
+			Object[] slices = new Object[header.getDepth()];
+			byte[] sliceBytes = new byte[(int) header.getSliceSize()];
+			for (int z = 0; z < slices.length; z++) {
+				input.readFully(sliceBytes, 0, sliceBytes.length);
+				slices[z] = decodeSlice(ByteBuffer.wrap(sliceBytes), header);
+			}
+			return createImagePlus(fileName, header, slices, consumers);
+		} catch (EOFException e) {
+			System.err.println("The FITS file is truncated: " + fileName);
+			return null;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Creates the ImagePlus object from the decoded slices and passes the
+	 * slices to the consumers
+	 */
+	private static ImagePlus createImagePlus(String fileName,
+			FitsHeader header, Object[] slices, SliceConsumer... consumers) {
+		ImageStack stack = new ImageStack(header.getWidth(), header.getHeight());
+		for (int z = 0; z < slices.length; z++)
+			stack.addSlice(null, slices[z]);
+
+		for (SliceConsumer consumer : consumers) {
+			consumer.begin(header.getWidth(), header.getHeight(), slices.length);
+			for (int z = 0; z < slices.length; z++)
+				consumer.consumeSlice(z, slices[z]);
+			consumer.end(slices.length);
+		}
+
+		ImagePlus imp = new ImagePlus(new File(fileName).getName(), stack);
+		imp.setFileInfo(header.getFileInfo(fileName));
+		setCalibration(imp, header);
+		return imp;
+	}
+
+	/**
+	 * Decodes all the slices of the file in parallel
+	 * 
+	 * @return array of pixels (byte[], short[] or float[]) per slice
+	 */
+	static Object[] readSlices(final FileChannel channel,
+			final FitsHeader header) throws IOException {
+		final int depth = header.getDepth();
+		final long sliceSize = header.getSliceSize();
+		final Object[] slices = new Object[depth];
+		// number of slices mapped at once
+		final int slicesPerMap = (int) Math.max(1, MAX_MAPPED_BYTES
+				/ sliceSize);
+
+		ParallelLoop.run(0, depth, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) throws Exception {
+				for (int z = from; z < to; z += slicesPerMap) {
+					int count = Math.min(slicesPerMap, to - z);
+					ByteBuffer buffer = channel.map(
+							FileChannel.MapMode.READ_ONLY,
+							header.getDataOffset() + z * sliceSize, count
+									* sliceSize);
+					buffer.order(ByteOrder.BIG_ENDIAN);
+					for (int i = 0; i < count; i++) {
+						buffer.position((int) (i * sliceSize));
+						slices[z + i] = decodeSlice(buffer.slice(), header);
+					}
+				}
+			}
+		});
+		return slices;
+	}
+
+	/**
+	 * Decodes one slice starting at the beginning of the buffer. The rows are
+	 * stored from the bottom of the image.
+	 * 
+	 * @return the pixels of the slice (byte[], short[] or float[])
+	 */
+	static Object decodeSlice(ByteBuffer buffer, FitsHeader header) {
+		int w = header.getWidth();
+		int h = header.getHeight();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+
+		switch (header.getBitpix()) {
+		case 8: {
+			byte[] pixels = new byte[w * h];
+			for (int y = 0; y < h; y++) {
+				buffer.position((h - 1 - y) * w);
+				buffer.get(pixels, y * w, w);
+			}
+			return pixels;
+		}
+		case 16: {
+			short[] pixels = new short[w * h];
+			ShortBuffer shorts = buffer.asShortBuffer();
+			for (int y = 0; y < h; y++) {
+				shorts.position((h - 1 - y) * w);
+				shorts.get(pixels, y * w, w);
+			}
+			// signed to unsigned short (adding 32768)
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] ^= 0x8000;
+			return pixels;
+		}
+		case -32: {
+			float[] pixels = new float[w * h];
+			FloatBuffer floats = buffer.asFloatBuffer();
+			for (int y = 0; y < h; y++) {
+				floats.position((h - 1 - y) * w);
+				floats.get(pixels, y * w, w);
+			}
+			double bscale = header.getBscale();
+			double bzero = header.getBzero();
+			if (bscale != 1.0 || bzero != 0.0) {
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = (float) (pixels[i] * bscale + bzero);
+			}
+			return pixels;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported BITPIX: "
+					+ header.getBitpix());
+		}
+	}
+
+	/**
+	 * Sets the spatial calibration from the header and the value calibration
+	 * of 16-bits images in the same way as FitsLoader
+	 */
+	static void setCalibration(ImagePlus imp, FitsHeader header) {
+		Calibration cal = imp.getCalibration();
+		if (header.getPixelWidth() > 0.0 && header.getUnit() != null) {
+			cal.pixelWidth = header.getPixelWidth();
+			cal.pixelHeight = header.getPixelHeight();
+			cal.pixelDepth = header.getPixelDepth();
+			cal.setUnit(header.getUnit());
+		}
+		if (header.getBitpix() == 16) {
+			if (header.getBscale() == 1.0 && header.getBzero() == -32768.0)
+				cal.setFunction(Calibration.NONE, null, "Gray Value");
+			else
+				cal.setSigned16BitCalibration();
+		}
+	}
+
+}
@@ -0,0 +1,554 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * This is an ImageJ virtual stack backed by a memory mapped FITS or NIfTI
+ * (.nii) file. Opening the stack only parses the header and maps the data;
+ * each slice is decoded when it is requested and the most recently used
+ * slices are kept in a small cache. Counting the slices of a z-stack, or
+ * reading a few of its slices, therefore does not read the whole file.
+ * 
+ * The pixel values are the same as with FitsLoader (FITS) and NiftiCodec
+ * (NIfTI), except that 16-bits signed NIfTI data are shifted by 32768
+ * according to the header only (NiftiCodec.isShiftedSigned16), without
+ * checking the stored values. The pixel arrays returned by the stack may be
+ * shared with the cache and should not be modified.
+ * 
+ * Slices can be deleted (the mapped slices of the stack are then a subset of
+ * the slices of the file), but not added. The slice labels are built from the
+ * file name and the slice number in the file.
+ * 
+ * Note that ImageStack.getVoxel() does not work on virtual stacks in ImageJ
+ * 1.48: use getPixels() or getProcessor() instead.
+ * 
+ * @author pnb
+ * 
+ */
+public class MappedVirtualStack extends VirtualStack {
+
+	// default number of decoded slices kept in the cache
+	public static final int DEFAULT_CACHE_SIZE = 4;
+
+	// maximum number of bytes per mapped segment
+	private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	// types of the stored samples
+	private static final int UINT8 = 0;
+	private static final int INT16 = 1; // stored signed, shifted to unsigned
+	private static final int UINT16 = 2;
+	private static final int INT32 = 3; // converted to float
+	private static final int FLOAT32 = 4;
+
+	private String path;
+	private int width;
+	private int height;
+	private int nSlices;
+	// slice of the file (zero-based) of the first slice of the stack
+	private int firstSlice = 0;
+	// slice of the file (zero-based) of each slice of the stack once a slice
+	// was deleted inside the stack, null otherwise
+	private int[] fileSlices = null;
+	private int sampleType;
+	private int bytesPerPixel;
+	private ByteOrder byteOrder;
+	// FITS rows are stored from the bottom of the image
+	private boolean bottomUp;
+	// scaling of float values (FITS BSCALE/BZERO)
+	private double scale = 1.0;
+	private double offset = 0.0;
+	private Calibration calibration = new Calibration();
+
+	private MappedByteBuffer[] segments;
+	private int slicesPerSegment;
+	private long sliceSize;
+
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+	private LinkedHashMap<Integer, Object> cache = new LinkedHashMap<Integer, Object>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	private MappedVirtualStack(String path, int width, int height) {
+		super(width, height, null, new File(path).getParent() + File.separator);
+		this.path = path;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Opens a FITS (8, 16 or -32 bits) or NIfTI single file (8 bits, 16 bits
+	 * signed or unsigned, 32 bits integer or float) as a virtual stack. Only
+	 * the header is read.
+	 * 
+	 * @param fileName
+	 *            - path of the .fits or .nii file (not compressed)
+	 * @return the virtual stack, or null if the file format is not supported
+	 * @throws IOException
+	 */
+	public static MappedVirtualStack open(String fileName) throws IOException {
+		if (fileName == null || fileName.toLowerCase().endsWith(".gz"))
+			return null;
+
+		RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedVirtualStack stack;
+			long dataOffset;
+
+			FitsHeader fits = FitsHeader.read(channel);
+			if (fits != null) {
+				if (!MappedFitsReader.isSupported(fits))
+					return null;
+				stack = new MappedVirtualStack(fileName, fits.getWidth(),
+						fits.getHeight());
+				stack.initFits(fits);
+				dataOffset = fits.getDataOffset();
+			} else {
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						0, Math.min(channel.size(), NiftiHeader.HEADER_SIZE));
+				NiftiHeader nifti = NiftiHeader.parse(buffer);
+				if (!NiftiCodec.isSupported(nifti, buffer) || !isSupported(nifti))
+					return null;
+				stack = new MappedVirtualStack(fileName, nifti.dim[1],
+						nifti.dim[2]);
+				stack.initNifti(nifti, buffer.order());
+				dataOffset = (long) nifti.vox_offset;
+			}
+
+			stack.sliceSize = (long) stack.width * stack.height
+					* stack.bytesPerPixel;
+			if (dataOffset + stack.sliceSize * stack.nSlices > channel.size()) {
+				System.err.println("The file is truncated: " + fileName);
+				return null;
+			}
+			stack.map(channel, dataOffset);
+			return stack;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Opens the file as a virtual stack and returns the ImagePlus object with
+	 * the calibration of the file
+	 * 
+	 * @param fileName
+	 *            - path of the .fits or .nii file (not compressed)
+	 * @return the ImagePlus object, or null if the file format is not
+	 *         supported
+	 * @throws IOException
+	 */
+	public static ImagePlus openImagePlus(String fileName) throws IOException {
+		MappedVirtualStack stack = open(fileName);
+		if (stack == null)
+			return null;
+		ImagePlus imp = new ImagePlus(new File(fileName).getName(), stack);
+		imp.setCalibration(stack.getCalibration());
+		return imp;
+	}
+
+	private static boolean isSupported(NiftiHeader nifti) {
+		if (!(nifti.dim[0] >= 2 && nifti.dim[1] > 0 && nifti.dim[2] > 0))
+			return false;
+		// one channel only (5th dimension)
+		for (int i = 5; i <= nifti.dim[0]; i++)
+			if (nifti.dim[i] > 1)
+				return false;
+		switch (nifti.datatype) {
+		case NiftiHeader.DT_UNSIGNED_CHAR:
+		case NiftiHeader.DT_SIGNED_SHORT:
+		case NiftiHeader.DT_UINT16:
+		case NiftiHeader.DT_SIGNED_INT:
+		case NiftiHeader.DT_FLOAT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void initFits(FitsHeader fits) {
+		nSlices = fits.getDepth();
+		byteOrder = ByteOrder.BIG_ENDIAN;
+		bottomUp = true;
+		switch (fits.getBitpix()) {
+		case 8:
+			sampleType = UINT8;
+			bytesPerPixel = 1;
+			break;
+		case 16:
+			sampleType = INT16;
+			bytesPerPixel = 2;
+			break;
+		default:
+			sampleType = FLOAT32;
+			bytesPerPixel = 4;
+			scale = fits.getBscale();
+			offset = fits.getBzero();
+			break;
+		}
+
+		// same calibration as MappedFitsReader
+		if (fits.getPixelWidth() > 0.0 && fits.getUnit() != null) {
+			calibration.pixelWidth = fits.getPixelWidth();
+			calibration.pixelHeight = fits.getPixelHeight();
+			calibration.pixelDepth = fits.getPixelDepth();
+			calibration.setUnit(fits.getUnit());
+		}
+		if (sampleType == INT16) {
+			if (fits.getBscale() == 1.0 && fits.getBzero() == -32768.0)
+				calibration.setFunction(Calibration.NONE, null, "Gray Value");
+			else
+				calibration.setSigned16BitCalibration();
+		}
+	}
+
+	private void initNifti(NiftiHeader nifti, ByteOrder order) {
+		nSlices = 1;
+		for (int i = 3; i <= nifti.dim[0]; i++)
+			nSlices *= nifti.dim[i];
+		byteOrder = order;
+		bottomUp = false;
+		switch (nifti.datatype) {
+		case NiftiHeader.DT_UNSIGNED_CHAR:
+			sampleType = UINT8;
+			bytesPerPixel = 1;
+			break;
+		case NiftiHeader.DT_SIGNED_SHORT:
+			// non-negative values are kept as stored
+			sampleType = NiftiCodec.isShiftedSigned16(nifti) ? INT16 : UINT16;
+			bytesPerPixel = 2;
+			break;
+		case NiftiHeader.DT_UINT16:
+			sampleType = UINT16;
+			bytesPerPixel = 2;
+			break;
+		case NiftiHeader.DT_SIGNED_INT:
+			sampleType = INT32;
+			bytesPerPixel = 4;
+			break;
+		default:
+			sampleType = FLOAT32;
+			bytesPerPixel = 4;
+			break;
+		}
+
+		calibration.pixelWidth = nifti.pixdim[1];
+		calibration.pixelHeight = nifti.pixdim[2];
+		calibration.pixelDepth = nifti.pixdim[3];
+		int xyzUnits = nifti.xyzt_units & 7;
+		if (xyzUnits == NiftiHeader.UNITS_METER)
+			calibration.setUnit("m");
+		else if (xyzUnits == NiftiHeader.UNITS_MM)
+			calibration.setUnit("mm");
+		else if (xyzUnits == NiftiHeader.UNITS_MICRON)
+			calibration.setUnit("um");
+
+		// value calibration as in NiftiCodec
+		double[] coeff = new double[2];
+		coeff[0] = nifti.scl_inter;
+		coeff[1] = (nifti.scl_slope == 0.0) ? 1.0 : nifti.scl_slope;
+		if (sampleType == INT16)
+			coeff[0] -= 32768.0 * coeff[1];
+		calibration.setFunction(Calibration.STRAIGHT_LINE, coeff, "gray value");
+	}
+
+	/**
+	 * Maps the data in segments of whole slices
+	 */
+	private void map(FileChannel channel, long dataOffset) throws IOException {
+		slicesPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / sliceSize);
+		int nSegments = (nSlices + slicesPerSegment - 1) / slicesPerSegment;
+		segments = new MappedByteBuffer[nSegments];
+		for (int s = 0; s < nSegments; s++) {
+			int count = Math.min(slicesPerSegment, nSlices - s
+					* slicesPerSegment);
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+					dataOffset + s * slicesPerSegment * sliceSize, count
+							* sliceSize);
+		}
+	}
+
+	/**
+	 * @return the slice of the file (zero-based) of the slice n (one-based)
+	 */
+	private int fileSlice(int n) {
+		return (fileSlices != null) ? fileSlices[n - 1] : firstSlice + n - 1;
+	}
+
+	private void checkSliceNumber(int n) {
+		if (n < 1 || n > nSlices)
+			throw new IllegalArgumentException("Argument out of range: " + n);
+	}
+
+	/**
+	 * Decodes the slice z of the file (zero-based)
+	 */
+	private Object decodeSlice(int z) {
+		ByteBuffer buffer = segments[z / slicesPerSegment].duplicate();
+		buffer.position((int) ((z % slicesPerSegment) * sliceSize));
+		buffer = buffer.slice();
+		buffer.order(byteOrder);
+
+		int size = width * height;
+		switch (sampleType) {
+		case UINT8: {
+			byte[] pixels = new byte[size];
+			for (int y = 0; y < height; y++) {
+				buffer.position(row(y) * width);
+				buffer.get(pixels, y * width, width);
+			}
+			return pixels;
+		}
+		case INT16:
+		case UINT16: {
+			short[] pixels = new short[size];
+			ShortBuffer shorts = buffer.asShortBuffer();
+			for (int y = 0; y < height; y++) {
+				shorts.position(row(y) * width);
+				shorts.get(pixels, y * width, width);
+			}
+			if (sampleType == INT16) {
+				// signed to unsigned short (adding 32768)
+				for (int i = 0; i < size; i++)
+					pixels[i] ^= 0x8000;
+			}
+			return pixels;
+		}
+		case INT32: {
+			float[] pixels = new float[size];
+			IntBuffer ints = buffer.asIntBuffer();
+			for (int y = 0; y < height; y++) {
+				ints.position(row(y) * width);
+				for (int x = 0; x < width; x++)
+					pixels[y * width + x] = ints.get();
+			}
+			return pixels;
+		}
+		default: {
+			float[] pixels = new float[size];
+			FloatBuffer floats = buffer.asFloatBuffer();
+			for (int y = 0; y < height; y++) {
+				floats.position(row(y) * width);
+				floats.get(pixels, y * width, width);
+			}
+			if (scale != 1.0 || offset != 0.0) {
+				for (int i = 0; i < size; i++)
+					pixels[i] = (float) (pixels[i] * scale + offset);
+			}
+			return pixels;
+		}
+		}
+	}
+
+	/**
+	 * @return the stored row of the image row y
+	 */
+	private int row(int y) {
+		return bottomUp ? height - 1 - y : y;
+	}
+
+	/**
+	 * Returns the pixel array of the slice n, decoding it if it is not in the
+	 * cache
+	 * 
+	 * @param n
+	 *            - slice number (one-based)
+	 * @return the pixels of the slice (byte[], short[] or float[])
+	 */
+	@Override
+	public synchronized Object getPixels(int n) {
+		checkSliceNumber(n);
+		int z = fileSlice(n);
+		Object pixels = cache.get(z);
+		if (pixels == null) {
+			pixels = decodeSlice(z);
+			cache.put(z, pixels);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Removes the slice n (one-based) from the stack, the file being
+	 * unchanged
+	 */
+	@Override
+	public synchronized void deleteSlice(int n) {
+		checkSliceNumber(n);
+		cache.remove(fileSlice(n));
+		if (fileSlices == null && n == 1) {
+			firstSlice++;
+		} else if (fileSlices == null && n == nSlices) {
+			// the last slice is no longer mapped to the stack
+		} else {
+			if (fileSlices == null) {
+				fileSlices = new int[nSlices];
+				for (int i = 0; i < nSlices; i++)
+					fileSlices[i] = firstSlice + i;
+			}
+			System.arraycopy(fileSlices, n, fileSlices, n - 1, nSlices - n);
+		}
+		nSlices--;
+	}
+
+	@Override
+	public void deleteLastSlice() {
+		if (nSlices > 0)
+			deleteSlice(nSlices);
+	}
+
+	@Override
+	public void addSlice(String name) {
+		throw cannotAddSlice();
+	}
+
+	@Override
+	public void addSlice(String sliceLabel, Object pixels) {
+		throw cannotAddSlice();
+	}
+
+	@Override
+	public void addSlice(String sliceLabel, ImageProcessor ip) {
+		throw cannotAddSlice();
+	}
+
+	@Override
+	public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+		throw cannotAddSlice();
+	}
+
+	private UnsupportedOperationException cannotAddSlice() {
+		return new UnsupportedOperationException(
+				"Slices cannot be added to the memory mapped stack of "
+						+ path);
+	}
+
+	/**
+	 * The slices of the file cannot be changed
+	 */
+	@Override
+	public void setPixels(Object pixels, int n) {
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		Object pixels = getPixels(n);
+		ImageProcessor ip;
+		if (pixels instanceof byte[])
+			ip = new ByteProcessor(width, height, (byte[]) pixels, null);
+		else if (pixels instanceof short[])
+			ip = new ShortProcessor(width, height, (short[]) pixels, null);
+		else
+			ip = new FloatProcessor(width, height, (float[]) pixels, null);
+		return ip;
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return nSlices;
+	}
+
+	/**
+	 * @return the file name followed by the slice number (one-based) in the
+	 *         file
+	 */
+	@Override
+	public synchronized String getSliceLabel(int n) {
+		checkSliceNumber(n);
+		return new File(path).getName() + ":" + (fileSlice(n) + 1);
+	}
+
+	/**
+	 * The slice labels are built from the file and cannot be changed
+	 */
+	@Override
+	public void setSliceLabel(String label, int n) {
+	}
+
+	@Override
+	public String getFileName(int n) {
+		return new File(path).getName();
+	}
+
+	@Override
+	public int getBitDepth() {
+		switch (sampleType) {
+		case UINT8:
+			return 8;
+		case INT16:
+		case UINT16:
+			return 16;
+		default:
+			return 32;
+		}
+	}
+
+	/**
+	 * @return the calibration read from the header
+	 */
+	public Calibration getCalibration() {
+		return calibration.copy();
+	}
+
+	/**
+	 * @param cacheSize
+	 *            - maximum number of decoded slices kept in memory
+	 */
+	public synchronized void setCacheSize(int cacheSize) {
+		this.cacheSize = Math.max(0, cacheSize);
+		while (cache.size() > this.cacheSize)
+			cache.remove(cache.keySet().iterator().next());
+	}
+
+	/**
+	 * @return the path of the file
+	 */
+	public String getPath() {
+		return path;
+	}
+
+}
@@ -0,0 +1,536 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import util.ParallelLoop;
+
+/**
+ * This is a NIfTI-1 codec for single file volumes (.nii and .nii.gz) based on
+ * NIO buffers. The byte order, the sign offset of 16-bits data and the order
+ * of the channels are applied while each slice is decoded from, or encoded
+ * into, a buffer: the ImagePlus given to write() is never modified, and no
+ * pass over the volume is needed after reading.
+ * 
+ * .nii files are memory mapped and decoded in parallel, .nii.gz files are
+ * decompressed in parallel by a BlockGzipInputStream and written with a
+ * BlockGzipOutputStream.
+ * 
+ * The files are the same, byte for byte, as the files written by
+ * Nifti_Writer. 16-bits signed data are read as intended by
+ * Nifti_Reader.checkDataRange: if no stored value is negative the pixels are
+ * the stored values, otherwise they are shifted by 32768 and the value
+ * calibration is corrected by -32768 * scl_slope.
+ * 
+ * @author pnb
+ * 
+ */
+public class NiftiCodec {
+
+	// maximum number of bytes mapped at once by a thread
+	private static final long MAX_MAPPED_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Read a .nii or .nii.gz file
+	 * 
+	 * @param fileName
+	 *            - path of the file
+	 * @return the image, or null if the file is not a single file NIfTI-1
+	 *         volume of a supported data type (8-bits, 16-bits signed or
+	 *         unsigned, 32-bits integer, 32-bits or 64-bits float)
+	 * @throws IOException
+	 */
+	public static ImagePlus read(String fileName) throws IOException {
+		if (fileName == null)
+			return null;
+		String lowerCase = fileName.toLowerCase();
+		if (lowerCase.endsWith(".nii"))
+			return readMapped(fileName);
+		if (lowerCase.endsWith(".nii.gz"))
+			return readCompressed(fileName);
+		return null;
+	}
+
+	/**
+	 * Write an 8-bits, 16-bits or 32-bits float image into a .nii or .nii.gz
+	 * file (big endian, as Nifti_Writer)
+	 * 
+	 * @param imp
+	 *            - image to save (not modified)
+	 * @param fileName
+	 *            - path of the file, compressed if it ends with ".gz"
+	 * @throws IOException
+	 */
+	public static void write(ImagePlus imp, String fileName) throws IOException {
+		write(imp, fileName, new Nifti_Writer());
+	}
+
+	/**
+	 * @return true if the image can be written by this class
+	 */
+	public static boolean isSupported(ImagePlus imp) {
+		int type = imp.getType();
+		return type == ImagePlus.GRAY8 || type == ImagePlus.GRAY16
+				|| type == ImagePlus.GRAY32;
+	}
+
+	/**
+	 * Checks that the header read from the buffer belongs to a single file
+	 * volume (magic "n+1") that can be decoded by this class
+	 */
+	static boolean isSupported(NiftiHeader header, ByteBuffer headerBuffer) {
+		if (header == null
+				|| headerBuffer.get(344) != 'n' || headerBuffer.get(345) != '+')
+			return false;
+		short[] dim = header.dim;
+		if (dim[0] < 2 || dim[0] > 7 || dim[1] <= 0 || dim[2] <= 0)
+			return false;
+		for (int i = 3; i <= dim[0]; i++)
+			if (dim[i] <= 0)
+				return false;
+		// channels are the 5th dimension, higher dimensions are not supported
+		if (dim[0] > 5 && getNumberOfSlices(header) != getDim(header, 3)
+				* getDim(header, 4) * getDim(header, 5))
+			return false;
+		return getBytesPerPixel(header.datatype) > 0;
+	}
+
+	/**
+	 * @return the number of bytes per voxel of the supported data types, 0
+	 *         otherwise
+	 */
+	static int getBytesPerPixel(int datatype) {
+		switch (datatype) {
+		case NiftiHeader.DT_UNSIGNED_CHAR:
+			return 1;
+		case NiftiHeader.DT_SIGNED_SHORT:
+		case NiftiHeader.DT_UINT16:
+			return 2;
+		case NiftiHeader.DT_SIGNED_INT:
+		case NiftiHeader.DT_FLOAT:
+			return 4;
+		case NiftiHeader.DT_DOUBLE:
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	private static int getDim(NiftiHeader header, int i) {
+		return (header.dim[0] < i) ? 1 : header.dim[i];
+	}
+
+	private static int getNumberOfSlices(NiftiHeader header) {
+		int n = 1;
+		for (int i = 3; i <= header.dim[0]; i++)
+			n *= header.dim[i];
+		return n;
+	}
+
+	private static ImagePlus readMapped(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			if (channel.size() < NiftiHeader.HEADER_SIZE)
+				return null;
+			ByteBuffer headerBuffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, NiftiHeader.HEADER_SIZE);
+			final NiftiHeader header = NiftiHeader.parse(headerBuffer);
+			if (!isSupported(header, headerBuffer))
+				return null;
+
+			final ByteOrder order = headerBuffer.order();
+			final long dataOffset = (long) header.vox_offset;
+			final long sliceSize = (long) header.dim[1] * header.dim[2]
+					* getBytesPerPixel(header.datatype);
+			final Object[] slices = new Object[getNumberOfSlices(header)];
+			final boolean[] negative = new boolean[slices.length];
+			final boolean shift = isShiftedSigned16(header);
+			if (dataOffset + sliceSize * slices.length > channel.size()) {
+				System.err.println("The NIfTI file is truncated: " + fileName);
+				return null;
+			}
+
+			// number of slices mapped at once
+			final int slicesPerMap = (int) Math.max(1, MAX_MAPPED_BYTES
+					/ sliceSize);
+			ParallelLoop.run(0, slices.length, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) throws Exception {
+					for (int z = from; z < to; z += slicesPerMap) {
+						int count = Math.min(slicesPerMap, to - z);
+						ByteBuffer buffer = channel.map(
+								FileChannel.MapMode.READ_ONLY, dataOffset + z
+										* sliceSize, count * sliceSize);
+						for (int i = 0; i < count; i++) {
+							buffer.position((int) (i * sliceSize));
+							slices[z + i] = decodeSlice(buffer.slice()
+									.order(order), header, shift);
+							negative[z + i] = hasNegativeValue(slices[z + i],
+									shift);
+						}
+					}
+				}
+			});
+			return createImagePlus(fileName, header, order, slices,
+					checkSigned16(header, slices, negative, shift));
+		} finally {
+			file.close();
+		}
+	}
+
+	private static ImagePlus readCompressed(String fileName) throws IOException {
+		BlockGzipInputStream input = new BlockGzipInputStream(
+				new BufferedInputStream(new FileInputStream(fileName),
+						BlockGzip.MAX_MEMBER_SIZE));
+		try {
+			byte[] headerBytes = new byte[NiftiHeader.HEADER_SIZE];
+			input.readFully(headerBytes, 0, headerBytes.length);
+			ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes);
+			NiftiHeader header = NiftiHeader.parse(headerBuffer);
+			if (!isSupported(header, headerBuffer))
+				return null;
+			for (long skip = (long) header.vox_offset - headerBytes.length; skip > 0; skip--)
+				if (input.read() < 0)
+					throw new EOFException();
+
+			ByteOrder order = headerBuffer.order();
+			Object[] slices = new Object[getNumberOfSlices(header)];
+			boolean[] negative = new boolean[slices.length];
+			boolean shift = isShiftedSigned16(header);
+			byte[] sliceBytes = new byte[header.dim[1] * header.dim[2]
+					* getBytesPerPixel(header.datatype)];
+			for (int z = 0; z < slices.length; z++) {
+				input.readFully(sliceBytes, 0, sliceBytes.length);
+				slices[z] = decodeSlice(ByteBuffer.wrap(sliceBytes).order(order),
+						header, shift);
+				negative[z] = hasNegativeValue(slices[z], shift);
+			}
+			return createImagePlus(fileName, header, order, slices,
+					checkSigned16(header, slices, negative, shift));
+		} catch (EOFException e) {
+			System.err.println("The NIfTI file is truncated: " + fileName);
+			return null;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Guesses if the 16-bits signed data have to be shifted by 32768: files
+	 * written by Nifti_Writer store the values above 32767 shifted, with
+	 * scl_inter increased by 32768 * scl_slope
+	 */
+	static boolean isShiftedSigned16(NiftiHeader header) {
+		if (header.datatype != NiftiHeader.DT_SIGNED_SHORT)
+			return false;
+		double slope = (header.scl_slope == 0.0) ? 1.0 : header.scl_slope;
+		return header.scl_inter >= 32768.0 * slope;
+	}
+
+	/**
+	 * @return true if one of the stored 16-bits signed values of the slice is
+	 *         negative
+	 */
+	private static boolean hasNegativeValue(Object pixels, boolean shifted) {
+		if (!(pixels instanceof short[]))
+			return false;
+		// sign bit of the stored value (inverted if shifted)
+		int negativeBit = shifted ? 0 : 0x8000;
+		short[] shorts = (short[]) pixels;
+		for (int i = 0; i < shorts.length; i++)
+			if ((shorts[i] & 0x8000) == negativeBit)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Shifts the 16-bits signed data again if the guess was wrong: the pixels
+	 * are shifted by 32768 only if a stored value is negative
+	 * 
+	 * @return true if the pixels are shifted
+	 */
+	private static boolean checkSigned16(NiftiHeader header,
+			final Object[] slices, boolean[] negative, boolean shift) {
+		if (header.datatype != NiftiHeader.DT_SIGNED_SHORT)
+			return false;
+		boolean hasNegative = false;
+		for (int z = 0; z < negative.length; z++)
+			hasNegative |= negative[z];
+		if (hasNegative != shift) {
+			ParallelLoop.run(0, slices.length, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) throws Exception {
+					for (int z = from; z < to; z++) {
+						short[] pixels = (short[]) slices[z];
+						for (int i = 0; i < pixels.length; i++)
+							pixels[i] ^= 0x8000;
+					}
+				}
+			});
+		}
+		return hasNegative;
+	}
+
+	/**
+	 * Decodes one slice starting at the beginning of the buffer (byte order
+	 * already set). The rows are stored from the top of the image, as in
+	 * ImageJ.
+	 * 
+	 * @param shift
+	 *            - true to shift the 16-bits signed values by 32768
+	 * @return the pixels of the slice (byte[], short[] or float[])
+	 */
+	static Object decodeSlice(ByteBuffer buffer, NiftiHeader header,
+			boolean shift) {
+		int size = header.dim[1] * header.dim[2];
+		switch (header.datatype) {
+		case NiftiHeader.DT_UNSIGNED_CHAR: {
+			byte[] pixels = new byte[size];
+			buffer.get(pixels);
+			return pixels;
+		}
+		case NiftiHeader.DT_SIGNED_SHORT:
+		case NiftiHeader.DT_UINT16: {
+			short[] pixels = new short[size];
+			buffer.asShortBuffer().get(pixels);
+			if (shift) {
+				// signed to unsigned short (adding 32768)
+				for (int i = 0; i < size; i++)
+					pixels[i] ^= 0x8000;
+			}
+			return pixels;
+		}
+		case NiftiHeader.DT_SIGNED_INT: {
+			float[] pixels = new float[size];
+			IntBuffer ints = buffer.asIntBuffer();
+			for (int i = 0; i < size; i++)
+				pixels[i] = ints.get();
+			return pixels;
+		}
+		case NiftiHeader.DT_FLOAT: {
+			float[] pixels = new float[size];
+			buffer.asFloatBuffer().get(pixels);
+			return pixels;
+		}
+		case NiftiHeader.DT_DOUBLE: {
+			float[] pixels = new float[size];
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			for (int i = 0; i < size; i++)
+				pixels[i] = (float) doubles.get();
+			return pixels;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type: "
+					+ header.datatype);
+		}
+	}
+
+	/**
+	 * Creates the image from the decoded slices, in the order of ImageJ
+	 * (channels first), with the calibration of the header
+	 */
+	private static ImagePlus createImagePlus(String fileName,
+			NiftiHeader header, ByteOrder order, Object[] slices,
+			boolean shifted) {
+		int width = header.dim[1];
+		int height = header.dim[2];
+		int depth = getDim(header, 3);
+		int frames = getDim(header, 4);
+		int nChannels = getDim(header, 5);
+
+		// the 5th dimension (channels) is the slowest one in the file
+		ImageStack stack = new ImageStack(width, height);
+		int nOthers = depth * frames;
+		for (int k = 0; k < nOthers; k++)
+			for (int c = 0; c < nChannels; c++)
+				stack.addSlice(null, slices[c * nOthers + k]);
+
+		File file = new File(fileName);
+		ImagePlus imp = new ImagePlus(file.getName(), stack);
+		imp.setDimensions(nChannels, depth, frames);
+		if (nChannels * frames != 1)
+			imp.setOpenAsHyperStack(true);
+
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = header.pixdim[1];
+		cal.pixelHeight = header.pixdim[2];
+		cal.pixelDepth = header.pixdim[3];
+		cal.frameInterval = header.pixdim[4];
+		int xyzUnits = header.xyzt_units & 7;
+		if (xyzUnits == NiftiHeader.UNITS_METER)
+			cal.setUnit("m");
+		else if (xyzUnits == NiftiHeader.UNITS_MM)
+			cal.setUnit("mm");
+		else if (xyzUnits == NiftiHeader.UNITS_MICRON)
+			cal.setUnit("um");
+		int tUnits = header.xyzt_units & 24;
+		if (tUnits == NiftiHeader.UNITS_MSEC)
+			cal.frameInterval *= 0.001;
+		else if (tUnits == NiftiHeader.UNITS_USEC)
+			cal.frameInterval *= 0.000001;
+
+		double[] coeff = new double[2];
+		coeff[0] = header.scl_inter;
+		coeff[1] = (header.scl_slope == 0.0) ? 1.0 : header.scl_slope;
+		if (shifted)
+			coeff[0] -= 32768.0 * coeff[1];
+		cal.setFunction(Calibration.STRAIGHT_LINE, coeff, "gray value");
+		imp.setProperty("nifti", header);
+
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.RAW;
+		fi.fileName = file.getName();
+		fi.directory = file.getParent() + File.separator;
+		fi.width = width;
+		fi.height = height;
+		fi.nImages = slices.length;
+		fi.offset = (int) header.vox_offset;
+		fi.intelByteOrder = (order == ByteOrder.LITTLE_ENDIAN);
+		fi.fileType = (stack.getBitDepth() == 8) ? FileInfo.GRAY8 : (stack
+				.getBitDepth() == 16) ? FileInfo.GRAY16_UNSIGNED
+				: FileInfo.GRAY32_FLOAT;
+		imp.setFileInfo(fi);
+		return imp;
+	}
+
+	/**
+	 * Writes the image with the header created by the writer
+	 */
+	static void write(ImagePlus imp, String fileName, Nifti_Writer writer)
+			throws IOException {
+		if (!isSupported(imp))
+			throw new IllegalArgumentException(
+					"Only 8-bits, 16-bits and 32-bits images are supported.");
+		ImageStack stack = imp.getStack();
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		int nChannels = imp.getNChannels();
+		int nOthers = stack.getSize() / nChannels;
+
+		// 16-bits values above 32767 are stored shifted by 32768
+		boolean signed16Bit = imp.getType() == ImagePlus.GRAY16
+				&& hasValueAbove(stack, 32767);
+		ByteOrder order = writer.littleEndian ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN;
+
+		File f = new File(fileName);
+		if (f.exists())
+			f.delete();
+		FileOutputStream output = new FileOutputStream(f);
+		try {
+			FileChannel channel = output.getChannel();
+			BlockGzipOutputStream gzip = null;
+			if (fileName.toLowerCase().endsWith(".gz"))
+				gzip = new BlockGzipOutputStream(Channels.newOutputStream(channel));
+
+			write(channel, gzip,
+					ByteBuffer.wrap(writer.createNiftiFileHeader(imp, signed16Bit)));
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(width * height
+					* stack.getBitDepth() / 8);
+			buffer.order(order);
+			// the 5th dimension (channels) is the slowest one in the file
+			for (int c = 0; c < nChannels; c++) {
+				for (int k = 0; k < nOthers; k++) {
+					buffer.clear();
+					encodeSlice(stack.getPixels(k * nChannels + c + 1), buffer,
+							signed16Bit);
+					buffer.flip();
+					write(channel, gzip, buffer);
+				}
+			}
+			if (gzip != null)
+				gzip.close();
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void write(FileChannel channel, BlockGzipOutputStream gzip,
+			ByteBuffer buffer) throws IOException {
+		if (gzip != null) {
+			gzip.write(buffer);
+			return;
+		}
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Encodes one slice into the buffer (rows from the top of the image)
+	 */
+	private static void encodeSlice(Object pixels, ByteBuffer buffer,
+			boolean signed16Bit) {
+		if (pixels instanceof byte[]) {
+			buffer.put((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			ShortBuffer out = buffer.asShortBuffer();
+			if (signed16Bit) {
+				// unsigned short --> signed short (subtracting 32768)
+				for (int i = 0; i < shorts.length; i++)
+					out.put((short) (shorts[i] ^ 0x8000));
+			} else {
+				out.put(shorts);
+			}
+			buffer.position(2 * shorts.length);
+		} else {
+			float[] floats = (float[]) pixels;
+			FloatBuffer out = buffer.asFloatBuffer();
+			out.put(floats);
+			buffer.position(4 * floats.length);
+		}
+	}
+
+	/**
+	 * @return true if one of the 16-bits values is larger than the threshold
+	 */
+	private static boolean hasValueAbove(ImageStack stack, int threshold) {
+		for (int z = 1; z <= stack.getSize(); z++) {
+			short[] pixels = (short[]) stack.getPixels(z);
+			for (int i = 0; i < pixels.length; i++)
+				if ((pixels[i] & 0xffff) > threshold)
+					return true;
+		}
+		return false;
+	}
+
+}
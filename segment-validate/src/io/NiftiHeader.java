@@ -1,5 +1,8 @@
 package io;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**	This plugin saves Analyze or Nifti-1 format files.
 
 The first characters of the input variable arg is used to determine in
@@ -116,8 +119,86 @@ public class NiftiHeader {
 	public static final int UNITS_HZ = 32;
 	public static final int UNITS_PPM = 40;
 
+	/** size of the NIfTI-1 header in bytes */
+	public static final int HEADER_SIZE = 348;
+
 	public NiftiHeader( ) { }
 
+	/**
+	 * Parses a NIfTI-1 header (single .nii file or .hdr file) from a buffer 
+	 * positioned at the beginning of the header. The byte order of the buffer
+	 * is set to the byte order of the file (detected from dim[0] as in 
+	 * Nifti_Reader).
+	 * 
+	 * @param buffer - buffer with at least HEADER_SIZE remaining bytes
+	 * @return the header, or null if the buffer does not contain a NIfTI-1 header
+	 */
+	public static NiftiHeader parse(ByteBuffer buffer) { 
+		if (buffer.remaining() < HEADER_SIZE) return null; 
+		int start = buffer.position(); 
+
+		buffer.order(ByteOrder.BIG_ENDIAN); 
+		short dim0 = buffer.getShort(start + 40); 
+		if ((dim0 < 0) || (dim0 > 7)) buffer.order(ByteOrder.LITTLE_ENDIAN); 
+
+		byte [] magicBuf = new byte[4]; 
+		for (int i=0; i<4; i++) magicBuf[i] = buffer.get(start + 344 + i); 
+		String magic = new String(magicBuf, 0, 3); 
+		if (!((magicBuf[3]==0) && (magic.equals("ni1") || magic.equals("n+1")))) return null; 
+
+		NiftiHeader hdr = new NiftiHeader(); 
+		hdr.dim_info = buffer.get(start + 39); 
+		hdr.dim = new short[8]; 
+		for (int i=0; i<8; i++) hdr.dim[i] = buffer.getShort(start + 40 + 2*i); 
+		hdr.intent_p1 = buffer.getFloat(start + 56); 
+		hdr.intent_p2 = buffer.getFloat(start + 60); 
+		hdr.intent_p3 = buffer.getFloat(start + 64); 
+		hdr.intent_code = buffer.getShort(start + 68); 
+		hdr.datatype = buffer.getShort(start + 70); 
+		hdr.bitpix = buffer.getShort(start + 72); 
+		hdr.slice_start = buffer.getShort(start + 74); 
+		hdr.pixdim = new float[8]; 
+		for (int i=0; i<8; i++) hdr.pixdim[i] = buffer.getFloat(start + 76 + 4*i); 
+		hdr.vox_offset = buffer.getFloat(start + 108); 
+		hdr.scl_slope = buffer.getFloat(start + 112); 
+		hdr.scl_inter = buffer.getFloat(start + 116); 
+		hdr.slice_end = buffer.getShort(start + 120); 
+		hdr.slice_code = buffer.get(start + 122); 
+		hdr.xyzt_units = buffer.get(start + 123); 
+		hdr.cal_max = buffer.getFloat(start + 124); 
+		hdr.cal_min = buffer.getFloat(start + 128); 
+		hdr.slice_duration = buffer.getFloat(start + 132); 
+		hdr.toffset = buffer.getFloat(start + 136); 
+		hdr.glmax = buffer.getInt(start + 140); 
+		hdr.glmin = buffer.getInt(start + 144); 
+		byte [] descBuf = new byte[80]; 
+		for (int i=0; i<80; i++) descBuf[i] = buffer.get(start + 148 + i); 
+		hdr.descrip = new String(descBuf); 
+		byte [] auxBuf = new byte[24]; 
+		for (int i=0; i<24; i++) auxBuf[i] = buffer.get(start + 228 + i); 
+		hdr.aux_file = new String(auxBuf); 
+		hdr.qform_code = buffer.getShort(start + 252); 
+		hdr.sform_code = buffer.getShort(start + 254); 
+		hdr.quatern_b = buffer.getFloat(start + 256); 
+		hdr.quatern_c = buffer.getFloat(start + 260); 
+		hdr.quatern_d = buffer.getFloat(start + 264); 
+		hdr.qoffset_x = buffer.getFloat(start + 268); 
+		hdr.qoffset_y = buffer.getFloat(start + 272); 
+		hdr.qoffset_z = buffer.getFloat(start + 276); 
+		hdr.srow_x = new float[4]; 
+		hdr.srow_y = new float[4]; 
+		hdr.srow_z = new float[4]; 
+		for (int i=0; i<4; i++) hdr.srow_x[i] = buffer.getFloat(start + 280 + 4*i); 
+		for (int i=0; i<4; i++) hdr.srow_y[i] = buffer.getFloat(start + 296 + 4*i); 
+		for (int i=0; i<4; i++) hdr.srow_z[i] = buffer.getFloat(start + 312 + 4*i); 
+		byte [] intentBuf = new byte[16]; 
+		for (int i=0; i<16; i++) intentBuf[i] = buffer.get(start + 328 + i); 
+		hdr.intent_name = new String(intentBuf); 
+
+		buffer.position(start + HEADER_SIZE); 
+		return hdr; 
+	}
+
 	public static int getCoorTypeCode( String type ) { 
 		if (type.equals("Scanner coordinates")) return NIFTI_XFORM_SCANNER_ANAT; 
 		if (type.equals("Aligned coordinates")) return NIFTI_XFORM_ALIGNED_ANAT; 
@@ -50,6 +50,14 @@ public class Nifti_Reader extends ImagePlus {
 		//IJ.showStatus("Opening: " + directory + name);
 		System.out.println("Opening: " + directory + name);
 		
+		// single .nii/.nii.gz files: decoded from a mapped or gzip buffer
+		try {
+			ImagePlus decoded = NiftiCodec.read(inputFilename);
+			if (decoded != null) return decoded;
+		} catch (IOException e) {
+			System.out.println("NiftiCodec: "+ e.getMessage());
+		}
+		
 		ImagePlus imp = load(directory, name);
 		if (imp!=null) {
 			if (complex && imp.getStackSize()==1)
@@ -84,6 +84,16 @@ public class Nifti_Writer {
 				System.err.println("No filename selected");				
 				return;
 			}
+			if (output_type==NIFTI_FILE && NiftiCodec.isSupported(imp)) {
+				// slices encoded into a buffer: the image is not modified
+				System.out.println("Saving as Nifti: " + outFilename);
+				try {
+					NiftiCodec.write(imp, outFilename, this);
+				} catch (IOException e) {
+					System.out.println("Nifti_Writer: "+ e.getMessage());
+				}
+				return;
+			}
 			if (is16BitSigned(imp)) {
 				add(imp, -32768);
 				signed16Bit = true;
@@ -141,7 +151,10 @@ public class Nifti_Writer {
 
 			try {
 				String hdrFile = (output_type==NIFTI_FILE) ? directory + name : directory + name + ".hdr";
-				FileOutputStream stream = new FileOutputStream(hdrFile);
+				OutputStream stream = new FileOutputStream(hdrFile);
+				// .nii.gz: block compressed in parallel, readable by gunzip and ITK
+				if (output_type==NIFTI_FILE && name.toLowerCase().endsWith(".gz"))
+					stream = new BlockGzipOutputStream(stream);
 				DataOutputStream output = new DataOutputStream(stream);
 			
 				//IJ.showStatus("Saving as Analyze: " + directory + name);
@@ -181,6 +194,21 @@ public class Nifti_Writer {
 			}
 		} 
 
+		/* Header of a .nii file (with the 4 bytes of extension), for NiftiCodec */
+		byte[] createNiftiFileHeader(ImagePlus imp, boolean signed16Bit) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(352);
+			DataOutputStream output = new DataOutputStream(bytes);
+			boolean previous = this.signed16Bit;
+			this.signed16Bit = signed16Bit;
+			try {
+				writeHeader(imp, output, NIFTI_FILE);
+			} finally {
+				this.signed16Bit = previous;
+			}
+			output.flush();
+			return bytes.toByteArray();
+		}
+
 		private void writeHeader( ImagePlus imp, DataOutputStream output, int type ) throws IOException {
 			FileInfo fi = imp.getFileInfo();
 			short bitsallocated, datatype;
@@ -0,0 +1,123 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import segment3D.BitMask3D;
+import segment3D.RunLengthMask3D;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+/**
+ * This is a class for reading a run length encoded mask file (.rle) written
+ * by RleMaskWriter, as runs, as a bit-packed mask or as an 8 bits ImagePlus
+ * 
+ * @author pnb
+ * 
+ */
+public class RleMaskLoader {
+
+	/**
+	 * @return true if the file name has the extension of run length encoded
+	 *         mask files
+	 */
+	public static boolean isRleMask(String fileName) {
+		return fileName.toLowerCase().endsWith(RleMaskWriter.EXTENSION);
+	}
+
+	/**
+	 * Reads the runs of a mask file
+	 * 
+	 * @param fileName
+	 *            - path of the mask file
+	 * @return the mask (with its calibration)
+	 * @throws IOException
+	 *             if the file is not a mask file
+	 */
+	public static RunLengthMask3D read(String fileName) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(fileName)), 1 << 16));
+		try {
+			if (input.readInt() != RleMaskWriter.MAGIC)
+				throw new IOException("Not a run length encoded mask file: "
+						+ fileName);
+			int version = input.readInt();
+			if (version != RleMaskWriter.VERSION)
+				throw new IOException("Unsupported mask file version "
+						+ version + ": " + fileName);
+			int width = input.readInt();
+			int height = input.readInt();
+			int depth = input.readInt();
+			Calibration cal = new Calibration();
+			cal.pixelWidth = input.readDouble();
+			cal.pixelHeight = input.readDouble();
+			cal.pixelDepth = input.readDouble();
+			cal.setXUnit(input.readUTF());
+			cal.setYUnit(input.readUTF());
+			cal.setZUnit(input.readUTF());
+
+			int rows = depth * height;
+			int[] rowStart = new int[rows + 1];
+			for (int r = 0; r < rows; r++) {
+				int count = input.readInt();
+				if (count < 0 || count > width)
+					throw new IOException("Invalid run count in " + fileName);
+				rowStart[r + 1] = rowStart[r] + count;
+			}
+			int[] runs = new int[2 * rowStart[rows]];
+			for (int i = 0; i < runs.length; i++)
+				runs[i] = input.readInt();
+
+			RunLengthMask3D mask = new RunLengthMask3D(width, height, depth,
+					rowStart, runs);
+			mask.setCalibration(cal);
+			return mask;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return the bit-packed mask of a mask file
+	 * @throws IOException
+	 */
+	public static BitMask3D readBitMask3D(String fileName) throws IOException {
+		return read(fileName).toBitMask3D();
+	}
+
+	/**
+	 * @return the 8 bits binary image (255 for foreground voxels) of a mask
+	 *         file, titled with the file name
+	 * @throws IOException
+	 */
+	public static ImagePlus readImagePlus(String fileName) throws IOException {
+		ImagePlus imp = read(fileName).toImagePlus();
+		imp.setTitle(new File(fileName).getName());
+		return imp;
+	}
+
+}
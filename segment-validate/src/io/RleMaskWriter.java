@@ -0,0 +1,173 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import segment3D.RunLengthMask3D;
+import segment3D.Segment3DImage;
+
+import ij.measure.Calibration;
+
+/**
+ * This is a class for writing a 3D binary mask in a run length encoded mask
+ * file (.rle): runs of foreground voxels along x, indexed by row and slice.
+ * 
+ * File layout (big endian): magic "RLE3", version, width, height, depth, voxel
+ * dimensions and units, the number of runs of each row (slice by slice, row by
+ * row), then the start (inclusive) and end (exclusive) x of each run.
+ * 
+ * The writer can also be passed as a SliceConsumer (non zero voxels are
+ * foreground), for instance to Segment3DImage.writeSegmentedSlices(); the file
+ * is written by end().
+ * 
+ * @author pnb
+ * 
+ */
+public class RleMaskWriter implements SliceConsumer {
+
+	static final int MAGIC = 0x524C4533; // "RLE3"
+	static final int VERSION = 1;
+
+	/** file name extension of run length encoded mask files */
+	public static final String EXTENSION = ".rle";
+
+	private String path;
+	private Calibration calibration;
+	private RunLengthMask3D mask = null;
+	private boolean failed = false;
+
+	/**
+	 * @param path
+	 *            - path of the mask file written by end()
+	 * @param calibration
+	 *            - voxel dimensions and units (can be null)
+	 */
+	public RleMaskWriter(String path, Calibration calibration) {
+		this.path = path;
+		this.calibration = calibration;
+	}
+
+	/**
+	 * Writes the segmented image of a Segment3DImage (the 8 bits segmented
+	 * stack is never built)
+	 * 
+	 * @param path
+	 *            - path of the mask file
+	 * @param image
+	 *            - segmented 3D image
+	 * @throws IOException
+	 */
+	public static void write(String path, Segment3DImage image)
+			throws IOException {
+		RleMaskWriter writer = new RleMaskWriter(path, image.getCalibration());
+		image.writeSegmentedSlices(writer);
+		if (writer.hasFailed())
+			throw new IOException("Failed writing the mask file " + path);
+	}
+
+	/**
+	 * Writes a run length encoded mask
+	 * 
+	 * @param path
+	 *            - path of the mask file (overwritten if it already exists)
+	 * @param mask
+	 *            - the mask (with its calibration)
+	 * @throws IOException
+	 */
+	public static void write(String path, RunLengthMask3D mask)
+			throws IOException {
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(new File(path)),
+						1 << 16));
+		try {
+			Calibration cal = mask.getCalibration();
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(mask.getWidth());
+			output.writeInt(mask.getHeight());
+			output.writeInt(mask.getDepth());
+			output.writeDouble(cal.pixelWidth);
+			output.writeDouble(cal.pixelHeight);
+			output.writeDouble(cal.pixelDepth);
+			output.writeUTF(cal.getXUnit());
+			output.writeUTF(cal.getYUnit());
+			output.writeUTF(cal.getZUnit());
+			// row index
+			for (int z = 0; z < mask.getDepth(); z++)
+				for (int y = 0; y < mask.getHeight(); y++)
+					output.writeInt(mask.getRunCount(y, z));
+			// runs
+			for (int z = 0; z < mask.getDepth(); z++)
+				for (int y = 0; y < mask.getHeight(); y++)
+					for (int i = 0; i < mask.getRunCount(y, z); i++) {
+						output.writeInt(mask.getRunStart(y, z, i));
+						output.writeInt(mask.getRunEnd(y, z, i));
+					}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * @return true if the slices could not be written
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	@Override
+	public void begin(int width, int height, int expectedDepth) {
+		mask = new RunLengthMask3D(width, height);
+		mask.setCalibration(calibration);
+	}
+
+	@Override
+	public void consumeSlice(int z, Object pixels) {
+		if (failed)
+			return;
+		try {
+			mask.addSlice(pixels, 0);
+		} catch (Exception e) {
+			System.err.println("Error encoding mask slice " + z);
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+	@Override
+	public void end(int depth) {
+		if (failed)
+			return;
+		try {
+			write(path, mask);
+		} catch (IOException e) {
+			System.err.println("Error writing mask file.");
+			e.printStackTrace();
+			failed = true;
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+/**
+ * This is an interface for classes receiving the slices of a z-stack one at a
+ * time, in z order, while the z-stack is loaded or generated. It allows
+ * computations like orthogonal projections to be updated without another
+ * pass over the whole volume.
+ * 
+ * @author pnb
+ * 
+ */
+public interface SliceConsumer {
+
+	/**
+	 * Called once before the first slice is delivered
+	 * 
+	 * @param width
+	 *            - width of each slice
+	 * @param height
+	 *            - height of each slice
+	 * @param expectedDepth
+	 *            - expected number of slices (the final number of slices is
+	 *            given to end())
+	 */
+	public void begin(int width, int height, int expectedDepth);
+
+	/**
+	 * Called for each slice of the z-stack
+	 * 
+	 * @param z
+	 *            - zero-based index of the slice in the z-stack
+	 * @param pixels
+	 *            - pixel array of the slice (byte[] or short[], row by row
+	 *            with origin at top left corner as in ImageJ)
+	 */
+	public void consumeSlice(int z, Object pixels);
+
+	/**
+	 * Called once after the last slice has been delivered
+	 * 
+	 * @param depth
+	 *            - number of slices delivered
+	 */
+	public void end(int depth);
+
+}
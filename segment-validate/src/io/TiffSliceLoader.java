@@ -0,0 +1,335 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import util.FileOper;
+import util.ParallelLoop;
+
+/**
+ * This is a class for loading a z-stack from a folder of 2D TIFF slices. The
+ * header of the first slice is read first to get the dimensions and the bit
+ * depth of the stack, then the slices are decoded in parallel (on the pool of
+ * ParallelLoop) directly into their position in the stack. The header of each
+ * slice is checked before its pixels are decoded and the loading stops at the
+ * first slice whose dimensions or bit depth differ from the first slice.
+ * The slice consumers receive the slices in z order as soon as they and the
+ * slices before them are decoded, while the next slices are being decoded.
+ * 
+ * 8-bits, 16-bits and 32-bits slices are supported. Files that are not TIFF
+ * files are opened by the ImageJ Opener.
+ * 
+ * @author pnb
+ * 
+ */
+public class TiffSliceLoader {
+
+	/**
+	 * Loads a z-stack from the files of a folder sorted by name
+	 * 
+	 * @param sourceFilePath
+	 *            - path to a directory with tif files
+	 * @param inputFilter
+	 *            - filter for selecting input files
+	 * @param consumers
+	 *            - slice consumers receiving the slices in z order while the
+	 *            stack is loaded
+	 * @return the z-stack or null if no file matches the filter
+	 * @throws IOException
+	 *             if a slice does not have the dimensions or the bit depth of
+	 *             the first slice or if the first slice cannot be read
+	 */
+	public static ImagePlus load(String sourceFilePath, String inputFilter,
+			SliceConsumer... consumers) throws IOException {
+		Collection<String> dirfiles = FileOper
+				.readFileDirectory(sourceFilePath);
+		Collection<String> onlyFilter = FileOper.selectFileType(dirfiles,
+				inputFilter);
+		Collection<String> sortedFilter = FileOper.sort(onlyFilter,
+				FileOper.SORT_ASCENDING);
+		if (sortedFilter == null || sortedFilter.isEmpty()) {
+			System.out.println("Did not find a match to file specifications ="
+					+ inputFilter + " in a folder=" + sourceFilePath);
+			return null;
+		}
+		System.out.println("Directory: " + sourceFilePath + " number of slices="
+				+ sortedFilter.size());
+		return load(new ArrayList<String>(sortedFilter), consumers);
+	}
+
+	/**
+	 * Loads a z-stack from a list of files, one slice per file. The label of
+	 * each slice is the index of its file in the list.
+	 * 
+	 * @param files
+	 *            - paths of the slices in z order
+	 * @param consumers
+	 *            - slice consumers receiving the slices in z order while the
+	 *            stack is loaded
+	 * @return the z-stack
+	 * @throws IOException
+	 *             if a slice does not have the dimensions or the bit depth of
+	 *             the first slice or if the first slice cannot be read
+	 */
+	public static ImagePlus load(final List<String> files,
+			SliceConsumer... consumers) throws IOException {
+		final int numFiles = files.size();
+		if (numFiles == 0)
+			throw new IOException("No slice to load");
+
+		// dimensions and bit depth of the stack from the first slice
+		int[] dims = prescan(files.get(0));
+		final int width = dims[0];
+		final int height = dims[1];
+		final int bitDepth = dims[2];
+
+		// decoded slices at their final position (null if not loaded)
+		final Object[] slices = new Object[numFiles];
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		for (SliceConsumer consumer : consumers)
+			consumer.begin(width, height, numFiles);
+		final SliceDelivery delivery = new SliceDelivery(slices, failure,
+				consumers);
+		try {
+			// one task per file: the time is spent waiting for the disk
+			ParallelLoop.run(0, numFiles, numFiles, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) throws Exception {
+					for (int i = from; i < to && failure.get() == null; i++) {
+						try {
+							slices[i] = readSlice(files.get(i), width, height,
+									bitDepth);
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+						}
+						delivery.decoded(i);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			throw new IOException("Could not load the z-stack", e.getCause());
+		}
+		if (failure.get() != null)
+			throw failure.get();
+
+		ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < numFiles; i++) {
+			if (slices[i] == null) {
+				System.err.println("Could not load file = " + files.get(i));
+				continue;
+			}
+			stack.addSlice(Integer.toString(i), slices[i]);
+		}
+		if (stack.getSize() == 0)
+			throw new IOException("None of the " + numFiles
+					+ " slices could be loaded");
+
+		for (SliceConsumer consumer : consumers)
+			consumer.end(stack.getSize());
+
+		return new ImagePlus("stack", stack);
+	}
+
+	/**
+	 * Hands the decoded slices over to the consumers in z order while the
+	 * other slices are being decoded. The thread decoding a slice delivers it
+	 * with the following decoded slices if it is the next one in z order and
+	 * no other thread is delivering; the consumers are therefore called by one
+	 * thread at a time. The slices that could not be decoded are skipped (the
+	 * z index of a slice is its index in the loaded stack) and the delivery
+	 * stops at the first failure.
+	 */
+	private static class SliceDelivery {
+
+		private Object[] slices;
+		private AtomicReference<IOException> failure;
+		private SliceConsumer[] consumers;
+
+		// slices decoded (or that could not be decoded)
+		private boolean[] decoded;
+		// index of the next file to deliver
+		private int next = 0;
+		// z index of the next slice delivered
+		private int z = 0;
+		private boolean delivering = false;
+
+		SliceDelivery(Object[] slices, AtomicReference<IOException> failure,
+				SliceConsumer[] consumers) {
+			this.slices = slices;
+			this.failure = failure;
+			this.consumers = consumers;
+			this.decoded = new boolean[slices.length];
+		}
+
+		void decoded(int i) {
+			synchronized (this) {
+				decoded[i] = true;
+				if (delivering || consumers.length == 0)
+					return;
+				delivering = true;
+			}
+			while (true) {
+				Object pixels;
+				synchronized (this) {
+					if (next >= slices.length || !decoded[next]
+							|| failure.get() != null) {
+						delivering = false;
+						return;
+					}
+					pixels = slices[next++];
+				}
+				// the consumers are called outside of the lock
+				if (pixels != null) {
+					for (SliceConsumer consumer : consumers)
+						consumer.consumeSlice(z, pixels);
+					z++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the width, height and bit depth of a slice from its TIFF header
+	 * (or from the decoded image if it is not a TIFF file)
+	 * 
+	 * @return {width, height, bitDepth}
+	 * @throws IOException
+	 *             if the slice cannot be read or if its type is not supported
+	 */
+	private static int[] prescan(String path) throws IOException {
+		FileInfo info = readTiffInfo(path);
+		int bitDepth;
+		if (info != null) {
+			bitDepth = getBitDepth(info);
+			if (bitDepth == 0)
+				throw new IOException("Unsupported pixel type in " + path
+						+ " (only 8, 16 and 32 bits gray level slices)");
+			return new int[] { info.width, info.height, bitDepth };
+		}
+		ImagePlus imgSlice = new Opener().openImage(path);
+		if (imgSlice == null)
+			throw new IOException("Could not load file = " + path);
+		bitDepth = imgSlice.getBitDepth();
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IOException("Unsupported pixel type in " + path
+					+ " (only 8, 16 and 32 bits gray level slices)");
+		return new int[] { imgSlice.getWidth(), imgSlice.getHeight(), bitDepth };
+	}
+
+	/**
+	 * Decodes one slice after checking its header against the first slice
+	 * 
+	 * @return the pixels of the slice or null if the file could not be
+	 *         decoded
+	 * @throws IOException
+	 *             if the dimensions or the bit depth are not the expected
+	 *             ones
+	 */
+	private static Object readSlice(String path, int width, int height,
+			int bitDepth) throws IOException {
+		ImagePlus imgSlice;
+		FileInfo info = readTiffInfo(path);
+		if (info != null) {
+			// fail before decoding the pixels
+			checkSlice(path, info.width, info.height, getBitDepth(info), width,
+					height, bitDepth);
+			imgSlice = new FileOpener(info).open(false);
+		} else {
+			imgSlice = new Opener().openImage(path);
+		}
+		if (imgSlice == null)
+			return null;
+		checkSlice(path, imgSlice.getWidth(), imgSlice.getHeight(),
+				imgSlice.getBitDepth(), width, height, bitDepth);
+		return imgSlice.getProcessor().getPixels();
+	}
+
+	private static void checkSlice(String path, int w, int h, int b,
+			int width, int height, int bitDepth) throws IOException {
+		if (w != width || h != height || b != bitDepth)
+			throw new IOException("Slice " + path + " is " + w + "x" + h + "x"
+					+ b + "bpp, expected " + width + "x" + height + "x"
+					+ bitDepth + "bpp");
+	}
+
+	/**
+	 * @return the description of the first image of a single image TIFF
+	 *         file, null if the file is not a TIFF file or contains several
+	 *         images
+	 */
+	private static FileInfo readTiffInfo(String path) {
+		String name = path.toLowerCase();
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+			return null;
+		File file = new File(path);
+		String directory = file.getParent() == null ? "" : file.getParent()
+				+ File.separator;
+		try {
+			FileInfo[] info = new TiffDecoder(directory, file.getName())
+					.getTiffInfo();
+			if (info == null || info.length != 1 || info[0].nImages > 1)
+				return null;
+			return info[0];
+		} catch (IOException e) {
+			// not a valid TIFF header, decoded by the Opener
+			return null;
+		}
+	}
+
+	/**
+	 * @return the bit depth of the ImageJ image decoded from a TIFF image, 0
+	 *         if the type is not supported
+	 */
+	private static int getBitDepth(FileInfo info) {
+		switch (info.fileType) {
+		case FileInfo.GRAY8:
+		case FileInfo.COLOR8:
+		case FileInfo.BITMAP:
+			return 8;
+		case FileInfo.GRAY16_SIGNED:
+		case FileInfo.GRAY16_UNSIGNED:
+		case FileInfo.GRAY12_UNSIGNED:
+			return 16;
+		case FileInfo.GRAY32_INT:
+		case FileInfo.GRAY32_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+		case FileInfo.GRAY24_UNSIGNED:
+		case FileInfo.GRAY64_FLOAT:
+			return 32;
+		default:
+			return 0;
+		}
+	}
+
+}
@@ -24,22 +24,28 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
-import io.Fits3DWriter;
+import io.DecodedVolumeSize;
+import io.FitsStreamWriter;
 import io.Nifti_Reader;
 import io.Nifti_Writer;
+import io.SliceConsumer;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import segment3D.BinaryBoundaryExtractor;
+import segment3D.BitMask3D;
 import segment3D.Image3DSmoothing;
 import segment3D.Segment3DImage;
 import threshold3D.MaxEntropyThresh;
@@ -47,14 +53,16 @@ import threshold3D.MinErrorThresh;
 import threshold3D.OtsuThresh;
 import threshold3D.TriangleThresh;
 import util.FileOper;
-import util.Gradient3D;
+import util.MemoryBudgetExecutor;
+import util.OrderedRowWriter;
+import util.StackPairIndex;
 import validation.OrthogonalProjection;
 import validation.ProjectionsConcatenationForValidation;
 
 /** This class is designed to read  files from fiber scaffold segmentation (32 bits per pixel nii files from horvess.exe)
  * and apply the verified segmentation mask, and threshold scaffold segmentation to find the volumetric contact points
- * In order to generate surface contact points, 3D gradient is computed and thresholded to report non-zero gradient values
- * as the binary surface contact points
+ * In order to generate surface contact points, the voxels with a non-zero 3D gradient of the binary mask are extracted
+ * directly from the bit-packed mask (BinaryBoundaryExtractor) as the binary surface contact points
  * 
  * @author pnb
  *
@@ -68,11 +76,26 @@ public class FiberScaffold2BinaryContact {
 	private static final String CSV_SEPARATOR = ",";
 	private static final char CSV_NEWLINE = '\n';
 
+	// neighborhood used to extract the contact surface from the binary scaffold 
+	// (central difference gives the voxels with a non-zero 3D gradient)
+	private static final int SURFACE_NEIGHBORHOOD = BinaryBoundaryExtractor.CENTRAL_DIFFERENCE;
+
+	// estimated memory of a pair in the number of bytes of the decoded scaffold 
+	// volume (float stack, int array of Segment3DImage and masked 16 bits stack) 
+	// and of the decoded cell volume (8 bits stack and its dilation)
+	private static final long SCAFFOLD_MEMORY_FACTOR = 3;
+	private static final long CELL_MEMORY_FACTOR = 2;
+
+	/**
+	 * Processes all the scaffold stacks of a folder with the cell masks of the
+	 * same stack name. The pairs are processed concurrently within a memory
+	 * budget and the scaffold or cell files without a partner are reported in the log.
+	 */
 	public static void processVesselnessScaffoldAndSegmentCell( String inputScaffoldImagesFolder,
-			String imagesScaffoldFileNameExtension, String inputCellImagesFolder, String imagesCellFileNameExtension, String outputDirectory,
-			String outputCSVFileName, int probIntensityMinimumValue,
-			int probIntensityMaximumValue, double voxelDimX, double voxelDimY, double voxelDimZ,
-			String voxelDimUnit, String method) {
+			final String imagesScaffoldFileNameExtension, String inputCellImagesFolder, final String imagesCellFileNameExtension, final String outputDirectory,
+			String outputCSVFileName, final int probIntensityMinimumValue,
+			final int probIntensityMaximumValue, final double voxelDimX, final double voxelDimY, final double voxelDimZ,
+			final String voxelDimUnit, final String method) {
 
 		// getting images to process
 		// Collection<String> dirfiles =
@@ -80,17 +103,10 @@ public class FiberScaffold2BinaryContact {
 		Collection<String> dirScaffoldfiles = FileOper
 				.readFileDirectory(inputScaffoldImagesFolder);
 
-		// sort stacks to process
-		Collection<String> sortedScaffoldImagesInFolder = FileOper.sort(dirScaffoldfiles,
-				FileOper.SORT_ASCENDING);
 
 		Collection<String> dirCellfiles = FileOper
 				.readFileDirectory(inputCellImagesFolder);
 
-		// sort stacks to process
-		Collection<String> sortedCellImagesInFolder = FileOper.sort(dirCellfiles,
-				FileOper.SORT_ASCENDING);
-
 		try {
 			// output logs to log file
 			PrintStream out;
@@ -133,14 +149,13 @@ public class FiberScaffold2BinaryContact {
 			_logger.info("voxelDimY: " + voxelDimY);
 			_logger.info("voxelDimZ: " + voxelDimZ);
 			_logger.info("voxelDimUnit: " + voxelDimUnit);
-			_logger.info(sortedScaffoldImagesInFolder.size() + " images to process");
 
 			//
 			// start time for benchmark
 			long startTime = System.currentTimeMillis();
 
 			// open output file to write features values
-			FileWriter writer = new FileWriter(outputDirectory
+			final FileWriter writer = new FileWriter(outputDirectory
 					+ File.separatorChar + outputCSVFileName);
 			writer.append(CSV_HEADER);
 			writer.append(CSV_NEWLINE);
@@ -149,260 +164,68 @@ public class FiberScaffold2BinaryContact {
 			Nifti_Writer nifti = new Nifti_Writer();
 			String outputType = new String("::NIFTI_FILE:");
 
-			String inputScaffoldFilename = new String();
-			String inputCellFilename = new String();
-			Iterator<String> k_cell = sortedCellImagesInFolder.iterator();
-			for (Iterator<String> k_sc = sortedScaffoldImagesInFolder.iterator(); k_sc.hasNext();) {
-				inputScaffoldFilename = k_sc.next();
-				System.out.println("open scaffold file: " + inputScaffoldFilename);
-
-				try {
-					// Open ImagePlus object from image sequence and set
-					// calibration
-					// input one fits/nii file per zstack
-					Nifti_Reader niftiLoader = new Nifti_Reader();
-					ImagePlus img3D = null;
-					if(imagesScaffoldFileNameExtension.equalsIgnoreCase("nii")){
-						img3D = niftiLoader.read(inputScaffoldFilename);
-						// added a vertical flip to match the FITS file
-						ImageStack stack = img3D.getStack();
-						for (int i=1; i<=stack.getSize(); i++) {
-							ImageProcessor ip = stack.getProcessor(i);
-							ip.flipVertical();
-						}
-						img3D.setStack(stack);
-					}else{
-						if(imagesScaffoldFileNameExtension.equalsIgnoreCase("fits")){							
-							img3D = new ImagePlus(inputScaffoldFilename); 
-						}else{
-							_logger.info("did not recognize the input file format ...");
-							System.out.println("failed loading cell segment  image...");
-							continue;
-						}
-					}
-					if (img3D.getImageStack() == null) {
-						System.err.println("failed to load the file: "
-								+ inputScaffoldFilename);
-					}			
-
-					Calibration imgCalibration = img3D.getCalibration();
-					imgCalibration.pixelWidth = voxelDimX;
-					imgCalibration.pixelHeight = voxelDimY;
-					imgCalibration.pixelDepth = voxelDimZ;
-					imgCalibration.setXUnit(voxelDimUnit);
-					imgCalibration.setYUnit(voxelDimUnit);
-					imgCalibration.setZUnit(voxelDimUnit);
-					img3D.setCalibration(imgCalibration);
-
-					String shortImageName = new File(inputScaffoldFilename).getName();
-					_logger.info("Starting processing stack " + shortImageName
-							+ " at time: " + new Date().toString());
-
-
-					// generating orthogonal projections of raw stack before any
-					// processing
-					/*			_logger.info("Generating orthogonal projections of raw stack...");
-					ImagePlus rawXYProjection = OrthogonalProjection
-							.projectionXY16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus rawZYProjection = OrthogonalProjection
-							.projectionZY16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus rawXZProjection = OrthogonalProjection
-							.projectionXZ16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					 */
-					// create segment3DImage object with the image
-					Segment3DImage input3DImage = new Segment3DImage(img3D);
-					// try to call GC to free unused memory
-					img3D = null;
-					System.gc();
-
-					// load the cell segmentation and apply it as a mask
-					/*					String inputCellImageFilename = new String(
-							inputCellImagesFolder + File.separatorChar
-									+ shortImageName);*/
-
-					inputCellFilename = k_cell.next();
-					System.out.println("open cell file: " + inputCellFilename);
-
-					_logger.info("Loading cell mask at "+inputCellFilename);
-
-					// input one fits/nii file per zstack
-					ImagePlus cellimg3D  = null;
-					if(imagesCellFileNameExtension.equalsIgnoreCase("fits")){
-						cellimg3D = new ImagePlus(inputCellFilename); 
-					}else{
-						_logger.info("did not recognize the input file format ...");
-						System.out.println("failed loading cell segment  image...");
-						continue;
-					}
-					if(cellimg3D == null || cellimg3D.getImageStack()==null){
-						_logger.info("failed loading cell segment  image...");
-						System.out.println("failed loading cell segment  image...");
-						continue;
-					}
-
-					_logger.info("Dilate cell  segment image...");
-					Image3DSmoothing.grayscaleFlatDilation(cellimg3D, 1, 1, 0);
-
-					// apply the cell mask
-					_logger.info("Apply cell segment mask...");
-					if (!input3DImage.applyBinaryMask(cellimg3D, 0)) {
-						_logger.info("Failed applyBinaryMask");
-						return;
-					}
-					// get the raw image after applying the mask (16 bits per pixel)
-					ImagePlus maskedImage = input3DImage.generateImagePlus();
-
-					/////////////////////////////////////////////////////////////////
-					// find optimum threshold
-					double optThresh = 0.0;
-					if (method.equals("MaxEntropy")) {
-						MaxEntropyThresh maxEntropyThresholding = new MaxEntropyThresh();
-						_logger.info("MaxEntropy: Looking for optimal threshold...");
-						// in this method, the threshold is found over masked images
-						// it is assumed that the background pixels are labeled with zero!!!
-						optThresh = maxEntropyThresholding.findThresh(maskedImage,
-								probIntensityMinimumValue, probIntensityMaximumValue,
-								1.0);
-						System.out
-						.println("Optimal threshold is: " + optThresh);
-					} else {
-						// find opt Threshold (min error)
-						if (method.equals("MinError")) {
-							MinErrorThresh minErrorThresholding = new MinErrorThresh();
-							_logger.info("MinError: Looking for optimal threshold...");
-							optThresh = minErrorThresholding.findThresh(maskedImage,
-									probIntensityMinimumValue, probIntensityMaximumValue,
-									1.0);
-							_logger.info("Optimal threshold is: " + optThresh);
-						}
-						// find opt Threshold (Otsu)
-						else if (method.equals("Otsu")) {
-							OtsuThresh otsuThresholding = new OtsuThresh();
-							_logger.info("Otsu: Looking for optimal threshold...");
-							optThresh = otsuThresholding.findThresh(maskedImage,
-									probIntensityMinimumValue, probIntensityMaximumValue,
-									1.0);
-							_logger.info("Optimal threshold from Otsu is: "
-									+ optThresh);
-						}
-						// find opt Threshold (Triangle)
-						else if (method.equals("Triangle")) {
-							TriangleThresh triangleThresholding = new TriangleThresh();
-							_logger.info("Triangle: Looking for optimal threshold...");
-							optThresh = triangleThresholding.findThresh(maskedImage);
-
-							_logger.info("Optimal threshold from Triangle is: "
-									+ optThresh);
-						}
+			// pair the scaffold and cell stacks by stack name once up front
+			StackPairIndex pairIndex = new StackPairIndex(dirScaffoldfiles,
+					imagesScaffoldFileNameExtension, dirCellfiles,
+					imagesCellFileNameExtension);
+			for (Iterator<String> k = pairIndex.getUnmatchedFirstFiles()
+					.iterator(); k.hasNext();) {
+				_logger.warn("no cell mask for the scaffold file: " + k.next());
+			}
+			for (Iterator<String> k = pairIndex.getUnmatchedSecondFiles()
+					.iterator(); k.hasNext();) {
+				_logger.warn("no scaffold for the cell mask file: " + k.next());
+			}
 
+			// process the pairs concurrently within the memory budget, the 
+			// rows being written in the order of the pairs as soon as the 
+			// previous pairs are done
+			final MemoryBudgetExecutor executor = new MemoryBudgetExecutor();
+			final OrderedRowWriter rowWriter = new OrderedRowWriter(writer,
+					pairIndex.getPairs().size(), CSV_NEWLINE);
+			_logger.info(pairIndex.getPairs().size() + " pairs to process with "
+					+ executor.getNumberOfThreads()
+					+ " threads and a memory budget of "
+					+ (executor.getBudget() >> 20) + " MB");
+			List<MemoryBudgetExecutor.Task> tasks = new ArrayList<MemoryBudgetExecutor.Task>();
+			for (int i = 0; i < pairIndex.getPairs().size(); i++) {
+				final int row = i;
+				final StackPairIndex.Pair pair = pairIndex.getPairs().get(i);
+				tasks.add(new MemoryBudgetExecutor.Task() {
+					@Override
+					public long getEstimatedMemory() {
+						return SCAFFOLD_MEMORY_FACTOR
+								* DecodedVolumeSize.estimate(pair.getFirstFile())
+								+ CELL_MEMORY_FACTOR
+								* DecodedVolumeSize.estimate(pair.getSecondFile());
 					}
 
-					//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-					// segment image with optimal threshold
-					_logger.info("Segmenting probability 3D image ...");
-					input3DImage.thresholdImage((int) optThresh);
-					maskedImage = input3DImage.generateSegmentedImagePlus();
-
-					////////////
-					// added save operation for the binarized scaffold
-					int suffixLength = imagesScaffoldFileNameExtension.length();
-					// save segmented image in a FITS file
-					String outFITS = new String(shortImageName.substring(0,
-							shortImageName.length() - 1-suffixLength));
-					outFITS = outputDirectory + File.separatorChar + outFITS
-							+ "_SC.fits";					
-					_logger.info("Writing FITS file: "+(outFITS) );
-					Fits3DWriter.write(outFITS, maskedImage);
-					
-					//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-					///////////////////// perform Plugins/Process/Gradient (3D)
-					// calculate the gradient
-					ImagePlus gradientImage = Gradient3D.calculateGrad(maskedImage, false);
-					// try to call GC to free unused memory
-					maskedImage = null;
-					System.gc();
-
-					// threshold by zero (any gradient larger than 0 will become 1 else 0
-					Segment3DImage segment3DImage = new Segment3DImage(gradientImage);
-					segment3DImage.thresholdImage(0);		
-					ImagePlus segmentedImage = segment3DImage.generateSegmentedImagePlus();
-					// try to call GC to free unused memory
-					gradientImage = null;
-					System.gc();
-					////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////	
-					// save side-by-side orthogonal projections of raw and
-					// segmented stack
-					/*					_logger.info("Generating orthogonal projections of segmented stack...");
-
-					ImagePlus segXYProjection = OrthogonalProjection
-							.projectionXY(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus segZYProjection = OrthogonalProjection
-							.projectionZY(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus segXZProjection = OrthogonalProjection
-							.projectionXZ(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-
-					ProjectionsConcatenationForValidation
-							.concatenateRaw16bitsProjectionsAndSegmented8bitsProjection(
-									rawXYProjection, rawZYProjection,
-									rawXZProjection, segXYProjection,
-									segZYProjection, segXZProjection,
-									outputDirectory + File.separatorChar
-											+ shortImageName
-											+ "_projections.jpeg");
-
-					_logger.info("Side-by-side projections saved in file "
-							+ outputDirectory + File.separatorChar
-							+ shortImageName + "_projections.jpeg");*/
-
-					// get number of foreground voxels after segmentation
-					long frgVoxelCount = segment3DImage.getFRGCount();
-					_logger.info("Foreground voxel count after segmentation: "
-							+ frgVoxelCount);
-					writer.write(shortImageName+CSV_SEPARATOR+Integer.toString((int) optThresh)+CSV_SEPARATOR+Double.toString(optThresh/(double)probIntensityMaximumValue)+CSV_SEPARATOR+Long.toString(frgVoxelCount));
-					writer.append(CSV_NEWLINE);
-					writer.flush();
-
-					// append the calibration information
-					segmentedImage.setCalibration(imgCalibration);
-					
-					//int suffixLength = imagesScaffoldFileNameExtension.length();
-					// save segmented image in a FITS file
-					outFITS = new String(shortImageName.substring(0,
-							shortImageName.length() - 1-suffixLength));
-					outFITS = outputDirectory + File.separatorChar + outFITS
-							+ ".fits";					
-					_logger.info("Writing FITS file: "+(outFITS) );
-					Fits3DWriter.write(outFITS, segmentedImage);
-
-					// save segmented image in a NII file
-/*					String outNII = new String(shortImageName.substring(0,
-							shortImageName.length() - 1-suffixLength));
-					outNII = outputDirectory + File.separatorChar + outNII
-							+ ".nii";
-					_logger.info("Writing NII file: "+(outNII) );
-					// inside flip vertically image to match other channels in movie creator
-					// this means that segmentedImage is vertically flipped after nifti.write()
-					// and should not be used unless filpped again
-										ImageStack stack = segmentedImage.getStack();
-					for (int i=1; i<=stack.getSize(); i++) {
-						ImageProcessor ip = stack.getProcessor(i);
-						ip.flipVertical();
+					@Override
+					public void run() throws Exception {
+						_logger.info("open scaffold file: "
+								+ pair.getFirstFile() + " and cell file: "
+								+ pair.getSecondFile());
+						String csvRow = null;
+						try {
+							csvRow = processScaffoldCellPair(
+									pair.getFirstFile(), pair.getSecondFile(),
+									imagesScaffoldFileNameExtension,
+									imagesCellFileNameExtension, outputDirectory,
+									probIntensityMinimumValue,
+									probIntensityMaximumValue, voxelDimX,
+									voxelDimY, voxelDimZ, voxelDimUnit, method);
+						} finally {
+							// the row of a failed pair is skipped
+							rowWriter.setRow(row, csvRow);
+						}
 					}
-					segmentedImage.setStack(stack);
-					nifti.write(segmentedImage, outNII, outputType);
-*/
-
-				} catch (Exception e) {
-					_logger.error(e.getMessage());
-				}
-
+				});
 			}
+			int failures = executor.runAll(tasks);
+			if (failures > 0) {
+				_logger.error(failures + " pairs failed");
+			}
+			rowWriter.writeRemainingRows();
 			// save CSV file
 			writer.flush();
 			writer.close();
@@ -419,6 +242,285 @@ public class FiberScaffold2BinaryContact {
 		}
 
 	}
+
+	/**
+	 * Processes one pair of scaffold and cell stacks: applies the dilated cell
+	 * mask to the scaffold, thresholds it, and saves the binarized scaffold
+	 * (_SC.fits) and the contact surface (.fits) in the output directory
+	 * 
+	 * @return the CSV row of the pair, or null if the pair could not be processed
+	 */
+	private static String processScaffoldCellPair(String inputScaffoldFilename,
+			String inputCellFilename, String imagesScaffoldFileNameExtension,
+			String imagesCellFileNameExtension, String outputDirectory,
+			int probIntensityMinimumValue, int probIntensityMaximumValue,
+			double voxelDimX, double voxelDimY, double voxelDimZ,
+			String voxelDimUnit, String method) throws IOException {
+
+		// Open ImagePlus object from image sequence and set
+		// calibration
+		// input one fits/nii file per zstack
+		Nifti_Reader niftiLoader = new Nifti_Reader();
+		ImagePlus img3D = null;
+		if(imagesScaffoldFileNameExtension.equalsIgnoreCase("nii")){
+			img3D = niftiLoader.read(inputScaffoldFilename);
+			// added a vertical flip to match the FITS file
+			ImageStack stack = img3D.getStack();
+			for (int i=1; i<=stack.getSize(); i++) {
+				ImageProcessor ip = stack.getProcessor(i);
+				ip.flipVertical();
+			}
+			img3D.setStack(stack);
+		}else{
+			if(imagesScaffoldFileNameExtension.equalsIgnoreCase("fits")){							
+				img3D = new ImagePlus(inputScaffoldFilename); 
+			}else{
+				_logger.info("did not recognize the input file format ...");
+				System.out.println("failed loading cell segment  image...");
+				return null;
+			}
+		}
+		if (img3D.getImageStack() == null) {
+			System.err.println("failed to load the file: "
+					+ inputScaffoldFilename);
+		}			
+
+		Calibration imgCalibration = img3D.getCalibration();
+		imgCalibration.pixelWidth = voxelDimX;
+		imgCalibration.pixelHeight = voxelDimY;
+		imgCalibration.pixelDepth = voxelDimZ;
+		imgCalibration.setXUnit(voxelDimUnit);
+		imgCalibration.setYUnit(voxelDimUnit);
+		imgCalibration.setZUnit(voxelDimUnit);
+		img3D.setCalibration(imgCalibration);
+
+		String shortImageName = new File(inputScaffoldFilename).getName();
+		_logger.info("Starting processing stack " + shortImageName
+				+ " at time: " + new Date().toString());
+
+
+		// generating orthogonal projections of raw stack before any
+		// processing
+		/*			_logger.info("Generating orthogonal projections of raw stack...");
+		ImagePlus rawXYProjection = OrthogonalProjection
+				.projectionXY16bits(img3D,
+						OrthogonalProjection.projectionType_Max);
+		ImagePlus rawZYProjection = OrthogonalProjection
+				.projectionZY16bits(img3D,
+						OrthogonalProjection.projectionType_Max);
+		ImagePlus rawXZProjection = OrthogonalProjection
+				.projectionXZ16bits(img3D,
+						OrthogonalProjection.projectionType_Max);
+		 */
+		// create segment3DImage object with the image
+		Segment3DImage input3DImage = new Segment3DImage(img3D);
+		int img3DWidth = img3D.getWidth();
+		int img3DHeight = img3D.getHeight();
+		int img3DDepth = img3D.getNSlices();
+		img3D = null;
+
+		// load the cell segmentation and apply it as a mask
+		/*					String inputCellImageFilename = new String(
+				inputCellImagesFolder + File.separatorChar
+						+ shortImageName);*/
+
+		_logger.info("Loading cell mask at "+inputCellFilename);
+
+		// input one fits/nii file per zstack
+		ImagePlus cellimg3D  = null;
+		if(imagesCellFileNameExtension.equalsIgnoreCase("fits")){
+			cellimg3D = new ImagePlus(inputCellFilename); 
+		}else{
+			_logger.info("did not recognize the input file format ...");
+			System.out.println("failed loading cell segment  image...");
+			return null;
+		}
+		if(cellimg3D == null || cellimg3D.getImageStack()==null){
+			_logger.info("failed loading cell segment  image...");
+			System.out.println("failed loading cell segment  image...");
+			return null;
+		}
+
+		_logger.info("Dilate cell  segment image...");
+		Image3DSmoothing.grayscaleFlatDilation(cellimg3D, 1, 1, 0);
+
+		// apply the cell mask
+		_logger.info("Apply cell segment mask...");
+		if (!input3DImage.applyBinaryMask(cellimg3D, 0)) {
+			_logger.info("Failed applyBinaryMask");
+			return null;
+		}
+		// get the raw image after applying the mask (16 bits per pixel)
+		ImagePlus maskedImage = input3DImage.generateImagePlus();
+
+		/////////////////////////////////////////////////////////////////
+		// find optimum threshold
+		double optThresh = 0.0;
+		if (method.equals("MaxEntropy")) {
+			MaxEntropyThresh maxEntropyThresholding = new MaxEntropyThresh();
+			_logger.info("MaxEntropy: Looking for optimal threshold...");
+			// in this method, the threshold is found over masked images
+			// it is assumed that the background pixels are labeled with zero!!!
+			optThresh = maxEntropyThresholding.findThresh(maskedImage,
+					probIntensityMinimumValue, probIntensityMaximumValue,
+					1.0);
+			System.out
+			.println("Optimal threshold is: " + optThresh);
+		} else {
+			// find opt Threshold (min error)
+			if (method.equals("MinError")) {
+				MinErrorThresh minErrorThresholding = new MinErrorThresh();
+				_logger.info("MinError: Looking for optimal threshold...");
+				optThresh = minErrorThresholding.findThresh(maskedImage,
+						probIntensityMinimumValue, probIntensityMaximumValue,
+						1.0);
+				_logger.info("Optimal threshold is: " + optThresh);
+			}
+			// find opt Threshold (Otsu)
+			else if (method.equals("Otsu")) {
+				OtsuThresh otsuThresholding = new OtsuThresh();
+				_logger.info("Otsu: Looking for optimal threshold...");
+				optThresh = otsuThresholding.findThresh(maskedImage,
+						probIntensityMinimumValue, probIntensityMaximumValue,
+						1.0);
+				_logger.info("Optimal threshold from Otsu is: "
+						+ optThresh);
+			}
+			// find opt Threshold (Triangle)
+			else if (method.equals("Triangle")) {
+				TriangleThresh triangleThresholding = new TriangleThresh();
+				_logger.info("Triangle: Looking for optimal threshold...");
+				optThresh = triangleThresholding.findThresh(maskedImage);
+
+				_logger.info("Optimal threshold from Triangle is: "
+						+ optThresh);
+			}
+
+		}
+
+		//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+		// segment image with optimal threshold
+		_logger.info("Segmenting probability 3D image ...");
+		input3DImage.thresholdImage((int) optThresh);
+		// try to call GC to free unused memory
+		maskedImage = null;
+
+		////////////
+		// added save operation for the binarized scaffold
+		int suffixLength = imagesScaffoldFileNameExtension.length();
+		// save segmented image in a FITS file
+		String outFITS = new String(shortImageName.substring(0,
+				shortImageName.length() - 1-suffixLength));
+		outFITS = outputDirectory + File.separatorChar + outFITS
+				+ "_SC.fits";					
+		_logger.info("Writing FITS file: "+(outFITS) );
+		// the binarized scaffold slices are streamed to the FITS file and to 
+		// the bit-packed mask (the 8 bits segmented stack is never built)
+		final BitMask3D scaffoldMask = new BitMask3D(img3DWidth, img3DHeight, img3DDepth);
+		FitsStreamWriter scaffoldWriter = FitsStreamWriter.open(outFITS,
+				img3DWidth, img3DHeight, 8, input3DImage.getCalibration());
+		try {
+			input3DImage.writeSegmentedSlices(scaffoldWriter, new SliceConsumer() {
+				@Override
+				public void begin(int width, int height, int expectedDepth) {
+				}
+
+				@Override
+				public void consumeSlice(int z, Object pixels) {
+					scaffoldMask.setSlice(z, pixels, 0);
+				}
+
+				@Override
+				public void end(int depth) {
+				}
+			});
+		} finally {
+			scaffoldWriter.close();
+		}
+		if (scaffoldWriter.hasFailed()) {
+			_logger.error("Failed writing FITS file: " + outFITS);
+		}
+		
+		//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+		///////////////////// extract the contact surface from the binary mask
+		// (same voxels as the non-zero 3D gradient of the mask with the 
+		// central difference neighborhood)
+		BitMask3D contactSurface = BinaryBoundaryExtractor.extract(
+				scaffoldMask, SURFACE_NEIGHBORHOOD);
+		////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////	
+		// save side-by-side orthogonal projections of raw and
+		// segmented stack
+		/*					_logger.info("Generating orthogonal projections of segmented stack...");
+
+		ImagePlus segXYProjection = OrthogonalProjection
+				.projectionXY(segmentedImage,
+						OrthogonalProjection.projectionType_Max);
+		ImagePlus segZYProjection = OrthogonalProjection
+				.projectionZY(segmentedImage,
+						OrthogonalProjection.projectionType_Max);
+		ImagePlus segXZProjection = OrthogonalProjection
+				.projectionXZ(segmentedImage,
+						OrthogonalProjection.projectionType_Max);
+
+		ProjectionsConcatenationForValidation
+				.concatenateRaw16bitsProjectionsAndSegmented8bitsProjection(
+						rawXYProjection, rawZYProjection,
+						rawXZProjection, segXYProjection,
+						segZYProjection, segXZProjection,
+						outputDirectory + File.separatorChar
+								+ shortImageName
+								+ "_projections.jpeg");
+
+		_logger.info("Side-by-side projections saved in file "
+				+ outputDirectory + File.separatorChar
+				+ shortImageName + "_projections.jpeg");*/
+
+		// get number of foreground voxels after segmentation
+		long frgVoxelCount = contactSurface.cardinality();
+		_logger.info("Foreground voxel count after segmentation: "
+				+ frgVoxelCount);
+		String csvRow = shortImageName+CSV_SEPARATOR+Integer.toString((int) optThresh)+CSV_SEPARATOR+Double.toString(optThresh/(double)probIntensityMaximumValue)+CSV_SEPARATOR+Long.toString(frgVoxelCount);
+
+		//int suffixLength = imagesScaffoldFileNameExtension.length();
+		// save segmented image in a FITS file
+		outFITS = new String(shortImageName.substring(0,
+				shortImageName.length() - 1-suffixLength));
+		outFITS = outputDirectory + File.separatorChar + outFITS
+				+ ".fits";					
+		_logger.info("Writing FITS file: "+(outFITS) );
+		// the slices of the contact surface are streamed to the FITS file 
+		// with the calibration information (the 8 bits volume is never built)
+		FitsStreamWriter surfaceWriter = FitsStreamWriter.open(outFITS,
+				img3DWidth, img3DHeight, 8, imgCalibration);
+		try {
+			contactSurface.writeSlices(surfaceWriter);
+		} finally {
+			surfaceWriter.close();
+		}
+		if (surfaceWriter.hasFailed()) {
+			_logger.error("Failed writing FITS file: " + outFITS);
+		}
+
+		// save segmented image in a NII file
+/*					String outNII = new String(shortImageName.substring(0,
+				shortImageName.length() - 1-suffixLength));
+		outNII = outputDirectory + File.separatorChar + outNII
+				+ ".nii";
+		_logger.info("Writing NII file: "+(outNII) );
+		// inside flip vertically image to match other channels in movie creator
+		// this means that segmentedImage is vertically flipped after nifti.write()
+		// and should not be used unless filpped again
+							ImageStack stack = segmentedImage.getStack();
+		for (int i=1; i<=stack.getSize(); i++) {
+			ImageProcessor ip = stack.getProcessor(i);
+			ip.flipVertical();
+		}
+		segmentedImage.setStack(stack);
+		nifti.write(segmentedImage, outNII, outputType);
+*/
+		return csvRow;
+	}
+
 	/**
 	 * This method is executed to process all files on itlnas and convert the contact probability
 	 * to binary contact using the verified and cropped cell masks 
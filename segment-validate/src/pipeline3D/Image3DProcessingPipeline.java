@@ -23,6 +23,9 @@ package pipeline3D;
 import ij.ImagePlus;
 import ij.measure.Calibration;
 import io.Fits3DWriter;
+import io.RleMaskWriter;
+import io.SliceConsumer;
+import io.TiffSliceLoader;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -39,6 +42,7 @@ import org.apache.commons.logging.LogFactory;
 import segment3D.Image3DCropping;
 import segment3D.Image3DSmoothing;
 import segment3D.Segment3DImage;
+import segment3D.SliceStatistics;
 import threshold3D.EGTThresh;
 import threshold3D.MinErrorThresh;
 import threshold3D.OtsuThresh;
@@ -46,6 +50,7 @@ import threshold3D.TopoStableThresh;
 import threshold3D.TriangleThresh;
 import util.ExtractVoxelIntensities;
 import util.FileOper;
+import validation.MultiAxisProjection;
 import validation.OrthogonalProjection;
 import validation.ProjectionsConcatenationForValidation;
 
@@ -57,13 +62,38 @@ public class Image3DProcessingPipeline {
 
 	private static Log logger = LogFactory
 			.getLog(Image3DProcessingPipeline.class);
-	private static final String CSV_HEADER = "ImageName,Threshold,ForegroundVovelCount,StartingFrame,EndingFrame";
+	private static final String CSV_HEADER = "ImageName,Threshold,ForegroundVovelCount,StartingFrame,EndingFrame,PreCropStartingFrame,PreCropEndingFrame";
 	private static final String CSV_SEPARATOR = ",";
 	private static final char CSV_NEWLINE = '\n';
 
+	// pre-crop dark frames before smoothing and thresholding
+	private boolean preCropFrames = true;
+
+	// save the segmented stacks as run length encoded masks
+	private boolean saveRunLengthMasks = false;
+
 	public Image3DProcessingPipeline() {
 	}
 
+	/**
+	 * @param preCropFrames
+	 *            true to remove the dark frames at the beginning and end of
+	 *            each stack, based on per-slice statistics gathered while
+	 *            loading, before smoothing and thresholding (default is true)
+	 */
+	public void setPreCropFrames(boolean preCropFrames) {
+		this.preCropFrames = preCropFrames;
+	}
+
+	/**
+	 * @param saveRunLengthMasks
+	 *            true to save each segmented stack as a run length encoded
+	 *            mask (.rle) instead of an 8 bits FITS file (default is false)
+	 */
+	public void setSaveRunLengthMasks(boolean saveRunLengthMasks) {
+		this.saveRunLengthMasks = saveRunLengthMasks;
+	}
+
 	public void processImages(String inputImagesFolder,
 			String imagesFileNameExtension, String outputDirectory,
 			String outputCSVFileName, double thresholdMinimumValue,
@@ -134,7 +164,11 @@ public class Image3DProcessingPipeline {
 				inputFilename = k.next();
 				try {
 					// Open ImagePlus object from image sequence and set calibration
-					ImagePlus img3D = Fits3DWriter.loadZstack(inputFilename, imagesFileNameExtension); //new ImagePlus(inputFilename);
+					// (per-slice statistics and orthogonal projections of raw
+					// stack are gathered while loading)
+					SliceStatistics sliceStatistics = new SliceStatistics();
+					MultiAxisProjection rawProjections = new MultiAxisProjection();
+					ImagePlus img3D = TiffSliceLoader.load(inputFilename, imagesFileNameExtension, sliceStatistics, rawProjections); //new ImagePlus(inputFilename);
 					Calibration imgCalibration = img3D.getCalibration();
 					imgCalibration.pixelWidth = voxelDimX;
 					imgCalibration.pixelHeight = voxelDimY;
@@ -147,20 +181,28 @@ public class Image3DProcessingPipeline {
 					logger.info("Starting processing stack " + shortImageName
 							+ " at time: " + new Date().toString());
 					
-					// generating orthogonal projections of raw stack before any processing
+					// orthogonal projections of raw stack before any processing
 					logger.info("Generating orthogonal projections of raw stack...");
-					ImagePlus rawXYProjection = OrthogonalProjection
-							.projectionXY16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus rawZYProjection = OrthogonalProjection
-							.projectionZY16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus rawXZProjection = OrthogonalProjection
-							.projectionXZ16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
+					rawProjections.setCalibration(imgCalibration);
+					ImagePlus rawXYProjection = rawProjections.getProjectionXY(
+							OrthogonalProjection.projectionType_Max, 16);
+					ImagePlus rawZYProjection = rawProjections.getProjectionZY(
+							OrthogonalProjection.projectionType_Max, 16);
+					ImagePlus rawXZProjection = rawProjections.getProjectionXZ(
+							OrthogonalProjection.projectionType_Max, 16);
 					
 					//ImagePlus img3Draw = img3D.duplicate();
 					
+					// remove dark frames at beginning and end of stack before the
+					// expensive smoothing and thresholding
+					Image3DCropping image3DCropping = new Image3DCropping();
+					int[] preCropFramesRange = new int[] {0, img3D.getNSlices()-1};
+					if(preCropFrames) {
+						logger.info("Pre-cropping dark frames at beginning and end of stack...");
+						preCropFramesRange = image3DCropping.preCropFrames(img3D, sliceStatistics);
+						logger.info("Pre-crop starting frame is " + preCropFramesRange[0] + " ending frame is " + preCropFramesRange[1]);
+					}
+					
 					// smooth image
 					logger.info("Smoothing image...");
 					Image3DSmoothing.grayscaleFlatErosion(img3D, 1, 1, 0);
@@ -234,8 +276,10 @@ public class Image3DProcessingPipeline {
 					
 					// remove useless frames at beginning and end of stack
 					logger.info("Removing useless frames at beginning and end of stack...");
-					Image3DCropping image3DCropping = new Image3DCropping();
 					int[] framesRange = image3DCropping.removeMeaninglessFrames16bits(img3D, (int)optThresh);
+					// frames range in the input stack
+					framesRange[0] += preCropFramesRange[0];
+					framesRange[1] += preCropFramesRange[0];
 					logger.info("Starting frame is " + framesRange[0] + " ending frame is " + framesRange[1]);
 					double meanBlackFrames = image3DCropping.getMeanBKGFrames();
 					double stdevBlackFrames = image3DCropping.getStdevBKGFrames();
@@ -256,30 +300,44 @@ public class Image3DProcessingPipeline {
 					System.gc();
 
 					// segment image with threshold
+					// (orthogonal projections of segmented stack are accumulated
+					// while the segmented stack is generated)
 					logger.info("Segmenting image (T-E-L)...");
+					MultiAxisProjection segProjections = new MultiAxisProjection();
+					// (the segmented slices are also run length encoded while
+					// they are generated if the mask is saved as runs)
+					RleMaskWriter segMaskWriter = new RleMaskWriter(
+							outputDirectory + File.separatorChar
+									+ shortImageName + RleMaskWriter.EXTENSION,
+							segment3DImage.getCalibration());
+					SliceConsumer[] segConsumers = saveRunLengthMasks ? new SliceConsumer[] {
+							segProjections, segMaskWriter }
+							: new SliceConsumer[] { segProjections };
 					ImagePlus segmentedImage = segment3DImage
 							.segmentImage(
 									(int) optThresh,
 									Segment3DImage.NO_MORPHOLOGICAL_OPERATIONS,
-									0);
+									0, segConsumers);
 					
 					//ExtractVoxelIntensities.extractHistogramsFRGandBKG(img3Draw, segmentedImage, framesRange[0], framesRange[1], outputDirectory, shortImageName);
 
-					// save segmented image in a FITS file
-					Fits3DWriter.write(outputDirectory + File.separatorChar + shortImageName + ".fits", segmentedImage);
+					// save segmented image in a FITS file (or the runs of the mask)
+					if (!saveRunLengthMasks) {
+						Fits3DWriter.write(outputDirectory + File.separatorChar + shortImageName + ".fits", segmentedImage);
+					} else if (segMaskWriter.hasFailed()) {
+						logger.error("Failed writing the mask of " + shortImageName);
+					}
 					
 					// save side-by-side orthogonal projections of raw and segmented stack
 					logger.info("Generating orthogonal projections of segmented stack...");
 
-					ImagePlus segXYProjection = OrthogonalProjection
-							.projectionXY(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus segZYProjection = OrthogonalProjection
-							.projectionZY(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus segXZProjection = OrthogonalProjection
-							.projectionXZ(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
+					segProjections.setCalibration(segmentedImage.getCalibration());
+					ImagePlus segXYProjection = segProjections.getProjectionXY(
+							OrthogonalProjection.projectionType_Max, 8);
+					ImagePlus segZYProjection = segProjections.getProjectionZY(
+							OrthogonalProjection.projectionType_Max, 8);
+					ImagePlus segXZProjection = segProjections.getProjectionXZ(
+							OrthogonalProjection.projectionType_Max, 8);
 					
 					ProjectionsConcatenationForValidation
 							.concatenateRaw16bitsProjectionsAndSegmented8bitsProjection(
@@ -300,7 +358,9 @@ public class Image3DProcessingPipeline {
 							+ String.valueOf(optThresh) + CSV_SEPARATOR
 							+ String.valueOf(frgVoxelCount)+ CSV_SEPARATOR
 							+ String.valueOf(framesRange[0]) + CSV_SEPARATOR
-							+ String.valueOf(framesRange[1]));
+							+ String.valueOf(framesRange[1]) + CSV_SEPARATOR
+							+ String.valueOf(preCropFramesRange[0]) + CSV_SEPARATOR
+							+ String.valueOf(preCropFramesRange[1]));
 
 					// FIXME Shape feature extraction removed from pipeline for now
 					
@@ -451,7 +511,10 @@ public class Image3DProcessingPipeline {
 				inputFilename = k.next();
 				try {
 					// Open ImagePlus object from image sequence and set calibration
-					ImagePlus img3D = Fits3DWriter.loadZstack(inputFilename, imagesFileNameExtension); //new ImagePlus(inputFilename);
+					// (orthogonal projections of raw stack are accumulated while
+					// loading)
+					MultiAxisProjection rawProjections = new MultiAxisProjection();
+					ImagePlus img3D = TiffSliceLoader.load(inputFilename, imagesFileNameExtension, rawProjections); //new ImagePlus(inputFilename);
 					//ImagePlus img3D = new ImagePlus(inputFilename); // input one fits file per zstack
 					Calibration imgCalibration = img3D.getCalibration();
 					imgCalibration.pixelWidth = voxelDimX;
@@ -465,17 +528,15 @@ public class Image3DProcessingPipeline {
 					logger.info("Starting processing stack " + shortImageName
 							+ " at time: " + new Date().toString());
 					
-					// generating orthogonal projections of raw stack before any processing
+					// orthogonal projections of raw stack before any processing
 					logger.info("Generating orthogonal projections of raw stack...");
-					ImagePlus rawXYProjection = OrthogonalProjection
-							.projectionXY16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus rawZYProjection = OrthogonalProjection
-							.projectionZY16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus rawXZProjection = OrthogonalProjection
-							.projectionXZ16bits(img3D,
-									OrthogonalProjection.projectionType_Max);
+					rawProjections.setCalibration(imgCalibration);
+					ImagePlus rawXYProjection = rawProjections.getProjectionXY(
+							OrthogonalProjection.projectionType_Max, 16);
+					ImagePlus rawZYProjection = rawProjections.getProjectionZY(
+							OrthogonalProjection.projectionType_Max, 16);
+					ImagePlus rawXZProjection = rawProjections.getProjectionXZ(
+							OrthogonalProjection.projectionType_Max, 16);
 									
 					// smooth image
 					logger.info("Smoothing image...");
@@ -494,28 +555,42 @@ public class Image3DProcessingPipeline {
 					optThresh = 128;
 					
 					// segment image with threshold
+					// (orthogonal projections of segmented stack are accumulated
+					// while the segmented stack is generated)
 					logger.info("Segmenting image (T-E-L)...");
+					MultiAxisProjection segProjections = new MultiAxisProjection();
+					// (the segmented slices are also run length encoded while
+					// they are generated if the mask is saved as runs)
+					RleMaskWriter segMaskWriter = new RleMaskWriter(
+							outputDirectory + File.separatorChar
+									+ shortImageName + RleMaskWriter.EXTENSION,
+							segment3DImage.getCalibration());
+					SliceConsumer[] segConsumers = saveRunLengthMasks ? new SliceConsumer[] {
+							segProjections, segMaskWriter }
+							: new SliceConsumer[] { segProjections };
 					ImagePlus segmentedImage = segment3DImage
 							.segmentImage(
 									(int) optThresh,
 									Segment3DImage.NO_MORPHOLOGICAL_OPERATIONS,
-									0);
+									0, segConsumers);
 					
-					// save segmented image in a FITS file
-					Fits3DWriter.write(outputDirectory + File.separatorChar + shortImageName + ".fits", segmentedImage);
+					// save segmented image in a FITS file (or the runs of the mask)
+					if (!saveRunLengthMasks) {
+						Fits3DWriter.write(outputDirectory + File.separatorChar + shortImageName + ".fits", segmentedImage);
+					} else if (segMaskWriter.hasFailed()) {
+						logger.error("Failed writing the mask of " + shortImageName);
+					}
 					
 					// save side-by-side orthogonal projections of raw and segmented stack
 					logger.info("Generating orthogonal projections of segmented stack...");
 
-					ImagePlus segXYProjection = OrthogonalProjection
-							.projectionXY(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus segZYProjection = OrthogonalProjection
-							.projectionZY(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
-					ImagePlus segXZProjection = OrthogonalProjection
-							.projectionXZ(segmentedImage,
-									OrthogonalProjection.projectionType_Max);
+					segProjections.setCalibration(segmentedImage.getCalibration());
+					ImagePlus segXYProjection = segProjections.getProjectionXY(
+							OrthogonalProjection.projectionType_Max, 8);
+					ImagePlus segZYProjection = segProjections.getProjectionZY(
+							OrthogonalProjection.projectionType_Max, 8);
+					ImagePlus segXZProjection = segProjections.getProjectionXZ(
+							OrthogonalProjection.projectionType_Max, 8);
 					
 					ProjectionsConcatenationForValidation
 							.concatenateRaw16bitsProjectionsAndSegmented8bitsProjection(
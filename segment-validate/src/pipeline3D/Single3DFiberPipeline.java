@@ -35,6 +35,7 @@ import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.process.ByteProcessor;
 import io.Fits3DWriter;
+import io.TiffSliceLoader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -164,7 +165,7 @@ public class Single3DFiberPipeline {
 				inputFilename = k.next();
 				try {
 					// Open ImagePlus object from image sequence and set calibration
-					ImagePlus img3D = Fits3DWriter.loadZstack(inputFilename, imagesFileNameExtension); //new ImagePlus(inputFilename);
+					ImagePlus img3D = TiffSliceLoader.load(inputFilename, imagesFileNameExtension); //new ImagePlus(inputFilename);
 					Calibration imgCalibration = img3D.getCalibration();
 					imgCalibration.pixelWidth = voxelDimX;
 					imgCalibration.pixelHeight = voxelDimY;
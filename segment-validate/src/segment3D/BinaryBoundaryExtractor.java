@@ -0,0 +1,210 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package segment3D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import util.ParallelLoop;
+
+/**
+ * This class extracts the boundary (surface) voxels of a 3D binary mask in
+ * one pass, 64 voxels at a time on the bit-packed rows of a BitMask3D. Voxels
+ * outside of the volume are considered as background.
+ * 
+ * With the 6, 18 or 26 neighborhood, a voxel is a boundary voxel if at least
+ * one of its neighbors has a different value (both the inner and outer layers
+ * of the objects are extracted). With the central difference neighborhood, a
+ * voxel is a boundary voxel if its two neighbors along at least one axis have
+ * different values, which gives the voxels where the 3D gradient of the mask
+ * (Gradient3D) is not zero.
+ * 
+ * @author pnb
+ * 
+ */
+public class BinaryBoundaryExtractor {
+
+	public static final int NEIGHBORHOOD_6 = 6;
+	public static final int NEIGHBORHOOD_18 = 18;
+	public static final int NEIGHBORHOOD_26 = 26;
+	public static final int CENTRAL_DIFFERENCE = 0;
+
+	/**
+	 * Extracts the boundary voxels of a binary mask
+	 * 
+	 * @param mask
+	 *            input binary mask
+	 * @param neighborhood
+	 *            NEIGHBORHOOD_6, NEIGHBORHOOD_18, NEIGHBORHOOD_26 or
+	 *            CENTRAL_DIFFERENCE
+	 * @return the mask of the boundary voxels
+	 */
+	public static BitMask3D extract(final BitMask3D mask, int neighborhood) {
+
+		final BitMask3D boundary = new BitMask3D(mask.getWidth(),
+				mask.getHeight(), mask.getDepth());
+
+		if (neighborhood == CENTRAL_DIFFERENCE) {
+			ParallelLoop.run(0, mask.getDepth(), new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) {
+					long[] minus = new long[mask.getWordsPerRow()];
+					long[] plus = new long[mask.getWordsPerRow()];
+					for (int z = from; z < to; z++)
+						extractCentralDifference(mask, boundary, z, minus,
+								plus);
+				}
+			});
+			return boundary;
+		}
+
+		if (neighborhood != NEIGHBORHOOD_6 && neighborhood != NEIGHBORHOOD_18
+				&& neighborhood != NEIGHBORHOOD_26) {
+			throw new IllegalArgumentException("the neighborhood "
+					+ neighborhood + " is not supported");
+		}
+
+		// offsets (dx, dy, dz) of the neighbors, the number of non zero
+		// coordinates being at most 1, 2 or 3 for the 6, 18 or 26 neighborhood
+		int maxNonZero = (neighborhood == NEIGHBORHOOD_6) ? 1
+				: (neighborhood == NEIGHBORHOOD_18) ? 2 : 3;
+		final List<int[]> offsets = new ArrayList<int[]>();
+		for (int dz = -1; dz <= 1; dz++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					int n = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+					if (n == 0 || n > maxNonZero)
+						continue;
+					offsets.add(new int[] { dx, dy, dz });
+				}
+			}
+		}
+
+		ParallelLoop.run(0, mask.getDepth(), new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				long[] shifted = new long[mask.getWordsPerRow()];
+				long[] anyNeighbor = new long[mask.getWordsPerRow()];
+				long[] allNeighbors = new long[mask.getWordsPerRow()];
+				for (int z = from; z < to; z++)
+					extractNeighborhood(mask, boundary, z, offsets, shifted,
+							anyNeighbor, allNeighbors);
+			}
+		});
+		return boundary;
+	}
+
+	/**
+	 * Extracts the boundary voxels of one slice for the 6, 18 or 26
+	 * neighborhood
+	 */
+	private static void extractNeighborhood(BitMask3D mask,
+			BitMask3D boundary, int z, List<int[]> offsets, long[] shifted,
+			long[] anyNeighbor, long[] allNeighbors) {
+		int wordsPerRow = mask.getWordsPerRow();
+		long lastWordMask = mask.getLastWordMask();
+		long[] in = mask.getSliceWords(z);
+		long[] out = boundary.getSliceWords(z);
+
+		for (int y = 0; y < mask.getHeight(); y++) {
+			for (int i = 0; i < wordsPerRow; i++) {
+				anyNeighbor[i] = 0L;
+				allNeighbors[i] = -1L;
+			}
+			for (int[] offset : offsets) {
+				shiftedRow(mask, offset[0], y + offset[1], z + offset[2],
+						shifted);
+				for (int i = 0; i < wordsPerRow; i++) {
+					anyNeighbor[i] |= shifted[i];
+					allNeighbors[i] &= shifted[i];
+				}
+			}
+			int rowOffset = y * wordsPerRow;
+			for (int i = 0; i < wordsPerRow; i++) {
+				long center = in[rowOffset + i];
+				// set voxel with a background neighbor or background voxel
+				// with a set neighbor
+				out[rowOffset + i] = (center & ~allNeighbors[i])
+						| (~center & anyNeighbor[i]);
+			}
+			out[rowOffset + wordsPerRow - 1] &= lastWordMask;
+		}
+	}
+
+	/**
+	 * Extracts the boundary voxels of one slice for the central difference
+	 */
+	private static void extractCentralDifference(BitMask3D mask,
+			BitMask3D boundary, int z, long[] minus, long[] plus) {
+		int wordsPerRow = mask.getWordsPerRow();
+		long lastWordMask = mask.getLastWordMask();
+		long[] out = boundary.getSliceWords(z);
+
+		for (int y = 0; y < mask.getHeight(); y++) {
+			int rowOffset = y * wordsPerRow;
+			// x axis
+			shiftedRow(mask, -1, y, z, minus);
+			shiftedRow(mask, 1, y, z, plus);
+			for (int i = 0; i < wordsPerRow; i++)
+				out[rowOffset + i] = minus[i] ^ plus[i];
+			// y axis
+			shiftedRow(mask, 0, y - 1, z, minus);
+			shiftedRow(mask, 0, y + 1, z, plus);
+			for (int i = 0; i < wordsPerRow; i++)
+				out[rowOffset + i] |= minus[i] ^ plus[i];
+			// z axis
+			shiftedRow(mask, 0, y, z - 1, minus);
+			shiftedRow(mask, 0, y, z + 1, plus);
+			for (int i = 0; i < wordsPerRow; i++)
+				out[rowOffset + i] |= minus[i] ^ plus[i];
+			out[rowOffset + wordsPerRow - 1] &= lastWordMask;
+		}
+	}
+
+	/**
+	 * Gets the row y of slice z shifted so that bit x of the result is the
+	 * voxel (x + dx, y, z) of the mask (0 outside of the volume)
+	 */
+	private static void shiftedRow(BitMask3D mask, int dx, int y, int z,
+			long[] result) {
+		int wordsPerRow = mask.getWordsPerRow();
+		if (y < 0 || y >= mask.getHeight() || z < 0 || z >= mask.getDepth()) {
+			for (int i = 0; i < wordsPerRow; i++)
+				result[i] = 0L;
+			return;
+		}
+		long[] words = mask.getSliceWords(z);
+		int offset = y * wordsPerRow;
+		for (int i = 0; i < wordsPerRow; i++) {
+			long word = words[offset + i];
+			if (dx == 0) {
+				result[i] = word;
+			} else if (dx > 0) {
+				long next = (i + 1 < wordsPerRow) ? words[offset + i + 1] : 0L;
+				result[i] = (word >>> 1) | (next << 63);
+			} else {
+				long previous = (i > 0) ? words[offset + i - 1] : 0L;
+				result[i] = (word << 1) | (previous >>> 63);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package segment3D;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import io.SliceConsumer;
+import util.ParallelLoop;
+
+/**
+ * This is a class for storing a 3D binary mask with one bit per voxel. Each
+ * slice is stored as an array of 64-bit words, row by row, each row starting
+ * on a new word (bit x of a row is the bit (x % 64) of the word x / 64).
+ * 
+ * @author pnb
+ * 
+ */
+public class BitMask3D {
+
+	private int width;
+	private int height;
+	private int depth;
+	private int wordsPerRow;
+	private long[][] slices;
+
+	/**
+	 * Constructor of an empty mask
+	 * 
+	 * @param width
+	 *            width of the mask
+	 * @param height
+	 *            height of the mask
+	 * @param depth
+	 *            number of slices of the mask
+	 */
+	public BitMask3D(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.slices = new long[depth][wordsPerRow * height];
+	}
+
+	/**
+	 * Creates the mask of the voxels of a 3D image larger than a threshold (the
+	 * slices are converted in parallel)
+	 * 
+	 * @param image3D
+	 *            the 3D image (8 bits, 16 bits or 32 bits)
+	 * @param threshold
+	 *            voxels with a value larger than the threshold are set
+	 * @return the mask
+	 */
+	public static BitMask3D fromImagePlus(ImagePlus image3D,
+			final double threshold) {
+		final ImageStack stack = image3D.getStack();
+		final int w = stack.getWidth();
+		final int h = stack.getHeight();
+		int d = stack.getSize();
+		final BitMask3D mask = new BitMask3D(w, h, d);
+		// each slice has its own words: the slices are set in parallel
+		ParallelLoop.run(0, d, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				for (int z = from; z < to; z++) {
+					Object pixels = stack.getPixels(z + 1);
+					if (pixels instanceof byte[] || pixels instanceof short[]) {
+						mask.setSlice(z, pixels, threshold);
+					} else {
+						long[] words = mask.slices[z];
+						ImageProcessor ip = stack.getProcessor(z + 1);
+						for (int y = 0; y < h; y++) {
+							int wordOffset = y * mask.wordsPerRow;
+							for (int x = 0; x < w; x++) {
+								if (ip.getPixelValue(x, y) > threshold)
+									words[wordOffset + (x >>> 6)] |= 1L << x;
+							}
+						}
+					}
+				}
+			}
+		});
+		return mask;
+	}
+
+	/**
+	 * Sets the voxels of the slice z larger than a threshold (the other voxels
+	 * of the slice are cleared)
+	 * 
+	 * @param z
+	 *            the slice index (zero-based)
+	 * @param pixels
+	 *            the pixels of the slice (byte[] or short[], unsigned values)
+	 * @param threshold
+	 *            voxels with a value larger than the threshold are set
+	 */
+	public void setSlice(int z, Object pixels, double threshold) {
+		long[] words = slices[z];
+		Arrays.fill(words, 0L);
+		if (pixels instanceof byte[]) {
+			byte[] p8 = (byte[]) pixels;
+			for (int y = 0; y < height; y++) {
+				int offset = y * width;
+				int wordOffset = y * wordsPerRow;
+				for (int x = 0; x < width; x++) {
+					if ((p8[offset + x] & 0xff) > threshold)
+						words[wordOffset + (x >>> 6)] |= 1L << x;
+				}
+			}
+		} else if (pixels instanceof short[]) {
+			short[] p16 = (short[]) pixels;
+			for (int y = 0; y < height; y++) {
+				int offset = y * width;
+				int wordOffset = y * wordsPerRow;
+				for (int x = 0; x < width; x++) {
+					if ((p16[offset + x] & 0xffff) > threshold)
+						words[wordOffset + (x >>> 6)] |= 1L << x;
+				}
+			}
+		} else {
+			throw new IllegalArgumentException(
+					"Only byte[] or short[] slices are supported");
+		}
+	}
+
+	/**
+	 * @return the 8 bits binary image of the mask (255 for set voxels, 0
+	 *         otherwise)
+	 */
+	public ImagePlus toImagePlus() {
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++)
+			stack.addSlice(new ByteProcessor(width, height, toByteSlice(z)));
+		return new ImagePlus("", stack);
+	}
+
+	/**
+	 * Delivers the 8 bits binary slices of the mask (255 for set voxels, 0
+	 * otherwise) one at a time, so that the mask can be saved (for instance
+	 * by FitsStreamWriter) without building the 8 bits volume
+	 * 
+	 * @param consumer
+	 *            receives the slices in z order (begin, consumeSlice for
+	 *            each slice, end)
+	 */
+	public void writeSlices(SliceConsumer consumer) {
+		consumer.begin(width, height, depth);
+		for (int z = 0; z < depth; z++)
+			consumer.consumeSlice(z, toByteSlice(z));
+		consumer.end(depth);
+	}
+
+	/**
+	 * @return the 8 bits binary pixels of the slice z (255 for set voxels)
+	 */
+	private byte[] toByteSlice(int z) {
+		byte[] sliceData = new byte[width * height];
+		long[] words = slices[z];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int wordOffset = y * wordsPerRow;
+			for (int x = 0; x < width; x++) {
+				if ((words[wordOffset + (x >>> 6)] & (1L << x)) != 0)
+					sliceData[offset + x] = (byte) 255;
+			}
+		}
+		return sliceData;
+	}
+
+	/**
+	 * @return true if the voxel (x,y,z) is set
+	 */
+	public boolean get(int x, int y, int z) {
+		return (slices[z][y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Sets or clears the voxel (x,y,z)
+	 */
+	public void set(int x, int y, int z, boolean value) {
+		if (value)
+			slices[z][y * wordsPerRow + (x >>> 6)] |= 1L << x;
+		else
+			slices[z][y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+	}
+
+	/**
+	 * @return the number of set voxels
+	 */
+	public long cardinality() {
+		long count = 0;
+		for (int z = 0; z < depth; z++) {
+			long[] words = slices[z];
+			for (int i = 0; i < words.length; i++)
+				count += Long.bitCount(words[i]);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the mask of the bits that belong to the last word of a row
+	 */
+	public long getLastWordMask() {
+		int remainder = width & 63;
+		return (remainder == 0) ? -1L : (1L << remainder) - 1;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the number of 64-bit words of each row
+	 */
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/**
+	 * @return the words of the slice z (zero-based), rows are stored one after
+	 *         the other, each row taking getWordsPerRow() words
+	 */
+	public long[] getSliceWords(int z) {
+		return slices[z];
+	}
+
+}
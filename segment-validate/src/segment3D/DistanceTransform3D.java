@@ -0,0 +1,277 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package segment3D;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import util.ParallelLoop;
+
+/**
+ * This class computes the exact Euclidean distance transform of a 3D binary
+ * mask: the distance of each voxel to the nearest set voxel of the mask, with
+ * an anisotropic voxel size.
+ * 
+ * The transform is separable (Felzenszwalb and Huttenlocher lower envelope of
+ * parabolas): the distance along z is found on the bit-packed columns of the
+ * mask, then the 1D transforms along x and y are applied to each slice. Each
+ * slice is computed independently, so only one slice per thread is kept in
+ * memory and the slices can be computed in parallel.
+ * 
+ * @author pnb
+ * 
+ */
+public class DistanceTransform3D {
+
+	// number of columns transformed together along y
+	private static final int COLUMN_BLOCK = 16;
+
+	private BitMask3D features;
+	// squared voxel size
+	private double wx2;
+	private double wy2;
+	private double wz2;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param features
+	 *            the mask of the voxels from which the distances are computed
+	 * @param voxelWidth
+	 *            size of a voxel along x
+	 * @param voxelHeight
+	 *            size of a voxel along y
+	 * @param voxelDepth
+	 *            size of a voxel along z
+	 */
+	public DistanceTransform3D(BitMask3D features, double voxelWidth,
+			double voxelHeight, double voxelDepth) {
+		this.features = features;
+		this.wx2 = voxelWidth * voxelWidth;
+		this.wy2 = voxelHeight * voxelHeight;
+		this.wz2 = voxelDepth * voxelDepth;
+	}
+
+	/**
+	 * Computes the squared distances of the voxels of one slice to the nearest
+	 * set voxel of the mask (infinity if the mask is empty). This method can
+	 * be called by several threads at the same time.
+	 * 
+	 * @param z
+	 *            the slice index (zero-based)
+	 * @param result
+	 *            the squared distances of the slice (width * height values,
+	 *            row by row)
+	 */
+	public void computeSquaredDistances(int z, float[] result) {
+		int width = features.getWidth();
+		int height = features.getHeight();
+		distanceAlongZ(z, result);
+
+		int n = Math.max(width, height);
+		float[] transformed = new float[n];
+		int[] v = new int[n];
+		double[] heights = new double[n];
+		double[] bounds = new double[n + 1];
+
+		// along x
+		float[] line = new float[width];
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(result, y * width, line, 0, width);
+			transform1D(line, width, wx2, v, heights, bounds,
+					transformed);
+			System.arraycopy(transformed, 0, result, y * width, width);
+		}
+		// along y, the columns being copied by blocks (contiguous values of
+		// each row)
+		float[][] columns = new float[COLUMN_BLOCK][height];
+		for (int x0 = 0; x0 < width; x0 += COLUMN_BLOCK) {
+			int blockWidth = Math.min(COLUMN_BLOCK, width - x0);
+			for (int y = 0; y < height; y++) {
+				int offset = y * width + x0;
+				for (int b = 0; b < blockWidth; b++)
+					columns[b][y] = result[offset + b];
+			}
+			for (int b = 0; b < blockWidth; b++) {
+				transform1D(columns[b], height, wy2, v, heights, bounds,
+						transformed);
+				System.arraycopy(transformed, 0, columns[b], 0, height);
+			}
+			for (int y = 0; y < height; y++) {
+				int offset = y * width + x0;
+				for (int b = 0; b < blockWidth; b++)
+					result[offset + b] = columns[b][y];
+			}
+		}
+	}
+
+	/**
+	 * @return the 32 bits image of the distances (slices computed in
+	 *         parallel), calibrated with the voxel size
+	 */
+	public ImagePlus toImagePlus() {
+		final int width = features.getWidth();
+		final int height = features.getHeight();
+		int depth = features.getDepth();
+		final float[][] slices = new float[depth][];
+		ParallelLoop.run(0, depth, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				for (int z = from; z < to; z++) {
+					float[] distances = new float[width * height];
+					computeSquaredDistances(z, distances);
+					for (int i = 0; i < distances.length; i++)
+						distances[i] = (float) Math.sqrt(distances[i]);
+					slices[z] = distances;
+				}
+			}
+		});
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++)
+			stack.addSlice(new FloatProcessor(width, height, slices[z], null));
+		ImagePlus image = new ImagePlus("", stack);
+		Calibration cal = image.getCalibration();
+		cal.pixelWidth = Math.sqrt(wx2);
+		cal.pixelHeight = Math.sqrt(wy2);
+		cal.pixelDepth = Math.sqrt(wz2);
+		return image;
+	}
+
+	/**
+	 * Computes the squared distance along z of each voxel of the slice z to
+	 * the nearest set voxel of its column. The columns are scanned 64 at a
+	 * time, moving away from the slice until every column of a word has found
+	 * a set voxel.
+	 */
+	private void distanceAlongZ(int z, float[] result) {
+		int width = features.getWidth();
+		int height = features.getHeight();
+		int depth = features.getDepth();
+		int wordsPerRow = features.getWordsPerRow();
+		long lastWordMask = features.getLastWordMask();
+		int numberOfWords = wordsPerRow * height;
+
+		for (int i = 0; i < result.length; i++)
+			result[i] = Float.POSITIVE_INFINITY;
+
+		// words with at least one column without a set voxel so far
+		long[] found = new long[numberOfWords];
+		int[] active = new int[numberOfWords];
+		int numberOfActive = numberOfWords;
+		for (int i = 0; i < numberOfWords; i++)
+			active[i] = i;
+
+		for (int k = 0; numberOfActive > 0 && (z - k >= 0 || z + k < depth); k++) {
+			long[] below = (z - k >= 0) ? features.getSliceWords(z - k) : null;
+			long[] above = (z + k < depth) ? features.getSliceWords(z + k)
+					: null;
+			float distance = (float) (k * (double) k * wz2);
+			int stillActive = 0;
+			for (int a = 0; a < numberOfActive; a++) {
+				int i = active[a];
+				long bits = 0L;
+				if (below != null)
+					bits |= below[i];
+				if (above != null)
+					bits |= above[i];
+				bits &= ~found[i];
+				if (bits != 0) {
+					found[i] |= bits;
+					int offset = (i / wordsPerRow) * width
+							+ (i % wordsPerRow) * 64;
+					while (bits != 0) {
+						result[offset + Long.numberOfTrailingZeros(bits)] = distance;
+						bits &= bits - 1;
+					}
+				}
+				long full = (i % wordsPerRow == wordsPerRow - 1) ? lastWordMask
+						: -1L;
+				if (found[i] != full)
+					active[stillActive++] = i;
+			}
+			numberOfActive = stillActive;
+		}
+	}
+
+	/**
+	 * 1D squared distance transform of a sampled function (lower envelope of
+	 * the parabolas w2 * (x - q)^2 + f(q)), infinite values being ignored
+	 * 
+	 * @param f
+	 *            the sampled function
+	 * @param n
+	 *            the number of samples
+	 * @param w2
+	 *            the squared sampling step
+	 * @param v
+	 *            buffer for the locations of the parabolas of the envelope
+	 * @param heights
+	 *            buffer for f(q) + w2 * q^2 of the parabolas of the envelope
+	 * @param bounds
+	 *            buffer for the boundaries between the parabolas
+	 * @param result
+	 *            the transformed function
+	 */
+	private static void transform1D(float[] f, int n, double w2, int[] v,
+			double[] heights, double[] bounds, float[] result) {
+		double halfInverseW2 = 0.5 / w2;
+		int k = -1;
+		for (int q = 0; q < n; q++) {
+			if (f[q] == Float.POSITIVE_INFINITY)
+				continue;
+			double height = f[q] + w2 * q * q;
+			if (k < 0) {
+				k = 0;
+				v[0] = q;
+				heights[0] = height;
+				bounds[0] = Double.NEGATIVE_INFINITY;
+				bounds[1] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			// bounds[0] is -infinity: the first parabola is never removed
+			double s = (height - heights[k]) * halfInverseW2 / (q - v[k]);
+			while (s <= bounds[k]) {
+				k--;
+				s = (height - heights[k]) * halfInverseW2 / (q - v[k]);
+			}
+			k++;
+			v[k] = q;
+			heights[k] = height;
+			bounds[k] = s;
+			bounds[k + 1] = Double.POSITIVE_INFINITY;
+		}
+
+		if (k < 0) {
+			for (int q = 0; q < n; q++)
+				result[q] = Float.POSITIVE_INFINITY;
+			return;
+		}
+		int j = 0;
+		for (int q = 0; q < n; q++) {
+			while (bounds[j + 1] < q)
+				j++;
+			int p = v[j];
+			result[q] = (float) (w2 * (q - p) * (q - p) + f[p]);
+		}
+	}
+
+}
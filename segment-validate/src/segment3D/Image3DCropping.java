@@ -25,8 +25,8 @@ import org.apache.commons.logging.LogFactory;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
+import util.ParallelLoop;
 
 /**
  * @author Mylene Simon <mylene.simon at nist.gov>
@@ -40,103 +40,194 @@ public class Image3DCropping {
 	private double meanBKGFrames;
 	private double stdevBKGFrames;
 	
+	// sums of the statistics of the frames removed by preCropFrames
+	private double preCropMeanSum;
+	private double preCropStdevSum;
+	private int preCropFrameCount;
+	
+	// number of dark frames kept on each side of the frames with signal
+	private static final int PRE_CROP_MARGIN = 3;
+	
+	// minimum number of foreground pixels after erosion for a meaningful frame
+	static final int MIN_FRG_PIXELS = 500;
+	
 	public Image3DCropping() {
 		
 	}
 	
+	/**
+	 * Removes the dark frames at the beginning and at the end of the stack
+	 * based on the per-slice statistics gathered while the stack was loaded.
+	 * This cheap stage is meant to be run before smoothing and thresholding,
+	 * removeMeaninglessFrames16bits being then applied as a refinement.
+	 * 
+	 * A slice contains signal if at least MIN_FRG_PIXELS of its pixels are
+	 * larger than the mean plus 4 standard deviations of the darkest slice of
+	 * the stack (intensity of the MIN_FRG_PIXELS-th brightest pixel in the
+	 * slice statistics). The smoothing (opening) and the erosion done before
+	 * counting the foreground pixels in removeMeaninglessFrames16bits can
+	 * only decrease this count, so a slice kept by the refinement with a
+	 * threshold above this level is never pre-cropped. PRE_CROP_MARGIN dark frames are kept on each side of
+	 * the slices with signal. The statistics of the removed frames are
+	 * computed after the same smoothing as the rest of the stack and merged
+	 * with the ones of the frames removed by removeMeaninglessFrames16bits, so
+	 * that the background statistics do not depend on pre-cropping.
+	 * 
+	 * @param img3D
+	 *            the 3D image (frames are removed from its stack)
+	 * @param sliceStatistics
+	 *            statistics of each slice of img3D
+	 * @return the range of the remaining frames in the input stack (first and
+	 *         last frame, zero-based)
+	 */
+	public int[] preCropFrames(ImagePlus img3D, SliceStatistics sliceStatistics) {
+		
+		int zSize = img3D.getNSlices();
+		int[] framesRange = new int[] {0, zSize-1};
+		
+		preCropMeanSum = 0.0;
+		preCropStdevSum = 0.0;
+		preCropFrameCount = 0;
+		
+		if(sliceStatistics == null || sliceStatistics.getNSlices() != zSize
+				|| sliceStatistics.getBrightRank() > MIN_FRG_PIXELS) {
+			logger.warn("Slice statistics do not match the stack, no pre-cropping of frames");
+			return framesRange;
+		}
+		
+		// find the darkest slice to estimate the background level
+		int darkestFrame = -1;
+		for(int z = 0; z < zSize; ++ z) {
+			if(sliceStatistics.hasSlice(z) && (darkestFrame < 0 
+					|| sliceStatistics.getMean(z) < sliceStatistics.getMean(darkestFrame)))
+				darkestFrame = z;
+		}
+		if(darkestFrame < 0) {
+			logger.warn("No slice statistics available, no pre-cropping of frames");
+			return framesRange;
+		}
+		double signalThreshold = sliceStatistics.getMean(darkestFrame) 
+				+ 4.0 * sliceStatistics.getStdev(darkestFrame);
+		
+		// find first and last slices with signal
+		int firstSignalFrame = -1;
+		int lastSignalFrame = -1;
+		for(int z = 0; z < zSize; ++ z) {
+			if(sliceStatistics.hasSlice(z) 
+					&& sliceStatistics.getBrightValue(z) > signalThreshold) {
+				if(firstSignalFrame < 0)
+					firstSignalFrame = z;
+				lastSignalFrame = z;
+			}
+		}
+		if(firstSignalFrame < 0) {
+			logger.info("No frame with signal found, no pre-cropping of frames");
+			return framesRange;
+		}
+		
+		int startingFrame = Math.max(firstSignalFrame - PRE_CROP_MARGIN, 0);
+		int endingFrame = Math.min(lastSignalFrame + PRE_CROP_MARGIN, zSize-1);
+		
+		logger.info("Pre-cropping frames, background level from frame " 
+				+ darkestFrame + " is " + signalThreshold);
+		ImageStack imgStack = img3D.getStack();
+		ImageStack removedStack = new ImageStack(imgStack.getWidth(),
+				imgStack.getHeight());
+		for(int z = 0; z < startingFrame; z++) {
+			removedStack.addSlice(null, imgStack.getPixels(1));
+			imgStack.deleteSlice(1);
+		}
+		for(int z = endingFrame+1; z < zSize; z++) {
+			removedStack.addSlice(null, imgStack.getPixels(imgStack.getSize()));
+			imgStack.deleteLastSlice();
+		}
+		img3D.setStack(imgStack);
+		addPreCropStatistics(removedStack);
+		
+		framesRange[0] = startingFrame;
+		framesRange[1] = endingFrame;
+		
+		return framesRange;
+	}
+	
+	/**
+	 * Adds the statistics of the frames removed by preCropFrames to the
+	 * pre-cropping statistics. The removed frames are smoothed as the
+	 * remaining stack is smoothed before removeMeaninglessFrames16bits (the
+	 * smoothing does not mix slices), so that their statistics can be merged
+	 * with the ones of the frames removed by removeMeaninglessFrames16bits
+	 */
+	private void addPreCropStatistics(ImageStack removedStack) {
+		int nbFrames = removedStack.getSize();
+		if(nbFrames == 0)
+			return;
+		ImagePlus removedFrames = new ImagePlus("pre-cropped frames", removedStack);
+		Image3DSmoothing.grayscaleFlatErosion(removedFrames, 1, 1, 0);
+		Image3DSmoothing.grayscaleFlatDilation(removedFrames, 1, 1, 0);
+		
+		// the threshold is irrelevant, only the statistics are used
+		SliceScorer sliceScorer = new SliceScorer(removedStack, 0, 65535, 255);
+		sliceScorer.scoreSlices(0, nbFrames);
+		for(int z = 0; z < nbFrames; z++) {
+			preCropMeanSum += sliceScorer.getMean(z);
+			preCropStdevSum += sliceScorer.getStdev(z);
+			preCropFrameCount ++;
+		}
+	}
+	
 	public int[] removeMeaninglessFrames16bits(ImagePlus img3D, int threshold) {
 
-	
-		int xSize = img3D.getWidth();
-		int ySize = img3D.getHeight();
 		int zSize = img3D.getNSlices();
 		
 		int[] framesRange = new int[] {0, zSize-1};
 		
 		int byteThreshold = (int) threshold/257;
 		
-		// Fill thresholdedImage with voxel intensities
 		ImageStack imgStack = img3D.getStack();
-		int nbFRGpixels = 0;
-		int z = 1;
 		
-		logger.info("Finding useless frames at the beginning of the stack...");
-		while(z <= zSize && nbFRGpixels < 500) {
-			
-			ImageProcessor imgProc = imgStack.getProcessor(z);
-			
-			nbFRGpixels = 0;
-			
-			//double min = imgProc.getMin();
-            //double max = imgProc.getMax();
-            ByteProcessor tmpProc = (ByteProcessor) imgProc.convertToByte(true);
-            //tmpProc.setAutoThreshold(ImageProcessor.ISODATA2, ImageProcessor.NO_LUT_UPDATE);
-            //float t1 = (float)(min + (max-min)*(tmpProc.getMinThreshold()/255.0));
-            //float t2 = (float)(min + (max-min)*(tmpProc.getMaxThreshold()/255.0));
-            //int t1 = (int) imgProc.getMinThreshold();
-            //int t2 = (int) tmpProc.getMaxThreshold();
-            for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					int pixel = tmpProc.getPixel(x, y);
-					if( pixel > byteThreshold)
-						tmpProc.putPixel(x, y, 255);
-					else 
-						tmpProc.putPixel(x, y, 0);
-				}
-			}
-            tmpProc.erode(1, 0);
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					if( tmpProc.getPixel(x, y) == 255)
-						nbFRGpixels ++;
-				}
-			}
-			
-			//logger.info("Nb FRG pixels..." + nbFRGpixels);
-			
-			z ++;
-		}
+		int startingFrame = 0;
+		int endingFrame = 0;
+		SliceScorer sliceScorer = null;
 		
-		int startingFrame = (z>1 ? (z-2) : 0);
-		
-		z = zSize;
-		nbFRGpixels = 0;
-		
-		logger.info("Finding useless frames at the end of the stack...");
-		while(z > 0  && nbFRGpixels < 500) {
-			
-			ImageProcessor imgProc = imgStack.getProcessor(z);
+		if(zSize > 0) {
+			// slices are converted to 8 bits with the display range that the
+			// stack applies to all its processors
+			ImageProcessor firstProc = imgStack.getProcessor(1);
+			sliceScorer = new SliceScorer(imgStack, firstProc.getMin(),
+					firstProc.getMax(), byteThreshold);
 			
-			nbFRGpixels = 0;
+			// slices are scored in parallel, by blocks, from each end of the
+			// stack until a slice with enough foreground pixels is found
+			int blockSize = ParallelLoop.getNumberOfThreads();
 			
-            ByteProcessor tmpProc = (ByteProcessor) imgProc.convertToByte(true);
-            //tmpProc.setAutoThreshold(ImageProcessor.ISODATA2, ImageProcessor.NO_LUT_UPDATE);
-            //int t1 = (int) tmpProc.getMinThreshold();
-            //int t2 = (int) tmpProc.getMaxThreshold();
-            for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					int pixel = tmpProc.getPixel(x, y);
-					if( pixel > byteThreshold ) {
-						tmpProc.putPixel(x, y, 255);
-					}
-					else 
-						tmpProc.putPixel(x, y, 0);
+			logger.info("Finding useless frames at the beginning of the stack...");
+			int firstFrame = -1;
+			for(int from = 0; from < zSize && firstFrame < 0; from += blockSize) {
+				int to = Math.min(from + blockSize, zSize);
+				sliceScorer.scoreSlices(from, to);
+				for(int z = from; z < to && firstFrame < 0; z++) {
+					if(sliceScorer.getForegroundCount(z) >= MIN_FRG_PIXELS)
+						firstFrame = z;
 				}
 			}
-            tmpProc.erode(1, 0);
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					if( tmpProc.getPixel(x, y) == 255)
-						nbFRGpixels ++;
+			
+			logger.info("Finding useless frames at the end of the stack...");
+			int lastFrame = -1;
+			int lowestFrame = Math.max(firstFrame, 0);
+			for(int to = zSize; to > lowestFrame && lastFrame < 0; to -= blockSize) {
+				int from = Math.max(to - blockSize, lowestFrame);
+				sliceScorer.scoreSlices(from, to);
+				for(int z = to - 1; z >= from && lastFrame < 0; z--) {
+					if(sliceScorer.getForegroundCount(z) >= MIN_FRG_PIXELS)
+						lastFrame = z;
 				}
 			}
-			//logger.info("Nb FRG pixels..." + nbFRGpixels);
-			z --;
 			
+			startingFrame = (firstFrame >= 0 ? firstFrame : zSize-1);
+			endingFrame = (lastFrame >= 0 ? lastFrame : 0);
 		}
 		
 		logger.info("Removing frames and computing statistics about BKG...");
-		int endingFrame = (z<zSize ? z : zSize-1);
 		
 		double meanBKG = 0.0;
 		double stdevBKG = 0.0;
@@ -146,31 +237,32 @@ public class Image3DCropping {
 			framesRange[0] = startingFrame;
 			framesRange[1] = endingFrame;
 			
+			// statistics of the removed frames were computed while scoring
 			for(int i=0; i<startingFrame; i++) {
-				double mean = imgStack.getProcessor(1).getStatistics().mean;
-				double stdev = imgStack.getProcessor(1).getStatistics().stdDev;
-				//logger.info("Mean for this slice is : " + mean + " and stdev : " + stdev);
-				meanBKG += mean;
-				stdevBKG += stdev;
+				meanBKG += sliceScorer.getMean(i);
+				stdevBKG += sliceScorer.getStdev(i);
 				countFrames ++;
 				imgStack.deleteSlice(1);
 			}
 			
-			for(int i=endingFrame+1; i<zSize; i++) {
-				double mean = imgStack.getProcessor(img3D.getNSlices()).getStatistics().mean;
-				double stdev = imgStack.getProcessor(img3D.getNSlices()).getStatistics().stdDev;
-				//logger.info("Mean for this slice is : " + mean + " and stdev : " + stdev);
-				meanBKG += mean;
-				stdevBKG += stdev;
+			// last frames are removed from the end of the stack
+			for(int i=zSize-1; i>endingFrame; i--) {
+				meanBKG += sliceScorer.getMean(i);
+				stdevBKG += sliceScorer.getStdev(i);
 				countFrames ++;
 				imgStack.deleteLastSlice();
 			}
-			
-			if(countFrames != 0) {
-				meanBKG /= (double) countFrames;
-				stdevBKG /= (double) countFrames;
-				//logger.info("Global mean is : " + meanBKG + " and stdev : " + stdevBKG);
-			}
+		}
+		
+		// merge with the statistics of the frames removed by preCropFrames
+		meanBKG += preCropMeanSum;
+		stdevBKG += preCropStdevSum;
+		countFrames += preCropFrameCount;
+		
+		if(countFrames != 0) {
+			meanBKG /= (double) countFrames;
+			stdevBKG /= (double) countFrames;
+			//logger.info("Global mean is : " + meanBKG + " and stdev : " + stdevBKG);
 		}
 		
 		meanBKGFrames = meanBKG;
@@ -0,0 +1,447 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package segment3D;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+/**
+ * This is a class for storing a 3D binary mask as runs of foreground voxels
+ * along x. The runs of each row are indexed by row and slice, so that the
+ * foreground count, the orthogonal projections and the overlap of two masks
+ * are computed from the runs, without decoding the mask into voxels. It is
+ * compact for the segmented cells (a few runs per row of a single blob).
+ * 
+ * The slices are appended in z order (addSlice) until the mask is complete.
+ * 
+ * @author pnb
+ * 
+ */
+public class RunLengthMask3D {
+
+	private int width;
+	private int height;
+	private int depth = 0;
+	// the runs of row r (r = z * height + y) are the runs rowStart[r] to
+	// rowStart[r + 1] - 1, run i starts at runs[2 * i] and ends before
+	// runs[2 * i + 1]
+	private int[] rowStart;
+	private int[] runs = new int[64];
+	private int numberOfRuns = 0;
+	// row being appended
+	private int currentRow;
+	private Calibration calibration = new Calibration();
+
+	/**
+	 * Constructor of a mask without any slice
+	 * 
+	 * @param width
+	 *            width of the mask
+	 * @param height
+	 *            height of the mask
+	 */
+	public RunLengthMask3D(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.rowStart = new int[height + 1];
+	}
+
+	/**
+	 * Constructor of a mask from its runs (for instance read from a file)
+	 * 
+	 * @param width
+	 *            width of the mask
+	 * @param height
+	 *            height of the mask
+	 * @param depth
+	 *            number of slices of the mask
+	 * @param rowStart
+	 *            index of the first run of each row (depth * height + 1
+	 *            values, the last one is the number of runs)
+	 * @param runs
+	 *            start (inclusive) and end (exclusive) of each run
+	 */
+	public RunLengthMask3D(int width, int height, int depth, int[] rowStart,
+			int[] runs) {
+		if (rowStart.length != depth * height + 1
+				|| runs.length < 2 * rowStart[depth * height])
+			throw new IllegalArgumentException("Invalid run index");
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.rowStart = rowStart;
+		this.runs = runs;
+		this.numberOfRuns = rowStart[depth * height];
+	}
+
+	/**
+	 * Creates the mask of the voxels of a 3D image larger than a threshold
+	 * 
+	 * @param image3D
+	 *            the 3D image (8 bits or 16 bits)
+	 * @param threshold
+	 *            voxels with a value larger than the threshold are set
+	 * @return the mask
+	 */
+	public static RunLengthMask3D fromImagePlus(ImagePlus image3D,
+			double threshold) {
+		ImageStack stack = image3D.getStack();
+		RunLengthMask3D mask = new RunLengthMask3D(stack.getWidth(),
+				stack.getHeight());
+		for (int z = 1; z <= stack.getSize(); z++)
+			mask.addSlice(stack.getPixels(z), threshold);
+		mask.setCalibration(image3D.getCalibration());
+		return mask;
+	}
+
+	/**
+	 * Creates the run length encoding of a bit-packed mask
+	 * 
+	 * @param bitMask
+	 *            the bit-packed mask
+	 * @return the mask
+	 */
+	public static RunLengthMask3D fromBitMask3D(BitMask3D bitMask) {
+		RunLengthMask3D mask = new RunLengthMask3D(bitMask.getWidth(),
+				bitMask.getHeight());
+		int wordsPerRow = bitMask.getWordsPerRow();
+		long lastWordMask = bitMask.getLastWordMask();
+		for (int z = 0; z < bitMask.getDepth(); z++) {
+			long[] words = bitMask.getSliceWords(z);
+			mask.beginSlice();
+			for (int y = 0; y < mask.height; y++) {
+				int offset = y * wordsPerRow;
+				int runStart = -1;
+				for (int i = 0; i < wordsPerRow; i++) {
+					long word = words[offset + i];
+					if (i == wordsPerRow - 1)
+						word &= lastWordMask;
+					int base = i << 6;
+					// bits that differ from the previous one mark the
+					// beginning or the end of a run
+					long previous = (i == 0) ? 0L
+							: (words[offset + i - 1] >>> 63);
+					long changes = word ^ ((word << 1) | previous);
+					while (changes != 0) {
+						int x = base + Long.numberOfTrailingZeros(changes);
+						if (runStart < 0) {
+							runStart = x;
+						} else {
+							mask.addRun(runStart, x);
+							runStart = -1;
+						}
+						changes &= changes - 1;
+					}
+				}
+				if (runStart >= 0)
+					mask.addRun(runStart, mask.width);
+				mask.endRow();
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Appends the next slice: the voxels larger than a threshold are set
+	 * 
+	 * @param pixels
+	 *            the pixels of the slice (byte[] or short[], unsigned values)
+	 * @param threshold
+	 *            voxels with a value larger than the threshold are set
+	 */
+	public void addSlice(Object pixels, double threshold) {
+		beginSlice();
+		if (pixels instanceof byte[]) {
+			byte[] p8 = (byte[]) pixels;
+			for (int y = 0; y < height; y++) {
+				int offset = y * width;
+				int runStart = -1;
+				for (int x = 0; x < width; x++) {
+					boolean set = (p8[offset + x] & 0xff) > threshold;
+					if (set && runStart < 0) {
+						runStart = x;
+					} else if (!set && runStart >= 0) {
+						addRun(runStart, x);
+						runStart = -1;
+					}
+				}
+				if (runStart >= 0)
+					addRun(runStart, width);
+				endRow();
+			}
+		} else if (pixels instanceof short[]) {
+			short[] p16 = (short[]) pixels;
+			for (int y = 0; y < height; y++) {
+				int offset = y * width;
+				int runStart = -1;
+				for (int x = 0; x < width; x++) {
+					boolean set = (p16[offset + x] & 0xffff) > threshold;
+					if (set && runStart < 0) {
+						runStart = x;
+					} else if (!set && runStart >= 0) {
+						addRun(runStart, x);
+						runStart = -1;
+					}
+				}
+				if (runStart >= 0)
+					addRun(runStart, width);
+				endRow();
+			}
+		} else {
+			throw new IllegalArgumentException(
+					"Only byte[] or short[] slices are supported");
+		}
+	}
+
+	private void beginSlice() {
+		int rows = (depth + 1) * height + 1;
+		if (rowStart.length < rows)
+			rowStart = Arrays.copyOf(rowStart,
+					Math.max(rows, 2 * rowStart.length - 1));
+		currentRow = depth * height;
+		depth++;
+	}
+
+	private void addRun(int start, int end) {
+		if (runs.length < 2 * (numberOfRuns + 1))
+			runs = Arrays.copyOf(runs, 2 * runs.length);
+		runs[2 * numberOfRuns] = start;
+		runs[2 * numberOfRuns + 1] = end;
+		numberOfRuns++;
+	}
+
+	private void endRow() {
+		currentRow++;
+		rowStart[currentRow] = numberOfRuns;
+	}
+
+	/**
+	 * @return the bit-packed mask
+	 */
+	public BitMask3D toBitMask3D() {
+		BitMask3D bitMask = new BitMask3D(width, height, depth);
+		int wordsPerRow = bitMask.getWordsPerRow();
+		for (int z = 0; z < depth; z++) {
+			long[] words = bitMask.getSliceWords(z);
+			for (int y = 0; y < height; y++) {
+				int offset = y * wordsPerRow;
+				int row = z * height + y;
+				for (int i = rowStart[row]; i < rowStart[row + 1]; i++) {
+					int start = runs[2 * i];
+					int end = runs[2 * i + 1];
+					for (int w = start >>> 6; w <= (end - 1) >>> 6; w++) {
+						long bits = -1L;
+						if (w == start >>> 6)
+							bits &= -1L << start;
+						if (w == (end - 1) >>> 6)
+							bits &= -1L >>> (63 - ((end - 1) & 63));
+						words[offset + w] |= bits;
+					}
+				}
+			}
+		}
+		return bitMask;
+	}
+
+	/**
+	 * @return the 8 bits binary image of the mask (255 for set voxels, 0
+	 *         otherwise)
+	 */
+	public ImagePlus toImagePlus() {
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			byte[] sliceData = new byte[width * height];
+			for (int y = 0; y < height; y++) {
+				int row = z * height + y;
+				for (int i = rowStart[row]; i < rowStart[row + 1]; i++)
+					Arrays.fill(sliceData, y * width + runs[2 * i], y * width
+							+ runs[2 * i + 1], (byte) 255);
+			}
+			stack.addSlice(new ByteProcessor(width, height, sliceData));
+		}
+		ImagePlus imp = new ImagePlus("", stack);
+		imp.setCalibration(calibration.copy());
+		return imp;
+	}
+
+	/**
+	 * @return the number of set voxels
+	 */
+	public long cardinality() {
+		long count = 0;
+		for (int i = 0; i < numberOfRuns; i++)
+			count += runs[2 * i + 1] - runs[2 * i];
+		return count;
+	}
+
+	/**
+	 * @return the number of voxels set in both masks (the masks must have the
+	 *         same dimensions)
+	 */
+	public static long intersectionCardinality(RunLengthMask3D a,
+			RunLengthMask3D b) {
+		if (a.width != b.width || a.height != b.height || a.depth != b.depth)
+			throw new IllegalArgumentException(
+					"The masks do not have the same dimensions");
+		long count = 0;
+		for (int row = 0; row < a.depth * a.height; row++) {
+			// merge the sorted runs of the two rows
+			int i = a.rowStart[row];
+			int j = b.rowStart[row];
+			int iEnd = a.rowStart[row + 1];
+			int jEnd = b.rowStart[row + 1];
+			while (i < iEnd && j < jEnd) {
+				int aEnd = a.runs[2 * i + 1];
+				int bEnd = b.runs[2 * j + 1];
+				int overlap = Math.min(aEnd, bEnd)
+						- Math.max(a.runs[2 * i], b.runs[2 * j]);
+				if (overlap > 0)
+					count += overlap;
+				if (aEnd <= bEnd)
+					i++;
+				else
+					j++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the max projection into the XY plane (8 bits, 255 where a voxel
+	 *         of the column is set), as OrthogonalProjection.projectionXY
+	 */
+	public ImagePlus projectionXY() {
+		byte[] projectedData = new byte[width * height];
+		for (int z = 0; z < depth; z++)
+			for (int y = 0; y < height; y++) {
+				int row = z * height + y;
+				for (int i = rowStart[row]; i < rowStart[row + 1]; i++)
+					Arrays.fill(projectedData, y * width + runs[2 * i], y
+							* width + runs[2 * i + 1], (byte) 255);
+			}
+		ImagePlus res = new ImagePlus();
+		res.setProcessor(new ByteProcessor(width, height, projectedData));
+		res.setCalibration(calibration.copy());
+		return res;
+	}
+
+	/**
+	 * @return the max projection into the ZY plane (8 bits, z along the
+	 *         horizontal axis), as OrthogonalProjection.projectionZY
+	 */
+	public ImagePlus projectionZY() {
+		byte[] projectedData = new byte[depth * height];
+		for (int z = 0; z < depth; z++)
+			for (int y = 0; y < height; y++) {
+				int row = z * height + y;
+				if (rowStart[row + 1] > rowStart[row])
+					projectedData[y * depth + z] = (byte) 255;
+			}
+		ImagePlus res = new ImagePlus();
+		res.setProcessor(new ByteProcessor(depth, height, projectedData));
+		Calibration newCalibration = calibration.copy();
+		newCalibration.pixelWidth = calibration.pixelDepth;
+		newCalibration.setXUnit(calibration.getZUnit());
+		res.setCalibration(newCalibration);
+		return res;
+	}
+
+	/**
+	 * @return the max projection into the XZ plane (8 bits, z along the
+	 *         vertical axis), as OrthogonalProjection.projectionXZ
+	 */
+	public ImagePlus projectionXZ() {
+		byte[] projectedData = new byte[width * depth];
+		for (int z = 0; z < depth; z++)
+			for (int y = 0; y < height; y++) {
+				int row = z * height + y;
+				for (int i = rowStart[row]; i < rowStart[row + 1]; i++)
+					Arrays.fill(projectedData, z * width + runs[2 * i], z
+							* width + runs[2 * i + 1], (byte) 255);
+			}
+		ImagePlus res = new ImagePlus();
+		res.setProcessor(new ByteProcessor(width, depth, projectedData));
+		Calibration newCalibration = calibration.copy();
+		newCalibration.pixelHeight = calibration.pixelDepth;
+		newCalibration.setYUnit(calibration.getZUnit());
+		res.setCalibration(newCalibration);
+		return res;
+	}
+
+	/**
+	 * @return the number of runs of the row y of the slice z
+	 */
+	public int getRunCount(int y, int z) {
+		int row = z * height + y;
+		return rowStart[row + 1] - rowStart[row];
+	}
+
+	/**
+	 * @return the first voxel of the run i of the row y of the slice z
+	 */
+	public int getRunStart(int y, int z, int i) {
+		return runs[2 * (rowStart[z * height + y] + i)];
+	}
+
+	/**
+	 * @return the voxel after the last voxel of the run i of the row y of the
+	 *         slice z
+	 */
+	public int getRunEnd(int y, int z, int i) {
+		return runs[2 * (rowStart[z * height + y] + i) + 1];
+	}
+
+	/**
+	 * @return the total number of runs
+	 */
+	public int getNumberOfRuns() {
+		return numberOfRuns;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the calibration of the mask (voxel dimensions and units)
+	 */
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	public void setCalibration(Calibration calibration) {
+		this.calibration = (calibration == null) ? new Calibration()
+				: calibration.copy();
+	}
+
+}
@@ -28,9 +28,11 @@ import org.apache.commons.logging.LogFactory;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.measure.Calibration;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import io.SliceConsumer;
 
 /**
  * This is a class to segment a 3D FITS file with a given threshold and compute
@@ -138,6 +140,23 @@ public class Segment3DImage {
 	}
 	
 	public ImagePlus segmentImage(int threshold, int morphologicalOperationChoice, int morphologicalOperationRadius) {
+		return segmentImage(threshold, morphologicalOperationChoice,
+				morphologicalOperationRadius, new SliceConsumer[0]);
+	}
+	
+	/**
+	 * Segments the image and passes each slice of the segmented image to the
+	 * slice consumers while the segmented ImagePlus is generated
+	 * 
+	 * @param threshold The threshold
+	 * @param morphologicalOperationChoice The morphological operations choice
+	 * @param morphologicalOperationRadius The radius of the morphological operations
+	 * @param consumers Slice consumers receiving the segmented slices
+	 * @return the segmented ImagePlus (8bit binary image)
+	 */
+	public ImagePlus segmentImage(int threshold,
+			int morphologicalOperationChoice, int morphologicalOperationRadius,
+			SliceConsumer... consumers) {
 		
 		logger.info("Starting segmentation of image...");
 		
@@ -150,7 +169,7 @@ public class Segment3DImage {
 			applyMorphologicalOperations(morphologicalOperationRadius, morphologicalOperationChoice);
 		
 		// Update the segmented image ImagePlus object
-		return generateSegmentedImagePlus();
+		return generateSegmentedImagePlus(consumers);
 		
 	}
 	
@@ -174,28 +193,79 @@ public class Segment3DImage {
 	 *         segmentation steps applied)
 	 */
 	public ImagePlus generateSegmentedImagePlus() {
+		return generateSegmentedImagePlus(new SliceConsumer[0]);
+	}
+	
+	/**
+	 * @param consumers
+	 *            slice consumers receiving each slice of the segmented image
+	 *            as soon as it is generated
+	 * @return the segmentedImagePlus (8bit binary image generated after all the
+	 *         segmentation steps applied)
+	 */
+	public ImagePlus generateSegmentedImagePlus(SliceConsumer... consumers) {
 		// Update the segmented image ImagePlus object
 		logger.info("Creating the segmented ImagePlus object");
 		ImageStack imgStack = new ImageStack(xSize, ySize);
+		for (SliceConsumer consumer : consumers)
+			consumer.begin(xSize, ySize, zSize);
 		for(int z = 0; z < zSize; ++ z) {
 			
-			byte[] sliceData = new byte[xSize * ySize];
-			
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					sliceData[y * xSize + x] = (byte) ((imageData[x][y][z] == 1) ? 255 : 0);
-				}
-			}
+			byte[] sliceData = generateSegmentedSlice(z);
 			
 			ByteProcessor sliceProc = new ByteProcessor(xSize, ySize,
 					sliceData);
 			imgStack.addSlice(sliceProc);
+			for (SliceConsumer consumer : consumers)
+				consumer.consumeSlice(z, sliceData);
 		}
+		for (SliceConsumer consumer : consumers)
+			consumer.end(zSize);
 		segmentedImagePlus.setStack(imgStack);
 		
 		return segmentedImagePlus;
 	}
 	
+	/**
+	 * Passes each slice of the segmented image (8bit binary) to the slice
+	 * consumers without building the segmentedImagePlus, for instance to write
+	 * it with a FitsStreamWriter
+	 * 
+	 * @param consumers
+	 *            slice consumers receiving each slice of the segmented image
+	 */
+	public void writeSegmentedSlices(SliceConsumer... consumers) {
+		for (SliceConsumer consumer : consumers)
+			consumer.begin(xSize, ySize, zSize);
+		for(int z = 0; z < zSize; ++ z) {
+			byte[] sliceData = generateSegmentedSlice(z);
+			for (SliceConsumer consumer : consumers)
+				consumer.consumeSlice(z, sliceData);
+		}
+		for (SliceConsumer consumer : consumers)
+			consumer.end(zSize);
+	}
+	
+	/**
+	 * @return the slice z of the segmented image (255 for foreground voxels, 0 otherwise)
+	 */
+	private byte[] generateSegmentedSlice(int z) {
+		byte[] sliceData = new byte[xSize * ySize];
+		for(int x = 0; x < xSize; ++ x) {
+			for(int y = 0; y < ySize; ++ y) {
+				sliceData[y * xSize + x] = (byte) ((imageData[x][y][z] == 1) ? 255 : 0);
+			}
+		}
+		return sliceData;
+	}
+	
+	/**
+	 * @return the calibration of the input 3D image (also used for the segmented image)
+	 */
+	public Calibration getCalibration() {
+		return segmentedImagePlus.getCalibration();
+	}
+	
 	/**
 	 * @return the ImagePlus object of the internal INT 3D image
 	 */
@@ -718,6 +788,27 @@ public class Segment3DImage {
 		return bkgCount;
 	}
 
+	/**
+	 * @return the width of the 3D image
+	 */
+	public int getWidth() {
+		return xSize;
+	}
+
+	/**
+	 * @return the height of the 3D image
+	 */
+	public int getHeight() {
+		return ySize;
+	}
+
+	/**
+	 * @return the number of slices of the 3D image
+	 */
+	public int getDepth() {
+		return zSize;
+	}
+
 	/**
 	 * Class used in nonRecursiveFlood method (helper class)
 	 * 
@@ -0,0 +1,249 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package segment3D;
+
+import ij.ImageStack;
+
+import java.util.Arrays;
+
+import util.ParallelLoop;
+
+/**
+ * This class scores the slices of a z-stack for Image3DCropping. The score of
+ * a slice is the number of foreground pixels remaining after thresholding the
+ * slice converted to 8 bits and eroding it once, as done with ImageJ
+ * convertToByte(true), putPixel and erode(1, 0). The mean and standard
+ * deviation of the intensities of each scored slice are computed in the same
+ * pass, as done by ImageJ getStatistics().
+ * 
+ * The slices are scored in parallel directly on the pixel arrays of the stack
+ * (byte[] or short[]), using one binary buffer and one histogram per thread.
+ * 
+ * @author pnb
+ * 
+ */
+public class SliceScorer {
+
+	private ImageStack imgStack;
+	private int width;
+	private int height;
+
+	// pixels larger or equal to this value are foreground (16 bits slices)
+	private int shortCutoff;
+	// pixels larger than this value are foreground (8 bits slices)
+	private int byteThreshold;
+
+	private int[] foregroundCounts;
+	private double[] means;
+	private double[] stdevs;
+	private boolean[] scored;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param imgStack
+	 *            stack to score (byte[] or short[] slices)
+	 * @param displayMin
+	 *            minimum of the display range used to scale 16 bits slices
+	 *            to 8 bits
+	 * @param displayMax
+	 *            maximum of the display range used to scale 16 bits slices
+	 *            to 8 bits
+	 * @param byteThreshold
+	 *            threshold applied to the 8 bits slices (pixel is foreground
+	 *            if pixel > byteThreshold)
+	 */
+	public SliceScorer(ImageStack imgStack, double displayMin,
+			double displayMax, int byteThreshold) {
+		this.imgStack = imgStack;
+		this.width = imgStack.getWidth();
+		this.height = imgStack.getHeight();
+		this.byteThreshold = byteThreshold;
+		this.shortCutoff = findShortCutoff((int) displayMin, (int) displayMax,
+				byteThreshold);
+
+		int zSize = imgStack.getSize();
+		foregroundCounts = new int[zSize];
+		means = new double[zSize];
+		stdevs = new double[zSize];
+		scored = new boolean[zSize];
+	}
+
+	/**
+	 * Finds the smallest 16 bits value which is foreground once scaled to 8
+	 * bits (scaling of ImageJ TypeConverter, which is monotonic)
+	 */
+	private static int findShortCutoff(int min, int max, int byteThreshold) {
+		double scale = 256.0 / (max - min + 1);
+		for (int v = 0; v < 65536; v++) {
+			int value = v - min;
+			if (value < 0)
+				value = 0;
+			value = (int) (value * scale + 0.5);
+			if (value > 255)
+				value = 255;
+			if (value > byteThreshold)
+				return v;
+		}
+		return 65536;
+	}
+
+	/**
+	 * Scores the slices from (inclusive) to (exclusive), zero-based, in
+	 * parallel. Slices already scored are not scored again.
+	 */
+	public void scoreSlices(int from, int to) {
+		from = Math.max(from, 0);
+		to = Math.min(to, scored.length);
+		ParallelLoop.run(from, to, new ParallelLoop.Body() {
+			@Override
+			public void run(int chunkFrom, int chunkTo) {
+				// buffers of the thread
+				byte[] binary = new byte[width * height];
+				int[] histogram = null;
+				for (int z = chunkFrom; z < chunkTo; z++) {
+					if (scored[z])
+						continue;
+					Object pixels = imgStack.getPixels(z + 1);
+					int nbBins = (pixels instanceof short[]) ? 65536 : 256;
+					if (histogram == null || histogram.length != nbBins)
+						histogram = new int[nbBins];
+					else
+						Arrays.fill(histogram, 0);
+					binarize(pixels, binary, histogram);
+					foregroundCounts[z] = countErodedForeground(binary);
+					computeStatistics(z, histogram);
+					scored[z] = true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Thresholds the slice into the binary buffer (1 for foreground) and
+	 * computes its histogram
+	 */
+	private void binarize(Object pixels, byte[] binary, int[] histogram) {
+		if (pixels instanceof short[]) {
+			short[] p16 = (short[]) pixels;
+			for (int i = 0; i < p16.length; i++) {
+				int value = p16[i] & 0xffff;
+				histogram[value]++;
+				binary[i] = (byte) (value >= shortCutoff ? 1 : 0);
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] p8 = (byte[]) pixels;
+			for (int i = 0; i < p8.length; i++) {
+				int value = p8[i] & 0xff;
+				histogram[value]++;
+				binary[i] = (byte) (value > byteThreshold ? 1 : 0);
+			}
+		} else {
+			throw new IllegalArgumentException(
+					"Only 8-bpp or 16-bpp slices are supported.");
+		}
+	}
+
+	/**
+	 * Counts the foreground pixels remaining after one binary erosion with
+	 * the 8-neighborhood (ImageJ erode(1, 0) without edge padding: pixels on
+	 * the border of the slice are always eroded)
+	 */
+	private int countErodedForeground(byte[] binary) {
+		int count = 0;
+		for (int y = 1; y < height - 1; y++) {
+			int offset = y * width;
+			for (int x = 1; x < width - 1; x++) {
+				int i = offset + x;
+				if (binary[i] != 0 && binary[i - 1] != 0
+						&& binary[i + 1] != 0 && binary[i - width - 1] != 0
+						&& binary[i - width] != 0
+						&& binary[i - width + 1] != 0
+						&& binary[i + width - 1] != 0
+						&& binary[i + width] != 0
+						&& binary[i + width + 1] != 0)
+					count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Computes the mean and standard deviation of a slice from its histogram
+	 * (same computation as ImageJ ImageStatistics)
+	 */
+	private void computeStatistics(int z, int[] histogram) {
+		double sum = 0.0;
+		double sum2 = 0.0;
+		long pixelCount = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			int count = histogram[i];
+			if (count == 0)
+				continue;
+			double value = i;
+			pixelCount += count;
+			sum += value * count;
+			sum2 += (value * value) * count;
+		}
+		double n = pixelCount;
+		double stdev = 0.0;
+		if (n > 0.0) {
+			stdev = (n * sum2 - sum * sum) / n;
+			if (stdev > 0.0)
+				stdev = Math.sqrt(stdev / (n - 1.0));
+			else
+				stdev = 0.0;
+		}
+		means[z] = sum / pixelCount;
+		stdevs[z] = stdev;
+	}
+
+	/**
+	 * @return true if the slice z (zero-based) has been scored
+	 */
+	public boolean isScored(int z) {
+		return scored[z];
+	}
+
+	/**
+	 * @return the number of foreground pixels after erosion of slice z
+	 *         (zero-based)
+	 */
+	public int getForegroundCount(int z) {
+		return foregroundCounts[z];
+	}
+
+	/**
+	 * @return the mean intensity of slice z (zero-based)
+	 */
+	public double getMean(int z) {
+		return means[z];
+	}
+
+	/**
+	 * @return the standard deviation of the intensities of slice z
+	 *         (zero-based)
+	 */
+	public double getStdev(int z) {
+		return stdevs[z];
+	}
+
+}
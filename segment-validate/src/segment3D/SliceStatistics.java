@@ -0,0 +1,244 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package segment3D;
+
+import io.SliceConsumer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class gathers cheap per-slice statistics (mean, standard deviation,
+ * median and 99th percentile of the intensities, and the intensity of the
+ * n-th brightest pixel) while the slices of a z-stack are loaded. These
+ * statistics are used to pre-crop the dark frames at the beginning and at the
+ * end of a stack before smoothing and thresholding.
+ * 
+ * @author pnb
+ * 
+ */
+public class SliceStatistics implements SliceConsumer {
+
+	private static Log logger = LogFactory.getLog(SliceStatistics.class);
+
+	private List<double[]> statistics;
+	private int[] histogram;
+	// rank of the brightest pixel whose intensity is kept (1 for the maximum)
+	private int brightRank;
+
+	private static final int MEAN = 0;
+	private static final int STDEV = 1;
+	private static final int MEDIAN = 2;
+	private static final int PERCENTILE99 = 3;
+	private static final int BRIGHT = 4;
+
+	/**
+	 * Keeps the intensity of the Image3DCropping.MIN_FRG_PIXELS-th brightest
+	 * pixel of each slice
+	 */
+	public SliceStatistics() {
+		this(Image3DCropping.MIN_FRG_PIXELS);
+	}
+
+	/**
+	 * @param brightRank
+	 *            rank of the brightest pixel whose intensity is kept for each
+	 *            slice (1 for the maximum)
+	 */
+	public SliceStatistics(int brightRank) {
+		if (brightRank < 1)
+			throw new IllegalArgumentException("the rank must be at least 1");
+		this.brightRank = brightRank;
+		statistics = new ArrayList<double[]>();
+	}
+
+	@Override
+	public void begin(int width, int height, int expectedDepth) {
+		statistics = new ArrayList<double[]>(Math.max(expectedDepth, 0));
+	}
+
+	@Override
+	public void consumeSlice(int z, Object pixels) {
+
+		int nbPixels;
+		double sum = 0.0;
+		double sum2 = 0.0;
+
+		if (pixels instanceof byte[]) {
+			byte[] p8 = (byte[]) pixels;
+			nbPixels = p8.length;
+			histogram = resetHistogram(256);
+			for (int i = 0; i < nbPixels; i++)
+				histogram[p8[i] & 0xff]++;
+		} else if (pixels instanceof short[]) {
+			short[] p16 = (short[]) pixels;
+			nbPixels = p16.length;
+			histogram = resetHistogram(65536);
+			for (int i = 0; i < nbPixels; i++)
+				histogram[p16[i] & 0xffff]++;
+		} else {
+			logger.error("Only 8-bpp or 16-bpp slices are supported, slice "
+					+ z + " is ignored");
+			return;
+		}
+
+		// mean and standard deviation from the histogram
+		for (int value = 0; value < histogram.length; value++) {
+			if (histogram[value] != 0) {
+				double count = histogram[value];
+				sum += count * value;
+				sum2 += count * value * value;
+			}
+		}
+		double[] sliceStats = new double[5];
+		if (nbPixels > 0) {
+			sliceStats[MEAN] = sum / nbPixels;
+			if (nbPixels > 1) {
+				double variance = (sum2 - sum * sum / nbPixels)
+						/ (nbPixels - 1.0);
+				sliceStats[STDEV] = Math.sqrt(Math.max(variance, 0.0));
+			}
+			sliceStats[MEDIAN] = percentile(nbPixels, 0.5);
+			sliceStats[PERCENTILE99] = percentile(nbPixels, 0.99);
+			sliceStats[BRIGHT] = brightValue();
+		}
+
+		while (statistics.size() <= z)
+			statistics.add(null);
+		statistics.set(z, sliceStats);
+	}
+
+	@Override
+	public void end(int depth) {
+		while (statistics.size() > depth)
+			statistics.remove(statistics.size() - 1);
+		// the histogram is only needed while slices are delivered
+		histogram = null;
+	}
+
+	/**
+	 * Allocates the histogram if needed, otherwise sets it to zero
+	 */
+	private int[] resetHistogram(int nbBins) {
+		if (histogram == null || histogram.length != nbBins)
+			return new int[nbBins];
+		Arrays.fill(histogram, 0);
+		return histogram;
+	}
+
+	/**
+	 * @return the smallest intensity value such that at least the fraction p
+	 *         of the pixels are lower or equal to this value
+	 */
+	private double percentile(int nbPixels, double p) {
+		long rank = (long) Math.ceil(p * nbPixels);
+		if (rank < 1)
+			rank = 1;
+		long cumul = 0;
+		for (int value = 0; value < histogram.length; value++) {
+			cumul += histogram[value];
+			if (cumul >= rank)
+				return value;
+		}
+		return histogram.length - 1;
+	}
+
+	/**
+	 * @return the intensity of the brightRank-th brightest pixel (-1 if the
+	 *         slice has less pixels)
+	 */
+	private double brightValue() {
+		long cumul = 0;
+		for (int value = histogram.length - 1; value >= 0; value--) {
+			cumul += histogram[value];
+			if (cumul >= brightRank)
+				return value;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of slices for which statistics were gathered
+	 */
+	public int getNSlices() {
+		return statistics.size();
+	}
+
+	/**
+	 * @return true if statistics are available for the slice z (zero-based)
+	 */
+	public boolean hasSlice(int z) {
+		return z >= 0 && z < statistics.size() && statistics.get(z) != null;
+	}
+
+	/**
+	 * @return the mean intensity of the slice z (zero-based)
+	 */
+	public double getMean(int z) {
+		return statistics.get(z)[MEAN];
+	}
+
+	/**
+	 * @return the standard deviation of the intensities of the slice z
+	 *         (zero-based)
+	 */
+	public double getStdev(int z) {
+		return statistics.get(z)[STDEV];
+	}
+
+	/**
+	 * @return the median intensity of the slice z (zero-based)
+	 */
+	public double getMedian(int z) {
+		return statistics.get(z)[MEDIAN];
+	}
+
+	/**
+	 * @return the 99th percentile of the intensities of the slice z
+	 *         (zero-based)
+	 */
+	public double getPercentile99(int z) {
+		return statistics.get(z)[PERCENTILE99];
+	}
+
+	/**
+	 * @return the intensity of the brightRank-th brightest pixel of the slice
+	 *         z (zero-based), so that the slice has at least brightRank pixels
+	 *         larger than a threshold if and only if this intensity is larger
+	 *         than the threshold (-1 if the slice has less than brightRank
+	 *         pixels)
+	 */
+	public double getBrightValue(int z) {
+		return statistics.get(z)[BRIGHT];
+	}
+
+	/**
+	 * @return the rank of the brightest pixel given by getBrightValue
+	 */
+	public int getBrightRank() {
+		return brightRank;
+	}
+
+}
@@ -0,0 +1,502 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package shapeFeatures2D;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import segment3D.RunLengthMask3D;
+
+/**
+ * This is a class to compute the max projections of a 3D image on the 2D
+ * plans defined by its principal directions (L1, L2 and L3) in one pass over
+ * the voxels.
+ * 
+ * The projected coordinates of a voxel along each direction are computed
+ * once per voxel (and shared by the projections using this direction) from
+ * tables of the x, y and z terms of the projection, so that only additions, a
+ * division and a rounding are left per coordinate. The results are the same
+ * as computeCoordinateInProjected2DPlane. Only the foreground
+ * voxels are projected: the voxels with a zero value (which cannot change a
+ * max projection) are skipped and the voxels of a run length encoded mask
+ * are taken from its runs.
+ * 
+ * @author pnb
+ * 
+ */
+public class LDirectionsProjection {
+
+	private int width;
+	private int height;
+	private int depth;
+
+	// x, y and z terms of the projected coordinate along each direction
+	private double[][] xTerms;
+	private double[][] yTerms;
+	private double[][] zTerms;
+	private double[] norms;
+
+	// directions of the horizontal and vertical axes of each projection
+	private double[][] directions;
+	private int[] horizontal;
+	private int[] vertical;
+
+	// width, height and x, y translations of each projection
+	private int[][] frames;
+	private byte[][] projectedData;
+
+	/**
+	 * @param directions
+	 *            - directions used by the projections
+	 * @param horizontal
+	 *            - index of the direction of the horizontal axis of each
+	 *            projection
+	 * @param vertical
+	 *            - index of the direction of the vertical axis of each
+	 *            projection
+	 */
+	private LDirectionsProjection(int width, int height, int depth,
+			double[][] directions, int[] horizontal, int[] vertical) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.directions = directions;
+		this.horizontal = horizontal;
+		this.vertical = vertical;
+
+		int numDirections = directions.length;
+		xTerms = new double[numDirections][width];
+		yTerms = new double[numDirections][height];
+		zTerms = new double[numDirections][depth];
+		norms = new double[numDirections];
+		for (int d = 0; d < numDirections; d++) {
+			double[] l = directions[d];
+			norms[d] = Math.sqrt(l[0] * l[0] + l[1] * l[1] + l[2] * l[2]);
+			for (int x = 0; x < width; x++)
+				xTerms[d][x] = (double) x * l[0];
+			for (int y = 0; y < height; y++)
+				yTerms[d][y] = (double) y * l[1];
+			for (int z = 0; z < depth; z++)
+				zTerms[d][z] = (double) z * l[2];
+		}
+
+		frames = new int[horizontal.length][];
+		projectedData = new byte[horizontal.length][];
+		for (int p = 0; p < horizontal.length; p++) {
+			double[] h = directions[horizontal[p]];
+			double[] v = directions[vertical[p]];
+			frames[p] = computeProjectionFrame(width, height,
+					depth, h[0], h[1], h[2], v[0], v[1], v[2]);
+			projectedData[p] = new byte[frames[p][0] * frames[p][1]];
+		}
+	}
+
+	/**
+	 * Computes the max projections of a 3D image along its three principal
+	 * directions
+	 * 
+	 * @param img3D
+	 *            The 3D ImagePlus
+	 * @param L1
+	 *            - x, y and z coordinates of the L1 direction
+	 * @param L2
+	 *            - x, y and z coordinates of the L2 direction
+	 * @param L3
+	 *            - x, y and z coordinates of the L3 direction
+	 * @return the projections along L1 (on the L3, L2 plan), along L2 (on the
+	 *         L3, L1 plan) and along L3 (on the L1, L2 plan)
+	 */
+	public static ImagePlus[] maxProjections(ImagePlus img3D, double[] L1,
+			double[] L2, double[] L3) {
+		if (img3D == null) {
+			System.err.println("Missing input image");
+			return null;
+		}
+		LDirectionsProjection projection = alongDirections(img3D.getWidth(),
+				img3D.getHeight(), img3D.getNSlices(), L1, L2, L3);
+		projection.project(img3D.getImageStack());
+		return projection.createImages(img3D);
+	}
+
+	/**
+	 * Computes the max projections of a run length encoded 3D mask along its
+	 * three principal directions (same results as the projections of the 8
+	 * bits binary image of the mask)
+	 * 
+	 * @see #maxProjections(ImagePlus, double[], double[], double[])
+	 */
+	public static ImagePlus[] maxProjections(RunLengthMask3D mask3D,
+			double[] L1, double[] L2, double[] L3) {
+		LDirectionsProjection projection = alongDirections(mask3D.getWidth(),
+				mask3D.getHeight(), mask3D.getDepth(), L1, L2, L3);
+		projection.project(mask3D);
+		return projection.createImages(mask3D.getCalibration());
+	}
+
+	/**
+	 * Computes the max projection of a 3D image on the plan of the
+	 * LHorizontal and LVertical directions
+	 */
+	static ImagePlus maxProjection(ImagePlus img3D, double[] LHorizontal,
+			double[] LVertical) {
+		LDirectionsProjection projection = new LDirectionsProjection(
+				img3D.getWidth(), img3D.getHeight(), img3D.getNSlices(),
+				new double[][] { LHorizontal, LVertical }, new int[] { 0 },
+				new int[] { 1 });
+		projection.project(img3D.getImageStack());
+		return projection.createImages(img3D)[0];
+	}
+
+	/**
+	 * Computes the max projection of a run length encoded 3D mask on the plan
+	 * of the LHorizontal and LVertical directions
+	 */
+	static ImagePlus maxProjection(RunLengthMask3D mask3D,
+			double[] LHorizontal, double[] LVertical) {
+		LDirectionsProjection projection = new LDirectionsProjection(
+				mask3D.getWidth(), mask3D.getHeight(), mask3D.getDepth(),
+				new double[][] { LHorizontal, LVertical }, new int[] { 0 },
+				new int[] { 1 });
+		projection.project(mask3D);
+		return projection.createImages(mask3D.getCalibration())[0];
+	}
+
+	/**
+	 * @return the projections along L1 (L3 horizontal, L2 vertical), L2 (L3
+	 *         horizontal, L1 vertical) and L3 (L1 horizontal, L2 vertical)
+	 */
+	private static LDirectionsProjection alongDirections(int width,
+			int height, int depth, double[] L1, double[] L2, double[] L3) {
+		return new LDirectionsProjection(width, height, depth,
+				new double[][] { L1, L2, L3 }, new int[] { 2, 2, 0 },
+				new int[] { 1, 0, 1 });
+	}
+
+	/**
+	 * Projects the non zero voxels of a stack
+	 */
+	private void project(ImageStack imgStack) {
+		double[] rowValues = new double[width];
+		int[] coordinates = new int[directions.length];
+		for (int z = 0; z < depth; z++) {
+			Object pixels = imgStack.getPixels(z + 1);
+			for (int row = 0; row < height; row++) {
+				readRow(pixels, row * width, rowValues);
+				for (int col = 0; col < width; col++) {
+					double voxel = rowValues[col];
+					// the projections are initialized to zero
+					if (voxel <= 0)
+						continue;
+					projectVoxel(col, row, z, voxel, coordinates);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Projects the runs of a run length encoded mask (foreground value 255)
+	 */
+	private void project(RunLengthMask3D mask3D) {
+		int[] coordinates = new int[directions.length];
+		for (int z = 0; z < depth; z++) {
+			for (int row = 0; row < height; row++) {
+				int numRuns = mask3D.getRunCount(row, z);
+				for (int i = 0; i < numRuns; i++) {
+					int end = mask3D.getRunEnd(row, z, i);
+					for (int col = mask3D.getRunStart(row, z, i); col < end; col++)
+						projectVoxel(col, row, z, 255, coordinates);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the projections with one voxel
+	 */
+	private void projectVoxel(int col, int row, int z, double voxel,
+			int[] coordinates) {
+		// same operations, in the same order, as
+		// computeCoordinateInProjected2DPlane
+		for (int d = 0; d < coordinates.length; d++)
+			coordinates[d] = (int) Math.round((xTerms[d][col]
+					+ yTerms[d][row] + zTerms[d][z])
+					/ norms[d]);
+		for (int p = 0; p < frames.length; p++) {
+			int[] frame = frames[p];
+			int index = (coordinates[vertical[p]] + frame[3]) * frame[0]
+					+ coordinates[horizontal[p]] + frame[2];
+			if ((projectedData[p][index] & 0xff) < voxel)
+				projectedData[p][index] = (byte) voxel;
+		}
+	}
+
+	/**
+	 * Copies one row of a slice as voxel values
+	 */
+	private void readRow(Object pixels, int offset, double[] rowValues) {
+		if (pixels instanceof byte[]) {
+			byte[] p8 = (byte[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = p8[offset + col] & 0xff;
+		} else if (pixels instanceof short[]) {
+			short[] p16 = (short[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = p16[offset + col] & 0xffff;
+		} else if (pixels instanceof float[]) {
+			float[] p32 = (float[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = p32[offset + col];
+		} else {
+			int[] rgb = (int[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = rgb[offset + col] & 0xffffff;
+		}
+	}
+
+	/**
+	 * @return the projected images of a 3D image (created as
+	 *         ImagePlus.createImagePlus() copies)
+	 */
+	private ImagePlus[] createImages(ImagePlus img3D) {
+		ImagePlus[] res = new ImagePlus[frames.length];
+		for (int p = 0; p < frames.length; p++) {
+			res[p] = img3D.createImagePlus();
+			res[p].setProcessor(new ByteProcessor(frames[p][0], frames[p][1],
+					projectedData[p]));
+			Calibration newCalibration = res[p].getCalibration();
+			setCalibration(p, newCalibration, img3D.getCalibration());
+			res[p].setCalibration(newCalibration);
+		}
+		return res;
+	}
+
+	/**
+	 * @return the projected images of a mask with the given calibration
+	 */
+	private ImagePlus[] createImages(Calibration calibration) {
+		ImagePlus[] res = new ImagePlus[frames.length];
+		for (int p = 0; p < frames.length; p++) {
+			res[p] = new ImagePlus();
+			res[p].setProcessor(new ByteProcessor(frames[p][0], frames[p][1],
+					projectedData[p]));
+			Calibration newCalibration = calibration.copy();
+			setCalibration(p, newCalibration, calibration);
+			res[p].setCalibration(newCalibration);
+		}
+		return res;
+	}
+
+	private void setCalibration(int p, Calibration newCalibration,
+			Calibration calibration3D) {
+		double[] h = directions[horizontal[p]];
+		double[] v = directions[vertical[p]];
+		setProjectionCalibration(newCalibration,
+				calibration3D, h[0], h[1], h[2], v[0], v[1], v[2]);
+	}
+
+	/**
+	 * Computes the size of the projection of a 3D image on the 2D plan of the
+	 * LHorizontal and LVertical directions (from the projections of the 8
+	 * corners of the 3D image)
+	 * 
+	 * @return the width and height of the 2D image, and the x and y
+	 *         translations of the projected coordinates
+	 */
+	static int[] computeProjectionFrame(int numcols, int numrows,
+			int numzs, double xLHorizontalDirection,
+			double yLHorizontalDirection, double zLHorizontalDirection,
+			double xLVerticalDirection, double yLVerticalDirection,
+			double zLVerticalDirection) {
+		
+		// compute LHorizontal vector norm
+		final double LHorizontalVectorNorm = Math.sqrt(xLHorizontalDirection
+				* xLHorizontalDirection + yLHorizontalDirection
+				* yLHorizontalDirection + zLHorizontalDirection
+				* zLHorizontalDirection);
+		
+		// compute LVertical vector norm
+		final double LVerticalVectorNorm = Math.sqrt(xLVerticalDirection
+				* xLVerticalDirection + yLVerticalDirection
+				* yLVerticalDirection + zLVerticalDirection
+				* zLVerticalDirection);
+
+		// compute projected x indices of 3D image corners
+		int frontTopLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
+				0, 0, 0, xLHorizontalDirection,
+				yLHorizontalDirection, zLHorizontalDirection,
+				LHorizontalVectorNorm);
+		int frontTopRightCornerProjectedX = computeCoordinateInProjected2DPlane(
+				numcols - 1, 0, 0, xLHorizontalDirection,
+				yLHorizontalDirection, zLHorizontalDirection,
+				LHorizontalVectorNorm);
+		int frontBottomLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
+				0, numrows - 1, 0, xLHorizontalDirection, yLHorizontalDirection,
+				zLHorizontalDirection, LHorizontalVectorNorm);
+		int frontBottomRightCornerProjectedX = computeCoordinateInProjected2DPlane(
+				numcols - 1, numrows - 1, 0, xLHorizontalDirection,
+				yLHorizontalDirection, zLHorizontalDirection,
+				LHorizontalVectorNorm);
+
+		int backTopLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
+				0, 0, numzs - 1, xLHorizontalDirection,
+				yLHorizontalDirection, zLHorizontalDirection,
+				LHorizontalVectorNorm);
+		int backTopRightCornerProjectedX = computeCoordinateInProjected2DPlane(
+				numcols - 1, 0, numzs - 1, xLHorizontalDirection,
+				yLHorizontalDirection, zLHorizontalDirection,
+				LHorizontalVectorNorm);
+		int backBottomLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
+				0, numrows - 1, numzs - 1, xLHorizontalDirection, yLHorizontalDirection,
+				zLHorizontalDirection, LHorizontalVectorNorm);
+		int backBottomRightCornerProjectedX = computeCoordinateInProjected2DPlane(
+				numcols - 1, numrows - 1, numzs - 1, xLHorizontalDirection,
+				yLHorizontalDirection, zLHorizontalDirection,
+				LHorizontalVectorNorm);
+
+		// compute projected y indices of 3D image corners
+		int frontTopLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
+				0, 0, 0, xLVerticalDirection, yLVerticalDirection,
+				zLVerticalDirection, LVerticalVectorNorm);
+		int frontTopRightCornerProjectedY = computeCoordinateInProjected2DPlane(
+				numcols - 1, 0, 0, xLVerticalDirection,
+				yLVerticalDirection, zLVerticalDirection, LVerticalVectorNorm);
+		int frontBottomLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
+				0, numrows - 1, 0, xLVerticalDirection, yLVerticalDirection,
+				zLVerticalDirection, LVerticalVectorNorm);
+		int frontBottomRightCornerProjectedY = computeCoordinateInProjected2DPlane(
+				numcols - 1, numrows - 1, 0, xLVerticalDirection, yLVerticalDirection,
+				zLVerticalDirection, LVerticalVectorNorm);
+
+		int backTopLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
+				0, 0, numzs - 1, xLVerticalDirection, yLVerticalDirection,
+				zLVerticalDirection, LVerticalVectorNorm);
+		int backTopRightCornerProjectedY = computeCoordinateInProjected2DPlane(
+				numcols - 1, 0, numzs - 1, xLVerticalDirection,
+				yLVerticalDirection, zLVerticalDirection, LVerticalVectorNorm);
+		int backBottomLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
+				0, numrows - 1, numzs - 1, xLVerticalDirection, yLVerticalDirection,
+				zLVerticalDirection, LVerticalVectorNorm);
+		int backBottomRightCornerProjectedY = computeCoordinateInProjected2DPlane(
+				numcols - 1, numrows - 1, numzs - 1, xLVerticalDirection, yLVerticalDirection,
+				zLVerticalDirection, LVerticalVectorNorm);
+
+		// find max and min projected x indices
+		int maxImgResX = Math.max(
+				frontTopLeftCornerProjectedX,
+				Math.max(frontTopRightCornerProjectedX,
+				Math.max(frontBottomLeftCornerProjectedX, 
+				Math.max(frontBottomRightCornerProjectedX, 
+				Math.max(backTopLeftCornerProjectedX, 
+				Math.max(backTopRightCornerProjectedX, 
+				Math.max(backBottomLeftCornerProjectedX, 
+						backBottomRightCornerProjectedX)))))))
+				+ 1;
+		int minImgResX = Math.min(
+				frontTopLeftCornerProjectedX,
+				Math.min(frontTopRightCornerProjectedX,
+				Math.min(frontBottomLeftCornerProjectedX, 
+				Math.min(frontBottomRightCornerProjectedX, 
+				Math.min(backTopLeftCornerProjectedX, 
+				Math.min(backTopRightCornerProjectedX, 
+				Math.min(backBottomLeftCornerProjectedX, 
+						backBottomRightCornerProjectedX)))))))
+				- 1;
+		
+		// find max and min projected y indices
+		int maxImgResY = Math.max(
+				frontTopLeftCornerProjectedY,
+				Math.max(frontTopRightCornerProjectedY,
+				Math.max(frontBottomLeftCornerProjectedY, 
+				Math.max(frontBottomRightCornerProjectedY, 
+				Math.max(backTopLeftCornerProjectedY, 
+				Math.max(backTopRightCornerProjectedY, 
+				Math.max(backBottomLeftCornerProjectedY, 
+						backBottomRightCornerProjectedY)))))))
+				+ 1;
+		int minImgResY = Math.min(
+				frontTopLeftCornerProjectedY,
+				Math.min(frontTopRightCornerProjectedY,
+				Math.min(frontBottomLeftCornerProjectedY, 
+				Math.min(frontBottomRightCornerProjectedY, 
+				Math.min(backTopLeftCornerProjectedY, 
+				Math.min(backTopRightCornerProjectedY, 
+				Math.min(backBottomLeftCornerProjectedY, 
+						backBottomRightCornerProjectedY)))))))
+				- 1;
+		
+		// compute res img width and height
+		int resImgWidth = Math.abs(maxImgResX - minImgResX) + 4;
+		int resImgHeight = Math.abs(maxImgResY - minImgResY) + 4;
+		
+		// compute needed translation vector needed if x and y bounds indices are negative
+		int translationX = 0;
+		if(minImgResX < 0) 
+			translationX = Math.abs(minImgResX) + 1;
+		int translationY = 0;
+		if(minImgResY < 0) 
+			translationY = Math.abs(minImgResY) + 1;
+
+		return new int[] { resImgWidth, resImgHeight, translationX,
+				translationY };
+	}
+	
+	/**
+	 * Sets the pixel dimensions of the projection of a 3D image on the 2D plan
+	 * of the LHorizontal and LVertical directions
+	 */
+	static void setProjectionCalibration(Calibration newCalibration,
+			Calibration calibration3D, double xLHorizontalDirection,
+			double yLHorizontalDirection, double zLHorizontalDirection,
+			double xLVerticalDirection, double yLVerticalDirection,
+			double zLVerticalDirection) {
+		newCalibration.pixelWidth = Math.sqrt(
+				Math.pow(xLHorizontalDirection
+						* calibration3D.pixelWidth, 2)
+				+ Math.pow(yLHorizontalDirection
+						* calibration3D.pixelHeight, 2)
+				+ Math.pow(zLHorizontalDirection
+						* calibration3D.pixelDepth, 2));
+		newCalibration.pixelHeight = Math.sqrt(
+				Math.pow(xLVerticalDirection
+						* calibration3D.pixelWidth, 2)
+				+ Math.pow(yLVerticalDirection
+						* calibration3D.pixelHeight, 2)
+				+ Math.pow(zLVerticalDirection
+						* calibration3D.pixelDepth, 2));
+	}
+	
+	/**
+	 * @return the coordinate of a voxel along a direction, in the 2D plan of
+	 *         a projection
+	 */
+	static int computeCoordinateInProjected2DPlane(int x, int y, int z, 
+			double xLDirection, double yLDirection, double zLDirection, 
+			double LVectorNorm) {
+		
+		return (int) Math.round(
+				((double) x * xLDirection + 
+				(double) y * yLDirection + 
+				(double) z * zLDirection)
+				/ LVectorNorm);
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package shapeFeatures2D;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import util.ParallelLoop;
+
+/**
+ * This is a class to compute the 2D shape features of a projection (area,
+ * bounding box, aspect ratio and marching squares perimeter) in one pass over
+ * its pixel array. The foreground flags of two consecutive rows are kept so
+ * that each pixel is read once, and the perimeter is computed from the number
+ * of marching squares cells of each of the 16 configurations.
+ * 
+ * The features are the ones of ShapeFeatures2D.area2D, aspectRatio2D and
+ * perimeter2D.
+ * 
+ * @author pnb
+ * 
+ */
+public class Projection2DFeatures {
+
+	private long numForegroundPixels = 0;
+	private int minX = Integer.MAX_VALUE;
+	private int maxX = Integer.MIN_VALUE;
+	private int minY = Integer.MAX_VALUE;
+	private int maxY = Integer.MIN_VALUE;
+	// number of marching squares cells of each configuration (top left 8,
+	// top right 4, bottom right 2, bottom left 1)
+	private long[] cellCounts = new long[16];
+
+	private double pixelWidth;
+	private double pixelHeight;
+
+	private Projection2DFeatures() {
+	}
+
+	/**
+	 * Computes the features of one 2D image
+	 * 
+	 * @param img2D
+	 *            The 2D ImagePlus
+	 * @param threshold
+	 *            Threshold value (pixel = foreground if >= threshold)
+	 * @return the features of the image
+	 */
+	public static Projection2DFeatures compute(ImagePlus img2D, int threshold) {
+		Projection2DFeatures features = new Projection2DFeatures();
+		Calibration calibration = img2D.getCalibration();
+		features.pixelWidth = calibration.pixelWidth;
+		features.pixelHeight = calibration.pixelHeight;
+		features.scan(img2D.getProcessor(), threshold);
+		return features;
+	}
+
+	/**
+	 * Computes the features of several 2D images in parallel
+	 * 
+	 * @param imgs2D
+	 *            The 2D ImagePlus
+	 * @param threshold
+	 *            Threshold value (pixel = foreground if >= threshold)
+	 * @return the features of each image
+	 */
+	public static Projection2DFeatures[] compute(final ImagePlus[] imgs2D,
+			final int threshold) {
+		final Projection2DFeatures[] features = new Projection2DFeatures[imgs2D.length];
+		ParallelLoop.run(0, imgs2D.length, imgs2D.length,
+				new ParallelLoop.Body() {
+					@Override
+					public void run(int from, int to) {
+						for (int i = from; i < to; i++)
+							features[i] = compute(imgs2D[i], threshold);
+					}
+				});
+		return features;
+	}
+
+	/**
+	 * Counts the foreground pixels, the bounding box and the marching squares
+	 * cells
+	 */
+	private void scan(ImageProcessor ip, int threshold) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Object pixels = ip.getPixels();
+		// foreground flags of the previous and current rows
+		int[] previousRow = new int[width];
+		int[] currentRow = new int[width];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			if (pixels instanceof byte[]) {
+				byte[] p8 = (byte[]) pixels;
+				for (int x = 0; x < width; x++)
+					currentRow[x] = (p8[offset + x] & 0xff) >= threshold ? 1
+							: 0;
+			} else if (pixels instanceof short[]) {
+				short[] p16 = (short[]) pixels;
+				for (int x = 0; x < width; x++)
+					currentRow[x] = (p16[offset + x] & 0xffff) >= threshold ? 1
+							: 0;
+			} else {
+				for (int x = 0; x < width; x++)
+					currentRow[x] = ip.getPixel(x, y) >= threshold ? 1 : 0;
+			}
+
+			for (int x = 0; x < width; x++) {
+				if (currentRow[x] != 0) {
+					numForegroundPixels++;
+					if (x > maxX)
+						maxX = x;
+					if (x < minX)
+						minX = x;
+					if (y > maxY)
+						maxY = y;
+					if (y < minY)
+						minY = y;
+				}
+			}
+
+			// cells between the previous row (top) and the current row
+			if (y > 0) {
+				for (int x = 0; x < width - 1; x++) {
+					int cell = (previousRow[x] << 3)
+							| (previousRow[x + 1] << 2)
+							| (currentRow[x + 1] << 1) | currentRow[x];
+					cellCounts[cell]++;
+				}
+			}
+
+			int[] swap = previousRow;
+			previousRow = currentRow;
+			currentRow = swap;
+		}
+	}
+
+	/**
+	 * @return The 2D area value (unit is the same as the one in the 2D
+	 *         ImagePlus)
+	 */
+	public double getArea() {
+		return ((double) numForegroundPixels) * pixelWidth * pixelHeight;
+	}
+
+	/**
+	 * @return The 2D aspect ratio of the bounding box of the foreground
+	 */
+	public double getAspectRatio() {
+		double width = ((double) ((maxX - minX) + 1)) * pixelWidth;
+		double height = ((double) ((maxY - minY) + 1)) * pixelHeight;
+		if (width > height)
+			return width / height;
+		else
+			return height / width;
+	}
+
+	/**
+	 * @return The 2D perimeter value, using marching square algorithm and
+	 *         weights (unit is the same as the one in the 2D ImagePlus)
+	 */
+	public double getPerimeter() {
+		// Perimeter contribution coefficient
+		final double contributionL1 = (Math.PI / 8.0)
+				* (pixelHeight / 2.0 + pixelWidth / 2.0 + Math.sqrt(Math.pow(
+						pixelHeight / 2.0, 2) + Math.pow(pixelWidth / 2.0, 2)));
+		final double contributionL2_HORIZONTAL = 0.948 * pixelWidth;
+		final double contributionL2_VERTICAL = 0.948 * pixelHeight;
+		final double contributionL3 = 2.0 * contributionL1;
+
+		// contribution of each cell configuration
+		double[] contributions = new double[16];
+		for (int cell : new int[] { 1, 2, 4, 7, 8, 11, 13, 14 })
+			contributions[cell] = contributionL1;
+		contributions[3] = contributionL2_HORIZONTAL;
+		contributions[12] = contributionL2_HORIZONTAL;
+		contributions[6] = contributionL2_VERTICAL;
+		contributions[9] = contributionL2_VERTICAL;
+		contributions[5] = contributionL3;
+		contributions[10] = contributionL3;
+
+		double perimeter2D = 0.0;
+		for (int cell = 0; cell < 16; cell++)
+			perimeter2D += cellCounts[cell] * contributions[cell];
+		return perimeter2D;
+	}
+
+	/**
+	 * @return the number of foreground pixels
+	 */
+	public long getNumberOfForegroundPixels() {
+		return numForegroundPixels;
+	}
+
+	/**
+	 * @return the bounding box of the foreground {minX, minY, maxX, maxY}
+	 */
+	public int[] getBoundingBox() {
+		return new int[] { minX, minY, maxX, maxY };
+	}
+
+}
@@ -29,13 +29,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+import validation.MultiAxisProjection;
 import validation.OrthogonalProjection;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.measure.Calibration;
-import ij.process.ByteProcessor;
+import io.DecodedVolumeSize;
 import io.FitsLoader;
+import io.RleMaskLoader;
+import segment3D.RunLengthMask3D;
+import util.MemoryBudgetExecutor;
+import util.OrderedRowWriter;
+import util.ParallelLoop;
 
 /**
  * This is a class to compute 2D shape metrics on segmented z-stacks (FITS files)
@@ -56,6 +63,47 @@ public class ShapeFeatures2D {
 			+ "Z-AspectRatio,Y-AspectRatio,X-AspectRatio,"
 			+ "L1-AspectRatio,L2-AspectRatio,L3-AspectRatio";
 
+	// estimated memory of a cell in the number of bytes of its decoded volume
+	// (loaded 3D image and its projections; run length encoded masks are not
+	// decoded and are estimated from the length of their file)
+	private static final long CELL_MEMORY_FACTOR = 2;
+
+	/**
+	 * Line of a cell in the input CSV file with the values parsed before
+	 * the cell is processed
+	 */
+	private static class CellLine {
+		private String line;
+		private String imageCellName;
+		private double[] L1;
+		private double[] L2;
+		private double[] L3;
+
+		/**
+		 * @throws NumberFormatException
+		 *             if the L vectors directions of the cell are missing or
+		 *             are not numbers
+		 */
+		private CellLine(String line, int[] LDirectionsMatrix,
+				String inputImagesFolder) {
+			String[] cellFeatures = line.split(",");
+			for (int column : LDirectionsMatrix) {
+				if (column >= cellFeatures.length)
+					throw new NumberFormatException("missing column "
+							+ column + " in line: " + line);
+			}
+			this.line = line;
+			this.imageCellName = inputImagesFolder + File.separatorChar
+					+ cellFeatures[0];// + imagesFileNameExtension;
+			double[] L = new double[9];
+			for (int i = 0; i < 9; i++)
+				L[i] = Double.parseDouble(cellFeatures[LDirectionsMatrix[i]]);
+			this.L1 = new double[] { L[0], L[3], L[6] };
+			this.L2 = new double[] { L[1], L[4], L[7] };
+			this.L3 = new double[] { L[2], L[5], L[8] };
+		}
+	}
+
 	/**
 	 * Compute 2D area of 2D image, computing number of foreground pixels and
 	 * using pixel dimensions (units must be uniform for all pixel dimensions)
@@ -69,19 +117,10 @@ public class ShapeFeatures2D {
 	 */
 	public static double area2D(ImagePlus img2D, int threshold){
 		
-		// initializations
-		double area2D = 0.0;
-		
-		// compute number of foreground pixels
-		for(int x = 0; x < img2D.getWidth(); ++ x) {
-			for(int y = 0; y < img2D.getHeight(); ++ y) {
-				if(img2D.getProcessor().getPixel(x, y) >= threshold)
-					area2D ++;
-			}
-		}
-		
-		// compute area and calibrate with physical pixel size
-		area2D = area2D * img2D.getCalibration().pixelWidth * img2D.getCalibration().pixelHeight;
+		// compute number of foreground pixels and calibrate with physical
+		// pixel size
+		double area2D = Projection2DFeatures.compute(img2D, threshold)
+				.getArea();
 		
 		if(! img2D.getCalibration().getXUnit().equals(img2D.getCalibration().getYUnit())) {
 			System.err.println("Units are not uniform for the two axis.");
@@ -104,46 +143,14 @@ public class ShapeFeatures2D {
 	 */
 	public static double aspectRatio2D(ImagePlus img2D, int threshold){
 		
-		// initializations
-		double aspectRatio2D = 0.0;
-		int minX = Integer.MAX_VALUE;
-    	int maxX = Integer.MIN_VALUE;
-    	int minY = Integer.MAX_VALUE;
-    	int maxY = Integer.MIN_VALUE;
-    	double width = 0.0;
-    	double height = 0.0;
+		// find bounding box and compute aspect ratio
+		double aspectRatio2D = Projection2DFeatures.compute(img2D, threshold)
+				.getAspectRatio();
 		
-    	// find bounding box
-		for(int x = 0; x < img2D.getWidth(); ++ x) {
-			for(int y = 0; y < img2D.getHeight(); ++ y) {
-				int currentPixel = img2D.getProcessor().getPixel(x, y);
-				if(currentPixel >= threshold) {
-					if(x > maxX)
-		    			maxX = x;
-		    		if(x < minX)
-		    			minX = x;
-		    		if(y > maxY)
-		    			maxY = y;
-		    		if(y < minY)
-		    			minY = y;
-				}	
-			}
-		}
-		
-		// compute width and height
-    	width = ((double) ((maxX - minX) + 1)) * img2D.getCalibration().pixelWidth;
-    	height = ((double) ((maxY - minY) + 1)) * img2D.getCalibration().pixelHeight;
-    	
-    	if(! img2D.getCalibration().getXUnit().equals(img2D.getCalibration().getYUnit())) {
+		if(! img2D.getCalibration().getXUnit().equals(img2D.getCalibration().getYUnit())) {
 			System.err.println("Units are not uniform for the two axis.");
 			System.err.println(img2D.getTitle());
 		}
-    	
-    	// compute aspect ratio
-    	if(width > height)
-    		aspectRatio2D = width / height;
-    	else
-    		aspectRatio2D = height / width;
 		
 		return aspectRatio2D;
 		
@@ -162,51 +169,9 @@ public class ShapeFeatures2D {
 	 */
 	public static double perimeter2D(ImagePlus img2D, int threshold) {
 		
-		// Perimeter contribution coefficient
-		final double contributionL1 =  (Math.PI / 8.0) * 
-				(img2D.getCalibration().pixelHeight / 2.0 
-				+ img2D.getCalibration().pixelWidth / 2.0 
-				+ Math.sqrt(Math.pow(img2D.getCalibration().pixelHeight / 2.0, 2)
-						+ Math.pow(img2D.getCalibration().pixelWidth / 2.0, 2)));
-		
-		final double contributionL2_HORIZONTAL = 0.948 * img2D.getCalibration().pixelWidth;
-		final double contributionL2_VERTICAL = 0.948 * img2D.getCalibration().pixelHeight;
-		final double contributionL3 = 2.0 * contributionL1;
-		
-		double perimeter2D = 0.0;
-		
 		// look for foreground pixels | Marching square algorithm
-		for(int x = 0; x < img2D.getWidth() - 1; ++ x) {
-			for(int y = 0; y < img2D.getHeight() - 1; ++ y) {
-				
-				int topLeftCellCorner = img2D.getProcessor().getPixel(x, y) 
-						>= threshold ? 8 : 0;
-				int topRightCellCorner = img2D.getProcessor().getPixel(x+1, y) 
-						>= threshold ? 4 : 0;
-				int bottomRightCellCorner = img2D.getProcessor().getPixel(x+1, y+1)
-						>= threshold ? 2 : 0;
-				int bottomLeftCellCorner = img2D.getProcessor().getPixel(x, y+1) 
-						>= threshold ? 1 : 0;
-				
-				// Lookup table
-				int sumCellCorners = topLeftCellCorner + topRightCellCorner
-						+ bottomLeftCellCorner + bottomRightCellCorner;
-				// Add contributions to perimeter
-				if (sumCellCorners == 1 || sumCellCorners == 2
-						|| sumCellCorners == 4 || sumCellCorners == 7
-						|| sumCellCorners == 8 || sumCellCorners == 11 
-						|| sumCellCorners == 13 || sumCellCorners == 14) {
-					perimeter2D += contributionL1;
-				} else if (sumCellCorners == 3 || sumCellCorners == 12) {
-					perimeter2D += contributionL2_HORIZONTAL;
-				} else if (sumCellCorners == 6 || sumCellCorners == 9) {
-					perimeter2D += contributionL2_VERTICAL;
-				} else if (sumCellCorners == 5 || sumCellCorners == 10) {
-					perimeter2D += contributionL3;
-				}
-	
-			}
-		}
+		double perimeter2D = Projection2DFeatures.compute(img2D, threshold)
+				.getPerimeter();
 		
 		if(! img2D.getCalibration().getXUnit().equals(img2D.getCalibration().getYUnit())) {
 			System.err.println("Units are not uniform for the two axis.");
@@ -247,206 +212,74 @@ public class ShapeFeatures2D {
 			return null;
 		}
 		
-		// get image dimensions
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		
-		// get image stack
-		ImageStack imgStack = img3D.getImageStack();
-		
-		// create res image
-		ImagePlus res = img3D.createImagePlus();
-		
-		// compute LHorizontal vector norm
-		final double LHorizontalVectorNorm = Math.sqrt(xLHorizontalDirection
-				* xLHorizontalDirection + yLHorizontalDirection
-				* yLHorizontalDirection + zLHorizontalDirection
-				* zLHorizontalDirection);
-		
-		// compute LVertical vector norm
-		final double LVerticalVectorNorm = Math.sqrt(xLVerticalDirection
-				* xLVerticalDirection + yLVerticalDirection
-				* yLVerticalDirection + zLVerticalDirection
-				* zLVerticalDirection);
-
-		// compute projected x indices of 3D image corners
-		int frontTopLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
-				0, 0, 0, xLHorizontalDirection,
-				yLHorizontalDirection, zLHorizontalDirection,
-				LHorizontalVectorNorm);
-		int frontTopRightCornerProjectedX = computeCoordinateInProjected2DPlane(
-				numcols - 1, 0, 0, xLHorizontalDirection,
-				yLHorizontalDirection, zLHorizontalDirection,
-				LHorizontalVectorNorm);
-		int frontBottomLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
-				0, numrows - 1, 0, xLHorizontalDirection, yLHorizontalDirection,
-				zLHorizontalDirection, LHorizontalVectorNorm);
-		int frontBottomRightCornerProjectedX = computeCoordinateInProjected2DPlane(
-				numcols - 1, numrows - 1, 0, xLHorizontalDirection,
-				yLHorizontalDirection, zLHorizontalDirection,
-				LHorizontalVectorNorm);
-
-		int backTopLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
-				0, 0, numzs - 1, xLHorizontalDirection,
-				yLHorizontalDirection, zLHorizontalDirection,
-				LHorizontalVectorNorm);
-		int backTopRightCornerProjectedX = computeCoordinateInProjected2DPlane(
-				numcols - 1, 0, numzs - 1, xLHorizontalDirection,
-				yLHorizontalDirection, zLHorizontalDirection,
-				LHorizontalVectorNorm);
-		int backBottomLeftCornerProjectedX = computeCoordinateInProjected2DPlane(
-				0, numrows - 1, numzs - 1, xLHorizontalDirection, yLHorizontalDirection,
-				zLHorizontalDirection, LHorizontalVectorNorm);
-		int backBottomRightCornerProjectedX = computeCoordinateInProjected2DPlane(
-				numcols - 1, numrows - 1, numzs - 1, xLHorizontalDirection,
-				yLHorizontalDirection, zLHorizontalDirection,
-				LHorizontalVectorNorm);
-
-		// compute projected y indices of 3D image corners
-		int frontTopLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
-				0, 0, 0, xLVerticalDirection, yLVerticalDirection,
-				zLVerticalDirection, LVerticalVectorNorm);
-		int frontTopRightCornerProjectedY = computeCoordinateInProjected2DPlane(
-				numcols - 1, 0, 0, xLVerticalDirection,
-				yLVerticalDirection, zLVerticalDirection, LVerticalVectorNorm);
-		int frontBottomLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
-				0, numrows - 1, 0, xLVerticalDirection, yLVerticalDirection,
-				zLVerticalDirection, LVerticalVectorNorm);
-		int frontBottomRightCornerProjectedY = computeCoordinateInProjected2DPlane(
-				numcols - 1, numrows - 1, 0, xLVerticalDirection, yLVerticalDirection,
-				zLVerticalDirection, LVerticalVectorNorm);
-
-		int backTopLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
-				0, 0, numzs - 1, xLVerticalDirection, yLVerticalDirection,
-				zLVerticalDirection, LVerticalVectorNorm);
-		int backTopRightCornerProjectedY = computeCoordinateInProjected2DPlane(
-				numcols - 1, 0, numzs - 1, xLVerticalDirection,
-				yLVerticalDirection, zLVerticalDirection, LVerticalVectorNorm);
-		int backBottomLeftCornerProjectedY = computeCoordinateInProjected2DPlane(
-				0, numrows - 1, numzs - 1, xLVerticalDirection, yLVerticalDirection,
-				zLVerticalDirection, LVerticalVectorNorm);
-		int backBottomRightCornerProjectedY = computeCoordinateInProjected2DPlane(
-				numcols - 1, numrows - 1, numzs - 1, xLVerticalDirection, yLVerticalDirection,
-				zLVerticalDirection, LVerticalVectorNorm);
-
-		// find max and min projected x indices
-		int maxImgResX = Math.max(
-				frontTopLeftCornerProjectedX,
-				Math.max(frontTopRightCornerProjectedX,
-				Math.max(frontBottomLeftCornerProjectedX, 
-				Math.max(frontBottomRightCornerProjectedX, 
-				Math.max(backTopLeftCornerProjectedX, 
-				Math.max(backTopRightCornerProjectedX, 
-				Math.max(backBottomLeftCornerProjectedX, 
-						backBottomRightCornerProjectedX)))))))
-				+ 1;
-		int minImgResX = Math.min(
-				frontTopLeftCornerProjectedX,
-				Math.min(frontTopRightCornerProjectedX,
-				Math.min(frontBottomLeftCornerProjectedX, 
-				Math.min(frontBottomRightCornerProjectedX, 
-				Math.min(backTopLeftCornerProjectedX, 
-				Math.min(backTopRightCornerProjectedX, 
-				Math.min(backBottomLeftCornerProjectedX, 
-						backBottomRightCornerProjectedX)))))))
-				- 1;
-		
-		// find max and min projected y indices
-		int maxImgResY = Math.max(
-				frontTopLeftCornerProjectedY,
-				Math.max(frontTopRightCornerProjectedY,
-				Math.max(frontBottomLeftCornerProjectedY, 
-				Math.max(frontBottomRightCornerProjectedY, 
-				Math.max(backTopLeftCornerProjectedY, 
-				Math.max(backTopRightCornerProjectedY, 
-				Math.max(backBottomLeftCornerProjectedY, 
-						backBottomRightCornerProjectedY)))))))
-				+ 1;
-		int minImgResY = Math.min(
-				frontTopLeftCornerProjectedY,
-				Math.min(frontTopRightCornerProjectedY,
-				Math.min(frontBottomLeftCornerProjectedY, 
-				Math.min(frontBottomRightCornerProjectedY, 
-				Math.min(backTopLeftCornerProjectedY, 
-				Math.min(backTopRightCornerProjectedY, 
-				Math.min(backBottomLeftCornerProjectedY, 
-						backBottomRightCornerProjectedY)))))))
-				- 1;
-		
-		// compute res img width and height and initialize byte array
-		int resImgWidth = Math.abs(maxImgResX - minImgResX) + 4;
-		int resImgHeight = Math.abs(maxImgResY - minImgResY) + 4;
-		byte[] projectedData = new byte[resImgWidth*resImgHeight];
-		
-		// compute needed translation vector needed if x and y bounds indices are negative
-		int translationX = 0;
-		if(minImgResX < 0) 
-			translationX = Math.abs(minImgResX) + 1;
-		int translationY = 0;
-		if(minImgResY < 0) 
-			translationY = Math.abs(minImgResY) + 1;
-		
-		// max projection
-		for (int z = 0; z < numzs; z++) {
-			for (int row = 0; row < numrows; row++) {
-				for (int col = 0; col < numcols; col++) {
-					// get voxel value
-					double voxel = imgStack.getVoxel(col, row, z);
-					// compute x and y coordinates for projected pixel
-					int projectedX = computeCoordinateInProjected2DPlane(col,
-							row, z, xLHorizontalDirection,
-							yLHorizontalDirection, zLHorizontalDirection,
-							LHorizontalVectorNorm) + translationX;
-					int projectedY = computeCoordinateInProjected2DPlane(col,
-							row, z, xLVerticalDirection,
-							yLVerticalDirection, zLVerticalDirection,
-							LVerticalVectorNorm) + translationY;
-					// update pixel value in byte array if value is higher
-					int currentProjectedVoxel = (int) (projectedData[projectedY * resImgWidth + projectedX] & 0xff);
-					if( currentProjectedVoxel < voxel) {
-						projectedData[projectedY * resImgWidth + projectedX] = (byte) voxel;
-					}
-				}
-			}
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set 
-		// it in the result ImagePlus
-		ByteProcessor imgProc = new ByteProcessor(resImgWidth, resImgHeight, projectedData);
-		res.setProcessor(imgProc);
-		
-		// Compute new pixel dimensions and set the calibration for the image
-		Calibration newCalibration = res.getCalibration();
-		newCalibration.pixelWidth = Math.sqrt(
-				Math.pow(xLHorizontalDirection
-						* img3D.getCalibration().pixelWidth, 2)
-				+ Math.pow(yLHorizontalDirection
-						* img3D.getCalibration().pixelHeight, 2)
-				+ Math.pow(zLHorizontalDirection
-						* img3D.getCalibration().pixelDepth, 2));
-		newCalibration.pixelHeight = Math.sqrt(
-				Math.pow(xLVerticalDirection
-						* img3D.getCalibration().pixelWidth, 2)
-				+ Math.pow(yLVerticalDirection
-						* img3D.getCalibration().pixelHeight, 2)
-				+ Math.pow(zLVerticalDirection
-						* img3D.getCalibration().pixelDepth, 2));
-		res.setCalibration(newCalibration);
-		
-		return res;
+		return LDirectionsProjection.maxProjection(img3D, new double[] {
+				xLHorizontalDirection, yLHorizontalDirection,
+				zLHorizontalDirection }, new double[] { xLVerticalDirection,
+				yLVerticalDirection, zLVerticalDirection });
+	}
+	
+	/**
+	 * Compute max projection of a run length encoded 3D mask on a 2D plan
+	 * based on LHorizontal and LVertical directions (same result as the
+	 * projection of the 8 bits binary image of the mask, only the runs of
+	 * foreground voxels are projected)
+	 * 
+	 * @param mask3D
+	 *            The run length encoded 3D mask
+	 * @return The 2D ImagePlus corresponding to the projection on the 2D plan
+	 */
+	public static ImagePlus maxProjectionLDirection(RunLengthMask3D mask3D,
+			double xLHorizontalDirection, double yLHorizontalDirection, 
+			double zLHorizontalDirection, double xLVerticalDirection, 
+			double yLVerticalDirection, double zLVerticalDirection) {
 		
+		return LDirectionsProjection.maxProjection(mask3D, new double[] {
+				xLHorizontalDirection, yLHorizontalDirection,
+				zLHorizontalDirection }, new double[] { xLVerticalDirection,
+				yLVerticalDirection, zLVerticalDirection });
+	}
+	
+	/**
+	 * Computes the size of the projection of a 3D image on the 2D plan of the
+	 * LHorizontal and LVertical directions (see
+	 * LDirectionsProjection.computeProjectionFrame)
+	 * 
+	 * @return the width and height of the 2D image, and the x and y
+	 *         translations of the projected coordinates
+	 */
+	static int[] computeProjectionFrame(int numcols, int numrows,
+			int numzs, double xLHorizontalDirection,
+			double yLHorizontalDirection, double zLHorizontalDirection,
+			double xLVerticalDirection, double yLVerticalDirection,
+			double zLVerticalDirection) {
+		return LDirectionsProjection.computeProjectionFrame(numcols, numrows,
+				numzs, xLHorizontalDirection, yLHorizontalDirection,
+				zLHorizontalDirection, xLVerticalDirection,
+				yLVerticalDirection, zLVerticalDirection);
+	}
+	
+	/**
+	 * Sets the pixel dimensions of the projection of a 3D image on the 2D plan
+	 * of the LHorizontal and LVertical directions (see
+	 * LDirectionsProjection.setProjectionCalibration)
+	 */
+	static void setProjectionCalibration(Calibration newCalibration,
+			Calibration calibration3D, double xLHorizontalDirection,
+			double yLHorizontalDirection, double zLHorizontalDirection,
+			double xLVerticalDirection, double yLVerticalDirection,
+			double zLVerticalDirection) {
+		LDirectionsProjection.setProjectionCalibration(newCalibration,
+				calibration3D, xLHorizontalDirection, yLHorizontalDirection,
+				zLHorizontalDirection, xLVerticalDirection,
+				yLVerticalDirection, zLVerticalDirection);
 	}
 	
 	public static int computeCoordinateInProjected2DPlane(int x, int y, int z, 
 			double xLDirection, double yLDirection, double zLDirection, 
 			double LVectorNorm) {
 		
-		return (int) Math.round(
-				((double) x * xLDirection + 
-				(double) y * yLDirection + 
-				(double) z * zLDirection)
-				/ LVectorNorm);
+		return LDirectionsProjection.computeCoordinateInProjected2DPlane(x,
+				y, z, xLDirection, yLDirection, zLDirection, LVectorNorm);
 	}
 	
 	/**
@@ -473,6 +306,39 @@ public class ShapeFeatures2D {
 			String outputDirectory, String outputCSVFileName,
 			String inputImagesFolder, String imagesFileNameExtension,
 			int threshold) {
+		compute2DShapeFeatures(inputCSVFilePath, outputDirectory,
+				outputCSVFileName, inputImagesFolder, imagesFileNameExtension,
+				threshold, ParallelLoop.getNumberOfThreads());
+	}
+	
+	/**
+	 * Parse CSV file containing cell names and 3D features values, compute 2D
+	 * features of several cells concurrently and write in a new CSV file 3D +
+	 * 2D features values for each cell (in the order of the input file)
+	 * 
+	 * @param inputCSVFilePath
+	 *            Path of the input CSV file containing the cell names and 3D
+	 *            features values
+	 * @param outputDirectory
+	 *            Path of output directory
+	 * @param outputCSVFileName
+	 *            CSV output file name
+	 * @param inputImagesFolder
+	 *            Path of folder containing the segmented 3D cell images
+	 * @param imagesFileNameExtension
+	 *            File name extension of the segmented 3D cell images (ex:
+	 *            "_seg.fits")
+	 * @param threshold
+	 *            Threshold value (pixel = foreground if >= threshold)
+	 * @param numberOfThreads
+	 *            Number of cells processed at the same time
+	 */
+	public static void compute2DShapeFeatures(String inputCSVFilePath, 
+			String outputDirectory, String outputCSVFileName,
+			final String inputImagesFolder, String imagesFileNameExtension,
+			final int threshold, int numberOfThreads) {
+		
+		numberOfThreads = Math.max(1, numberOfThreads);
 		
 		// Read CSV files to get cell names and 3D features
 		try {
@@ -520,6 +386,19 @@ public class ShapeFeatures2D {
 					LDirectionsMatrix[8] = i;
 			}
 			
+			// Read and parse the lines of the cells before any computation
+			// (a line with invalid L vectors directions stops the processing
+			// before the output file is written)
+			final List<CellLine> cells = new ArrayList<CellLine>();
+			String headerLine = line;
+			try {
+				while ((line = br.readLine()) != null)
+					cells.add(new CellLine(line, LDirectionsMatrix,
+							inputImagesFolder));
+			} finally {
+				br.close();
+			}
+			
 			// If output folder doesn't exist, the folder (and parent folders
 			// if necessary) is created
 			File outputTest = new File(outputDirectory);
@@ -534,118 +413,46 @@ public class ShapeFeatures2D {
 					true, "ISO_8859_1");
 				
 			// Output file header
-			writer.append(line + "," + FEATURES2D_NAMES_HEADER);
+			writer.append(headerLine + "," + FEATURES2D_NAMES_HEADER);
 			writer.append('\n');
 			
-			// Read input CSV file
-			while ((line = br.readLine()) != null) {
-	 
-				// write 3D features
-				writer.append(line);
-				
-				// get 3D image and compute 2D projections
-				String[] cellFeatures = line.split(cvsSplitBy);
-				String imageCellName = inputImagesFolder + File.separatorChar + 
-						cellFeatures[0];// + imagesFileNameExtension;
-				// 3D image
-				ImagePlus img3D = FitsLoader.read(imageCellName);
-				//2D orthogonal projections
-				ImagePlus maxProjectionAlongZAxis = OrthogonalProjection
-						.projectionXY(img3D,
-								OrthogonalProjection.projectionType_Max);
-				ImagePlus maxProjectionAlongYAxis = OrthogonalProjection
-						.projectionXZ(img3D,
-								OrthogonalProjection.projectionType_Max);
-				ImagePlus maxProjectionAlongXAxis = OrthogonalProjection
-						.projectionZY(img3D,
-								OrthogonalProjection.projectionType_Max);
-				// Get L vectors directions
-				double L1x = Double.parseDouble(cellFeatures[LDirectionsMatrix[0]]);
-				double L2x = Double.parseDouble(cellFeatures[LDirectionsMatrix[1]]);
-				double L3x = Double.parseDouble(cellFeatures[LDirectionsMatrix[2]]);
-				double L1y = Double.parseDouble(cellFeatures[LDirectionsMatrix[3]]);
-				double L2y = Double.parseDouble(cellFeatures[LDirectionsMatrix[4]]);
-				double L3y = Double.parseDouble(cellFeatures[LDirectionsMatrix[5]]);
-				double L1z = Double.parseDouble(cellFeatures[LDirectionsMatrix[6]]);
-				double L2z = Double.parseDouble(cellFeatures[LDirectionsMatrix[7]]);
-				double L3z = Double.parseDouble(cellFeatures[LDirectionsMatrix[8]]);
-				
-				
-				// 2D oriented projections
-				ImagePlus maxProjectionAlongL1Axis = maxProjectionLDirection(
-						img3D, L3x, L3y, L3z, L2x, L2y, L2z);
-				ImagePlus maxProjectionAlongL2Axis = maxProjectionLDirection(
-						img3D, L3x, L3y, L3z, L1x, L1y, L1z);
-				ImagePlus maxProjectionAlongL3Axis = maxProjectionLDirection(
-						img3D, L1x, L1y, L1z, L2x, L2y, L2z);
-				
-				// Write 2D projections
-				/*Fits2DWriter.write(outputDirectory + File.separatorChar
-						+ "XAxisProj_" + img3D.getTitle(),
-						maxProjectionAlongXAxis);
-				Fits2DWriter.write(outputDirectory + File.separatorChar
-						+ "YAxisProj_" + img3D.getTitle(),
-						maxProjectionAlongYAxis);
-				Fits2DWriter.write(outputDirectory + File.separatorChar
-						+ "ZAxisProj_" + img3D.getTitle(),
-						maxProjectionAlongZAxis);
-				Fits2DWriter.write(outputDirectory + File.separatorChar
-						+ "L1AxisProj_" + img3D.getTitle(),
-						maxProjectionAlongL1Axis);
-				Fits2DWriter.write(outputDirectory + File.separatorChar
-						+ "L2AxisProj_" + img3D.getTitle(),
-						maxProjectionAlongL2Axis);
-				Fits2DWriter.write(outputDirectory + File.separatorChar
-						+ "L3AxisProj_" + img3D.getTitle(),
-						maxProjectionAlongL3Axis);*/
-				
-				// compute and write 2D features
-				double zPerimeter = perimeter2D(maxProjectionAlongZAxis, threshold);
-				writer.append(',' + String.valueOf(zPerimeter));
-				double yPerimeter = perimeter2D(maxProjectionAlongYAxis, threshold);
-				writer.append(',' + String.valueOf(yPerimeter));
-				double xPerimeter = perimeter2D(maxProjectionAlongXAxis, threshold);
-				writer.append(',' + String.valueOf(xPerimeter));
-				
-				double L1Perimeter = perimeter2D(maxProjectionAlongL1Axis, threshold);
-				writer.append(',' + String.valueOf(L1Perimeter));
-				double L2Perimeter = perimeter2D(maxProjectionAlongL2Axis, threshold);
-				writer.append(',' + String.valueOf(L2Perimeter));
-				double L3Perimeter = perimeter2D(maxProjectionAlongL3Axis, threshold);
-				writer.append(',' + String.valueOf(L3Perimeter));
-				
-				double zArea = area2D(maxProjectionAlongZAxis, threshold);
-				writer.append(',' + String.valueOf(zArea));
-				double yArea = area2D(maxProjectionAlongYAxis, threshold);
-				writer.append(',' + String.valueOf(yArea));
-				double xArea = area2D(maxProjectionAlongXAxis, threshold);
-				writer.append(',' + String.valueOf(xArea));
-				
-				double L1Area = area2D(maxProjectionAlongL1Axis, threshold);
-				writer.append(',' + String.valueOf(L1Area));
-				double L2Area = area2D(maxProjectionAlongL2Axis, threshold);
-				writer.append(',' + String.valueOf(L2Area));
-				double L3Area = area2D(maxProjectionAlongL3Axis, threshold);
-				writer.append(',' + String.valueOf(L3Area));
-				
-				double zAspectRatio = aspectRatio2D(maxProjectionAlongZAxis, threshold);
-				writer.append(',' + String.valueOf(zAspectRatio));
-				double yAspectRatio = aspectRatio2D(maxProjectionAlongYAxis, threshold);
-				writer.append(',' + String.valueOf(yAspectRatio));
-				double xAspectRatio = aspectRatio2D(maxProjectionAlongXAxis, threshold);
-				writer.append(',' + String.valueOf(xAspectRatio));
-				
-				double L1AspectRatio = aspectRatio2D(maxProjectionAlongL1Axis, threshold);
-				writer.append(',' + String.valueOf(L1AspectRatio));
-				double L2AspectRatio = aspectRatio2D(maxProjectionAlongL2Axis, threshold);
-				writer.append(',' + String.valueOf(L2AspectRatio));
-				double L3AspectRatio = aspectRatio2D(maxProjectionAlongL3Axis, threshold);
-				writer.append(',' + String.valueOf(L3AspectRatio));
-				
-				writer.append('\n');
+			// the cells are processed concurrently within the memory budget
+			// and the rows are written in the order of the input file as soon
+			// as the previous cells are done (only the 3D features if the 2D
+			// features could not be computed)
+			final OrderedRowWriter rowWriter = new OrderedRowWriter(writer,
+					cells.size(), '\n');
+			List<MemoryBudgetExecutor.Task> tasks = new ArrayList<MemoryBudgetExecutor.Task>();
+			for (int i = 0; i < cells.size(); i++) {
+				final int index = i;
+				final CellLine cell = cells.get(i);
+				tasks.add(new MemoryBudgetExecutor.Task() {
+					@Override
+					public long getEstimatedMemory() {
+						return CELL_MEMORY_FACTOR
+								* DecodedVolumeSize.estimate(cell.imageCellName);
+					}
+
+					@Override
+					public void run() throws IOException {
+						String row = cell.line;
+						try {
+							row = cell.line + compute2DFeatures(cell,
+									threshold);
+						} catch (Exception e) {
+							System.err.println("Could not compute 2D features of the cell "
+									+ cell.imageCellName);
+							e.printStackTrace();
+						} finally {
+							rowWriter.setRow(index, row);
+						}
+					}
+				});
 			}
+			new MemoryBudgetExecutor(numberOfThreads,
+					MemoryBudgetExecutor.defaultBudget()).runAll(tasks);
+			rowWriter.writeRemainingRows();
 			
-			if (br != null) br.close();	
 			if(writer != null) {
 				writer.flush();
 				writer.close();
@@ -660,11 +467,116 @@ public class ShapeFeatures2D {
 			e.printStackTrace();
 		} catch (NumberFormatException e) {
 			System.err.println("Problem while trying to get L vectors directions"
-					+ " in the CSV file.");
+					+ " in the CSV file: " + e.getMessage());
 		}
 		
 	}
 	
+	/**
+	 * Loads the 3D image of one cell, computes its six 2D projections and
+	 * their 2D features
+	 * 
+	 * @param cell
+	 *            Line of the cell in the input CSV file
+	 * @return the 2D features values, each one preceded by a comma
+	 */
+	private static String compute2DFeatures(CellLine cell, int threshold)
+			throws IOException {
+		
+		StringBuilder row = new StringBuilder();
+		
+		// get 3D image and compute 2D projections
+		String imageCellName = cell.imageCellName;
+		// 3D image (run length encoded masks are projected from
+		// their runs, without decoding the voxels)
+		ImagePlus img3D = null;
+		RunLengthMask3D mask3D = null;
+		if (RleMaskLoader.isRleMask(imageCellName))
+			mask3D = RleMaskLoader.read(imageCellName);
+		else
+			img3D = FitsLoader.read(imageCellName);
+		if (img3D == null && mask3D == null)
+			throw new IOException("Could not load file = " + imageCellName);
+		//2D orthogonal projections
+		ImagePlus maxProjectionAlongZAxis;
+		ImagePlus maxProjectionAlongYAxis;
+		ImagePlus maxProjectionAlongXAxis;
+		if (mask3D != null) {
+			maxProjectionAlongZAxis = mask3D.projectionXY();
+			maxProjectionAlongYAxis = mask3D.projectionXZ();
+			maxProjectionAlongXAxis = mask3D.projectionZY();
+		} else {
+			// the three projections from one pass over the volume
+			MultiAxisProjection projections = new MultiAxisProjection(
+					img3D);
+			maxProjectionAlongZAxis = projections.getProjectionXY(
+					OrthogonalProjection.projectionType_Max, 8);
+			maxProjectionAlongYAxis = projections.getProjectionXZ(
+					OrthogonalProjection.projectionType_Max, 8);
+			maxProjectionAlongXAxis = projections.getProjectionZY(
+					OrthogonalProjection.projectionType_Max, 8);
+		}
+		// 2D oriented projections along the L vectors directions
+		ImagePlus maxProjectionAlongL1Axis;
+		ImagePlus maxProjectionAlongL2Axis;
+		ImagePlus maxProjectionAlongL3Axis;
+		// (the three projections are computed in one pass)
+		ImagePlus[] LProjections;
+		if (mask3D != null)
+			LProjections = LDirectionsProjection.maxProjections(mask3D,
+					cell.L1, cell.L2, cell.L3);
+		else
+			LProjections = LDirectionsProjection.maxProjections(img3D,
+					cell.L1, cell.L2, cell.L3);
+		maxProjectionAlongL1Axis = LProjections[0];
+		maxProjectionAlongL2Axis = LProjections[1];
+		maxProjectionAlongL3Axis = LProjections[2];
+		
+		// Write 2D projections
+		/*Fits2DWriter.write(outputDirectory + File.separatorChar
+				+ "XAxisProj_" + img3D.getTitle(),
+				maxProjectionAlongXAxis);
+		Fits2DWriter.write(outputDirectory + File.separatorChar
+				+ "YAxisProj_" + img3D.getTitle(),
+				maxProjectionAlongYAxis);
+		Fits2DWriter.write(outputDirectory + File.separatorChar
+				+ "ZAxisProj_" + img3D.getTitle(),
+				maxProjectionAlongZAxis);
+		Fits2DWriter.write(outputDirectory + File.separatorChar
+				+ "L1AxisProj_" + img3D.getTitle(),
+				maxProjectionAlongL1Axis);
+		Fits2DWriter.write(outputDirectory + File.separatorChar
+				+ "L2AxisProj_" + img3D.getTitle(),
+				maxProjectionAlongL2Axis);
+		Fits2DWriter.write(outputDirectory + File.separatorChar
+				+ "L3AxisProj_" + img3D.getTitle(),
+				maxProjectionAlongL3Axis);*/
+		
+		// compute and write 2D features (the six projections are
+		// processed in parallel, one pass over each projection)
+		ImagePlus[] projections2D = new ImagePlus[] {
+				maxProjectionAlongZAxis, maxProjectionAlongYAxis,
+				maxProjectionAlongXAxis, maxProjectionAlongL1Axis,
+				maxProjectionAlongL2Axis, maxProjectionAlongL3Axis };
+		for (ImagePlus img2D : projections2D) {
+			if (!img2D.getCalibration().getXUnit()
+					.equals(img2D.getCalibration().getYUnit())) {
+				System.err.println("Units are not uniform for the two axis.");
+				System.err.println(img2D.getTitle());
+			}
+		}
+		Projection2DFeatures[] features2D = Projection2DFeatures
+				.compute(projections2D, threshold);
+		for (Projection2DFeatures features : features2D)
+			row.append(',').append(features.getPerimeter());
+		for (Projection2DFeatures features : features2D)
+			row.append(',').append(features.getArea());
+		for (Projection2DFeatures features : features2D)
+			row.append(',').append(features.getAspectRatio());
+		
+		return row.toString();
+	}
+	
 	/**
 	 * @param args
 	 */
@@ -687,10 +599,14 @@ public class ShapeFeatures2D {
 		String inputImagesFolder = new String(args[3]); 
 		String imagesFileNameExtension = new String(args[4]);
 		int threshold = Integer.parseInt(args[5]);
+		// optional number of cells processed at the same time
+		int numberOfThreads = ParallelLoop.getNumberOfThreads();
+		if (args.length > 6)
+			numberOfThreads = Integer.parseInt(args[6]);
 		
 		ShapeFeatures2D.compute2DShapeFeatures(inputCSVFilePath,
 				outputDirectory, outputCSVFileName, inputImagesFolder,
-				imagesFileNameExtension, threshold);
+				imagesFileNameExtension, threshold, numberOfThreads);
 		
 	}
 
@@ -0,0 +1,115 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package test;
+
+import static org.junit.Assert.*;
+import io.BlockGzipInputStream;
+import io.BlockGzipOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author pnb
+ * 
+ */
+public class BlockGzipStreamTest {
+
+	private static byte[] createMaskLikeData(int size, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (random.nextInt(10) < 8) ? 0 : (byte) random.nextInt();
+		return data;
+	}
+
+	private static byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BlockGzipOutputStream output = new BlockGzipOutputStream(bytes);
+		output.write(data);
+		output.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[10000];
+		int n;
+		while ((n = input.read(buffer)) > 0)
+			bytes.write(buffer, 0, n);
+		input.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Sizes around the block size, and several blocks
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		int[] sizes = { 0, 1, 65279, 65280, 65281, 1000000 };
+		for (int size : sizes) {
+			byte[] data = createMaskLikeData(size, size);
+			byte[] compressed = compress(data);
+			assertArrayEquals(data, readAll(new BlockGzipInputStream(
+					new ByteArrayInputStream(compressed))));
+		}
+	}
+
+	/**
+	 * The block compressed files must stay readable by standard gzip readers
+	 */
+	@Test
+	public void testReadableByGZIPInputStream() throws IOException {
+		byte[] data = createMaskLikeData(300000, 1);
+		byte[] compressed = compress(data);
+		assertArrayEquals(data, readAll(new GZIPInputStream(
+				new ByteArrayInputStream(compressed))));
+	}
+
+	/**
+	 * Regular gzip files are read sequentially
+	 */
+	@Test
+	public void testReadRegularGzip() throws IOException {
+		byte[] data = createMaskLikeData(300000, 2);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream output = new GZIPOutputStream(bytes);
+		output.write(data);
+		output.close();
+		assertArrayEquals(data, readAll(new BlockGzipInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()))));
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptedBlock() throws IOException {
+		byte[] compressed = compress(createMaskLikeData(300000, 3));
+		compressed[100] ^= 1;
+		readAll(new BlockGzipInputStream(new ByteArrayInputStream(compressed)));
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package test;
+
+import static org.junit.Assert.*;
+import io.ChunkedVolumeReader;
+import io.ChunkedVolumeWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import org.junit.Test;
+
+/**
+ * @author pnb
+ * 
+ */
+public class ChunkedVolumeTest {
+
+	private static ImagePlus createImage(int width, int height, int depth) {
+		Random random = new Random(width * height * depth);
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			ImageProcessor ip = new ShortProcessor(width, height);
+			for (int i = 0; i < width * height; i++)
+				ip.set(i, random.nextInt(65536));
+			stack.addSlice(ip);
+		}
+		ImagePlus imp = new ImagePlus("volume", stack);
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.5;
+		cal.pixelHeight = 0.5;
+		cal.pixelDepth = 2.0;
+		cal.setUnit("micron");
+		return imp;
+	}
+
+	/**
+	 * Volume not aligned on the chunks (partial chunks on each side)
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		ImagePlus imp = createImage(150, 70, 67);
+		File file = File.createTempFile("volume", ".cvol");
+		try {
+			ChunkedVolumeWriter.write(file.getPath(), imp);
+			ImagePlus result = ChunkedVolumeReader.read(file.getPath());
+			assertEquals(150, result.getWidth());
+			assertEquals(70, result.getHeight());
+			assertEquals(67, result.getStackSize());
+			assertEquals(16, result.getBitDepth());
+			for (int z = 1; z <= 67; z++)
+				assertArrayEquals((short[]) imp.getStack().getPixels(z),
+						(short[]) result.getStack().getPixels(z));
+			assertEquals(2.0, result.getCalibration().pixelDepth, 0.0);
+			assertEquals("micron", result.getCalibration().getUnit());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testRegion() throws IOException {
+		ImagePlus imp = createImage(150, 70, 67);
+		File file = File.createTempFile("volume", ".cvol");
+		try {
+			ChunkedVolumeWriter.write(file.getPath(), imp);
+			ChunkedVolumeReader reader = ChunkedVolumeReader.open(file
+					.getPath());
+			try {
+				ImagePlus region = reader.readRegion(60, 10, 62, 20, 55, 5);
+				for (int z = 0; z < 5; z++)
+					for (int y = 0; y < 55; y++)
+						for (int x = 0; x < 20; x++)
+							assertEquals(imp.getStack().getProcessor(63 + z)
+									.get(60 + x, 10 + y), region.getStack()
+									.getProcessor(z + 1).get(x, y));
+				assertEquals(-60.0, region.getCalibration().xOrigin, 0.0);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package test;
+
+import static org.junit.Assert.*;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+import org.junit.Test;
+
+import util.Gradient3D;
+
+/**
+ * @author pnb
+ * 
+ */
+public class Gradient3DTest {
+
+	private static final int SIZE = 8;
+
+	/**
+	 * @return a volume whose values are a linear ramp of the given slopes
+	 *         (per voxel) along x, y and z, with a voxel size of 2 x 2 x 2
+	 */
+	private static ImagePlus createRamp(double slopeX, double slopeY,
+			double slopeZ) {
+		ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int z = 0; z < SIZE; z++) {
+			FloatProcessor fp = new FloatProcessor(SIZE, SIZE);
+			for (int y = 0; y < SIZE; y++)
+				for (int x = 0; x < SIZE; x++)
+					fp.setf(x, y, (float) (100 + slopeX * x + slopeY * y
+							+ slopeZ * z));
+			stack.addSlice(fp);
+		}
+		ImagePlus imp = new ImagePlus("ramp", stack);
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 2.0;
+		cal.pixelHeight = 2.0;
+		cal.pixelDepth = 2.0;
+		return imp;
+	}
+
+	/**
+	 * @return the value of the voxel at the center of the volume (the
+	 *         borders being zero padded)
+	 */
+	private static float center(ImagePlus imp) {
+		return imp.getStack().getProcessor(SIZE / 2 + 1)
+				.getf(SIZE / 2, SIZE / 2);
+	}
+
+	@Test
+	public void testMagnitude() {
+		ImagePlus ramp = createRamp(3, 0, 0);
+		ImagePlus grad = Gradient3D.calculateGrad(ramp, true);
+		assertEquals(32, grad.getBitDepth());
+		assertEquals(1.5, center(grad), 1e-5);
+
+		grad = Gradient3D.calculateGrad(ramp, true,
+				Gradient3D.OUTPUT_MAGNITUDE, 16, 100.0);
+		assertEquals(16, grad.getBitDepth());
+		assertEquals(150, center(grad), 0.0);
+	}
+
+	@Test
+	public void testAngles16Bits() {
+		// gradient along +x: azimuth 0
+		ImagePlus grad = Gradient3D.calculateGrad(createRamp(3, 0, 0), true,
+				Gradient3D.OUTPUT_AZIMUTH, 16, 1000.0);
+		assertEquals(Math.round(Math.PI * 1000), center(grad), 0.0);
+		// gradient along -x: azimuth pi
+		grad = Gradient3D.calculateGrad(createRamp(-3, 0, 0), true,
+				Gradient3D.OUTPUT_AZIMUTH, 16, 1000.0);
+		assertEquals(Math.round(2 * Math.PI * 1000), center(grad), 0.0);
+		// gradient along -y: azimuth -pi/2
+		grad = Gradient3D.calculateGrad(createRamp(0, -3, 0), true,
+				Gradient3D.OUTPUT_AZIMUTH, 16, 1000.0);
+		assertEquals(Math.round(Math.PI / 2 * 1000), center(grad), 0.0);
+		// gradient along -z: elevation -pi/2
+		grad = Gradient3D.calculateGrad(createRamp(0, 0, -3), true,
+				Gradient3D.OUTPUT_ELEVATION, 16, 1000.0);
+		assertEquals(Math.round(Math.PI / 2 * 1000), center(grad), 0.0);
+
+		// the 32 bits angles are not offset
+		grad = Gradient3D.calculateGrad(createRamp(0, 0, -3), true,
+				Gradient3D.OUTPUT_ELEVATION, 32, 1.0);
+		assertEquals(-Math.PI / 2, center(grad), 1e-6);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedBitDepth() {
+		Gradient3D.calculateGrad(createRamp(3, 0, 0), true,
+				Gradient3D.OUTPUT_MAGNITUDE, 8, 1.0);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import org.junit.Test;
+
+import segment3D.Image3DCropping;
+import segment3D.Image3DSmoothing;
+import segment3D.SliceStatistics;
+
+/**
+ * @author pnb
+ * 
+ */
+public class Image3DCroppingTest {
+
+	private static final int SIZE = 256;
+	private static final int DEPTH = 30;
+	private static final int THRESHOLD = 1000;
+
+	/**
+	 * @return a stack with a noisy background, a large cell in the middle
+	 *         slices and a small cell (less than 1% of the pixels but more
+	 *         than 500 pixels after erosion) in the slices around them
+	 */
+	private static ImagePlus createStack() {
+		Random random = new Random(SIZE * DEPTH);
+		ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int z = 0; z < DEPTH; z++) {
+			ShortProcessor sp = new ShortProcessor(SIZE, SIZE);
+			for (int i = 0; i < SIZE * SIZE; i++)
+				sp.set(i, (int) Math.round(100 + 10 * random.nextGaussian()));
+			int cellSize = 0;
+			if (z >= 12 && z <= 17)
+				cellSize = 100;
+			else if (z >= 6 && z <= 23)
+				cellSize = 25;
+			for (int y = 0; y < cellSize; y++)
+				for (int x = 0; x < cellSize; x++)
+					sp.set(100 + x, 100 + y, 2000);
+			stack.addSlice(sp);
+		}
+		return new ImagePlus("stack", stack);
+	}
+
+	private static int[] refineFrames(Image3DCropping cropping,
+			ImagePlus img3D) {
+		Image3DSmoothing.grayscaleFlatErosion(img3D, 1, 1, 0);
+		Image3DSmoothing.grayscaleFlatDilation(img3D, 1, 1, 0);
+		img3D.setDisplayRange(0, 65535);
+		return cropping.removeMeaninglessFrames16bits(img3D, THRESHOLD);
+	}
+
+	@Test
+	public void testPreCropKeepsSmallCell() {
+		int[] expected = refineFrames(new Image3DCropping(), createStack());
+		assertEquals(6, expected[0]);
+		assertEquals(23, expected[1]);
+
+		ImagePlus img3D = createStack();
+		SliceStatistics statistics = new SliceStatistics();
+		statistics.begin(SIZE, SIZE, DEPTH);
+		for (int z = 0; z < DEPTH; z++)
+			statistics.consumeSlice(z, img3D.getStack().getPixels(z + 1));
+		statistics.end(DEPTH);
+
+		Image3DCropping cropping = new Image3DCropping();
+		int[] preCropRange = cropping.preCropFrames(img3D, statistics);
+		assertTrue(preCropRange[0] > 0);
+		assertTrue(preCropRange[1] < DEPTH - 1);
+		int[] range = refineFrames(cropping, img3D);
+		assertEquals(expected[0], range[0] + preCropRange[0]);
+		assertEquals(expected[1], range[1] + preCropRange[0]);
+	}
+}
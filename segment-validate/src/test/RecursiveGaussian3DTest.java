@@ -0,0 +1,151 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import util.RecursiveGaussian3D;
+
+/**
+ * @author pnb
+ * 
+ */
+public class RecursiveGaussian3DTest {
+
+	private static final int SIZE = 24;
+
+	private static float[][] createVolume(double value) {
+		float[][] slices = new float[SIZE][SIZE * SIZE];
+		for (int z = 0; z < SIZE; z++)
+			for (int i = 0; i < SIZE * SIZE; i++)
+				slices[z][i] = (float) value;
+		return slices;
+	}
+
+	/**
+	 * @return a linear ramp of the given slope (per voxel) along one axis (0
+	 *         for x, 1 for y, 2 for z)
+	 */
+	private static float[][] createRamp(int axis, double slope) {
+		float[][] slices = new float[SIZE][SIZE * SIZE];
+		for (int z = 0; z < SIZE; z++)
+			for (int y = 0; y < SIZE; y++)
+				for (int x = 0; x < SIZE; x++) {
+					int position = (axis == 0) ? x : (axis == 1) ? y : z;
+					slices[z][y * SIZE + x] = (float) (10 + slope * position);
+				}
+		return slices;
+	}
+
+	/**
+	 * @return the value at (x, y, z) of the volume, the coordinates being
+	 *         permuted so that the given axis becomes the x axis
+	 */
+	private static float get(float[][] slices, int axis, int x, int y, int z) {
+		switch (axis) {
+		case 1:
+			return slices[z][x * SIZE + y];
+		case 2:
+			return slices[x][y * SIZE + z];
+		default:
+			return slices[z][y * SIZE + x];
+		}
+	}
+
+	@Test
+	public void testConstantPreserved() {
+		float[][] result = RecursiveGaussian3D.filter(createVolume(1000),
+				SIZE, SIZE, new double[] { 0.5, 0.5, 2.0 }, new double[] {
+						1.5, 1.5, 3.0 }, new int[] { 0, 0, 0 });
+		for (int z = 0; z < SIZE; z++)
+			for (int i = 0; i < SIZE * SIZE; i++)
+				assertEquals(1000, result[z][i], 1e-2);
+
+		// derivatives of a constant are 0, borders included
+		result = RecursiveGaussian3D.filter(createVolume(1000), SIZE, SIZE,
+				new double[] { 0.5, 0.5, 2.0 },
+				new double[] { 1.5, 1.5, 3.0 }, new int[] { 1, 2, 1 });
+		for (int z = 0; z < SIZE; z++)
+			for (int i = 0; i < SIZE * SIZE; i++)
+				assertEquals(0, result[z][i], 1e-2);
+	}
+
+	@Test
+	public void testRampDerivative() {
+		double[] spacing = { 2.0, 2.0, 2.0 };
+		double[] sigma = { 4.0, 4.0, 4.0 };
+		int c = SIZE / 2;
+		for (int axis = 0; axis < 3; axis++) {
+			int[] order = new int[3];
+			order[axis] = 1;
+			float[][] result = RecursiveGaussian3D.filter(
+					createRamp(axis, 3.0), SIZE, SIZE, spacing, sigma, order);
+			// slope 3 per voxel, 2 units per voxel
+			assertEquals("axis " + axis, 1.5, result[c][c * SIZE + c], 1e-3);
+
+			order[axis] = 2;
+			result = RecursiveGaussian3D.filter(createRamp(axis, 3.0), SIZE,
+					SIZE, spacing, sigma, order);
+			assertEquals("axis " + axis, 0.0, result[c][c * SIZE + c], 1e-3);
+		}
+	}
+
+	@Test
+	public void testAxesConsistent() {
+		Random random = new Random(SIZE);
+		float[][] volume = new float[SIZE][SIZE * SIZE];
+		for (int z = 0; z < SIZE; z++)
+			for (int i = 0; i < SIZE * SIZE; i++)
+				volume[z][i] = random.nextFloat() * 100;
+
+		// the same volume with x swapped with y, then with z
+		float[][][] permuted = new float[3][SIZE][SIZE * SIZE];
+		for (int axis = 0; axis < 3; axis++)
+			for (int z = 0; z < SIZE; z++)
+				for (int y = 0; y < SIZE; y++)
+					for (int x = 0; x < SIZE; x++)
+						permuted[axis][z][y * SIZE + x] = get(volume, axis, x,
+								y, z);
+
+		double[] spacing = { 0.5, 0.5, 0.5 };
+		float[][] expected = RecursiveGaussian3D.filter(permuted[0], SIZE,
+				SIZE, spacing, new double[] { 1.0, 0, 0 },
+				new int[] { 1, 0, 0 });
+		for (int axis = 1; axis < 3; axis++) {
+			double[] sigma = new double[3];
+			sigma[axis] = 1.0;
+			int[] order = new int[3];
+			order[axis] = 1;
+			float[][] result = RecursiveGaussian3D.filter(permuted[axis],
+					SIZE, SIZE, spacing, sigma, order);
+			for (int z = 0; z < SIZE; z++)
+				for (int y = 0; y < SIZE; y++)
+					for (int x = 0; x < SIZE; x++)
+						assertEquals("axis " + axis,
+								expected[z][y * SIZE + x],
+								get(result, axis, x, y, z), 1e-3);
+		}
+	}
+}
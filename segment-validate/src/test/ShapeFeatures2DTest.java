@@ -28,6 +28,13 @@ import ij.process.ByteProcessor;
 import io.Fits2DWriter;
 import io.Fits3DWriter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -425,4 +432,82 @@ public class ShapeFeatures2DTest {
 						68, 0, 1, 0, 1));
 	}
 
+	/**
+	 * Test method for {@link shapeFeatures2D.ShapeFeatures2D#compute2DShapeFeatures(String, String, String, String, String, int, int)}:
+	 * the rows are written in the order of the input file when several cells
+	 * are processed at the same time.
+	 */
+	@Test
+	public void testCompute2DShapeFeaturesRowOrder() throws IOException {
+		
+		File folder = new File(System.getProperty("java.io.tmpdir"),
+				"ShapeFeatures2DTest");
+		folder.mkdirs();
+		
+		// cells of different sizes (different processing times)
+		ImagePlus[] cells = new ImagePlus[] { img3DSphere, img3DCube,
+				img3DRectanglePrism };
+		int numberOfCells = 9;
+		PrintStream csv = new PrintStream(new File(folder, "features3D.csv"));
+		csv.print("File_Name,L1x,L2x,L3x,L1y,L2y,L3y,L1z,L2z,L3z\n");
+		for (int i = 0; i < numberOfCells; ++ i) {
+			String cellName = "cell" + i + ".fits";
+			Fits3DWriter.write(new File(folder, cellName).getPath(),
+					cells[i % cells.length]);
+			csv.print(cellName + ",1,0,0,0,1,0,0,0,1\n");
+		}
+		csv.close();
+		
+		ShapeFeatures2D.compute2DShapeFeatures(new File(folder,
+				"features3D.csv").getPath(), folder.getPath(),
+				"sequential.csv", folder.getPath(), ".fits", 255, 1);
+		ShapeFeatures2D.compute2DShapeFeatures(new File(folder,
+				"features3D.csv").getPath(), folder.getPath(),
+				"concurrent.csv", folder.getPath(), ".fits", 255, 4);
+		
+		List<String> sequentialRows = Files.readAllLines(new File(folder,
+				"sequential.csv").toPath(), StandardCharsets.ISO_8859_1);
+		List<String> concurrentRows = Files.readAllLines(new File(folder,
+				"concurrent.csv").toPath(), StandardCharsets.ISO_8859_1);
+		
+		assertEquals("Number of rows", numberOfCells + 1,
+				concurrentRows.size());
+		for (int i = 0; i < numberOfCells; ++ i) {
+			assertTrue("Row " + i + " should be the row of cell" + i,
+					concurrentRows.get(i + 1).startsWith("cell" + i + ".fits,"));
+			assertTrue("Row " + i + " should have 2D features",
+					concurrentRows.get(i + 1).split(",").length > 10);
+		}
+		assertEquals("Rows computed with 1 and 4 threads", sequentialRows,
+				concurrentRows);
+	}
+
+	/**
+	 * Test method for {@link shapeFeatures2D.ShapeFeatures2D#compute2DShapeFeatures(String, String, String, String, String, int, int)}:
+	 * the lines are parsed before any cell is processed, so an invalid L
+	 * vector direction stops the processing without writing a partial file.
+	 */
+	@Test
+	public void testCompute2DShapeFeaturesInvalidLine() throws IOException {
+		
+		File folder = new File(System.getProperty("java.io.tmpdir"),
+				"ShapeFeatures2DTestInvalid");
+		folder.mkdirs();
+		File output = new File(folder, "invalid.csv");
+		output.delete();
+		
+		PrintStream csv = new PrintStream(new File(folder, "features3D.csv"));
+		csv.print("File_Name,L1x,L2x,L3x,L1y,L2y,L3y,L1z,L2z,L3z\n");
+		Fits3DWriter.write(new File(folder, "cell0.fits").getPath(), img3DCube);
+		csv.print("cell0.fits,1,0,0,0,1,0,0,0,1\n");
+		csv.print("cell1.fits,1,0,0,0,x,0,0,0,1\n");
+		csv.close();
+		
+		ShapeFeatures2D.compute2DShapeFeatures(new File(folder,
+				"features3D.csv").getPath(), folder.getPath(),
+				output.getName(), folder.getPath(), ".fits", 255, 2);
+		assertFalse("No output file for an invalid input line",
+				output.exists());
+	}
+
 }
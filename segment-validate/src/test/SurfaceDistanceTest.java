@@ -0,0 +1,129 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import segment3D.BitMask3D;
+import segment3D.DistanceTransform3D;
+import validation.SurfaceDistance;
+
+/**
+ * @author pnb
+ * 
+ */
+public class SurfaceDistanceTest {
+
+	private static BitMask3D createCube(int size, int from, int to) {
+		BitMask3D mask = new BitMask3D(size, size, size);
+		for (int z = from; z < to; z++)
+			for (int y = from; y < to; y++)
+				for (int x = from; x < to; x++)
+					mask.set(x, y, z, true);
+		return mask;
+	}
+
+	@Test
+	public void testOneEmptyMask() {
+		BitMask3D cube = createCube(12, 3, 9);
+		BitMask3D empty = new BitMask3D(12, 12, 12);
+
+		SurfaceDistance distance = SurfaceDistance.compare(cube, empty, 1.0,
+				1.0, 1.0);
+		assertTrue(Double.isNaN(distance.getHausdorffDistance()));
+		assertTrue(Double.isNaN(distance.getHausdorffDistance95()));
+		assertTrue(Double.isNaN(distance.getAverageSymmetricSurfaceDistance()));
+
+		distance = SurfaceDistance.compare(empty, cube, 1.0, 1.0, 1.0);
+		assertTrue(Double.isNaN(distance.getHausdorffDistance()));
+		assertTrue(Double.isNaN(distance.getHausdorffDistance95()));
+		assertTrue(Double.isNaN(distance.getAverageSymmetricSurfaceDistance()));
+	}
+
+	@Test
+	public void testBothEmptyMasks() {
+		BitMask3D empty = new BitMask3D(12, 12, 12);
+		SurfaceDistance distance = SurfaceDistance.compare(empty,
+				new BitMask3D(12, 12, 12), 1.0, 1.0, 1.0);
+		assertEquals(0.0, distance.getHausdorffDistance(), 0.0);
+		assertEquals(0.0, distance.getHausdorffDistance95(), 0.0);
+		assertEquals(0.0, distance.getAverageSymmetricSurfaceDistance(), 0.0);
+	}
+
+	@Test
+	public void testShiftedCube() {
+		BitMask3D ref = createCube(12, 3, 9);
+		BitMask3D img = new BitMask3D(12, 12, 12);
+		for (int z = 3; z < 9; z++)
+			for (int y = 3; y < 9; y++)
+				for (int x = 4; x < 10; x++)
+					img.set(x, y, z, true);
+		SurfaceDistance distance = SurfaceDistance.compare(ref, img, 0.5,
+				0.5, 2.0);
+		assertEquals(0.5, distance.getHausdorffDistance(), 1e-6);
+	}
+
+	@Test
+	public void testDistanceTransformAnisotropic() {
+		int width = 19;
+		int height = 14;
+		int depth = 7;
+		double vx = 0.12;
+		double vy = 0.12;
+		double vz = 0.46;
+		Random random = new Random(width * height * depth);
+		BitMask3D features = new BitMask3D(width, height, depth);
+		for (int z = 0; z < depth; z++)
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++)
+					if (random.nextInt(40) == 0)
+						features.set(x, y, z, true);
+		assertTrue(features.cardinality() > 0);
+
+		DistanceTransform3D transform = new DistanceTransform3D(features, vx,
+				vy, vz);
+		float[] result = new float[width * height];
+		for (int z = 0; z < depth; z++) {
+			transform.computeSquaredDistances(z, result);
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					double expected = Double.POSITIVE_INFINITY;
+					for (int fz = 0; fz < depth; fz++)
+						for (int fy = 0; fy < height; fy++)
+							for (int fx = 0; fx < width; fx++)
+								if (features.get(fx, fy, fz)) {
+									double dx = (x - fx) * vx;
+									double dy = (y - fy) * vy;
+									double dz = (z - fz) * vz;
+									expected = Math.min(expected, dx * dx
+											+ dy * dy + dz * dz);
+								}
+					double actual = result[y * width + x];
+					assertEquals("voxel " + x + "," + y + "," + z, expected,
+							actual, 1e-6 * Math.max(1.0, expected));
+				}
+		}
+	}
+}
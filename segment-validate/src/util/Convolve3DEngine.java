@@ -0,0 +1,333 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * This is an engine for the 3D convolution of z-stacks (values outside of the
+ * stack are 0), with a full 3D kernel or with one 1D kernel per axis
+ * (separable mode). The kernel sizes must be odd; as in Convolve3D, the kernel
+ * is not mirrored (correlation).
+ * 
+ * An engine has no mutable state and can be used by several threads at the
+ * same time. The slices are processed in parallel (contiguous slabs of slices
+ * per thread). The 8-bits and 16-bits (unsigned) slices are converted to
+ * float by type specific loops, then each tap of the kernel is applied to a
+ * whole row at once: the range of the row where the tap falls inside the
+ * stack is computed once (interior), the border voxels are skipped instead of
+ * testing the bounds of every voxel.
+ * 
+ * In separable mode, the x and y passes of a slice go through one buffer per
+ * thread and the z pass is done in place on the result, row by row, so that
+ * no intermediate volume is allocated.
+ * 
+ * For each voxel, the products are summed in the same order as in the
+ * original Convolve3D (z, then y, then x offsets), and the taps with a zero
+ * weight are skipped.
+ * 
+ * @author pnb
+ * 
+ */
+public class Convolve3DEngine {
+
+	// full 3D kernel (null in separable mode)
+	private float[][][] kernel;
+	// 1D kernels of the separable mode (null: no convolution along the axis)
+	private float[] kernelX;
+	private float[] kernelY;
+	private float[] kernelZ;
+
+	/**
+	 * Creates an engine convolving with a full 3D kernel
+	 * 
+	 * @param kernel
+	 *            - kernel indexed [z][y][x], with odd sizes
+	 */
+	public Convolve3DEngine(float[][][] kernel) {
+		checkSize(kernel.length, "z");
+		checkSize(kernel[0].length, "y");
+		checkSize(kernel[0][0].length, "x");
+		this.kernel = kernel;
+	}
+
+	/**
+	 * Creates an engine convolving successively along x, y and z with 1D
+	 * kernels
+	 * 
+	 * @param kernelX
+	 *            - kernel along x (odd size), or null
+	 * @param kernelY
+	 *            - kernel along y (odd size), or null
+	 * @param kernelZ
+	 *            - kernel along z (odd size), or null
+	 */
+	public Convolve3DEngine(float[] kernelX, float[] kernelY, float[] kernelZ) {
+		if (kernelX != null)
+			checkSize(kernelX.length, "x");
+		if (kernelY != null)
+			checkSize(kernelY.length, "y");
+		if (kernelZ != null)
+			checkSize(kernelZ.length, "z");
+		this.kernelX = kernelX;
+		this.kernelY = kernelY;
+		this.kernelZ = kernelZ;
+	}
+
+	private static void checkSize(int size, String axis) {
+		if (size % 2 == 0)
+			throw new IllegalArgumentException("the size of the kernel along "
+					+ axis + " must be odd (" + size + ")");
+	}
+
+	/**
+	 * Convolves a z-stack
+	 * 
+	 * @param image
+	 *            - 8-bits, 16-bits or 32-bits z-stack
+	 * @return the 32-bits result with the calibration of the input
+	 */
+	public ImagePlus convolve(ImagePlus image) {
+		ImageStack stack = image.getStack();
+		int w = stack.getWidth();
+		int h = stack.getHeight();
+		Object[] slices = new Object[stack.getSize()];
+		for (int z = 0; z < slices.length; z++)
+			slices[z] = stack.getPixels(z + 1);
+
+		float[][] result = convolve(slices, w, h);
+
+		ImageStack resultStack = new ImageStack(w, h);
+		for (int z = 0; z < result.length; z++)
+			resultStack.addSlice("", new FloatProcessor(w, h, result[z], null));
+		ImagePlus resultImage = new ImagePlus("", resultStack);
+		resultImage.setCalibration(image.getCalibration());
+		return resultImage;
+	}
+
+	/**
+	 * Convolves a z-stack given as slices
+	 * 
+	 * @param slices
+	 *            - pixels of the slices (byte[], short[] or float[], all of
+	 *            the same type), not modified
+	 * @param width
+	 *            - width of the slices
+	 * @param height
+	 *            - height of the slices
+	 * @return the pixels of the result slices
+	 */
+	public float[][] convolve(Object[] slices, int width, int height) {
+		for (int z = 0; z < slices.length; z++) {
+			if (!(slices[z] instanceof byte[]
+					|| slices[z] instanceof short[] || slices[z] instanceof float[]))
+				throw new IllegalArgumentException(
+						"Only 8-bits, 16-bits or 32-bits stacks are supported");
+		}
+		if (kernel != null)
+			return convolveKernel(slices, width, height);
+		return convolveSeparable(slices, width, height);
+	}
+
+	/**
+	 * Convolution with the full 3D kernel, slice by slice. Each thread keeps
+	 * the float values of the last input slices it has used.
+	 */
+	private float[][] convolveKernel(final Object[] slices, final int w,
+			final int h) {
+		final int d = slices.length;
+		final int rz = kernel.length / 2;
+		final int ry = kernel[0].length / 2;
+		final int rx = kernel[0][0].length / 2;
+		final float[][] result = new float[d][];
+
+		ParallelLoop.run(0, d, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				// float values of the input slices (ring of 2 * rz + 1
+				// slices)
+				int ringSize = 2 * rz + 1;
+				float[][] ring = new float[ringSize][];
+				float[][] ringBuffers = new float[ringSize][];
+				int[] ringIndex = new int[ringSize];
+				for (int i = 0; i < ringSize; i++)
+					ringIndex[i] = -1;
+
+				for (int z = from; z < to; z++) {
+					float[] out = new float[w * h];
+					for (int k = -rz; k <= rz; k++) {
+						int zk = z + k;
+						if (zk < 0 || zk >= d)
+							continue;
+						int slot = zk % ringSize;
+						if (ringIndex[slot] != zk) {
+							if (ringBuffers[slot] == null
+									&& !(slices[zk] instanceof float[]))
+								ringBuffers[slot] = new float[w * h];
+							ring[slot] = toFloat(slices[zk], ringBuffers[slot]);
+							ringIndex[slot] = zk;
+						}
+						float[] in = ring[slot];
+						for (int j = -ry; j <= ry; j++) {
+							float[] weights = kernel[k + rz][j + ry];
+							int y0 = Math.max(0, -j);
+							int y1 = Math.min(h, h - j);
+							for (int y = y0; y < y1; y++) {
+								int outOffset = y * w;
+								int inOffset = (y + j) * w;
+								for (int i = -rx; i <= rx; i++)
+									accumulate(in, inOffset + i, weights[i + rx],
+											out, outOffset, Math.max(0, -i),
+											Math.min(w, w - i));
+							}
+						}
+					}
+					result[z] = out;
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Separable convolution: x and y passes slice by slice through one buffer
+	 * per thread, then z pass in place, row by row
+	 */
+	private float[][] convolveSeparable(final Object[] slices, final int w,
+			final int h) {
+		final int d = slices.length;
+		final float[][] result = new float[d][];
+
+		ParallelLoop.run(0, d, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				float[] converted = null;
+				float[] ping = (kernelX != null && kernelY != null) ? new float[w
+						* h] : null;
+				for (int z = from; z < to; z++) {
+					if (converted == null && !(slices[z] instanceof float[]))
+						converted = new float[w * h];
+					float[] in = toFloat(slices[z], converted);
+					float[] out = new float[w * h];
+					if (kernelX != null && kernelY != null) {
+						convolveX(in, ping, w, h);
+						convolveY(ping, out, w, h);
+					} else if (kernelX != null) {
+						convolveX(in, out, w, h);
+					} else if (kernelY != null) {
+						convolveY(in, out, w, h);
+					} else {
+						System.arraycopy(in, 0, out, 0, w * h);
+					}
+					result[z] = out;
+				}
+			}
+		});
+
+		if (kernelZ == null)
+			return result;
+
+		final int rz = kernelZ.length / 2;
+		ParallelLoop.run(0, h, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				// row y of all the slices before the z pass
+				float[][] rows = new float[d][w];
+				for (int y = from; y < to; y++) {
+					int offset = y * w;
+					for (int z = 0; z < d; z++)
+						System.arraycopy(result[z], offset, rows[z], 0, w);
+					for (int z = 0; z < d; z++) {
+						float[] out = result[z];
+						for (int x = 0; x < w; x++)
+							out[offset + x] = 0f;
+						for (int k = -rz; k <= rz; k++) {
+							int zk = z + k;
+							if (zk < 0 || zk >= d)
+								continue;
+							accumulate(rows[zk], 0, kernelZ[k + rz], out,
+									offset, 0, w);
+						}
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	private void convolveX(float[] in, float[] out, int w, int h) {
+		int rx = kernelX.length / 2;
+		for (int y = 0; y < h; y++) {
+			int offset = y * w;
+			for (int x = 0; x < w; x++)
+				out[offset + x] = 0f;
+			for (int i = -rx; i <= rx; i++)
+				accumulate(in, offset + i, kernelX[i + rx], out, offset,
+						Math.max(0, -i), Math.min(w, w - i));
+		}
+	}
+
+	private void convolveY(float[] in, float[] out, int w, int h) {
+		int ry = kernelY.length / 2;
+		for (int i = 0; i < w * h; i++)
+			out[i] = 0f;
+		for (int j = -ry; j <= ry; j++) {
+			float weight = kernelY[j + ry];
+			int y0 = Math.max(0, -j);
+			int y1 = Math.min(h, h - j);
+			for (int y = y0; y < y1; y++)
+				accumulate(in, (y + j) * w, weight, out, y * w, 0, w);
+		}
+	}
+
+	/**
+	 * Adds weight * in[inOffset + x] to out[outOffset + x] for x in [x0, x1)
+	 */
+	private static void accumulate(float[] in, int inOffset, float weight,
+			float[] out, int outOffset, int x0, int x1) {
+		if (weight == 0f)
+			return;
+		for (int x = x0; x < x1; x++)
+			out[outOffset + x] += in[inOffset + x] * weight;
+	}
+
+	/**
+	 * @return the float values of a slice (the slice itself if it is already
+	 *         a float[], else the buffer filled with the unsigned values)
+	 */
+	static float[] toFloat(Object pixels, float[] buffer) {
+		if (pixels instanceof float[])
+			return (float[]) pixels;
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			for (int i = 0; i < bytes.length; i++)
+				buffer[i] = bytes[i] & 0xff;
+		} else {
+			short[] shorts = (short[]) pixels;
+			for (int i = 0; i < shorts.length; i++)
+				buffer[i] = shorts[i] & 0xffff;
+		}
+		return buffer;
+	}
+
+}
@@ -30,6 +30,8 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
 
+import io.MappedVirtualStack;
+
 /**
  * @author mhs1
  *
@@ -90,8 +92,13 @@ public class ExtractVoxelIntensities {
 				// get file path
 				String fileName = k.next();
 				
-				// open file as ImagePlus object
-				ImagePlus img = new ImagePlus(fileName);
+				// open file as a mapped virtual stack, the slices are decoded
+				// one at a time
+				ImagePlus img = MappedVirtualStack.openImagePlus(fileName);
+				if (img == null) {
+					// open file as ImagePlus object
+					img = new ImagePlus(fileName);
+				}
 				
 				int xSize = img.getWidth();
 				int ySize = img.getHeight();
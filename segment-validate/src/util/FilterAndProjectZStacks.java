@@ -31,6 +31,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 
+import io.MappedVirtualStack;
+
+import validation.MultiAxisProjection;
 import validation.OrthogonalProjection;
 
 /**
@@ -95,10 +98,18 @@ public class FilterAndProjectZStacks {
 						
 				// get file path
 				String fileName = k.next();
-				// open file as ImagePlus object
-				ImagePlus img = new ImagePlus(fileName);
-				// print number of slices in image
-				int nSlices = img.getNSlices();
+				// map the file: only the header is read to get the number
+				// of slices, the slices are decoded when they are projected
+				MappedVirtualStack stack = MappedVirtualStack.open(fileName);
+				ImagePlus img = null;
+				int nSlices;
+				if (stack != null) {
+					nSlices = stack.getSize();
+				} else {
+					// open file as ImagePlus object
+					img = new ImagePlus(fileName);
+					nSlices = img.getNSlices();
+				}
 				if(nSlices >= zFrameMin && nSlices <= zFramesMax) {
 					String zStackName = fileName.substring(
 							fileName.lastIndexOf(File.separatorChar) + 1,
@@ -108,9 +119,19 @@ public class FilterAndProjectZStacks {
 					writer.append('\n');
 					
 					// compute projection sizes and result image size
-					ImagePlus projectionXY = OrthogonalProjection.projectionXY(img, OrthogonalProjection.projectionType_Max);
-					ImagePlus projectionXZ = OrthogonalProjection.projectionXZ(img, OrthogonalProjection.projectionType_Max);
-					ImagePlus projectionZY = OrthogonalProjection.projectionZY(img, OrthogonalProjection.projectionType_Max);
+					// (the three projections are computed in one pass over
+					// the slices)
+					MultiAxisProjection projections;
+					if (stack != null)
+						projections = new MultiAxisProjection(stack, null);
+					else
+						projections = new MultiAxisProjection(img);
+					ImagePlus projectionXY = projections.getProjectionXY(
+							OrthogonalProjection.projectionType_Max, 8);
+					ImagePlus projectionXZ = projections.getProjectionXZ(
+							OrthogonalProjection.projectionType_Max, 8);
+					ImagePlus projectionZY = projections.getProjectionZY(
+							OrthogonalProjection.projectionType_Max, 8);
 					int widthXY = projectionXY.getWidth();
 					int heightXY = projectionXY.getHeight();
 					int widthXZ = projectionXZ.getWidth();
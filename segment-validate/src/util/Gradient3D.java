@@ -21,6 +21,7 @@
 package util;
 
 import java.io.File;
+import java.io.IOException;
 
 import segment3D.Segment3DImage;
 import ij.IJ;
@@ -28,21 +29,72 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.process.FloatProcessor;
-import io.Fits3DWriter;
+import ij.process.ShortProcessor;
+import io.FitsStreamWriter;
 import io.Nifti_Writer;
 
 /**
  * This class came from imageJ/Fiji plugin
  * URL: https://github.com/fiji/VIB-lib/blob/master/src/main/java/process3d/
  * 
+ * The central differences along x, y and z and the output value (magnitude,
+ * squared magnitude or direction of the gradient) are computed in one parallel
+ * pass over the slices, each thread keeping the float values of the three
+ * slices it needs, and written to a single output volume. The values are the
+ * same as with three Convolve3D passes (values outside of the stack are 0).
+ * 
  * @author pnb
  *
  */
 
 public class Gradient3D {
 
+	// value written in the output volume
+	public static final int OUTPUT_MAGNITUDE = 0;
+	public static final int OUTPUT_SQUARED_MAGNITUDE = 1;
+	// angle of the gradient in the xy plane, atan2(g_y, g_x), in radians
+	public static final int OUTPUT_AZIMUTH = 2;
+	// angle of the gradient with the xy plane, in radians
+	public static final int OUTPUT_ELEVATION = 3;
+
 	public static ImagePlus calculateGrad(ImagePlus imp, boolean useCalib) {
+		return calculateGrad(imp, useCalib, OUTPUT_MAGNITUDE, 32, 1.0);
+	}
+
+	/**
+	 * Computes the gradient of a z-stack in one pass
+	 * 
+	 * @param imp
+	 *            - 8-bits, 16-bits or 32-bits z-stack
+	 * @param useCalib
+	 *            - true to use the voxel size of the calibration as spacing,
+	 *            false to use 1
+	 * @param output
+	 *            - OUTPUT_MAGNITUDE, OUTPUT_SQUARED_MAGNITUDE, OUTPUT_AZIMUTH
+	 *            or OUTPUT_ELEVATION
+	 * @param outputBitDepth
+	 *            - 32 (float values) or 16 (values multiplied by the scale,
+	 *            rounded and clamped to [0, 65535]). The 16-bits angles are
+	 *            offset by pi before scaling, (angle + pi) * scale, so that
+	 *            the range [-pi, pi] is not clamped at 0
+	 * @param scale
+	 *            - scale of the 16-bits values (not used for 32 bits)
+	 * @return the output volume with the calibration of the input
+	 */
+	public static ImagePlus calculateGrad(ImagePlus imp, boolean useCalib,
+			final int output, final int outputBitDepth, final double scale) {
+		
+		if (output < OUTPUT_MAGNITUDE || output > OUTPUT_ELEVATION)
+			throw new IllegalArgumentException("unknown gradient output "
+					+ output);
+		if (outputBitDepth != 16 && outputBitDepth != 32)
+			throw new IllegalArgumentException(
+					"Only 16-bits or 32-bits outputs are supported");
 		
+		// the angles are in [-pi, pi], shifted to positive 16-bits values
+		final double offset = (output == OUTPUT_AZIMUTH
+				|| output == OUTPUT_ELEVATION) ? Math.PI : 0.0;
+
 		//IJ.showStatus("Calculating gradient");
 		System.out.println("Computing 3D gradient");
 
@@ -51,38 +103,133 @@ public class Gradient3D {
 		float dy = useCalib ? 2*(float)c.pixelHeight : 2;
 		float dz = useCalib ? 2*(float)c.pixelDepth : 2;
 
-		float[] H_x = new float[] {-1/dx, 0, 1/dx};
-		ImagePlus g_x = Convolve3D.convolveX(imp, H_x);
+		// weights of the previous and next voxels along each axis
+		final float[] H_x = new float[] {-1/dx, 0, 1/dx};
+		final float[] H_y = new float[] {-1/dy, 0, 1/dy};
+		final float[] H_z = new float[] {-1/dz, 0, 1/dz};
 
-		float[] H_y = new float[] {-1/dy, 0, 1/dy};
-		ImagePlus g_y = Convolve3D.convolveY(imp, H_y);
+		ImageStack stack = imp.getStack();
+		final int w = stack.getWidth(), h = stack.getHeight();
+		final int d = stack.getSize();
+		final Object[] slices = new Object[d];
+		for(int z = 0; z < d; z++) {
+			slices[z] = stack.getPixels(z+1);
+			if (!(slices[z] instanceof byte[]
+					|| slices[z] instanceof short[]
+					|| slices[z] instanceof float[]))
+				throw new IllegalArgumentException(
+						"Only 8-bits, 16-bits or 32-bits stacks are supported");
+		}
+		final Object[] results = new Object[d];
 
-		float[] H_z = new float[] {-1/dz, 0, 1/dz};
-		ImagePlus g_z = Convolve3D.convolveZ(imp, H_z);
+		ParallelLoop.run(0, d, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				// float values of the last three slices (ring)
+				float[][] ring = new float[3][];
+				float[][] ringBuffers = new float[3][];
+				int[] ringIndex = new int[] {-1, -1, -1};
+				float[] values = new float[w*h];
+
+				for(int z = from; z < to; z++) {
+					float[][] planes = new float[3][];
+					for(int k = -1; k <= 1; k++) {
+						int zk = z + k;
+						if(zk < 0 || zk >= d)
+							continue;
+						int slot = zk % 3;
+						if(ringIndex[slot] != zk) {
+							if(ringBuffers[slot] == null
+									&& !(slices[zk] instanceof float[]))
+								ringBuffers[slot] = new float[w*h];
+							ring[slot] = Convolve3DEngine.toFloat(
+									slices[zk], ringBuffers[slot]);
+							ringIndex[slot] = zk;
+						}
+						planes[k+1] = ring[slot];
+					}
+					gradientSlice(planes[0], planes[1], planes[2], w, h,
+							H_x, H_y, H_z, output, values);
+					results[z] = (outputBitDepth == 32) ? values.clone()
+							: toShort(values, offset, scale);
+				}
+			}
+		});
 
-		int w = imp.getWidth(), h = imp.getHeight();
-		int d = imp.getStackSize();
 		ImageStack grad = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
-			FloatProcessor res = new FloatProcessor(w, h);
-			grad.addSlice("", res);
-			float[] values = (float[])res.getPixels();
-			float[] x_ = (float[])g_x.getStack().
-						getProcessor(z+1).getPixels();
-			float[] y_ = (float[])g_y.getStack().
-						getProcessor(z+1).getPixels();
-			float[] z_ = (float[])g_z.getStack().
-						getProcessor(z+1).getPixels();
-			for(int i = 0; i < w*h; i++) {
-				values[i] = (float)Math.sqrt(
-				x_[i]*x_[i] + y_[i]*y_[i] + z_[i]*z_[i]);
-			}
+			if(outputBitDepth == 32)
+				grad.addSlice("", new FloatProcessor(w, h,
+						(float[])results[z], null));
+			else
+				grad.addSlice("", new ShortProcessor(w, h,
+						(short[])results[z], null));
 		}
 		ImagePlus ret = new ImagePlus("Gradient", grad);
 		ret.setCalibration(c);
 		return ret;
 	}
 
+	/**
+	 * Computes the output values of one slice from the slice and its two
+	 * neighbors (null outside of the stack)
+	 */
+	private static void gradientSlice(float[] previous, float[] current,
+			float[] next, int w, int h, float[] H_x, float[] H_y,
+			float[] H_z, int output, float[] values) {
+		for(int y = 0; y < h; y++) {
+			for(int x = 0; x < w; x++) {
+				int i = y*w + x;
+				// sums in the order of the convolution (previous, then next
+				// voxel), the center weight being 0
+				float x_ = 0f;
+				x_ += (x > 0 ? current[i-1] : 0f) * H_x[0];
+				x_ += (x < w-1 ? current[i+1] : 0f) * H_x[2];
+				float y_ = 0f;
+				y_ += (y > 0 ? current[i-w] : 0f) * H_y[0];
+				y_ += (y < h-1 ? current[i+w] : 0f) * H_y[2];
+				float z_ = 0f;
+				z_ += (previous != null ? previous[i] : 0f) * H_z[0];
+				z_ += (next != null ? next[i] : 0f) * H_z[2];
+
+				switch(output) {
+				case OUTPUT_MAGNITUDE:
+					values[i] = (float)Math.sqrt(
+							x_*x_ + y_*y_ + z_*z_);
+					break;
+				case OUTPUT_SQUARED_MAGNITUDE:
+					values[i] = x_*x_ + y_*y_ + z_*z_;
+					break;
+				case OUTPUT_AZIMUTH:
+					values[i] = (float)Math.atan2(y_, x_);
+					break;
+				default:
+					values[i] = (float)Math.atan2(z_,
+							Math.sqrt(x_*x_ + y_*y_));
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the values plus the offset, multiplied by the scale, rounded
+	 *         and clamped to the 16-bits unsigned range
+	 */
+	private static short[] toShort(float[] values, double offset,
+			double scale) {
+		short[] result = new short[values.length];
+		for(int i = 0; i < values.length; i++) {
+			long value = Math.round((values[i] + offset) * scale);
+			if(value < 0)
+				value = 0;
+			else if(value > 65535)
+				value = 65535;
+			result[i] = (short)value;
+		}
+		return result;
+	}
+
 	public static void main(String[] args) {
 		
 		String inputImageFilename = "C:/PeterB/Projects/CarlSimon/ContactProb-test/FiberScaffoldSegmentation/Results/070515_MMF_1_63x_Pos003_OutA2.fits"; 
@@ -104,12 +251,21 @@ public class Gradient3D {
 		// threshold by zero (any gradient larger than 0 will become 1 else 0
 		Segment3DImage segment3DImage = new Segment3DImage(resImage);
 		segment3DImage.thresholdImage(0);		
-		ImagePlus segmentedImage = segment3DImage.generateSegmentedImagePlus();
 		// try to call GC to free unused memory
+		int width = resImage.getWidth();
+		int height = resImage.getHeight();
 		resImage = null;
 		System.gc();
 		
-		Fits3DWriter.write(outputImageFilenameFITS , segmentedImage);
+		// stream the segmented slices to the FITS file
+		try {
+			FitsStreamWriter fitsWriter = FitsStreamWriter.open(outputImageFilenameFITS,
+					width, height, 8, segment3DImage.getCalibration());
+			segment3DImage.writeSegmentedSlices(fitsWriter);
+		} catch (IOException e) {
+			System.err.println("Error writing Fits file.");
+			e.printStackTrace();
+		}
 		
 
 	}
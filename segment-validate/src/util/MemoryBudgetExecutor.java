@@ -0,0 +1,172 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class runs independent tasks (typically the processing of one z-stack
+ * or of one pair of z-stacks) on a fixed number of threads while keeping the
+ * sum of the estimated memory of the running tasks below a budget. A task is
+ * started only when its estimated memory is available; a task larger than the
+ * whole budget runs alone.
+ * 
+ * The tasks are started in the order of the list.
+ * 
+ * @author pnb
+ * 
+ */
+public class MemoryBudgetExecutor {
+
+	private static Log _logger = LogFactory.getLog(MemoryBudgetExecutor.class);
+
+	// fraction of the maximum heap size used as default budget
+	public static final double DEFAULT_BUDGET_FRACTION = 0.8;
+
+	// memory is reserved by blocks of one megabyte
+	private static final long BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Task with an estimate of the memory it needs while running
+	 */
+	public interface Task {
+		public long getEstimatedMemory();
+
+		public void run() throws Exception;
+	}
+
+	private int numberOfThreads;
+	private int budgetBlocks;
+
+	/**
+	 * Creates an executor using all the processors and the default budget
+	 */
+	public MemoryBudgetExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), defaultBudget());
+	}
+
+	/**
+	 * @param numberOfThreads
+	 *            - maximum number of tasks running at the same time
+	 * @param budget
+	 *            - memory budget in bytes
+	 */
+	public MemoryBudgetExecutor(int numberOfThreads, long budget) {
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+		this.budgetBlocks = (int) Math.max(1,
+				Math.min(Integer.MAX_VALUE, budget / BLOCK_SIZE));
+	}
+
+	/**
+	 * @return DEFAULT_BUDGET_FRACTION of the maximum heap size in bytes
+	 */
+	public static long defaultBudget() {
+		return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION);
+	}
+
+	private int blocks(Task task) {
+		long estimate = task.getEstimatedMemory();
+		long blocks = (estimate + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		return (int) Math.max(1, Math.min(budgetBlocks, blocks));
+	}
+
+	/**
+	 * Runs all the tasks and waits for their completion. A failing task is
+	 * logged and does not stop the other tasks.
+	 * 
+	 * @param tasks
+	 *            - tasks to run
+	 * @return the number of tasks that failed
+	 */
+	public int runAll(List<? extends Task> tasks) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				numberOfThreads, Math.max(1, tasks.size())));
+		final Semaphore memory = new Semaphore(budgetBlocks, true);
+		final AtomicInteger failures = new AtomicInteger(0);
+		List<Task> notStarted = new ArrayList<Task>();
+
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				final Task task = tasks.get(i);
+				final int blocks = blocks(task);
+				try {
+					// wait for the memory in the submitting thread so that the
+					// tasks are started in the order of the list
+					memory.acquire(blocks);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					notStarted.addAll(tasks.subList(i, tasks.size()));
+					break;
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} catch (Throwable e) {
+							failures.incrementAndGet();
+							_logger.error("task failed: " + e.getMessage(), e);
+						} finally {
+							memory.release(blocks);
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				_logger.debug("waiting for the running tasks ...");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (!notStarted.isEmpty()) {
+			_logger.error("interrupted: " + notStarted.size()
+					+ " tasks were not started");
+		}
+		return failures.get() + notStarted.size();
+	}
+
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * @return the memory budget in bytes
+	 */
+	public long getBudget() {
+		return budgetBlocks * BLOCK_SIZE;
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * This class writes the rows of a table (typically the rows of a CSV file)
+ * computed concurrently by several tasks, in the order of their index. A row
+ * is given as soon as it is computed; the rows following the last written row
+ * without gap are then written and flushed, so that only the rows computed
+ * ahead of a slower row are kept in memory and a crash loses only the rows
+ * not yet written.
+ * 
+ * @author pnb
+ * 
+ */
+public class OrderedRowWriter {
+
+	private Appendable output;
+	private char newline;
+	private String[] rows;
+	private boolean[] done;
+	// index of the next row to write
+	private int next;
+
+	/**
+	 * @param output
+	 *            - destination of the rows (flushed after each group of rows
+	 *            if it is Flushable)
+	 * @param numberOfRows
+	 *            - number of rows of the table
+	 * @param newline
+	 *            - character appended after each row
+	 */
+	public OrderedRowWriter(Appendable output, int numberOfRows, char newline) {
+		this.output = output;
+		this.newline = newline;
+		this.rows = new String[numberOfRows];
+		this.done = new boolean[numberOfRows];
+	}
+
+	/**
+	 * Gives the row of an index and writes the rows ready in order
+	 * 
+	 * @param index
+	 *            - index of the row (zero-based)
+	 * @param row
+	 *            - the row without the newline, or null if the row is
+	 *            skipped
+	 * @throws IOException
+	 */
+	public synchronized void setRow(int index, String row) throws IOException {
+		if (done[index])
+			throw new IllegalStateException("row " + index
+					+ " was already given");
+		rows[index] = row;
+		done[index] = true;
+		writeReadyRows();
+	}
+
+	/**
+	 * Writes the rows given so far, in order, skipping the rows that were
+	 * never given (tasks that did not run)
+	 * 
+	 * @return the number of skipped rows
+	 * @throws IOException
+	 */
+	public synchronized int writeRemainingRows() throws IOException {
+		int skipped = 0;
+		for (int i = next; i < done.length; i++) {
+			if (!done[i]) {
+				done[i] = true;
+				skipped++;
+			}
+		}
+		writeReadyRows();
+		return skipped;
+	}
+
+	/**
+	 * @return the number of rows written or skipped so far
+	 */
+	public synchronized int getWrittenCount() {
+		return next;
+	}
+
+	private void writeReadyRows() throws IOException {
+		int first = next;
+		while (next < done.length && done[next]) {
+			if (rows[next] != null) {
+				output.append(rows[next]);
+				output.append(newline);
+				rows[next] = null;
+			}
+			next++;
+		}
+		if (next > first && output instanceof Flushable)
+			((Flushable) output).flush();
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This is a class for running the iterations of a loop over an index range
+ * (typically the slices of a z-stack) on all the available processors. The
+ * range is split into contiguous chunks, each chunk being processed by one
+ * thread so that per-thread buffers can be allocated once per chunk.
+ * 
+ * Calls made from a thread of the pool are run in the calling thread to avoid
+ * dead locks when parallel loops are nested.
+ * 
+ * @author pnb
+ * 
+ */
+public class ParallelLoop {
+
+	/**
+	 * Body of a parallel loop, processing the indices from (inclusive) to
+	 * (exclusive)
+	 */
+	public interface Body {
+		public void run(int from, int to) throws Exception;
+	}
+
+	private static ExecutorService pool = null;
+	private static int numberOfThreads = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * Thread of the pool (daemon thread so that the pool never prevents the
+	 * JVM from exiting)
+	 */
+	private static class WorkerThread extends Thread {
+		public WorkerThread(Runnable r, int index) {
+			super(r, "ParallelLoop-" + index);
+			setDaemon(true);
+		}
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(numberOfThreads,
+					new ThreadFactory() {
+						private int count = 0;
+
+						@Override
+						public synchronized Thread newThread(Runnable r) {
+							return new WorkerThread(r, count++);
+						}
+					});
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the number of threads used by parallel loops
+	 */
+	public static int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * Runs the body over the range [from, to) split in at most
+	 * getNumberOfThreads() chunks and waits for all the chunks to be processed
+	 * 
+	 * @param from
+	 *            - first index (inclusive)
+	 * @param to
+	 *            - last index (exclusive)
+	 * @param body
+	 *            - loop body
+	 * @throws RuntimeException
+	 *             if the body throws an exception (the exception is the
+	 *             cause)
+	 */
+	public static void run(int from, int to, Body body) {
+		run(from, to, numberOfThreads, body);
+	}
+
+	/**
+	 * Runs the body over the range [from, to) split in at most numberOfChunks
+	 * chunks and waits for all the chunks to be processed
+	 * 
+	 * @param from
+	 *            - first index (inclusive)
+	 * @param to
+	 *            - last index (exclusive)
+	 * @param numberOfChunks
+	 *            - maximum number of chunks
+	 * @param body
+	 *            - loop body
+	 * @throws RuntimeException
+	 *             if the body throws an exception (the exception is the
+	 *             cause)
+	 */
+	public static void run(int from, int to, int numberOfChunks,
+			final Body body) {
+		int length = to - from;
+		if (length <= 0)
+			return;
+		int chunks = Math.max(1, Math.min(numberOfChunks, length));
+
+		// sequential execution (single chunk or nested parallel loop)
+		if (chunks == 1 || Thread.currentThread() instanceof WorkerThread) {
+			try {
+				body.run(from, to);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+
+		ExecutorService executor = getPool();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int chunkFrom = from + (int) ((long) length * c / chunks);
+			final int chunkTo = from + (int) ((long) length * (c + 1) / chunks);
+			futures.add(executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					body.run(chunkFrom, chunkTo);
+					return null;
+				}
+			}));
+		}
+
+		// wait for all the chunks, keep the first failure
+		Throwable failure = null;
+		for (Future<Object> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+}
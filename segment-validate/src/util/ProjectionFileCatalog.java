@@ -0,0 +1,222 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class indexes once the files of the sub-directories of a folder (for
+ * example the folders of the auto segmented projections, one sub-directory per
+ * configuration) by projection type and by stack name, so that the files to
+ * compare with each reference file are found without listing the directories
+ * again.
+ * 
+ * The projection type of a file is the end of its name from the last '_',
+ * without the extension (i.e., "_maxXY" for "A10_seg_maxXY.tif"), and its
+ * stack name is the rest of the name (i.e., "A10_seg"). The files are kept in
+ * the order of the listing of the directories.
+ * 
+ * @author pnb
+ * 
+ */
+public class ProjectionFileCatalog {
+
+	private static Log _logger = LogFactory.getLog(ProjectionFileCatalog.class);
+
+	private String extension;
+	// projection type -> files, in the order of the listing
+	private Map<String, List<String>> filesByType = new LinkedHashMap<String, List<String>>();
+	// projection type -> stack name -> files
+	private Map<String, Map<String, List<String>>> filesByTypeAndStack = new LinkedHashMap<String, Map<String, List<String>>>();
+	private int numberOfFiles = 0;
+
+	/**
+	 * Lists the sub-directories of a folder and the files of each
+	 * sub-directory (one listing per directory)
+	 * 
+	 * @param rootDir
+	 *            - folder containing the sub-directories
+	 * @param extension
+	 *            - extension of the indexed files, i.e., ".tif" (other files
+	 *            are ignored)
+	 */
+	public ProjectionFileCatalog(String rootDir, String extension) {
+		this.extension = extension;
+		Collection<String> subDirs = FileOper.readSubDirectories(rootDir);
+		if (subDirs == null) {
+			_logger.error("no sub directory indexed in " + rootDir);
+			return;
+		}
+		for (Iterator<String> k = subDirs.iterator(); k.hasNext();) {
+			Collection<String> files = FileOper.readFileDirectory(k.next());
+			if (files != null)
+				addFiles(files);
+		}
+		_logger.info("indexed " + numberOfFiles + " files in " + subDirs.size()
+				+ " directories of " + rootDir);
+	}
+
+	/**
+	 * Indexes files already listed
+	 * 
+	 * @param files
+	 *            - file names (with path)
+	 * @param extension
+	 *            - extension of the indexed files, i.e., ".tif" (other files
+	 *            are ignored)
+	 */
+	public ProjectionFileCatalog(Collection<String> files, String extension) {
+		this.extension = extension;
+		addFiles(files);
+	}
+
+	private void addFiles(Collection<String> files) {
+		for (Iterator<String> k = files.iterator(); k.hasNext();) {
+			String fileName = k.next();
+			String type = projectionType(fileName, extension);
+			if (type == null)
+				continue;
+			List<String> typeFiles = filesByType.get(type);
+			if (typeFiles == null) {
+				typeFiles = new ArrayList<String>();
+				filesByType.put(type, typeFiles);
+				filesByTypeAndStack.put(type,
+						new LinkedHashMap<String, List<String>>());
+			}
+			typeFiles.add(fileName);
+
+			Map<String, List<String>> byStack = filesByTypeAndStack.get(type);
+			String stack = stackName(fileName, extension);
+			List<String> stackFiles = byStack.get(stack);
+			if (stackFiles == null) {
+				stackFiles = new ArrayList<String>();
+				byStack.put(stack, stackFiles);
+			}
+			stackFiles.add(fileName);
+			numberOfFiles++;
+		}
+	}
+
+	/**
+	 * @param fileName
+	 *            - file name with or without path
+	 * @param extension
+	 *            - file extension, i.e., ".tif"
+	 * @return the projection type of the file (i.e., "_maxXY"), or null if
+	 *         the file does not have the extension or a projection type
+	 */
+	public static String projectionType(String fileName, String extension) {
+		String name = new File(fileName).getName();
+		if (!name.endsWith(extension))
+			return null;
+		name = name.substring(0, name.length() - extension.length());
+		int index = name.lastIndexOf('_');
+		if (index < 0)
+			return null;
+		return name.substring(index);
+	}
+
+	/**
+	 * @param fileName
+	 *            - file name with or without path
+	 * @param extension
+	 *            - file extension, i.e., ".tif"
+	 * @return the stack name of the file (name without the projection type
+	 *         and the extension), or null if the file does not have the
+	 *         extension or a projection type
+	 */
+	public static String stackName(String fileName, String extension) {
+		String type = projectionType(fileName, extension);
+		if (type == null)
+			return null;
+		String name = new File(fileName).getName();
+		return name.substring(0,
+				name.length() - extension.length() - type.length());
+	}
+
+	/**
+	 * @param projectionType
+	 *            - projection type, i.e., "_maxXY"
+	 * @return the files of this projection type (empty list if none)
+	 */
+	public List<String> getFiles(String projectionType) {
+		List<String> files = filesByType.get(projectionType);
+		if (files == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * @param projectionType
+	 *            - projection type, i.e., "_maxXY"
+	 * @param stackName
+	 *            - stack name, i.e., "A10_seg"
+	 * @return the files of this projection type and of this stack (empty list
+	 *         if none)
+	 */
+	public List<String> getFiles(String projectionType, String stackName) {
+		Map<String, List<String>> byStack = filesByTypeAndStack
+				.get(projectionType);
+		List<String> files = (byStack == null) ? null : byStack.get(stackName);
+		if (files == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * @return the projection types found
+	 */
+	public Set<String> getProjectionTypes() {
+		return Collections.unmodifiableSet(filesByType.keySet());
+	}
+
+	/**
+	 * @param projectionType
+	 *            - projection type, i.e., "_maxXY"
+	 * @return the stack names found for this projection type
+	 */
+	public Set<String> getStackNames(String projectionType) {
+		Map<String, List<String>> byStack = filesByTypeAndStack
+				.get(projectionType);
+		if (byStack == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(byStack.keySet());
+	}
+
+	/**
+	 * @return the number of indexed files
+	 */
+	public int size() {
+		return numberOfFiles;
+	}
+
+}
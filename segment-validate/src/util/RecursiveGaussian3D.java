@@ -0,0 +1,439 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/**
+ * This class smooths z-stacks with a recursive (IIR) approximation of the
+ * Gaussian filter (Young and van Vliet, 1995), with one sigma per axis given
+ * in physical units (calibration of the stack). The cost per voxel does not
+ * depend on the sigma.
+ * 
+ * Each line is filtered by a third order causal pass followed by a third
+ * order anti-causal pass. The values outside of the stack are the values of
+ * the border voxels (constant extension); the initial state of the
+ * anti-causal pass is exact for this extension (Triggs and Sdika, 2006, the
+ * 3x3 matrix being computed numerically once per axis).
+ * 
+ * The derivatives are not recursive derivative filters: the first and second
+ * derivatives along an axis are the central differences (y[n+1] - y[n-1]) / 2h
+ * and (y[n+1] - 2 y[n] + y[n-1]) / h^2 of the smoothed line, the border
+ * values being replicated (y[-1] = y[0] and y[N] = y[N-1]). Mixed derivatives
+ * (Hessian) are obtained by giving an order per axis.
+ * 
+ * The x pass filters the rows of each slice, the y and z passes filter all
+ * the columns of a slice (or all the rows at a given y) at the same time, so
+ * that the memory is always read row by row. The passes are done in place on
+ * the 32-bits output volume, in parallel over the slices (x and y) or over the
+ * rows (z). The x pass keeps the line in doubles until the derivative is
+ * written, whereas the y and z passes store the causal and anti-causal outputs
+ * in the float volume (the states of the recursion being doubles), so that
+ * the three axes can differ by the float rounding.
+ * 
+ * @author pnb
+ * 
+ */
+public class RecursiveGaussian3D {
+
+	// smallest sigma (in voxels) supported by the Young - van Vliet formulas
+	public static final double MIN_SIGMA = 0.5;
+
+	/**
+	 * Coefficients of the recursive filter along one axis
+	 */
+	private static class Coefficients {
+		// y[n] = B x[n] + a1 y[n-1] + a2 y[n-2] + a3 y[n-3]
+		double B, a1, a2, a3;
+		// deviations of y[N], y[N+1], y[N+2] from the border value as a
+		// function of the deviations of the causal output w[N-3], w[N-2],
+		// w[N-1]
+		double[][] M = new double[3][3];
+		// spacing of the samples (physical units)
+		double spacing;
+		// derivative order (0, 1 or 2)
+		int order;
+	}
+
+	/**
+	 * Smooths a z-stack
+	 * 
+	 * @param image
+	 *            - 8-bits, 16-bits or 32-bits z-stack
+	 * @param sigmaX
+	 *            - sigma along x in physical units (0: no smoothing)
+	 * @param sigmaY
+	 *            - sigma along y in physical units (0: no smoothing)
+	 * @param sigmaZ
+	 *            - sigma along z in physical units (0: no smoothing)
+	 * @return the 32-bits smoothed z-stack with the calibration of the input
+	 */
+	public static ImagePlus smooth(ImagePlus image, double sigmaX,
+			double sigmaY, double sigmaZ) {
+		return derivative(image, sigmaX, sigmaY, sigmaZ, 0, 0, 0);
+	}
+
+	/**
+	 * Computes a derivative of the smoothed z-stack, i.e., derivative(image,
+	 * s, s, s, 1, 0, 0) for the first derivative along x and derivative(image,
+	 * s, s, s, 1, 1, 0) for the second derivative along x and y
+	 * 
+	 * @param image
+	 *            - 8-bits, 16-bits or 32-bits z-stack
+	 * @param sigmaX
+	 *            - sigma along x in physical units (0: no smoothing)
+	 * @param sigmaY
+	 *            - sigma along y in physical units (0: no smoothing)
+	 * @param sigmaZ
+	 *            - sigma along z in physical units (0: no smoothing)
+	 * @param orderX
+	 *            - derivative order along x (0, 1 or 2)
+	 * @param orderY
+	 *            - derivative order along y (0, 1 or 2)
+	 * @param orderZ
+	 *            - derivative order along z (0, 1 or 2)
+	 * @return the 32-bits derivative (per physical unit) with the calibration
+	 *         of the input
+	 */
+	public static ImagePlus derivative(ImagePlus image, double sigmaX,
+			double sigmaY, double sigmaZ, int orderX, int orderY, int orderZ) {
+		ImageStack stack = image.getStack();
+		int w = stack.getWidth();
+		int h = stack.getHeight();
+		Object[] slices = new Object[stack.getSize()];
+		for (int z = 0; z < slices.length; z++)
+			slices[z] = stack.getPixels(z + 1);
+		Calibration cal = image.getCalibration();
+
+		float[][] result = filter(slices, w, h, new double[] { cal.pixelWidth,
+				cal.pixelHeight, cal.pixelDepth }, new double[] { sigmaX,
+				sigmaY, sigmaZ }, new int[] { orderX, orderY, orderZ });
+
+		ImageStack resultStack = new ImageStack(w, h);
+		for (int z = 0; z < result.length; z++)
+			resultStack.addSlice("", new FloatProcessor(w, h, result[z], null));
+		ImagePlus resultImage = new ImagePlus("", resultStack);
+		resultImage.setCalibration(cal);
+		return resultImage;
+	}
+
+	/**
+	 * Filters a z-stack given as slices
+	 * 
+	 * @param slices
+	 *            - pixels of the slices (byte[], short[] or float[]), not
+	 *            modified
+	 * @param width
+	 *            - width of the slices
+	 * @param height
+	 *            - height of the slices
+	 * @param spacing
+	 *            - size of a voxel along x, y and z
+	 * @param sigma
+	 *            - sigmas along x, y and z in physical units (0: no smoothing,
+	 *            else at least MIN_SIGMA voxels)
+	 * @param order
+	 *            - derivative orders along x, y and z (0, 1 or 2)
+	 * @return the pixels of the filtered slices
+	 */
+	public static float[][] filter(final Object[] slices, final int width,
+			final int height, double[] spacing, double[] sigma, int[] order) {
+		final Coefficients[] axes = new Coefficients[3];
+		String[] names = { "x", "y", "z" };
+		for (int a = 0; a < 3; a++) {
+			if (order[a] < 0 || order[a] > 2)
+				throw new IllegalArgumentException("the derivative order along "
+						+ names[a] + " must be 0, 1 or 2");
+			double sigmaVoxels = sigma[a] / spacing[a];
+			if (sigma[a] != 0 && !(sigmaVoxels >= MIN_SIGMA))
+				throw new IllegalArgumentException("the sigma along "
+						+ names[a] + " must be 0 or at least " + MIN_SIGMA
+						+ " voxel (" + sigmaVoxels + ")");
+			axes[a] = (sigma[a] == 0) ? null : coefficients(sigmaVoxels);
+			if (axes[a] == null && order[a] != 0)
+				axes[a] = identity();
+			if (axes[a] != null) {
+				axes[a].spacing = spacing[a];
+				axes[a].order = order[a];
+			}
+		}
+
+		final int d = slices.length;
+		final float[][] result = new float[d][];
+		// x and y passes, slice by slice
+		ParallelLoop.run(0, d, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				double[] line = new double[width];
+				Lines lines = new Lines(width);
+				for (int z = from; z < to; z++) {
+					float[] values = new float[width * height];
+					if (slices[z] instanceof float[])
+						System.arraycopy(slices[z], 0, values, 0, values.length);
+					else
+						Convolve3DEngine.toFloat(slices[z], values);
+					if (axes[0] != null) {
+						for (int y = 0; y < height; y++)
+							filterLine(values, y * width, width, axes[0], line);
+					}
+					if (axes[1] != null) {
+						float[][] rows = new float[height][];
+						int[] offsets = new int[height];
+						for (int y = 0; y < height; y++) {
+							rows[y] = values;
+							offsets[y] = y * width;
+						}
+						lines.filter(rows, offsets, axes[1]);
+					}
+					result[z] = values;
+				}
+			}
+		});
+		// z pass, row by row
+		if (axes[2] != null) {
+			ParallelLoop.run(0, height, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) {
+					Lines lines = new Lines(width);
+					int[] offsets = new int[d];
+					for (int y = from; y < to; y++) {
+						for (int z = 0; z < d; z++)
+							offsets[z] = y * width;
+						lines.filter(result, offsets, axes[2]);
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the coefficients of the Young - van Vliet filter
+	 * 
+	 * @param sigma
+	 *            - sigma in voxels (at least MIN_SIGMA)
+	 */
+	private static Coefficients coefficients(double sigma) {
+		double q;
+		if (sigma >= 2.5)
+			q = 0.98711 * sigma - 0.96330;
+		else
+			q = 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+		double q2 = q * q;
+		double q3 = q2 * q;
+		double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		double b2 = -(1.4281 * q2 + 1.26661 * q3);
+		double b3 = 0.422205 * q3;
+
+		Coefficients c = new Coefficients();
+		c.a1 = b1 / b0;
+		c.a2 = b2 / b0;
+		c.a3 = b3 / b0;
+		c.B = 1 - (c.a1 + c.a2 + c.a3);
+
+		// initial state of the anti-causal pass: response to the deviations
+		// of the last three causal outputs, the input being constant after
+		// the end of the line (the deviations decay like exp(-n / q))
+		int length = (int) Math.ceil(40 * q) + 100;
+		double[] e = new double[length + 6];
+		double[] back = new double[length + 6];
+		for (int j = 0; j < 3; j++) {
+			for (int n = 0; n < e.length; n++) {
+				e[n] = 0;
+				back[n] = 0;
+			}
+			// e[0], e[1], e[2] are the deviations of w[N-3], w[N-2], w[N-1]
+			e[j] = 1;
+			for (int n = 3; n < length + 3; n++)
+				e[n] = c.a1 * e[n - 1] + c.a2 * e[n - 2] + c.a3 * e[n - 3];
+			for (int n = length + 2; n >= 3; n--)
+				back[n] = c.B * e[n] + c.a1 * back[n + 1] + c.a2 * back[n + 2]
+						+ c.a3 * back[n + 3];
+			for (int i = 0; i < 3; i++)
+				c.M[i][j] = back[3 + i];
+		}
+		return c;
+	}
+
+	/**
+	 * @return coefficients leaving the values unchanged (derivative along an
+	 *         axis without smoothing)
+	 */
+	private static Coefficients identity() {
+		Coefficients c = new Coefficients();
+		c.B = 1;
+		return c;
+	}
+
+	/**
+	 * Filters one line of contiguous values in place
+	 */
+	private static void filterLine(float[] values, int offset, int n,
+			Coefficients c, double[] line) {
+		for (int i = 0; i < n; i++)
+			line[i] = values[offset + i];
+		double u = line[n - 1];
+		// causal pass, the values before the line being line[0]
+		double w1 = line[0], w2 = line[0], w3 = line[0];
+		for (int i = 0; i < n; i++) {
+			double v = c.B * line[i] + c.a1 * w1 + c.a2 * w2 + c.a3 * w3;
+			line[i] = v;
+			w3 = w2;
+			w2 = w1;
+			w1 = v;
+		}
+		// anti-causal pass
+		double e1 = w1 - u, e2 = w2 - u, e3 = w3 - u;
+		double y1 = u + c.M[0][0] * e3 + c.M[0][1] * e2 + c.M[0][2] * e1;
+		double y2 = u + c.M[1][0] * e3 + c.M[1][1] * e2 + c.M[1][2] * e1;
+		double y3 = u + c.M[2][0] * e3 + c.M[2][1] * e2 + c.M[2][2] * e1;
+		for (int i = n - 1; i >= 0; i--) {
+			double v = c.B * line[i] + c.a1 * y1 + c.a2 * y2 + c.a3 * y3;
+			line[i] = v;
+			y3 = y2;
+			y2 = y1;
+			y1 = v;
+		}
+		// derivative
+		for (int i = 0; i < n; i++) {
+			double previous = line[Math.max(i - 1, 0)];
+			double next = line[Math.min(i + 1, n - 1)];
+			values[offset + i] = (float) derivative(previous, line[i], next,
+					c);
+		}
+	}
+
+	private static double derivative(double previous, double current,
+			double next, Coefficients c) {
+		switch (c.order) {
+		case 1:
+			return (next - previous) / (2 * c.spacing);
+		case 2:
+			return (next - 2 * current + previous) / (c.spacing * c.spacing);
+		default:
+			return current;
+		}
+	}
+
+	/**
+	 * Filters several lines at the same time: the value n of all the lines
+	 * is stored contiguously in rows[n] from offsets[n]. The outputs of the
+	 * causal pass are stored as floats in the rows (inputs of the
+	 * anti-causal pass), unlike filterLine which keeps doubles.
+	 */
+	private static class Lines {
+		private int m;
+		private double[] w1, w2, w3, first, last, previous, current;
+
+		Lines(int m) {
+			this.m = m;
+			w1 = new double[m];
+			w2 = new double[m];
+			w3 = new double[m];
+			first = new double[m];
+			last = new double[m];
+			previous = new double[m];
+			current = new double[m];
+		}
+
+		void filter(float[][] rows, int[] offsets, Coefficients c) {
+			int n = rows.length;
+			float[] row = rows[0];
+			int offset = offsets[0];
+			for (int i = 0; i < m; i++) {
+				first[i] = row[offset + i];
+				w1[i] = first[i];
+				w2[i] = first[i];
+				w3[i] = first[i];
+			}
+			row = rows[n - 1];
+			offset = offsets[n - 1];
+			for (int i = 0; i < m; i++)
+				last[i] = row[offset + i];
+
+			// causal pass
+			for (int k = 0; k < n; k++) {
+				row = rows[k];
+				offset = offsets[k];
+				// w3 receives the new values
+				for (int i = 0; i < m; i++) {
+					double v = c.B * row[offset + i] + c.a1 * w1[i] + c.a2
+							* w2[i] + c.a3 * w3[i];
+					row[offset + i] = (float) v;
+					w3[i] = v;
+				}
+				double[] t = w3;
+				w3 = w2;
+				w2 = w1;
+				w1 = t;
+			}
+
+			// anti-causal pass (w1, w2, w3 become y1, y2, y3)
+			for (int i = 0; i < m; i++) {
+				double u = last[i];
+				double e1 = w1[i] - u, e2 = w2[i] - u, e3 = w3[i] - u;
+				w1[i] = u + c.M[0][0] * e3 + c.M[0][1] * e2 + c.M[0][2] * e1;
+				w2[i] = u + c.M[1][0] * e3 + c.M[1][1] * e2 + c.M[1][2] * e1;
+				w3[i] = u + c.M[2][0] * e3 + c.M[2][1] * e2 + c.M[2][2] * e1;
+			}
+			for (int k = n - 1; k >= 0; k--) {
+				row = rows[k];
+				offset = offsets[k];
+				for (int i = 0; i < m; i++) {
+					double v = c.B * row[offset + i] + c.a1 * w1[i] + c.a2
+							* w2[i] + c.a3 * w3[i];
+					row[offset + i] = (float) v;
+					w3[i] = v;
+				}
+				double[] t = w3;
+				w3 = w2;
+				w2 = w1;
+				w1 = t;
+			}
+
+			if (c.order == 0)
+				return;
+			// derivative, the smoothed values of the previous position being
+			// kept before they are overwritten
+			for (int i = 0; i < m; i++)
+				previous[i] = rows[0][offsets[0] + i];
+			for (int k = 0; k < n; k++) {
+				row = rows[k];
+				offset = offsets[k];
+				float[] nextRow = rows[Math.min(k + 1, n - 1)];
+				int nextOffset = offsets[Math.min(k + 1, n - 1)];
+				for (int i = 0; i < m; i++) {
+					current[i] = row[offset + i];
+					row[offset + i] = (float) derivative(previous[i],
+							current[i], nextRow[nextOffset + i], c);
+				}
+				double[] t = previous;
+				previous = current;
+				current = t;
+			}
+		}
+	}
+
+}
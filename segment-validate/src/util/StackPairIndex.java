@@ -0,0 +1,196 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class pairs the files of two folders (for example the fiber scaffold
+ * stacks and the cell segmentation stacks) by their stack name, i.e., the file
+ * name without the folder and without the file extension. The pairing is done
+ * once when the index is created and does not depend on the order or on the
+ * number of files in the two folders.
+ * 
+ * Files with the expected extension but without a partner in the other folder,
+ * and files sharing a stack name with another file of the same folder, are
+ * reported as unmatched.
+ * 
+ * @author pnb
+ * 
+ */
+public class StackPairIndex {
+
+	private static Log _logger = LogFactory.getLog(StackPairIndex.class);
+
+	/**
+	 * Pair of files sharing the same stack name
+	 */
+	public static class Pair {
+		private String key;
+		private String firstFile;
+		private String secondFile;
+
+		public Pair(String key, String firstFile, String secondFile) {
+			this.key = key;
+			this.firstFile = firstFile;
+			this.secondFile = secondFile;
+		}
+
+		/**
+		 * @return the stack name shared by the two files
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public String getFirstFile() {
+			return firstFile;
+		}
+
+		public String getSecondFile() {
+			return secondFile;
+		}
+	}
+
+	private List<Pair> pairs = new ArrayList<Pair>();
+	private List<String> unmatchedFirstFiles = new ArrayList<String>();
+	private List<String> unmatchedSecondFiles = new ArrayList<String>();
+
+	/**
+	 * Builds the pairs of files
+	 * 
+	 * @param firstFiles
+	 *            - file names (with path) of the first folder
+	 * @param firstExtension
+	 *            - extension of the first files, i.e., "nii" (other files are
+	 *            ignored)
+	 * @param secondFiles
+	 *            - file names (with path) of the second folder
+	 * @param secondExtension
+	 *            - extension of the second files, i.e., "fits" (other files
+	 *            are ignored)
+	 */
+	public StackPairIndex(Collection<String> firstFiles, String firstExtension,
+			Collection<String> secondFiles, String secondExtension) {
+
+		Map<String, String> firstByKey = indexByKey(firstFiles,
+				firstExtension, unmatchedFirstFiles);
+		Map<String, String> secondByKey = indexByKey(secondFiles,
+				secondExtension, unmatchedSecondFiles);
+
+		// the keys are sorted, the pairs are listed in ascending order of the
+		// stack names
+		for (Iterator<Map.Entry<String, String>> k = firstByKey.entrySet()
+				.iterator(); k.hasNext();) {
+			Map.Entry<String, String> entry = k.next();
+			String secondFile = secondByKey.remove(entry.getKey());
+			if (secondFile == null) {
+				unmatchedFirstFiles.add(entry.getValue());
+			} else {
+				pairs.add(new Pair(entry.getKey(), entry.getValue(), secondFile));
+			}
+		}
+		unmatchedSecondFiles.addAll(secondByKey.values());
+		Collections.sort(unmatchedFirstFiles);
+		Collections.sort(unmatchedSecondFiles);
+	}
+
+	/**
+	 * Returns the stack name of a file, i.e., the file name without the folder
+	 * and without the extension. The comparison of stack names is not case
+	 * sensitive (the data reside on Windows file shares).
+	 * 
+	 * @param fileName
+	 *            - file name with or without path
+	 * @param extension
+	 *            - file extension without the dot, i.e., "nii"
+	 * @return stack name in lower case, or null if the file does not have the
+	 *         extension
+	 */
+	public static String stackNameKey(String fileName, String extension) {
+		String name = new File(fileName).getName().toLowerCase();
+		String suffix = "." + extension.toLowerCase();
+		if (!name.endsWith(suffix) || name.length() == suffix.length()) {
+			return null;
+		}
+		return name.substring(0, name.length() - suffix.length());
+	}
+
+	private static Map<String, String> indexByKey(Collection<String> files,
+			String extension, List<String> unmatched) {
+		Map<String, String> byKey = new TreeMap<String, String>();
+		if (files == null) {
+			return byKey;
+		}
+		for (Iterator<String> k = files.iterator(); k.hasNext();) {
+			String fileName = k.next();
+			String key = stackNameKey(fileName, extension);
+			if (key == null) {
+				continue;
+			}
+			String previous = byKey.put(key, fileName);
+			if (previous != null) {
+				_logger.warn("two files with the same stack name: " + previous
+						+ " and " + fileName);
+				// keep the first file in alphabetical order
+				if (previous.compareTo(fileName) < 0) {
+					byKey.put(key, previous);
+					unmatched.add(fileName);
+				} else {
+					unmatched.add(previous);
+				}
+			}
+		}
+		return byKey;
+	}
+
+	/**
+	 * @return the pairs in ascending order of the stack names
+	 */
+	public List<Pair> getPairs() {
+		return pairs;
+	}
+
+	/**
+	 * @return the files of the first folder without a partner
+	 */
+	public List<String> getUnmatchedFirstFiles() {
+		return unmatchedFirstFiles;
+	}
+
+	/**
+	 * @return the files of the second folder without a partner
+	 */
+	public List<String> getUnmatchedSecondFiles() {
+		return unmatchedSecondFiles;
+	}
+
+}
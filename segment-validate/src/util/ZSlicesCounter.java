@@ -20,6 +20,7 @@
  */
 package util;
 
+import io.FitsHeader;
 import ij.ImagePlus;
 
 import java.io.File;
@@ -83,10 +84,18 @@ public class ZSlicesCounter {
 						
 				// get file path
 				String fileName = k.next();
-				// open file as ImagePlus object
-				ImagePlus img = new ImagePlus(fileName);
+				// read the number of slices from the header only
+				FitsHeader header = FitsHeader.read(fileName);
+				int nSlices;
+				if (header != null) {
+					nSlices = header.getDepth();
+				} else {
+					// open file as ImagePlus object
+					ImagePlus img = new ImagePlus(fileName);
+					nSlices = img.getNSlices();
+				}
 				// print number of slices in image
-				writer.append(String.valueOf(img.getNSlices()));
+				writer.append(String.valueOf(nSlices));
 				writer.append('\n');
 			}
 		    
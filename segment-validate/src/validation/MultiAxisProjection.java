@@ -0,0 +1,459 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package validation;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.SliceConsumer;
+import util.ParallelLoop;
+
+/**
+ * This class computes the max, mean and sum projections of a 3D volume into
+ * the XY, ZY and XZ planes in one pass over the pixel arrays of the slices.
+ * The slices of a loaded volume are processed by blocks of one slice per
+ * thread: the slices of a block are fetched in parallel (each slice is read
+ * once, even from a virtual stack), then each thread accumulates a band of
+ * rows of all the slices of the block. The bands write disjoint parts of the
+ * XY and ZY projections, so that no partial XY projection is allocated; only
+ * the XZ rows of the block are accumulated per band and merged in the order
+ * of the bands.
+ * 
+ * The projections can also be accumulated while the slices are delivered one
+ * at a time, as a SliceConsumer (for example by TiffSliceLoader while the
+ * slices are decoded, or by Segment3DImage while they are segmented), so that
+ * no additional pass over the volume is needed.
+ * 
+ * The projected images have the size, pixel layout and calibration of the
+ * ones computed by OrthogonalProjection. The mean of the ZY (resp. XZ)
+ * projection is taken over the width (resp. height) of the volume.
+ * 
+ * @author pnb
+ * 
+ */
+public class MultiAxisProjection implements SliceConsumer {
+
+	private static Log _logger = LogFactory.getLog(MultiAxisProjection.class);
+
+	private int width;
+	private int height;
+	private int depth;
+
+	// source image (projections are created as ImagePlus.createImagePlus()
+	// copies), or calibration of the source stack
+	private ImagePlus img3D = null;
+	private Calibration calibration = null;
+
+	private double[] xyMax;
+	private double[] xySum;
+	// ZY data indexed by z * height + row
+	private double[] zyMax;
+	private double[] zySum;
+	// XZ data indexed by z * width + col
+	private double[] xzMax;
+	private double[] xzSum;
+
+	// buffer of the slices delivered as a SliceConsumer
+	private double[] rowValues;
+
+	/**
+	 * Computes the projections of a 3D image
+	 * 
+	 * @param img3D
+	 *            - input 3D volume (8, 16 or 32 bits)
+	 */
+	public MultiAxisProjection(ImagePlus img3D) {
+		this.img3D = img3D;
+		compute(img3D.getImageStack());
+	}
+
+	/**
+	 * Computes the projections of a stack (for instance a virtual stack whose
+	 * slices are decoded when they are projected)
+	 * 
+	 * @param stack
+	 *            - input 3D volume (8, 16 or 32 bits)
+	 * @param calibration
+	 *            - calibration of the 3D volume (can be null)
+	 */
+	public MultiAxisProjection(ImageStack stack, Calibration calibration) {
+		this.calibration = calibration;
+		compute(stack);
+	}
+
+	/**
+	 * Creates empty projections, accumulated from the slices delivered as a
+	 * SliceConsumer (one thread at a time, in any order). The calibration of
+	 * the volume is given by setCalibration.
+	 */
+	public MultiAxisProjection() {
+	}
+
+	@Override
+	public void begin(int width, int height, int expectedDepth) {
+		this.width = width;
+		this.height = height;
+		this.depth = 0;
+		int capacity = Math.max(expectedDepth, 1);
+		xyMax = new double[width * height];
+		xySum = new double[width * height];
+		Arrays.fill(xyMax, -Double.MAX_VALUE);
+		zyMax = new double[height * capacity];
+		zySum = new double[height * capacity];
+		xzMax = new double[width * capacity];
+		xzSum = new double[width * capacity];
+		rowValues = new double[width];
+	}
+
+	@Override
+	public void consumeSlice(int z, Object pixels) {
+		if (xyMax == null) {
+			_logger.error("begin() must be called before the first slice");
+			return;
+		}
+		// more slices than expected
+		if (zyMax.length < height * (z + 1)) {
+			int capacity = Math.max(z + 1, 2 * zyMax.length / height);
+			zyMax = Arrays.copyOf(zyMax, height * capacity);
+			zySum = Arrays.copyOf(zySum, height * capacity);
+			xzMax = Arrays.copyOf(xzMax, width * capacity);
+			xzSum = Arrays.copyOf(xzSum, width * capacity);
+		}
+		accumulateRows(pixels, z, 0, height, rowValues, xzMax, xzSum,
+				z * width);
+		depth = Math.max(depth, z + 1);
+	}
+
+	@Override
+	public void end(int depth) {
+		this.depth = depth;
+		rowValues = null;
+		// fewer slices than expected
+		if (xzMax != null && xzMax.length != width * depth) {
+			zyMax = Arrays.copyOf(zyMax, height * depth);
+			zySum = Arrays.copyOf(zySum, height * depth);
+			xzMax = Arrays.copyOf(xzMax, width * depth);
+			xzSum = Arrays.copyOf(xzSum, width * depth);
+		}
+	}
+
+	/**
+	 * One pass over the slices, by blocks of slices processed in parallel by
+	 * bands of rows
+	 */
+	private void compute(final ImageStack stack) {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+		xyMax = new double[width * height];
+		xySum = new double[width * height];
+		Arrays.fill(xyMax, -Double.MAX_VALUE);
+		zyMax = new double[height * depth];
+		zySum = new double[height * depth];
+		xzMax = new double[width * depth];
+		xzSum = new double[width * depth];
+
+		final int blockSize = Math.max(1, ParallelLoop.getNumberOfThreads());
+		final int nBands = Math.max(1, Math.min(height, blockSize));
+		// XZ rows of the slices of a block accumulated by each band
+		final double[][] bandXzMax = new double[nBands][width * blockSize];
+		final double[][] bandXzSum = new double[nBands][width * blockSize];
+		final Object[] slices = new Object[blockSize];
+		for (int z0 = 0; z0 < depth; z0 += blockSize) {
+			final int first = z0;
+			final int count = Math.min(blockSize, depth - z0);
+			ParallelLoop.run(0, count, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) {
+					for (int i = from; i < to; i++)
+						slices[i] = stack.getPixels(first + i + 1);
+				}
+			});
+			ParallelLoop.run(0, nBands, nBands, new ParallelLoop.Body() {
+				@Override
+				public void run(int from, int to) {
+					double[] rowValues = new double[width];
+					for (int band = from; band < to; band++) {
+						int rowFrom = (int) ((long) band * height / nBands);
+						int rowTo = (int) ((long) (band + 1) * height / nBands);
+						for (int i = 0; i < count; i++)
+							accumulateRows(slices[i], first + i, rowFrom,
+									rowTo, rowValues, bandXzMax[band],
+									bandXzSum[band], i * width);
+					}
+				}
+			});
+			// merge of the XZ rows of the block in the order of the bands
+			int offset = first * width;
+			for (int k = 0; k < count * width; k++) {
+				double max = bandXzMax[0][k];
+				double sum = bandXzSum[0][k];
+				for (int band = 1; band < nBands; band++) {
+					if (max < bandXzMax[band][k])
+						max = bandXzMax[band][k];
+					sum += bandXzSum[band][k];
+				}
+				xzMax[offset + k] = max;
+				xzSum[offset + k] = sum;
+			}
+			Arrays.fill(slices, null);
+		}
+	}
+
+	/**
+	 * Updates the three projections with the voxels of the rows rowFrom
+	 * (inclusive) to rowTo (exclusive) of the slice z, the XZ row of these
+	 * voxels being written from xzOffset in the given arrays
+	 */
+	private void accumulateRows(Object pixels, int z, int rowFrom,
+			int rowTo, double[] rowValues, double[] xzMax, double[] xzSum,
+			int xzOffset) {
+		int zyOffset = z * height;
+		for (int col = 0; col < width; col++) {
+			xzMax[xzOffset + col] = -Double.MAX_VALUE;
+			xzSum[xzOffset + col] = 0;
+		}
+		for (int row = rowFrom; row < rowTo; row++) {
+			int offset = row * width;
+			readRow(pixels, offset, rowValues);
+			double rowMax = -Double.MAX_VALUE;
+			double rowSum = 0;
+			for (int col = 0; col < width; col++) {
+				double voxel = rowValues[col];
+				if (xyMax[offset + col] < voxel)
+					xyMax[offset + col] = voxel;
+				xySum[offset + col] += voxel;
+				if (rowMax < voxel)
+					rowMax = voxel;
+				rowSum += voxel;
+				if (xzMax[xzOffset + col] < voxel)
+					xzMax[xzOffset + col] = voxel;
+				xzSum[xzOffset + col] += voxel;
+			}
+			zyMax[zyOffset + row] = rowMax;
+			zySum[zyOffset + row] = rowSum;
+		}
+	}
+
+	/**
+	 * Copies one row of a slice as voxel values (the values returned by
+	 * ImageStack.getVoxel)
+	 */
+	private void readRow(Object pixels, int offset, double[] rowValues) {
+		if (pixels instanceof byte[]) {
+			byte[] p8 = (byte[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = p8[offset + col] & 0xff;
+		} else if (pixels instanceof short[]) {
+			short[] p16 = (short[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = p16[offset + col] & 0xffff;
+		} else if (pixels instanceof float[]) {
+			float[] p32 = (float[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = p32[offset + col];
+		} else {
+			int[] rgb = (int[]) pixels;
+			for (int col = 0; col < width; col++)
+				rowValues[col] = rgb[offset + col] & 0xffffff;
+		}
+	}
+
+	/**
+	 * @param projectionType
+	 *            - OrthogonalProjection.projectionType_Max, _Mean or _Sum
+	 * @param outputBitDepth
+	 *            - 8, 16 or 32 (sum projections are always 32 bits)
+	 * @return the projection into the XY plane, null if the projection type
+	 *         is not supported
+	 */
+	public ImagePlus getProjectionXY(int projectionType, int outputBitDepth) {
+		ImageProcessor imgProc = createProcessor(width, height, xyMax, xySum,
+				depth, projectionType, outputBitDepth);
+		if (imgProc == null)
+			return null;
+		return createImagePlus("XY", imgProc);
+	}
+
+	/**
+	 * @param projectionType
+	 *            - OrthogonalProjection.projectionType_Max, _Mean or _Sum
+	 * @param outputBitDepth
+	 *            - 8, 16 or 32 (sum projections are always 32 bits)
+	 * @return the projection into the ZY plane (z along the horizontal axis),
+	 *         null if the projection type is not supported
+	 */
+	public ImagePlus getProjectionZY(int projectionType, int outputBitDepth) {
+		// z along the horizontal axis
+		ImageProcessor imgProc = createProcessor(depth, height,
+				transpose(zyMax), transpose(zySum), width, projectionType,
+				outputBitDepth);
+		if (imgProc == null)
+			return null;
+		ImagePlus res = createImagePlus("ZY", imgProc);
+		// Set the calibration for the horizontal axis
+		Calibration newCalibration = res.getCalibration();
+		Calibration source = getSourceCalibration();
+		newCalibration.pixelWidth = source.pixelDepth;
+		newCalibration.setXUnit(source.getZUnit());
+		res.setCalibration(newCalibration);
+		return res;
+	}
+
+	/**
+	 * @param projectionType
+	 *            - OrthogonalProjection.projectionType_Max, _Mean or _Sum
+	 * @param outputBitDepth
+	 *            - 8, 16 or 32 (sum projections are always 32 bits)
+	 * @return the projection into the XZ plane (z along the vertical axis),
+	 *         null if the projection type is not supported
+	 */
+	public ImagePlus getProjectionXZ(int projectionType, int outputBitDepth) {
+		ImageProcessor imgProc = createProcessor(width, depth, xzMax, xzSum,
+				height, projectionType, outputBitDepth);
+		if (imgProc == null)
+			return null;
+		ImagePlus res = createImagePlus("XZ", imgProc);
+		// Set the calibration for the vertical axis
+		Calibration newCalibration = res.getCalibration();
+		Calibration source = getSourceCalibration();
+		newCalibration.pixelHeight = source.pixelDepth;
+		newCalibration.setYUnit(source.getZUnit());
+		res.setCalibration(newCalibration);
+		return res;
+	}
+
+	/**
+	 * @return the ZY data indexed by row * depth + z
+	 */
+	private double[] transpose(double[] zyData) {
+		double[] data = new double[height * depth];
+		for (int z = 0; z < depth; z++)
+			for (int row = 0; row < height; row++)
+				data[row * depth + z] = zyData[z * height + row];
+		return data;
+	}
+
+	/**
+	 * Sets the calibration of the 3D volume given to the projections (for
+	 * instance once the volume delivered as a SliceConsumer is calibrated)
+	 */
+	public void setCalibration(Calibration calibration) {
+		this.calibration = calibration;
+	}
+
+	private Calibration getSourceCalibration() {
+		if (img3D != null)
+			return img3D.getCalibration();
+		return calibration != null ? calibration : new Calibration();
+	}
+
+	private ImagePlus createImagePlus(String title, ImageProcessor imgProc) {
+		if (img3D != null) {
+			ImagePlus res = img3D.createImagePlus();
+			res.setProcessor(imgProc);
+			return res;
+		}
+		ImagePlus res = new ImagePlus(title, imgProc);
+		if (calibration != null)
+			res.setCalibration(calibration.copy());
+		return res;
+	}
+
+	/**
+	 * Creates the processor of a projection from the accumulated max and sum
+	 * 
+	 * @param count
+	 *            - number of voxels projected on each pixel
+	 */
+	private static ImageProcessor createProcessor(int projWidth,
+			int projHeight, double[] max, double[] sum, int count,
+			int projectionType, int outputBitDepth) {
+		double[] values;
+		switch (projectionType) {
+		case OrthogonalProjection.projectionType_Max:
+			values = max;
+			break;
+		case OrthogonalProjection.projectionType_Mean:
+			values = new double[sum.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = Math.round(sum[i] / (double) count);
+			break;
+		case OrthogonalProjection.projectionType_Sum:
+			values = sum;
+			outputBitDepth = 32;
+			break;
+		default:
+			_logger.error("the projection type " + projectionType
+					+ " is not supported");
+			return null;
+		}
+
+		switch (outputBitDepth) {
+		case 8: {
+			byte[] projectedData = new byte[values.length];
+			for (int i = 0; i < values.length; i++)
+				projectedData[i] = (byte) values[i];
+			return new ByteProcessor(projWidth, projHeight, projectedData);
+		}
+		case 16: {
+			short[] projectedData = new short[values.length];
+			for (int i = 0; i < values.length; i++)
+				projectedData[i] = (short) values[i];
+			return new ShortProcessor(projWidth, projHeight, projectedData,
+					null);
+		}
+		case 32: {
+			float[] projectedData = new float[values.length];
+			for (int i = 0; i < values.length; i++)
+				projectedData[i] = (float) values[i];
+			return new FloatProcessor(projWidth, projHeight, projectedData,
+					null);
+		}
+		default:
+			_logger.error("Only 8, 16 or 32 bits projections are supported.");
+			return null;
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+}
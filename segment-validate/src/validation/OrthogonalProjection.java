@@ -21,11 +21,6 @@
 package validation;
 
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.measure.Calibration;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import io.Fits2DWriter;
 import io.FitsLoader;
 
@@ -42,6 +37,9 @@ import util.FileOper;
  * This class is for performing the three orthogonal projections of a 3D volume
  * into XY, XZ and ZY planes
  * 
+ * The projections are computed by MultiAxisProjection, which gives the three
+ * projections of a volume from one pass over its slices.
+ * 
  * @author peter bajcsy & mylene simon
  * 
  */
@@ -52,6 +50,8 @@ public class OrthogonalProjection {
 
 	public static final int projectionType_Max = 0;
 	public static final int projectionType_Mean = 1;
+	// sum projections are 32 bits images
+	public static final int projectionType_Sum = 2;
 
 	/**
 	 * This method performs the max or average projection into the XY plane
@@ -66,61 +66,7 @@ public class OrthogonalProjection {
 			_logger.error("Missing input image");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		double max = 0;
-		ImageStack imgStack = img3D.getImageStack();
-		
-		ImagePlus res = img3D.createImagePlus();
-		
-		byte[] projectedData = new byte[numcols*numrows];
-		
-		switch (projectionType) {
-		// max projection
-		case 0:
-			for (int row = 0; row < numrows; row++) {
-				for (int col = 0; col < numcols; col++) {
-					max = -Double.MAX_VALUE;
-					for (int z = 0; z < numzs; z++) {
-						double voxel = imgStack.getVoxel(col,  row, z);
-						if (max < voxel) {
-							max = voxel;
-						}
-					}
-					projectedData[row * numcols + col] = (byte) max;
-				}
-			}
-			break;
-		// average projection
-		case 1:
-			for (int row = 0; row < numrows; row++) {
-				for (int col = 0; col < numcols; col++) {
-					max = 0;
-					for (int z = 0; z < numzs; z++) {
-						double voxel = imgStack.getVoxel(col,  row, z);
-						max += voxel;
-					}
-					max = Math.round(max / (double) numzs);
-					projectedData[row * numcols + col] = (byte) max;
-				}
-			}
-			break;
-		default:
-			System.err.println("the projection type " + projectionType
-					+ " is not supported");
-			res = null;
-			break;
-
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set it in the result ImagePlus
-		ByteProcessor imgProc = new ByteProcessor(numcols, numrows, projectedData);
-		res.setProcessor(imgProc);
-		
-		return res;
+		return new MultiAxisProjection(img3D).getProjectionXY(projectionType, 8);
 	}
 
 	/**
@@ -136,69 +82,7 @@ public class OrthogonalProjection {
 			_logger.error("Missing input image");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		double max = 0;
-		ImageStack imgStack = img3D.getImageStack();
-		
-		ImagePlus res = img3D.createImagePlus();
-		
-		byte[] projectedData = new byte[numzs*numrows];
-		
-		switch (projectionType) {
-		case 0:
-			// max projection
-			for (int z = 0; z < numzs; z++) {
-				for (int row = 0; row < numrows; row++) {
-					max = -Double.MAX_VALUE;
-					for (int col = 0; col < numcols; col++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						if (max < voxel) {
-							max = voxel;
-						}
-					}
-					projectedData[row * numzs + z] = (byte) max;
-					//projectedData[z * numrows + row] = (byte) max;
-					//res.setDouble(z, col, band, max);
-				}
-			}
-			break;
-		case 1:
-			// average projection
-			for (int z = 0; z < numzs; z++) {
-				for (int row = 0; row < numrows; row++) {
-					max = 0.0;
-					for (int col = 0; col < numcols; col++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						max += voxel;
-					}
-					max = Math.round(max / (double) numrows);
-					projectedData[row * numzs + z] = (byte) max;
-					//projectedData[z * numrows + row] = (byte) max;
-					//res.setDouble(z, col, band, max);
-				}
-			}
-			break;
-		default:
-			System.err.println("the projection type " + projectionType
-					+ " is not supported");
-			res = null;
-			break;
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set it in the result ImagePlus
-		ByteProcessor imgProc = new ByteProcessor(numzs, numrows, projectedData);
-		res.setProcessor(imgProc);
-		// Set the calibration for the horizontal axis
-		Calibration newCalibration = res.getCalibration();
-		newCalibration.pixelWidth = img3D.getCalibration().pixelDepth;
-		newCalibration.setXUnit(img3D.getCalibration().getZUnit());
-		res.setCalibration(newCalibration);
-		
-		return res;
+		return new MultiAxisProjection(img3D).getProjectionZY(projectionType, 8);
 	}
 
 	/**
@@ -214,68 +98,9 @@ public class OrthogonalProjection {
 			_logger.error("Missing input image");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		double max = 0;
-		ImageStack imgStack = img3D.getImageStack();
-		
-		ImagePlus res = img3D.createImagePlus();
-		
-		byte[] projectedData = new byte[numcols*numzs];
-		switch (projectionType) {
-		case 0:
-			// max projection
-			for (int col = 0; col < numcols; col++) {
-				for (int z = 0; z < numzs; z++) {
-					max = -Double.MAX_VALUE;
-					for (int row = 0; row < numrows; row++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						if (max < voxel) {
-							max = voxel;
-						}
-					}
-					projectedData[z * numcols + col] = (byte) max;
-					//res.setDouble(row, z, band, max);
-				}
-			}
-			break;
-		case 1:
-			// average projection
-			for (int col = 0; col < numcols; col++) {
-				for (int z = 0; z < numzs; z++) {
-					max = -Double.MAX_VALUE;
-					for (int row = 0; row < numrows; row++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						max += voxel;
-					}
-					max = Math.round(max / (double) numcols);
-					projectedData[z * numcols + col] = (byte) max;
-					//res.setDouble(row, z, band, max);
-				}
-			}
-			break;
-		default:
-			System.err.println("the projection type " + projectionType
-					+ " is not supported");
-			res = null;
-			break;
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set it in the result ImagePlus
-		ByteProcessor imgProc = new ByteProcessor(numcols, numzs, projectedData);
-		res.setProcessor(imgProc);
-		// Set the calibration for the vertical axis
-		Calibration newCalibration = res.getCalibration();
-		newCalibration.pixelHeight = img3D.getCalibration().pixelDepth;
-		newCalibration.setYUnit(img3D.getCalibration().getZUnit());
-		res.setCalibration(newCalibration);
-				
-		return res;
+		return new MultiAxisProjection(img3D).getProjectionXZ(projectionType, 8);
 	}
-	
+
 	/**
 	 * This method performs the max or average projection into the XY plane
 	 * 
@@ -289,61 +114,7 @@ public class OrthogonalProjection {
 			_logger.error("Missing input image");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		double max = 0;
-		ImageStack imgStack = img3D.getImageStack();
-		
-		ImagePlus res = img3D.createImagePlus();
-		
-		short[] projectedData = new short[numcols*numrows];
-		
-		switch (projectionType) {
-		// max projection
-		case 0:
-			for (int row = 0; row < numrows; row++) {
-				for (int col = 0; col < numcols; col++) {
-					max = -Double.MAX_VALUE;
-					for (int z = 0; z < numzs; z++) {
-						double voxel = imgStack.getVoxel(col,  row, z);
-						if (max < voxel) {
-							max = voxel;
-						}
-					}
-					projectedData[row * numcols + col] = (short) max;
-				}
-			}
-			break;
-		// average projection
-		case 1:
-			for (int row = 0; row < numrows; row++) {
-				for (int col = 0; col < numcols; col++) {
-					max = 0;
-					for (int z = 0; z < numzs; z++) {
-						double voxel = imgStack.getVoxel(col,  row, z);
-						max += voxel;
-					}
-					max = Math.round(max / (double) numzs);
-					projectedData[row * numcols + col] = (short) max;
-				}
-			}
-			break;
-		default:
-			System.err.println("the projection type " + projectionType
-					+ " is not supported");
-			res = null;
-			break;
-
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set it in the result ImagePlus
-		ShortProcessor imgProc = new ShortProcessor(numcols, numrows, projectedData, null);
-		res.setProcessor(imgProc);
-		
-		return res;
+		return new MultiAxisProjection(img3D).getProjectionXY(projectionType, 16);
 	}
 
 	/**
@@ -359,69 +130,7 @@ public class OrthogonalProjection {
 			_logger.error("Missing input image");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		double max = 0;
-		ImageStack imgStack = img3D.getImageStack();
-		
-		ImagePlus res = img3D.createImagePlus();
-		
-		short[] projectedData = new short[numzs*numrows];
-		
-		switch (projectionType) {
-		case 0:
-			// max projection
-			for (int z = 0; z < numzs; z++) {
-				for (int row = 0; row < numrows; row++) {
-					max = -Double.MAX_VALUE;
-					for (int col = 0; col < numcols; col++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						if (max < voxel) {
-							max = voxel;
-						}
-					}
-					projectedData[row * numzs + z] = (short) max;
-					//projectedData[z * numrows + row] = (byte) max;
-					//res.setDouble(z, col, band, max);
-				}
-			}
-			break;
-		case 1:
-			// average projection
-			for (int z = 0; z < numzs; z++) {
-				for (int row = 0; row < numrows; row++) {
-					max = 0.0;
-					for (int col = 0; col < numcols; col++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						max += voxel;
-					}
-					max = Math.round(max / (double) numrows);
-					projectedData[row * numzs + z] = (short) max;
-					//projectedData[z * numrows + row] = (byte) max;
-					//res.setDouble(z, col, band, max);
-				}
-			}
-			break;
-		default:
-			System.err.println("the projection type " + projectionType
-					+ " is not supported");
-			res = null;
-			break;
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set it in the result ImagePlus
-		ShortProcessor imgProc = new ShortProcessor(numzs, numrows, projectedData, null);
-		res.setProcessor(imgProc);
-		// Set the calibration for the horizontal axis
-		Calibration newCalibration = res.getCalibration();
-		newCalibration.pixelWidth = img3D.getCalibration().pixelDepth;
-		newCalibration.setXUnit(img3D.getCalibration().getZUnit());
-		res.setCalibration(newCalibration);
-		
-		return res;
+		return new MultiAxisProjection(img3D).getProjectionZY(projectionType, 16);
 	}
 
 	/**
@@ -437,68 +146,9 @@ public class OrthogonalProjection {
 			_logger.error("Missing input image");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		double max = 0;
-		ImageStack imgStack = img3D.getImageStack();
-		
-		ImagePlus res = img3D.createImagePlus();
-		
-		short[] projectedData = new short[numcols*numzs];
-		switch (projectionType) {
-		case 0:
-			// max projection
-			for (int col = 0; col < numcols; col++) {
-				for (int z = 0; z < numzs; z++) {
-					max = -Double.MAX_VALUE;
-					for (int row = 0; row < numrows; row++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						if (max < voxel) {
-							max = voxel;
-						}
-					}
-					projectedData[z * numcols + col] = (short) max;
-					//res.setDouble(row, z, band, max);
-				}
-			}
-			break;
-		case 1:
-			// average projection
-			for (int col = 0; col < numcols; col++) {
-				for (int z = 0; z < numzs; z++) {
-					max = -Double.MAX_VALUE;
-					for (int row = 0; row < numrows; row++) {
-						double voxel = imgStack.getVoxel(col, row, z);
-						max += voxel;
-					}
-					max = Math.round(max / (double) numcols);
-					projectedData[z * numcols + col] = (short) max;
-					//res.setDouble(row, z, band, max);
-				}
-			}
-			break;
-		default:
-			System.err.println("the projection type " + projectionType
-					+ " is not supported");
-			res = null;
-			break;
-		}
-
-		// Create the ImageProcessor with the array of projected pixels and set it in the result ImagePlus
-		ShortProcessor imgProc = new ShortProcessor(numcols, numzs, projectedData, null);
-		res.setProcessor(imgProc);
-		// Set the calibration for the vertical axis
-		Calibration newCalibration = res.getCalibration();
-		newCalibration.pixelHeight = img3D.getCalibration().pixelDepth;
-		newCalibration.setYUnit(img3D.getCalibration().getZUnit());
-		res.setCalibration(newCalibration);
-				
-		return res;
+		return new MultiAxisProjection(img3D).getProjectionXZ(projectionType, 16);
 	}
-	
+
 	/**
 	 * This method opens the 3D FITS file and performs three max or average
 	 * projections into XY, XZ and YZ and saves them into an outputDir
@@ -540,9 +190,10 @@ public class OrthogonalProjection {
 		int indexLastDot = inputFile.lastIndexOf(".");
 		String outFilename = inputFile.substring(indexLastFileSeparatorChar, indexLastDot);
 
-		// Compute projection
+		// Compute the three projections in one pass over the volume
+		MultiAxisProjection projections = new MultiAxisProjection(img3D);
 		System.out.println("XY " + projTypeSuffix + " projection");
-		ImagePlus res = OrthogonalProjection.projectionXY(img3D, projectionType);
+		ImagePlus res = projections.getProjectionXY(projectionType, 8);
 		if(res == null) {
 			System.err.println("XY " + projTypeSuffix + " projection failed.");
 			return;
@@ -551,7 +202,7 @@ public class OrthogonalProjection {
 		//ImageLoader.writeImage(outputDir + outFilename + "_"+projTypeSuffix+"XY.tif", res);
 
 		System.out.println("XZ " + projTypeSuffix + " projection");
-		res = OrthogonalProjection.projectionXZ(img3D, projectionType);
+		res = projections.getProjectionXZ(projectionType, 8);
 		if(res == null) {
 			System.err.println("XZ " + projTypeSuffix + " projection failed.");
 			return;
@@ -560,7 +211,7 @@ public class OrthogonalProjection {
 		//ImageLoader.writeImage(outputDir + outFilename + "_"+projTypeSuffix+"XZ.tif", res);
 
 		System.out.println("ZY " + projTypeSuffix + " projection");
-		res = OrthogonalProjection.projectionZY(img3D, projectionType);
+		res = projections.getProjectionZY(projectionType, 8);
 		if(res == null) {
 			System.err.println("ZY " + projTypeSuffix + " projection failed.");
 			return;
@@ -651,11 +302,11 @@ public class OrthogonalProjection {
 			ImageLoader.writeImage(outputDir + outFilename + "_"+projTypeSuffix+"XY.tif", res);
 
 			System.out.println("XZ projection");
-			res = OrthogonalProjection.projectionXZ(img3D, projectionType);
+			res = projections.getProjectionXZ(projectionType, 8);
 			ImageLoader.writeImage(outputDir + outFilename + "_"+projTypeSuffix+"XZ.tif", res);
 
 			System.out.println("ZY projection");
-			res = OrthogonalProjection.projectionZY(img3D, projectionType);
+			res = projections.getProjectionZY(projectionType, 8);
 			ImageLoader.writeImage(outputDir + outFilename + "_"+projTypeSuffix+"ZY.tif", res);
 
 		} catch (ImageException e) {
@@ -31,11 +31,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import io.DecodedMaskCache;
+import io.RleMaskLoader;
+import segment3D.BitMask3D;
+import segment3D.RunLengthMask3D;
 import util.FileOper;
+import util.MemoryBudgetExecutor;
+import util.ParallelLoop;
+import util.ProjectionFileCatalog;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
@@ -55,11 +63,32 @@ public class SimilarityMetricsExtractor {
 	private Map<String, SimilarityMetricsFor3D> similarityMetricsByConfiguration;
 	
 	/**
-	 * Constructor, initializes the hash map
+	 * Decoded auto segmented images, shared by the comparisons with the
+	 * different reference images
+	 */
+	private DecodedMaskCache maskCache;
+	
+	/**
+	 * Number of images compared at the same time
+	 */
+	private int numberOfThreads = ParallelLoop.getNumberOfThreads();
+	
+	/**
+	 * Constructor, initializes the hash map and the cache of decoded images
 	 */
 	public SimilarityMetricsExtractor() {
 		similarityMetricsByConfiguration = 
 				new HashMap<String, SimilarityMetricsFor3D>();
+		maskCache = new DecodedMaskCache();
+	}
+	
+	/**
+	 * @param numberOfThreads
+	 *            Number of images compared with a reference image at the same
+	 *            time
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = Math.max(1, numberOfThreads);
 	}
 	
 	/**
@@ -118,6 +147,12 @@ public class SimilarityMetricsExtractor {
 				+ "...");
 		System.out.println();
 		
+		// index once the orthogonal projections of the auto segmented images
+		// (sub directories of the selected scaffold) by projection type
+		ProjectionFileCatalog autoProjectionsCatalog = new ProjectionFileCatalog(
+				autoInputsDir + File.separatorChar + selectedScaffold,
+				autoImageFormatExtension);
+		
 		// iterate through the manual input files
 		for (Iterator<String> k = manualInputFiles.iterator(); k.hasNext();) {
 			
@@ -133,26 +168,10 @@ public class SimilarityMetricsExtractor {
 			String orthogonalProjectionType = manualSegFileNameWithoutExtension
 					.substring(manualSegFileNameWithoutExtension.lastIndexOf("_"));	
 			
-			// get list of sub directories containing the orthogonal projections
-			// in directory of auto segmented images for the selected scaffold
-			Collection<String> subDirOrthogonalProjections = FileOper
-					.readSubDirectories(autoInputsDir + File.separatorChar
-							+ selectedScaffold);
-			
-			Collection<String> projectedFilesToCompare = new ArrayList<String>();
-			
 			// get list of images with similar projections to compare in the 
 			// sub directories
-			for (Iterator<String> subDir = subDirOrthogonalProjections
-					.iterator(); subDir.hasNext();) {
-			 	
-				Collection<String> filesInSubDirOrthogonalProjections = FileOper.readFileDirectory(subDir.next());
-				projectedFilesToCompare.addAll(FileOper.selectFileType(
-						filesInSubDirOrthogonalProjections, 
-								orthogonalProjectionType
-								+ autoImageFormatExtension));
-
-			}
+			Collection<String> projectedFilesToCompare = autoProjectionsCatalog
+					.getFiles(orthogonalProjectionType);
 			
 			System.out.println();
 			
@@ -244,26 +263,81 @@ public class SimilarityMetricsExtractor {
 		    writer.append("Dice_index");
 		    writer.append('\n');
 		    
-		    // load reference image
-		    ImagePlus refImage = new ImagePlus(refImageFileName);
+		    // load reference image (run length encoded masks are compared
+		    // from their runs, the other images and the pairs of masks of
+		    // different types from their bit-packed masks)
+		    final RunLengthMask3D refMask;
+		    final BitMask3D refBitMask;
+		    if (RleMaskLoader.isRleMask(refImageFileName)) {
+		    	refMask = RleMaskLoader.read(refImageFileName);
+		    	refBitMask = containsImage(imagesToCompareList) ? refMask
+		    			.toBitMask3D() : null;
+		    } else {
+		    	refMask = null;
+		    	ImagePlus refImage = new ImagePlus(refImageFileName);
+		    	refBitMask = (refImage.getProcessor() == null) ? null
+		    			: BitMask3D.fromImagePlus(refImage,
+		    					foregroundThreshold - 1);
+		    }
+		    if (refMask == null && refBitMask == null) {
+		    	System.err.println("Could not load the reference image "
+		    			+ refImageFileName);
+		    	writer.close();
+		    	return;
+		    }
 		    
-		    // load each image to compare, compute comparison metrics and save 
-		    // them in the CSV file
-		    for (Iterator<String> k = imagesToCompareList.iterator(); k.hasNext();) {
+		    // compare the images concurrently within the memory budget, the
+		    // images being decoded once for all the reference images (cache),
+		    // and keep the order of the list for the CSV file
+		    final List<String> imagesToCompare = new ArrayList<String>(
+		    		imagesToCompareList);
+		    final PairMetrics[] comparisons = new PairMetrics[imagesToCompare.size()];
+		    final Exception[] failures = new Exception[imagesToCompare.size()];
+		    List<MemoryBudgetExecutor.Task> tasks = new ArrayList<MemoryBudgetExecutor.Task>();
+		    for (int i = 0; i < imagesToCompare.size(); i++) {
+		    	final int pair = i;
+		    	final int threshold = foregroundThreshold;
+		    	tasks.add(new MemoryBudgetExecutor.Task() {
+		    		@Override
+		    		public long getEstimatedMemory() {
+		    			return new File(imagesToCompare.get(pair)).length();
+		    		}
+
+		    		@Override
+		    		public void run() {
+		    			try {
+		    				comparisons[pair] = compareWithReference(refMask,
+		    						refBitMask, imagesToCompare.get(pair),
+		    						threshold);
+		    			} catch (Exception e) {
+		    				failures[pair] = e;
+		    			}
+		    		}
+		    	});
+		    }
+		    new MemoryBudgetExecutor(numberOfThreads,
+		    		MemoryBudgetExecutor.defaultBudget()).runAll(tasks);
+		    
+		    // save the comparison metrics in the CSV file
+		    for (int i = 0; i < imagesToCompare.size(); i++) {
 		    	
 		    	// get image to compare file name
-				String imageToCompareFileName = k.next();
-				
-				// load image to compare
-				ImagePlus imageToCompare = new ImagePlus(imageToCompareFileName);
+				String imageToCompareFileName = imagesToCompare.get(i);
 				
-				// extract Venn Diagram quantities
-				VennDiagram vennDiagramResults = extractVennDiagramQuantities(
-						refImage, imageToCompare, foregroundThreshold);
-				
-				// compute Dice index
-				double diceIndex = computeDiceIndex(refImage, imageToCompare,
-						foregroundThreshold);
+				VennDiagram vennDiagramResults = null;
+				double diceIndex = -1.0;
+				if (failures[i] != null) {
+					System.err.println("Error while comparing "
+							+ imageToCompareFileName);
+					failures[i].printStackTrace();
+				} else if (comparisons[i] != null) {
+					vennDiagramResults = comparisons[i].vennDiagram;
+					diceIndex = comparisons[i].diceIndex;
+				}
+				if (vennDiagramResults == null) {
+					System.err.println("Skipping " + imageToCompareFileName);
+					continue;
+				}
 				
 				// save results in CSV
 				writer.append(refImageFileName);
@@ -352,6 +426,71 @@ public class SimilarityMetricsExtractor {
 		
 	}
 	
+	/**
+	 * @return true if one of the files is not a run length encoded mask file
+	 */
+	private static boolean containsImage(Collection<String> fileNames) {
+		for (Iterator<String> k = fileNames.iterator(); k.hasNext();) {
+			if (!RleMaskLoader.isRleMask(k.next()))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Compare an image with the reference image (helper method of
+	 * computeSimilarityMetricsAndSaveInCSV, called by several threads). Two
+	 * run length encoded masks are compared from their runs, any other pair
+	 * from the bit-packed masks.
+	 * 
+	 * @param refMask
+	 *            Run length encoded reference mask (or null)
+	 * @param refBitMask
+	 *            Bit-packed reference mask (or null if all the images to
+	 *            compare are run length encoded masks)
+	 * @param imageToCompareFileName
+	 *            File name of image to compare
+	 * @param foregroundThreshold
+	 *            Threshold value for a pixel to be considered as foreground
+	 *            (pixel = foreground if pixel value >= threshold)
+	 * @return the similarity metrics or null if the images cannot be
+	 *         compared
+	 * @throws IOException
+	 */
+	private PairMetrics compareWithReference(RunLengthMask3D refMask,
+			BitMask3D refBitMask, String imageToCompareFileName,
+			int foregroundThreshold) throws IOException {
+		
+		PairMetrics metrics = new PairMetrics();
+		if (refMask != null && RleMaskLoader.isRleMask(imageToCompareFileName)) {
+			// load mask to compare
+			RunLengthMask3D maskToCompare = RleMaskLoader
+					.read(imageToCompareFileName);
+			
+			// extract Venn Diagram quantities and compute Dice index
+			metrics.vennDiagram = extractVennDiagramQuantities(refMask,
+					maskToCompare);
+			metrics.diceIndex = computeDiceIndex(refMask, maskToCompare);
+		} else {
+			// decoded image (or unpacked mask) to compare
+			BitMask3D maskToCompare = maskCache.get(imageToCompareFileName,
+					foregroundThreshold);
+			if (maskToCompare == null)
+				return null;
+			
+			// extract Venn Diagram quantities and compute Dice index
+			VolumeOverlap overlap = VolumeOverlap.compare(refBitMask,
+					maskToCompare);
+			if (overlap == null)
+				return null;
+			metrics.vennDiagram = vennDiagramOf(overlap);
+			metrics.diceIndex = overlap.getDiceIndex();
+		}
+		if (metrics.vennDiagram == null)
+			return null;
+		return metrics;
+	}
+	
 	/**
 	 * Extract Venn Diagram quantities from two images to compare
 	 * 
@@ -567,6 +706,205 @@ public class SimilarityMetricsExtractor {
 	}
 	
 	
+	/**
+	 * Extract Venn Diagram quantities from two run length encoded 3D masks,
+	 * counting the overlap of the runs (the masks are not decoded)
+	 * 
+	 * @param manualSegmentedMask
+	 *            the manual segmented mask
+	 * @param autoSegmentedMask
+	 *            the auto segmented mask
+	 * @return VennDiagram object containing Venn Diagram quantities or null if
+	 *         the two masks cannot be compared
+	 */
+	public VennDiagram extractVennDiagramQuantities(
+			RunLengthMask3D manualSegmentedMask,
+			RunLengthMask3D autoSegmentedMask) {
+
+		if (!haveSameSize(manualSegmentedMask, autoSegmentedMask)) {
+			System.err
+					.println("The two masks cannot be compared, the sizes are "
+							+ "not the same.");
+			return null;
+		}
+		long similarFrgPixels = RunLengthMask3D.intersectionCardinality(
+				manualSegmentedMask, autoSegmentedMask);
+		long onlyRefFrgPixels = manualSegmentedMask.cardinality()
+				- similarFrgPixels;
+		long onlyImgFrgPixels = autoSegmentedMask.cardinality()
+				- similarFrgPixels;
+		double totalPixels = (double) manualSegmentedMask.getWidth()
+				* manualSegmentedMask.getHeight()
+				* manualSegmentedMask.getDepth();
+
+		VennDiagram vennDiagramResult = new VennDiagram();
+		vennDiagramResult.similarFrgPixels = (int) similarFrgPixels;
+		vennDiagramResult.onlyRefFrgPixels = (int) onlyRefFrgPixels;
+		vennDiagramResult.onlyImgFrgPixels = (int) onlyImgFrgPixels;
+		vennDiagramResult.proportionSimilarFrgPixels = 
+				(similarFrgPixels / totalPixels) * 100.0;
+		vennDiagramResult.proportionOnlyRefFrgPixels = 
+				(onlyRefFrgPixels / totalPixels) * 100.0;
+		vennDiagramResult.proportionOnlyImgFrgPixels = 
+				(onlyImgFrgPixels / totalPixels) * 100.0;
+		return vennDiagramResult;
+	}
+	
+	/**
+	 * Compute Dice index between two run length encoded 3D masks from the
+	 * overlap of their runs
+	 * 
+	 * @param manualSegmentedMask
+	 *            the manual segmented mask
+	 * @param autoSegmentedMask
+	 *            the auto segmented mask
+	 * @return Dice index (or -1.0 if masks cannot be compared)
+	 */
+	public static double computeDiceIndex(RunLengthMask3D manualSegmentedMask,
+			RunLengthMask3D autoSegmentedMask) {
+		
+		if (!haveSameSize(manualSegmentedMask, autoSegmentedMask)) {
+			System.err
+					.println("The two masks cannot be compared, the sizes are "
+							+ "not the same.");
+			return -1.0;
+		}
+		long countFrgOverlapPixels = RunLengthMask3D.intersectionCardinality(
+				manualSegmentedMask, autoSegmentedMask);
+		long countFrgManualPixels = manualSegmentedMask.cardinality();
+		long countFrgAutoPixels = autoSegmentedMask.cardinality();
+		
+		// if there is no foreground pixel in the two masks, 
+		// masks are considered as similar
+		if(countFrgManualPixels == 0 && countFrgAutoPixels == 0)
+			return 1.0;
+		
+		return (2 * (double) countFrgOverlapPixels)
+				/ ((double) countFrgManualPixels + (double) countFrgAutoPixels);
+	}
+	
+	private static boolean haveSameSize(RunLengthMask3D a, RunLengthMask3D b) {
+		return a.getWidth() == b.getWidth() && a.getHeight() == b.getHeight()
+				&& a.getDepth() == b.getDepth();
+	}
+	
+	/**
+	 * Extract Venn Diagram quantities from two 3D segmented images, voxel by
+	 * voxel (and not from their projections)
+	 * 
+	 * @param manualSegmentedImage
+	 *            ImagePlus object for the manual segmented 3D image
+	 * @param autoSegmentedImage
+	 *            ImagePlus object for the auto segmented 3D image
+	 * @param foregroundThreshold
+	 *            Threshold value for a voxel to be considered as foreground
+	 *            (voxel = foreground if voxel value >= threshold)
+	 * @return VennDiagram object containing Venn Diagram quantities or null if
+	 *         the two images cannot be compared
+	 */
+	public VennDiagram extractVennDiagramQuantities3D(
+			ImagePlus manualSegmentedImage, ImagePlus autoSegmentedImage,
+			int foregroundThreshold) {
+
+		VolumeOverlap overlap = VolumeOverlap.compare(manualSegmentedImage,
+				autoSegmentedImage, foregroundThreshold);
+		if (overlap == null)
+			return null;
+		return vennDiagramOf(overlap);
+	}
+	
+	/**
+	 * @return the Venn Diagram quantities of the overlap of two masks
+	 */
+	private VennDiagram vennDiagramOf(VolumeOverlap overlap) {
+		
+		double totalPixels = (double) overlap.getTotalVoxels();
+
+		VennDiagram vennDiagramResult = new VennDiagram();
+		vennDiagramResult.similarFrgPixels = (int) overlap
+				.getSimilarFrgVoxels();
+		vennDiagramResult.onlyRefFrgPixels = (int) overlap
+				.getOnlyRefFrgVoxels();
+		vennDiagramResult.onlyImgFrgPixels = (int) overlap
+				.getOnlyImgFrgVoxels();
+		vennDiagramResult.proportionSimilarFrgPixels = 
+				(overlap.getSimilarFrgVoxels() / totalPixels) * 100.0;
+		vennDiagramResult.proportionOnlyRefFrgPixels = 
+				(overlap.getOnlyRefFrgVoxels() / totalPixels) * 100.0;
+		vennDiagramResult.proportionOnlyImgFrgPixels = 
+				(overlap.getOnlyImgFrgVoxels() / totalPixels) * 100.0;
+		return vennDiagramResult;
+	}
+	
+	/**
+	 * Compute the Dice index between two 3D segmented images, voxel by voxel
+	 * 
+	 * @param manualSegmentedImage
+	 *            ImagePlus object for the manual segmented 3D image
+	 * @param autoSegmentedImage
+	 *            ImagePlus object for the auto segmented 3D image
+	 * @param foregroundThreshold
+	 *            Foreground threshold value (minimum value for a voxel to be
+	 *            considered as foreground)
+	 * @return Dice index (or -1.0 if images cannot be compared)
+	 */
+	public static double computeDiceIndex3D(ImagePlus manualSegmentedImage,
+			ImagePlus autoSegmentedImage, int foregroundThreshold) {
+		
+		VolumeOverlap overlap = VolumeOverlap.compare(manualSegmentedImage,
+				autoSegmentedImage, foregroundThreshold);
+		if (overlap == null)
+			return -1.0;
+		return overlap.getDiceIndex();
+	}
+	
+	/**
+	 * Compute the Jaccard index between two 3D segmented images, voxel by
+	 * voxel
+	 * 
+	 * @param manualSegmentedImage
+	 *            ImagePlus object for the manual segmented 3D image
+	 * @param autoSegmentedImage
+	 *            ImagePlus object for the auto segmented 3D image
+	 * @param foregroundThreshold
+	 *            Foreground threshold value (minimum value for a voxel to be
+	 *            considered as foreground)
+	 * @return Jaccard index (or -1.0 if images cannot be compared)
+	 */
+	public static double computeJaccardIndex3D(ImagePlus manualSegmentedImage,
+			ImagePlus autoSegmentedImage, int foregroundThreshold) {
+		
+		VolumeOverlap overlap = VolumeOverlap.compare(manualSegmentedImage,
+				autoSegmentedImage, foregroundThreshold);
+		if (overlap == null)
+			return -1.0;
+		return overlap.getJaccardIndex();
+	}
+	
+	/**
+	 * Compute the surface distances between two 3D segmented images
+	 * (symmetric Hausdorff distance, 95th percentile Hausdorff distance and
+	 * average symmetric surface distance), in the calibrated units of the
+	 * manual segmented image. Nothing is printed; callers report the values
+	 * themselves, so that concurrent comparisons do not interleave output.
+	 * 
+	 * @param manualSegmentedImage
+	 *            ImagePlus object for the manual segmented 3D image
+	 * @param autoSegmentedImage
+	 *            ImagePlus object for the auto segmented 3D image
+	 * @param foregroundThreshold
+	 *            Foreground threshold value (minimum value for a voxel to be
+	 *            considered as foreground)
+	 * @return the surface distances or null if images cannot be compared
+	 */
+	public static SurfaceDistance computeSurfaceDistances(
+			ImagePlus manualSegmentedImage, ImagePlus autoSegmentedImage,
+			int foregroundThreshold) {
+		
+		return SurfaceDistance.compare(manualSegmentedImage,
+				autoSegmentedImage, foregroundThreshold);
+	}
+	
 	/**
 	 * Update the SimilarityMetricsHashMap with the values for the max
 	 * projection processed. Do not save any results if the processed file is
@@ -960,6 +1298,21 @@ public class SimilarityMetricsExtractor {
 		
 	}
 	
+	/**
+	 * Class used to store the comparison of an image with the reference image
+	 * (helper class)
+	 * 
+	 * @author pnb
+	 *
+	 */
+	private class PairMetrics {
+		
+		public VennDiagram vennDiagram;
+		
+		public double diceIndex;
+		
+	}
+	
 	/**
 	 * Class used to store results for the three orthogonal projections of 3D
 	 * image (helper class)
@@ -0,0 +1,302 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package validation;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import segment3D.BinaryBoundaryExtractor;
+import segment3D.BitMask3D;
+import segment3D.DistanceTransform3D;
+import util.ParallelLoop;
+
+/**
+ * This class computes the surface distances between two 3D segmentations:
+ * the symmetric Hausdorff distance, the 95th percentile Hausdorff distance
+ * and the average symmetric surface distance.
+ * 
+ * The surface of a mask is made of its set voxels with at least one
+ * background 6-neighbor. The distances of the surface voxels of one mask to
+ * the surface of the other mask are read in the exact Euclidean distance
+ * transform of that surface (DistanceTransform3D), computed slice by slice in
+ * parallel with the voxel size of the images, instead of searching the
+ * nearest surface voxel of every pair.
+ * 
+ * @author pnb
+ * 
+ */
+public class SurfaceDistance {
+
+	// distances of the surface voxels of the reference mask to the surface
+	// of the compared mask and the other way round (sorted)
+	private float[] refToImg;
+	private float[] imgToRef;
+	// number of surface voxels of each mask
+	private long refSurfaceSize;
+	private long imgSurfaceSize;
+
+	private SurfaceDistance(float[] refToImg, float[] imgToRef,
+			long refSurfaceSize, long imgSurfaceSize) {
+		this.refToImg = refToImg;
+		this.imgToRef = imgToRef;
+		this.refSurfaceSize = refSurfaceSize;
+		this.imgSurfaceSize = imgSurfaceSize;
+	}
+
+	/**
+	 * Compares the surfaces of two 3D masks
+	 * 
+	 * @param refMask
+	 *            the reference (manual) segmentation
+	 * @param imgMask
+	 *            the compared (auto) segmentation
+	 * @param voxelWidth
+	 *            size of a voxel along x
+	 * @param voxelHeight
+	 *            size of a voxel along y
+	 * @param voxelDepth
+	 *            size of a voxel along z
+	 * @return the surface distances or null if the masks do not have the same
+	 *         size
+	 */
+	public static SurfaceDistance compare(BitMask3D refMask,
+			BitMask3D imgMask, double voxelWidth, double voxelHeight,
+			double voxelDepth) {
+		if (refMask.getWidth() != imgMask.getWidth()
+				|| refMask.getHeight() != imgMask.getHeight()
+				|| refMask.getDepth() != imgMask.getDepth()) {
+			System.err.println("The two volumes cannot be compared, the sizes "
+					+ "are not the same.");
+			return null;
+		}
+		BitMask3D refSurface = surface(refMask);
+		BitMask3D imgSurface = surface(imgMask);
+		long refSurfaceSize = refSurface.cardinality();
+		long imgSurfaceSize = imgSurface.cardinality();
+		float[] refToImg = new float[0];
+		float[] imgToRef = new float[0];
+		if (refSurfaceSize != 0 && imgSurfaceSize != 0) {
+			refToImg = distancesToSurface(refSurface, imgSurface, voxelWidth,
+					voxelHeight, voxelDepth);
+			imgToRef = distancesToSurface(imgSurface, refSurface, voxelWidth,
+					voxelHeight, voxelDepth);
+		}
+		return new SurfaceDistance(refToImg, imgToRef, refSurfaceSize,
+				imgSurfaceSize);
+	}
+
+	/**
+	 * Compares the surfaces of two 3D segmented images, using the voxel size
+	 * of the reference image
+	 * 
+	 * @param refImage
+	 *            the reference (manual) segmented image (8 or 16 bits)
+	 * @param autoImage
+	 *            the compared (auto) segmented image (8 or 16 bits)
+	 * @param foregroundThreshold
+	 *            Threshold value for a voxel to be considered as foreground
+	 *            (voxel = foreground if voxel value >= threshold)
+	 * @return the surface distances or null if the images do not have the
+	 *         same size
+	 */
+	public static SurfaceDistance compare(ImagePlus refImage,
+			ImagePlus autoImage, int foregroundThreshold) {
+		if (refImage.getWidth() != autoImage.getWidth()
+				|| refImage.getHeight() != autoImage.getHeight()
+				|| refImage.getStackSize() != autoImage.getStackSize()) {
+			System.err.println("The two volumes cannot be compared, the sizes "
+					+ "are not the same.");
+			return null;
+		}
+		Calibration cal = refImage.getCalibration();
+		// the masks keep the voxels larger than the threshold (integer
+		// values)
+		return compare(
+				BitMask3D.fromImagePlus(refImage, foregroundThreshold - 1),
+				BitMask3D.fromImagePlus(autoImage, foregroundThreshold - 1),
+				cal.pixelWidth, cal.pixelHeight, cal.pixelDepth);
+	}
+
+	/**
+	 * @return the set voxels of the mask with a background 6-neighbor
+	 */
+	private static BitMask3D surface(BitMask3D mask) {
+		BitMask3D surface = BinaryBoundaryExtractor.extract(mask,
+				BinaryBoundaryExtractor.NEIGHBORHOOD_6);
+		// keep the inner layer only
+		for (int z = 0; z < mask.getDepth(); z++) {
+			long[] in = mask.getSliceWords(z);
+			long[] out = surface.getSliceWords(z);
+			for (int i = 0; i < out.length; i++)
+				out[i] &= in[i];
+		}
+		return surface;
+	}
+
+	/**
+	 * @return the sorted distances of the voxels of the surface "from" to the
+	 *         nearest voxel of the surface "to" (which must not be empty)
+	 */
+	private static float[] distancesToSurface(final BitMask3D from,
+			BitMask3D to, double voxelWidth, double voxelHeight,
+			double voxelDepth) {
+		final DistanceTransform3D transform = new DistanceTransform3D(to,
+				voxelWidth, voxelHeight, voxelDepth);
+		final int width = from.getWidth();
+		final int wordsPerRow = from.getWordsPerRow();
+		final float[][] sliceDistances = new float[from.getDepth()][];
+		ParallelLoop.run(0, from.getDepth(), new ParallelLoop.Body() {
+			@Override
+			public void run(int begin, int end) {
+				float[] squared = new float[width * from.getHeight()];
+				for (int z = begin; z < end; z++) {
+					long[] words = from.getSliceWords(z);
+					int count = 0;
+					for (int i = 0; i < words.length; i++)
+						count += Long.bitCount(words[i]);
+					float[] distances = new float[count];
+					sliceDistances[z] = distances;
+					if (count == 0)
+						continue;
+					transform.computeSquaredDistances(z, squared);
+					count = 0;
+					for (int i = 0; i < words.length; i++) {
+						long bits = words[i];
+						int offset = (i / wordsPerRow) * width
+								+ (i % wordsPerRow) * 64;
+						while (bits != 0) {
+							distances[count++] = (float) Math.sqrt(squared[offset
+									+ Long.numberOfTrailingZeros(bits)]);
+							bits &= bits - 1;
+						}
+					}
+				}
+			}
+		});
+
+		int total = 0;
+		for (float[] distances : sliceDistances)
+			total += distances.length;
+		float[] all = new float[total];
+		int offset = 0;
+		for (float[] distances : sliceDistances) {
+			System.arraycopy(distances, 0, all, offset, distances.length);
+			offset += distances.length;
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	/**
+	 * @return true if both surfaces are empty or none of them is empty
+	 */
+	private boolean isComparable() {
+		return (refSurfaceSize == 0) == (imgSurfaceSize == 0);
+	}
+
+	/**
+	 * @return the symmetric Hausdorff distance (0 if both masks are empty,
+	 *         NaN if only one of them is empty)
+	 */
+	public double getHausdorffDistance() {
+		return getPercentileHausdorffDistance(100.0);
+	}
+
+	/**
+	 * @return the 95th percentile of the surface distances in both directions
+	 *         (0 if both masks are empty, NaN if only one of them is empty)
+	 */
+	public double getHausdorffDistance95() {
+		return getPercentileHausdorffDistance(95.0);
+	}
+
+	/**
+	 * @param percentile
+	 *            percentile (between 0 and 100) of the surface distances of
+	 *            both directions, 100 giving the Hausdorff distance
+	 * @return the percentile of the surface distances (nearest rank), 0 if
+	 *         both masks are empty, NaN if only one of them is empty
+	 */
+	public double getPercentileHausdorffDistance(double percentile) {
+		if (!isComparable())
+			return Double.NaN;
+		int n = refToImg.length + imgToRef.length;
+		if (n == 0)
+			return 0.0;
+		int rank = (int) Math.ceil(percentile / 100.0 * n);
+		rank = Math.min(Math.max(rank, 1), n);
+		// rank-th smallest value of the two sorted arrays
+		int i = 0;
+		int j = 0;
+		float value = 0;
+		for (int r = 0; r < rank; r++) {
+			if (j >= imgToRef.length
+					|| (i < refToImg.length && refToImg[i] <= imgToRef[j]))
+				value = refToImg[i++];
+			else
+				value = imgToRef[j++];
+		}
+		return value;
+	}
+
+	/**
+	 * @return the average symmetric surface distance: mean of the distances
+	 *         of the surface voxels of both masks to the other surface (0 if
+	 *         both masks are empty, NaN if only one of them is empty)
+	 */
+	public double getAverageSymmetricSurfaceDistance() {
+		if (!isComparable())
+			return Double.NaN;
+		int n = refToImg.length + imgToRef.length;
+		if (n == 0)
+			return 0.0;
+		return (sum(refToImg) + sum(imgToRef)) / n;
+	}
+
+	/**
+	 * @return the mean distance of the surface voxels of the reference mask
+	 *         to the surface of the compared mask (NaN if a surface is empty)
+	 */
+	public double getMeanDistanceRefToImg() {
+		if (refToImg.length == 0)
+			return Double.NaN;
+		return sum(refToImg) / refToImg.length;
+	}
+
+	/**
+	 * @return the mean distance of the surface voxels of the compared mask to
+	 *         the surface of the reference mask (NaN if a surface is empty)
+	 */
+	public double getMeanDistanceImgToRef() {
+		if (imgToRef.length == 0)
+			return Double.NaN;
+		return sum(imgToRef) / imgToRef.length;
+	}
+
+	private static double sum(float[] values) {
+		double sum = 0;
+		for (int i = 0; i < values.length; i++)
+			sum += values[i];
+		return sum;
+	}
+
+}
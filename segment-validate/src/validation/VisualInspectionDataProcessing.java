@@ -48,6 +48,10 @@ public class VisualInspectionDataProcessing {
 
 	private String segmentedV1ProjectionsFolder;
 	private String segmentedV2ProjectionsFolder;
+	// optional folders of the 3D segmented volumes (null = Dice index from
+	// the projections only)
+	private String segmentedV1VolumesFolder = null;
+	private String segmentedV2VolumesFolder = null;
 	private String outputFolder;
 	
 	private TreeMap<String, Double> diceIndexesPerImageSegV1;
@@ -484,9 +488,44 @@ public void eliminateUnusableData(String dataCsvFileName) {
 		}
 	}
 	
+	/**
+	 * Sets the folders of the 3D segmented volumes (imageName + "_seg.fits").
+	 * When both volumes of an image are found, the Dice index between the two
+	 * segmentations is computed voxel by voxel instead of being the mean of
+	 * the Dice indexes of the three max projections.
+	 * 
+	 * @param segmentedV1VolumesFolder
+	 *            folder of the volumes of the segmentation version 1
+	 * @param segmentedV2VolumesFolder
+	 *            folder of the volumes of the segmentation version 2
+	 */
+	public void setSegmentedVolumesFolders(String segmentedV1VolumesFolder,
+			String segmentedV2VolumesFolder) {
+		this.segmentedV1VolumesFolder = segmentedV1VolumesFolder;
+		this.segmentedV2VolumesFolder = segmentedV2VolumesFolder;
+	}
+	
 	public double computeDiceIndexBetweenTwoSegmentations(String imageName, 
 			int groundTruthSegVersion) {
 		
+		if (segmentedV1VolumesFolder != null
+				&& segmentedV2VolumesFolder != null) {
+			File volumeV1 = new File(segmentedV1VolumesFolder,
+					imageName + "_seg.fits");
+			File volumeV2 = new File(segmentedV2VolumesFolder,
+					imageName + "_seg.fits");
+			if (volumeV1.exists() && volumeV2.exists()) {
+				ImagePlus groundTruth = FitsLoader.read(groundTruthSegVersion == 1
+						? volumeV1.getPath() : volumeV2.getPath());
+				ImagePlus inaccurateShape = FitsLoader.read(
+						groundTruthSegVersion == 1 ? volumeV2.getPath()
+								: volumeV1.getPath());
+				if (groundTruth != null && inaccurateShape != null)
+					return SimilarityMetricsExtractor.computeDiceIndex3D(
+							groundTruth, inaccurateShape, 255);
+			}
+		}
+		
 		String folderGroundTruth = "";
 		String folderInaccurateShape = "";
 		if(groundTruthSegVersion == 1) {
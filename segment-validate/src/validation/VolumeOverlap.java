@@ -0,0 +1,246 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package validation;
+
+import ij.ImagePlus;
+import segment3D.BitMask3D;
+import util.ParallelLoop;
+
+/**
+ * This class compares two 3D segmentations voxel by voxel. Both volumes are
+ * packed in BitMask3D masks and the foreground voxels of each slice are
+ * counted on 64 voxels at a time (AND of the words and bit count), the
+ * slices being processed in parallel.
+ * 
+ * The result gives the 3D Venn diagram quantities, the Dice and Jaccard
+ * indexes of the two volumes and the same quantities for each slice (overlap
+ * profile along z).
+ * 
+ * @author pnb
+ * 
+ */
+public class VolumeOverlap {
+
+	private int width;
+	private int height;
+	private int depth;
+
+	// foreground voxels of both volumes, of the reference volume and of the
+	// compared volume, for each slice
+	private long[] sliceOverlap;
+	private long[] sliceRef;
+	private long[] sliceImg;
+
+	private long overlap = 0;
+	private long ref = 0;
+	private long img = 0;
+
+	private VolumeOverlap(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sliceOverlap = new long[depth];
+		this.sliceRef = new long[depth];
+		this.sliceImg = new long[depth];
+	}
+
+	/**
+	 * Compares two 3D masks
+	 * 
+	 * @param refMask
+	 *            the reference (manual) segmentation
+	 * @param imgMask
+	 *            the compared (auto) segmentation
+	 * @return the overlap of the two masks or null if they do not have the
+	 *         same size
+	 */
+	public static VolumeOverlap compare(final BitMask3D refMask,
+			final BitMask3D imgMask) {
+		if (refMask.getWidth() != imgMask.getWidth()
+				|| refMask.getHeight() != imgMask.getHeight()
+				|| refMask.getDepth() != imgMask.getDepth()) {
+			System.err.println("The two volumes cannot be compared, the sizes "
+					+ "are not the same.");
+			return null;
+		}
+
+		final VolumeOverlap result = new VolumeOverlap(refMask.getWidth(),
+				refMask.getHeight(), refMask.getDepth());
+		// each slice is counted by one thread (disjoint entries)
+		ParallelLoop.run(0, result.depth, new ParallelLoop.Body() {
+			@Override
+			public void run(int from, int to) {
+				for (int z = from; z < to; z++) {
+					long[] refWords = refMask.getSliceWords(z);
+					long[] imgWords = imgMask.getSliceWords(z);
+					long both = 0;
+					long onlyRef = 0;
+					long onlyImg = 0;
+					for (int i = 0; i < refWords.length; i++) {
+						both += Long.bitCount(refWords[i] & imgWords[i]);
+						onlyRef += Long.bitCount(refWords[i]);
+						onlyImg += Long.bitCount(imgWords[i]);
+					}
+					result.sliceOverlap[z] = both;
+					result.sliceRef[z] = onlyRef;
+					result.sliceImg[z] = onlyImg;
+				}
+			}
+		});
+
+		for (int z = 0; z < result.depth; z++) {
+			result.overlap += result.sliceOverlap[z];
+			result.ref += result.sliceRef[z];
+			result.img += result.sliceImg[z];
+		}
+		return result;
+	}
+
+	/**
+	 * Compares two 3D segmented images
+	 * 
+	 * @param refImage
+	 *            the reference (manual) segmented image (8 or 16 bits)
+	 * @param autoImage
+	 *            the compared (auto) segmented image (8 or 16 bits)
+	 * @param foregroundThreshold
+	 *            Threshold value for a voxel to be considered as foreground
+	 *            (voxel = foreground if voxel value >= threshold)
+	 * @return the overlap of the two images or null if they do not have the
+	 *         same size
+	 */
+	public static VolumeOverlap compare(ImagePlus refImage,
+			ImagePlus autoImage, int foregroundThreshold) {
+		if (refImage.getWidth() != autoImage.getWidth()
+				|| refImage.getHeight() != autoImage.getHeight()
+				|| refImage.getStackSize() != autoImage.getStackSize()) {
+			System.err.println("The two volumes cannot be compared, the sizes "
+					+ "are not the same.");
+			return null;
+		}
+		// the masks keep the voxels larger than the threshold (integer
+		// values)
+		return compare(
+				BitMask3D.fromImagePlus(refImage, foregroundThreshold - 1),
+				BitMask3D.fromImagePlus(autoImage, foregroundThreshold - 1));
+	}
+
+	/**
+	 * @return the Dice index of the two volumes (1.0 if none of them has a
+	 *         foreground voxel)
+	 */
+	public double getDiceIndex() {
+		return dice(overlap, ref, img);
+	}
+
+	/**
+	 * @return the Jaccard index of the two volumes (1.0 if none of them has a
+	 *         foreground voxel)
+	 */
+	public double getJaccardIndex() {
+		return jaccard(overlap, ref, img);
+	}
+
+	/**
+	 * @return the Dice index of the slice z
+	 */
+	public double getSliceDiceIndex(int z) {
+		return dice(sliceOverlap[z], sliceRef[z], sliceImg[z]);
+	}
+
+	/**
+	 * @return the Jaccard index of the slice z
+	 */
+	public double getSliceJaccardIndex(int z) {
+		return jaccard(sliceOverlap[z], sliceRef[z], sliceImg[z]);
+	}
+
+	private static double dice(long overlap, long ref, long img) {
+		if (ref == 0 && img == 0)
+			return 1.0;
+		return (2 * (double) overlap) / ((double) ref + (double) img);
+	}
+
+	private static double jaccard(long overlap, long ref, long img) {
+		if (ref == 0 && img == 0)
+			return 1.0;
+		return (double) overlap / (double) (ref + img - overlap);
+	}
+
+	/**
+	 * @return the number of voxels that are foreground in both volumes
+	 */
+	public long getSimilarFrgVoxels() {
+		return overlap;
+	}
+
+	/**
+	 * @return the number of voxels that are foreground in the reference
+	 *         volume only
+	 */
+	public long getOnlyRefFrgVoxels() {
+		return ref - overlap;
+	}
+
+	/**
+	 * @return the number of voxels that are foreground in the compared volume
+	 *         only
+	 */
+	public long getOnlyImgFrgVoxels() {
+		return img - overlap;
+	}
+
+	/**
+	 * @return the number of voxels of each volume
+	 */
+	public long getTotalVoxels() {
+		return (long) width * height * depth;
+	}
+
+	/**
+	 * @return the number of voxels that are foreground in both volumes, for
+	 *         each slice
+	 */
+	public long[] getSliceSimilarFrgVoxels() {
+		return sliceOverlap.clone();
+	}
+
+	/**
+	 * @return the number of foreground voxels of the reference volume, for
+	 *         each slice
+	 */
+	public long[] getSliceRefFrgVoxels() {
+		return sliceRef.clone();
+	}
+
+	/**
+	 * @return the number of foreground voxels of the compared volume, for
+	 *         each slice
+	 */
+	public long[] getSliceImgFrgVoxels() {
+		return sliceImg.clone();
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+}